@@ -0,0 +1,65 @@
+import java.util.*;
+
+/*
+ * Helpers shared by the measurement modes of TCPClient and TCPServer: the
+ * options of the command line, sizes such as 64K or 1G, rates and percentiles.
+ */
+public class Measure {
+   // parses options of the form -name value into a map. An option without a
+   // value, such as -help, maps to "true"
+   public static Map<String, String> options(String[] args) {
+      Map<String, String> options = new HashMap<String, String>();
+      for (int i = 0; i < args.length; i++) {
+         if (!args[i].startsWith("-")) {
+            throw new IllegalArgumentException("Options look like -name value, not " + args[i]);
+         }
+         String name = args[i].substring(1);
+         if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+            options.put(name, args[++i]);
+         } else {
+            options.put(name, "true");
+         }
+      }
+      return options;
+   }
+
+   // parses a size such as 512, 64K, 100M or 2G into a number of bytes
+   public static long parseSize(String size) {
+      String value = size.trim().toUpperCase();
+      long multiplier = 1;
+      if (value.endsWith("K")) {
+         multiplier = 1024L;
+      } else if (value.endsWith("M")) {
+         multiplier = 1024L * 1024;
+      } else if (value.endsWith("G")) {
+         multiplier = 1024L * 1024 * 1024;
+      }
+      return Long.parseLong(multiplier == 1 ? value : value.substring(0, value.length() - 1)) * multiplier;
+   }
+
+   // parses a time in seconds, such as 10 or 0.5, into nanoseconds
+   public static long parseSeconds(String seconds) {
+      return (long) (Double.parseDouble(seconds) * 1e9);
+   }
+
+   // formats an amount of bytes moved in an amount of nanoseconds as MB/s and
+   // Mbit/s
+   public static String rate(long bytes, long nanos) {
+      double seconds = Math.max(1, nanos) / 1e9;
+      return String.format("%10.1f MB/s %10.1f Mbit/s", bytes / seconds / 1048576, bytes * 8 / seconds / 1e6);
+   }
+
+   // prints one interval of a measurement, with the seconds since the start
+   public static void interval(long start, long from, long to, String amount) {
+      System.out.printf("[%6.1f-%6.1f s] %s%n", (from - start) / 1e9, (to - start) / 1e9, amount);
+   }
+
+   // gets a percentile of the first count values of a sorted array
+   public static long percentile(long[] sorted, int count, double percentile) {
+      if (count == 0) {
+         return 0;
+      }
+      int index = (int) Math.ceil(percentile / 100 * count) - 1;
+      return sorted[Math.max(0, Math.min(count - 1, index))];
+   }
+}
@@ -0,0 +1,193 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+
+/*
+ * Measures the throughput of the router's relay against a direct connection
+ * on loopback. A client streams bytes to a server, either directly or through
+ * a TCPServerRouter that runs in the same JVM, and the time is taken until
+ * the server read every byte. Through the router the client then closes its
+ * side, and the end of the stream has to reach the server and the server's
+ * end has to come back, or the run fails.
+ *
+ * Every client and server has its own loopback address, 127.0.1.x for the
+ * clients and 127.0.2.x for the servers, so several pairs can be relayed at
+ * once and the routing table holds two machines per pair.
+ *
+ * Usage: java RelayBenchmark [size] [pairs]
+ * size is the amount of data every client sends, such as 64M or 1G (the
+ * default), and pairs a comma separated list of the amounts of clients that
+ * send at once, 1,4,16 by default.
+ */
+public class RelayBenchmark {
+   public static void main(String[] args) throws Exception {
+      long size = Measure.parseSize(args.length > 0 ? args[0] : "1G");
+      String[] levels = (args.length > 1 ? args[1] : "1,4,16").split(",");
+
+      // The router prints every connection, which would bury the results
+      PrintStream report = System.out;
+      System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+      // Start the router on a free port
+      final ServerSocketChannel serverSocket = ServerSocketChannel.open();
+      serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      final RoutingTable table = new RoutingTable();
+      Thread router = new Thread(() -> {
+         try {
+            TCPServerRouter.serve(serverSocket, table);
+         } catch (IOException e) {
+            e.printStackTrace();
+         }
+      });
+      router.setDaemon(true);
+      router.start();
+      int port = serverSocket.socket().getLocalPort();
+
+      report.printf("%.0f MB per client%n", size / 1048576.0);
+      report.printf("%6s %14s %14s %8s%n", "pairs", "direct MB/s", "relayed MB/s", "ratio");
+      // Warm up
+      run(size / 4, 1, 0);
+      run(size / 4, 1, port);
+      for (String level : levels) {
+         int pairs = Integer.parseInt(level.trim());
+         double direct = run(size, pairs, 0);
+         double relayed = run(size, pairs, port);
+         report.printf("%6d %14.1f %14.1f %8.2f%n", pairs, direct, relayed, relayed / direct);
+      }
+      if (table.size() != 0) {
+         report.println("The routing table kept " + table.size() + " machines that disconnected!");
+      }
+      serverSocket.close();
+   }
+
+   // sends from every client to its server at once and returns the throughput
+   // of all pairs together in MB/s. A port of 0 connects the pairs directly
+   private static double run(final long size, int pairs, final int port) throws Exception {
+      final long[] received = new long[pairs];
+      final Throwable[] errors = new Throwable[1];
+      Thread[] threads = new Thread[pairs * 2];
+      final ServerSocketChannel[] listeners = new ServerSocketChannel[pairs];
+      for (int p = 0; p < pairs; p++) {
+         final String client = "127.0.1." + (p + 1);
+         final String server = "127.0.2." + (p + 1);
+         final int pair = p;
+         if (port == 0) {
+            listeners[p] = ServerSocketChannel.open();
+            listeners[p].bind(new InetSocketAddress(server, 0));
+         }
+         final CountDownLatch ready = new CountDownLatch(1);
+         threads[p * 2] = new Thread(() -> {
+            SocketChannel channel = null;
+            try {
+               if (port == 0) {
+                  ready.countDown();
+                  channel = listeners[pair].accept();
+               } else {
+                  channel = connect(server, client, port);
+                  ready.countDown();
+               }
+               received[pair] = drain(channel);
+               channel.close();
+            } catch (Throwable e) {
+               errors[0] = e;
+               ready.countDown();
+            }
+         });
+         threads[p * 2 + 1] = new Thread(() -> {
+            try {
+               // The server is in the routing table before the client sends
+               ready.await();
+               InetSocketAddress target = port == 0
+                     ? (InetSocketAddress) listeners[pair].getLocalAddress()
+                     : null;
+               try (SocketChannel channel = port == 0 ? open(client, target) : connect(client, server, port)) {
+                  fill(channel, size);
+                  channel.shutdownOutput();
+                  // The server closes its side once it read everything, and
+                  // that has to come back through the router
+                  if (channel.read(ByteBuffer.allocate(1)) != -1) {
+                     throw new IOException("The client did not get the end of the stream!");
+                  }
+               }
+            } catch (Throwable e) {
+               errors[0] = e;
+            }
+         });
+      }
+
+      long startTime = System.nanoTime();
+      for (Thread thread : threads) {
+         thread.start();
+      }
+      for (Thread thread : threads) {
+         thread.join();
+      }
+      long time = System.nanoTime() - startTime;
+      for (ServerSocketChannel listener : listeners) {
+         if (listener != null) {
+            listener.close();
+         }
+      }
+      if (errors[0] != null) {
+         throw new IOException("A pair failed: " + errors[0], errors[0]);
+      }
+      long total = 0;
+      for (int p = 0; p < pairs; p++) {
+         if (received[p] != size) {
+            throw new IOException("Server " + p + " received " + received[p] + " of " + size + " bytes!");
+         }
+         total += received[p];
+      }
+      return total * 1000000000.0 / time / 1048576;
+   }
+
+   // connects a machine to the router and asks for a destination the way
+   // TCPClient and TCPServer do
+   private static SocketChannel connect(String local, String destination, int port) throws IOException {
+      SocketChannel channel = open(local, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+      DataOutputStream dataOut = new DataOutputStream(channel.socket().getOutputStream());
+      DataInputStream dataIn = new DataInputStream(channel.socket().getInputStream());
+      dataOut.writeUTF(destination);
+      dataOut.flush();
+      dataIn.readUTF();
+      return channel;
+   }
+
+   // opens a connection from a local address
+   private static SocketChannel open(String local, InetSocketAddress remote) throws IOException {
+      SocketChannel channel = SocketChannel.open();
+      channel.bind(new InetSocketAddress(local, 0));
+      channel.connect(remote);
+      return channel;
+   }
+
+   // writes an amount of bytes to a channel
+   private static void fill(SocketChannel channel, long size) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+      long sent = 0;
+      while (sent < size) {
+         buffer.clear();
+         buffer.limit((int) Math.min(buffer.capacity(), size - sent));
+         while (buffer.hasRemaining()) {
+            sent += channel.write(buffer);
+         }
+      }
+   }
+
+   // reads from a channel until the end of the stream and returns the amount
+   // of bytes
+   private static long drain(SocketChannel channel) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+      long bytes = 0;
+      int read;
+      while ((read = channel.read(buffer)) != -1) {
+         bytes += read;
+         buffer.clear();
+      }
+      return bytes;
+   }
+
+}
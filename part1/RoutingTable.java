@@ -0,0 +1,47 @@
+import java.net.*;
+import java.util.*;
+
+/*
+ * Routing table of the router: the socket of every connected machine by its
+ * IP address. It grows with the machines that connect, and a machine that
+ * disconnects is removed again. A thread that looks up a machine which has
+ * not connected yet can wait for it.
+ */
+public class RoutingTable {
+   // sockets for communication by IP address
+   private final Map<String, Socket> table = new HashMap<String, Socket>();
+
+   // adds a machine, replacing an older connection from the same address
+   public synchronized void put(String addr, Socket socket) {
+      table.put(addr, socket);
+      notifyAll(); // wakes the threads waiting for a destination
+   }
+
+   // removes a machine if the address still belongs to this connection
+   public synchronized void remove(String addr, Socket socket) {
+      if (table.get(addr) == socket) {
+         table.remove(addr);
+      }
+   }
+
+   // gets the socket of a machine, waiting up to timeout milliseconds for it to
+   // connect. Returns null if it did not
+   public synchronized Socket await(String addr, long timeout) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeout;
+      Socket socket = table.get(addr);
+      while (socket == null) {
+         long remaining = deadline - System.currentTimeMillis();
+         if (remaining <= 0) {
+            return null;
+         }
+         wait(remaining);
+         socket = table.get(addr);
+      }
+      return socket;
+   }
+
+   // amount of machines in the table
+   public synchronized int size() {
+      return table.size();
+   }
+}
@@ -1,11 +1,23 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class SThread extends Thread {
+	// Size of the buffers the data is relayed through
+	private static final int BUFFER_SIZE = Integer.getInteger("router.bufferSize", 256 * 1024);
+
+	// Milliseconds to wait for the destination to connect to the router
+	private static final long DESTINATION_TIMEOUT = Long.getLong("router.destinationTimeout", 10000);
+
+	// Direct buffers of finished threads, reused by the next threads
+	private static final ConcurrentLinkedQueue<ByteBuffer> BUFFERS = new ConcurrentLinkedQueue<ByteBuffer>();
+
 	// Routing table
-	private Object[][] RTable;
-	// Two DataOutputStreams (for writing back to the machine and to destination)
-	private DataOutputStream out, outTwo;
+	private RoutingTable RTable;
+	// DataOutputStream (for writing back to the machine)
+	private DataOutputStream out;
 
 	// DataInputStreams
 	private DataInputStream in; // reader (for reading from the machine connected to)
@@ -13,14 +25,11 @@ public class SThread extends Thread {
 	// Variables for storing communication
 	private String outputLine, destination, addr;
 
-	// Integer variable to store bytes that are passed into the router
-	private int dataIn;
-
-	// Socket for communicating with a destination
-	private Socket outSocket;
+	// Sockets for communicating with the machine and with a destination
+	private Socket inSocket, outSocket;
 
 	// Constructor
-	SThread(Object[][] Table, Socket toClient, int index) throws IOException {
+	SThread(RoutingTable Table, Socket toClient) throws IOException {
 
 		/*
 		 * Pass the socket's streams into data streams for more portabiltity
@@ -34,9 +43,8 @@ public class SThread extends Thread {
 		// Routing table
 		RTable = Table;
 
+		inSocket = toClient;
 		addr = toClient.getInetAddress().getHostAddress();
-		RTable[index][0] = addr; // IP addresses
-		RTable[index][1] = toClient; // sockets for communication
 	}
 
 	// Run method (will run for each machine that connects to the ServerRouter)
@@ -58,44 +66,124 @@ public class SThread extends Thread {
 			out.flush();
 			System.out.println("Sent! - " + outputLine + "\n\n");
 
-			// waits 10 seconds to let the routing table fill with all machines' information
-			try {
-				Thread.currentThread().sleep(10000);
-			} catch (InterruptedException ie) {
-				System.out.println("Thread interrupted");
-			}
+			// The machine only gets into the routing table after its confirmation
+			// was sent, so relayed data never gets ahead of it
+			RTable.put(addr, inSocket);
 
 			//Start time before routing table is used
-			float startTime = System.nanoTime();
-			// loops through the routing table to find the destination
-			for (int i = 0; i < 10; i++) {
-				if (destination.equals((String) RTable[i][0])) {
-					outSocket = (Socket) RTable[i][1]; // gets the socket for communication from the table
-					System.out.println("Found destination in the routing table: " + destination);
-					outTwo = new DataOutputStream(outSocket.getOutputStream());
-				}
+			long startTime = System.nanoTime();
+			// waits for the destination to connect if it has not yet
+			outSocket = RTable.await(destination, DESTINATION_TIMEOUT);
+			if (outSocket != null) {
+				System.out.println("Found destination in the routing table: " + destination);
+			} else {
+				System.out.println("The destination never connected, discarding the data: " + destination);
 			}
 			System.out.println("Total routing time-" + (System.nanoTime() - startTime));
 
 			/* Communication loop that runs until the end of the stream is reached */
-			while ((dataIn = in.read()) != -1) {
-				if (outSocket != null) {
-					// Send: send the current byte of data to the destination
-					outTwo.write(dataIn);
-				}
+			startTime = System.nanoTime();
+			long bytes = relay();
+			long time = System.nanoTime() - startTime;
 
-				// Flush the stream to force the buffered output bytes to be written
-				outTwo.flush();
-			} // end while
-
-			System.out.println("Finished sending the file!");
-			System.exit(0);
+			System.out.println("Finished relaying " + bytes + " bytes from " + addr + " to " + destination + " in "
+					+ time / 1000000 + " ms (" + String.format("%.1f", bytes * 1000.0 / Math.max(1, time)) + " MB/s)");
 
 		} // end try
 		catch (IOException e) {
-			System.err.println("Could not listen to socket.");
-			System.exit(1);
+			System.err.println("Could not relay for " + addr + ": " + e.getMessage());
+		} catch (InterruptedException e) {
+			System.err.println("Thread interrupted");
+		} finally {
+			RTable.remove(addr, inSocket);
+			// Pass the end of the stream on, so the destination finishes too
+			if (outSocket != null) {
+				halfClose(outSocket, false);
+			}
+			halfClose(inSocket, true);
+		}
+	}
+
+	/*
+	 * Forwards everything the machine sends to the destination until the end of
+	 * the stream, in bulk through a direct buffer. Returns the amount of bytes.
+	 */
+	private long relay() throws IOException {
+		SocketChannel source = inSocket.getChannel();
+		SocketChannel target = outSocket == null ? null : outSocket.getChannel();
+		if (source == null || (outSocket != null && target == null)) {
+			return relayStreams();
+		}
+
+		ByteBuffer buffer = BUFFERS.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		long bytes = 0;
+		try {
+			int read;
+			while ((read = source.read(buffer)) != -1) {
+				bytes += read;
+				buffer.flip();
+				// Send: the data is dropped if there is no destination
+				while (target != null && buffer.hasRemaining()) {
+					target.write(buffer);
+				}
+				buffer.clear();
+			}
+		} finally {
+			buffer.clear();
+			BUFFERS.offer(buffer);
+		}
+		return bytes;
+	}
+
+	/*
+	 * Forwards everything the machine sends to the destination through a heap
+	 * buffer, for sockets that were not opened from channels
+	 */
+	private long relayStreams() throws IOException {
+		OutputStream outTwo = outSocket == null ? null : outSocket.getOutputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long bytes = 0;
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			bytes += read;
+			if (outTwo != null) {
+				outTwo.write(buffer, 0, read);
+			}
+		}
+		return bytes;
+	}
+
+	/*
+	 * Shuts down one direction of a socket, and closes it once both directions
+	 * are shut down. The thread of the machine shuts down its input and the
+	 * thread that relays to the machine its output, in either order.
+	 */
+	private static void halfClose(Socket socket, boolean input) {
+		synchronized (socket) {
+			try {
+				if (socket.isClosed()) {
+					return;
+				}
+				if (input) {
+					socket.shutdownInput();
+				} else {
+					socket.shutdownOutput();
+				}
+				if (socket.isInputShutdown() && socket.isOutputShutdown()) {
+					socket.close();
+				}
+			} catch (IOException e) {
+				// The machine closed the connection already
+				try {
+					socket.close();
+				} catch (IOException e1) {
+					System.err.println("Could not close the socket of " + socket.getInetAddress());
+				}
+			}
 		}
 	}
 
-}
\ No newline at end of file
+}
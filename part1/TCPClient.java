@@ -1,8 +1,32 @@
 import java.io.*;
 import java.net.*;
+import java.util.*;
 
+/*
+ * Connects to the router and sends data to the server it names. It measures
+ * the link in one of three modes, which it tells the server first:
+ * file sends a file (short.mp4 by default) in blocks of the buffer size,
+ * stream sends generated data for a time or an amount of bytes and reports
+ * the throughput every interval, like iperf, and
+ * rr sends requests of a size that the server echoes back, one at a time, and
+ * reports the percentiles of their round trips.
+ *
+ * Usage: java TCPClient [-router host] [-port 5555] [-bind address]
+ * [-dest address] [-mode file|stream|rr] [-file short.mp4] [-buffer 128K]
+ * [-time 10] [-bytes size] [-count requests] [-size 64] [-warmup 1]
+ * [-interval 1]
+ * The warmup seconds of the stream and rr modes are not counted, and -bytes
+ * or -count end them instead of -time.
+ */
 public class TCPClient {
    public static void main(String[] args) throws IOException {
+      Map<String, String> options = Measure.options(args);
+      if (options.containsKey("help")) {
+         System.out.println("java TCPClient [-router host] [-port 5555] [-bind address] [-dest address]"
+               + " [-mode file|stream|rr] [-file short.mp4] [-buffer 128K] [-time 10] [-bytes size]"
+               + " [-count requests] [-size 64] [-warmup 1] [-interval 1]");
+         return;
+      }
 
       /* Variables for setting up connection and communication */
       // socket to connect with the router
@@ -15,19 +39,27 @@ public class TCPClient {
       DataInputStream dataIn = null;
 
       // router host name
-      String routerName = "192.168.1.9";
+      String routerName = options.getOrDefault("router", "192.168.1.9");
 
       // port number
-      int SockNum = 5555;
+      int SockNum = Integer.parseInt(options.getOrDefault("port", "5555"));
+
+      // how the link is measured
+      String mode = options.getOrDefault("mode", "file");
 
-      // Stream to read in the bytes from a file on the client
-      FileInputStream fileInput = null;
+      // size of the blocks that are written
+      int bufferSize = (int) Measure.parseSize(options.getOrDefault("buffer", "128K"));
 
       /* Tries to connect to the router */
       try {
          System.out.println("\n==========================================");
-         // Connect to the router's socket
-         socket = new Socket(routerName, SockNum);
+         // Connect to the router's socket, from the given local address if there is one
+         socket = new Socket();
+         if (options.containsKey("bind")) {
+            socket.bind(new InetSocketAddress(options.get("bind"), 0));
+         }
+         socket.connect(new InetSocketAddress(routerName, SockNum));
+         socket.setTcpNoDelay(mode.equals("rr"));
          if (socket.isConnected()) {
             System.out.println("CLIENT is connected to the router!");
          } else {
@@ -35,10 +67,10 @@ public class TCPClient {
          }
 
          // DataOutputStream used for writing data to the router's socket
-         dataOut = new DataOutputStream(socket.getOutputStream());
+         dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), bufferSize));
 
          // DataInputStream used for reading data from the router's socket
-         dataIn = new DataInputStream(socket.getInputStream());
+         dataIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
 
       } catch (UnknownHostException e) {
          System.err.println("Don't know about router: " + routerName);
@@ -53,7 +85,7 @@ public class TCPClient {
       String fromServer;
 
       // Destination IP (Server)
-      String address = "192.168.1.9";
+      String address = options.getOrDefault("dest", "192.168.1.9");
 
       /* Communication process (initial sends/receives) */
       // send (initial): send the server's address to the router
@@ -69,39 +101,180 @@ public class TCPClient {
       fromServer = dataIn.readUTF();
       System.out.println("Received! - " + fromServer);
 
+      // Tell the server the mode, the size of the requests and the warmup, which
+      // the server leaves out of its rate as well
+      int requestSize = (int) Measure.parseSize(options.getOrDefault("size", "64"));
+      dataOut.writeUTF(mode);
+      dataOut.writeInt(requestSize);
+      dataOut.writeLong(Measure.parseSeconds(options.getOrDefault("warmup", "1")));
+      dataOut.flush();
+
+      if (mode.equals("stream")) {
+         stream(dataOut, options, bufferSize);
+      } else if (mode.equals("rr")) {
+         requestResponse(dataOut, dataIn, options, requestSize);
+      } else {
+         sendFile(dataOut, options.getOrDefault("file", "short.mp4"), bufferSize);
+      }
+
+      // Close the sending side and wait for the server to confirm what it received
+      dataOut.flush();
+      socket.shutdownOutput();
+      try {
+         System.out.println("The server received " + dataIn.readLong() + " bytes");
+      } catch (EOFException e) {
+         System.out.println("The server did not confirm what it received!");
+      }
+
+      // closing connections
+      dataIn.close();
+      dataOut.close();
+      socket.close();
+   }
+
+   // sends a file in blocks of the buffer size
+   private static void sendFile(DataOutputStream dataOut, String fileName, int bufferSize) throws IOException {
       // Take in a stream of data from a file
-      fileInput = new FileInputStream("short.mp4");
+      FileInputStream fileInput = new FileInputStream(fileName);
 
       // Communication while loop
       System.out.println("Sending file data to the client...");
       System.out.println("==========================================\n");
 
       // Start time of commucantion
-      float startTime = System.nanoTime();
+      long startTime = System.nanoTime();
       // Counts how many times the while loop need to write data
       int amountOfTransfers = 0;
 
       System.out.println("File size-" + fileInput.getChannel().size());
 
       // Iterate through all of the data from the given file
-      int contents;
-      while ((contents = fileInput.read()) != -1) {
-         // Send: send the current byte of data to the router
-         dataOut.write(contents);
+      byte[] contents = new byte[bufferSize];
+      long bytes = 0;
+      int read;
+      while ((read = fileInput.read(contents)) != -1) {
+         // Send: send the current block of data to the router
+         dataOut.write(contents, 0, read);
+         bytes += read;
          amountOfTransfers++;
       }
-      System.out.println("Total time for communcation is-" + (System.nanoTime() - startTime));
-      System.out.println("Number of Transfers-" + amountOfTransfers);
-      System.out.println("Avg time needed to send message-" + ((System.nanoTime() - startTime) / amountOfTransfers));
-
       // Flush the dataOut to ensure that all of the buffered bytes are written
       dataOut.flush();
+      long time = System.nanoTime() - startTime;
+      System.out.println("Total time for communcation is-" + time);
+      System.out.println("Number of Transfers-" + amountOfTransfers);
+      System.out.println("Avg time needed to send message-" + (time / Math.max(1, amountOfTransfers)));
+      System.out.println("Throughput-" + Measure.rate(bytes, time));
       System.out.println("Sent the file's data!");
 
-      // closing connections
-      dataIn.close();
       fileInput.close();
-      dataOut.close();
-      socket.close();
+   }
+
+   // sends generated data for a time or an amount of bytes, reporting the
+   // throughput of every interval
+   private static void stream(DataOutputStream dataOut, Map<String, String> options, int bufferSize)
+         throws IOException {
+      long warmup = Measure.parseSeconds(options.getOrDefault("warmup", "1"));
+      long duration = Measure.parseSeconds(options.getOrDefault("time", "10"));
+      long limit = options.containsKey("bytes") ? Measure.parseSize(options.get("bytes")) : Long.MAX_VALUE;
+      long interval = Measure.parseSeconds(options.getOrDefault("interval", "1"));
+
+      // Random data, so compression on the way does not flatter the link
+      byte[] block = new byte[bufferSize];
+      new Random(bufferSize).nextBytes(block);
+
+      System.out.println("Streaming " + (limit == Long.MAX_VALUE ? duration / 1000000000 + " s" : limit + " bytes")
+            + " in blocks of " + bufferSize + " bytes after a warmup of " + warmup / 1000000 + " ms...");
+      long startTime = System.nanoTime();
+      long measuredStart = -1; // time the warmup ended
+      long bytes = 0; // bytes sent since the warmup ended
+      long intervalStart = startTime;
+      long intervalBytes = 0;
+      while (true) {
+         long now = System.nanoTime();
+         if (now - intervalStart >= interval) {
+            Measure.interval(startTime, intervalStart, now, Measure.rate(intervalBytes, now - intervalStart)
+                  + (measuredStart < 0 ? " (warmup)" : ""));
+            intervalStart = now;
+            intervalBytes = 0;
+         }
+         if (measuredStart < 0 && now - startTime >= warmup) {
+            measuredStart = now;
+         }
+         if (measuredStart >= 0 && (bytes >= limit || (limit == Long.MAX_VALUE && now - measuredStart >= duration))) {
+            break;
+         }
+         int length = (int) Math.min(block.length, limit - bytes);
+         dataOut.write(block, 0, length);
+         intervalBytes += length;
+         if (measuredStart >= 0) {
+            bytes += length;
+         }
+      }
+      dataOut.flush();
+      long time = System.nanoTime() - measuredStart;
+      System.out.println("==========================================");
+      System.out.println("Sent " + bytes + " bytes in " + time / 1000000 + " ms " + Measure.rate(bytes, time));
+   }
+
+   // sends requests one at a time and waits for the server to echo each back,
+   // reporting the percentiles of the round trips
+   private static void requestResponse(DataOutputStream dataOut, DataInputStream dataIn, Map<String, String> options,
+         int requestSize) throws IOException {
+      long warmup = Measure.parseSeconds(options.getOrDefault("warmup", "1"));
+      long duration = Measure.parseSeconds(options.getOrDefault("time", "10"));
+      long limit = options.containsKey("count") ? Long.parseLong(options.get("count")) : Long.MAX_VALUE;
+      long interval = Measure.parseSeconds(options.getOrDefault("interval", "1"));
+
+      byte[] request = new byte[requestSize];
+      new Random(requestSize).nextBytes(request);
+      byte[] response = new byte[requestSize];
+
+      System.out.println("Sending requests of " + requestSize + " bytes after a warmup of " + warmup / 1000000
+            + " ms...");
+      long[] latencies = new long[1024]; // round trips since the warmup ended
+      int count = 0;
+      long startTime = System.nanoTime();
+      long measuredStart = -1; // time the warmup ended
+      long intervalStart = startTime;
+      int intervalCount = 0;
+      while (true) {
+         long now = System.nanoTime();
+         if (now - intervalStart >= interval) {
+            Measure.interval(startTime, intervalStart, now, String.format("%10.0f requests/s%s",
+                  intervalCount / ((now - intervalStart) / 1e9), measuredStart < 0 ? " (warmup)" : ""));
+            intervalStart = now;
+            intervalCount = 0;
+         }
+         if (measuredStart < 0 && now - startTime >= warmup) {
+            measuredStart = now;
+         }
+         if (measuredStart >= 0 && (count >= limit || (limit == Long.MAX_VALUE && now - measuredStart >= duration))) {
+            break;
+         }
+
+         // The round trip starts after the interval is printed
+         long sentTime = System.nanoTime();
+         dataOut.write(request);
+         dataOut.flush();
+         dataIn.readFully(response);
+         long latency = System.nanoTime() - sentTime;
+         intervalCount++;
+         if (measuredStart >= 0) {
+            if (count == latencies.length) {
+               latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+         }
+      }
+      long time = System.nanoTime() - measuredStart;
+
+      Arrays.sort(latencies, 0, count);
+      System.out.println("==========================================");
+      System.out.printf("%d requests in %d ms, %.0f requests/s%n", count, time / 1000000, count / (time / 1e9));
+      System.out.printf("round trip us: p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n",
+            Measure.percentile(latencies, count, 50) / 1e3, Measure.percentile(latencies, count, 90) / 1e3,
+            Measure.percentile(latencies, count, 99) / 1e3, Measure.percentile(latencies, count, 99.9) / 1e3,
+            Measure.percentile(latencies, count, 100) / 1e3);
    }
 }
@@ -1,8 +1,25 @@
 import java.io.*;
 import java.net.*;
-
+import java.util.*;
+
+/*
+ * Connects to the router and receives what the client it names sends, in the
+ * mode the client asks for: file saves the data to a file (out.mp4 by
+ * default), stream discards it and reports the throughput of every interval,
+ * and rr echoes every request back. At the end of the stream it tells the
+ * client how many bytes it received.
+ *
+ * Usage: java TCPServer [-router host] [-port 5555] [-bind address]
+ * [-dest address] [-file out.mp4] [-buffer 128K] [-interval 1]
+ */
 public class TCPServer {
    public static void main(String[] args) throws IOException {
+      Map<String, String> options = Measure.options(args);
+      if (options.containsKey("help")) {
+         System.out.println("java TCPServer [-router host] [-port 5555] [-bind address] [-dest address]"
+               + " [-file out.mp4] [-buffer 128K] [-interval 1]");
+         return;
+      }
 
       /* Variables for setting up connection and communication */
       // socket to connect with the router
@@ -15,20 +32,24 @@ public class TCPServer {
       DataInputStream dataIn = null;
 
       // router host name
-      String routerName = "192.168.1.9";
+      String routerName = options.getOrDefault("router", "192.168.1.9");
 
       // port number
-      int SockNum = 5555;
+      int SockNum = Integer.parseInt(options.getOrDefault("port", "5555"));
 
-      // FileOutputStream for writing recieved data to a file
-      FileOutputStream fileOutput = new FileOutputStream("out.mp4");
+      // size of the blocks that are read
+      int bufferSize = (int) Measure.parseSize(options.getOrDefault("buffer", "128K"));
 
       /* Tries to connect to the router */
       try {
 
          System.out.println("\n==========================================");
-         // Connect to the router's socket
-         socket = new Socket(routerName, SockNum);
+         // Connect to the router's socket, from the given local address if there is one
+         socket = new Socket();
+         if (options.containsKey("bind")) {
+            socket.bind(new InetSocketAddress(options.get("bind"), 0));
+         }
+         socket.connect(new InetSocketAddress(routerName, SockNum));
 
          // Print that the socket is connected
          if (socket.isConnected()) {
@@ -41,10 +62,10 @@ public class TCPServer {
          System.out.println("==========================================\n");
 
          // DataOutputStream used for writing string data to the router's socket
-         dataOut = new DataOutputStream(socket.getOutputStream());
+         dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 
          // DataInputStream used for reading raw data from the router's socket
-         dataIn = new DataInputStream(socket.getInputStream());
+         dataIn = new DataInputStream(new BufferedInputStream(socket.getInputStream(), bufferSize));
 
       } catch (UnknownHostException e) {
          System.err.println("Don't know about router: " + routerName);
@@ -57,7 +78,7 @@ public class TCPServer {
       /* Inital sends/recieves */
       // Send (initial): send the destination ip to the router
       // destination IP (Client)
-      String address = "192.168.1.8";
+      String address = options.getOrDefault("dest", "192.168.1.8");
       System.out.println("Output - address");
 
       // Write the address as a string to the dataOut
@@ -77,32 +98,124 @@ public class TCPServer {
       System.out.println("Waiting for file data from the client...");
       System.out.println("==========================================");
 
+      // The client starts with the mode, the size of its requests and its warmup
+      String mode = dataIn.readUTF();
+      int requestSize = dataIn.readInt();
+      long warmup = dataIn.readLong();
+      System.out.println("Mode - " + mode);
+      if (mode.equals("rr")) {
+         socket.setTcpNoDelay(true);
+      }
+
+      long bytes;
+      if (mode.equals("stream")) {
+         bytes = stream(dataIn, options, bufferSize, warmup);
+      } else if (mode.equals("rr")) {
+         bytes = echo(dataIn, dataOut, requestSize);
+      } else {
+         bytes = receiveFile(dataIn, options.getOrDefault("file", "out.mp4"), bufferSize);
+      }
+
+      // Tell the client how many bytes arrived
+      dataOut.writeLong(bytes);
+      dataOut.flush();
+
+      // closing connections
+      dataOut.close();
+      dataIn.close();
+      socket.close();
+
+      System.exit(0);
+
+   }
+
+   // saves everything the client sends to a file and returns the amount of bytes
+   private static long receiveFile(DataInputStream dataIn, String fileName, int bufferSize) throws IOException {
+      // FileOutputStream for writing recieved data to a file
+      FileOutputStream fileOutput = new FileOutputStream(fileName);
+
       // Start time of communication
-      float startTime = System.nanoTime();
+      long startTime = System.nanoTime();
 
       // Counts how many times the while loop needs to write data
       int amountOfTransfers = 0;
 
       // Loop until the end of the DataInputStream is reached
-      int data;
-      while ((data = dataIn.read()) != -1) {
-         // Send: send the current byte of data to the file
-         fileOutput.write(data);
+      byte[] data = new byte[bufferSize];
+      long bytes = 0;
+      int read;
+      while ((read = dataIn.read(data)) != -1) {
+         // Send: send the current block of data to the file
+         fileOutput.write(data, 0, read);
+         bytes += read;
          amountOfTransfers++;
       }
-      System.out.println("Total time for communcation is-" + (System.nanoTime() - startTime));
-      System.out.println("Number of Transfers/Received File Size-" + amountOfTransfers);
-      System.out.println("Avg time needed to send message-" + ((System.nanoTime() - startTime) / amountOfTransfers));
+      long time = System.nanoTime() - startTime;
+      System.out.println("Total time for communcation is-" + time);
+      System.out.println("Number of Transfers-" + amountOfTransfers + ", Received File Size-" + bytes);
+      System.out.println("Avg time needed to send message-" + (time / Math.max(1, amountOfTransfers)));
+      System.out.println("Throughput-" + Measure.rate(bytes, time));
 
       System.out.println("Finished receiving the file!");
 
-      // closing connections
       fileOutput.close();
-      dataOut.close();
-      dataIn.close();
-      socket.close();
+      return bytes;
+   }
 
-      System.exit(0);
+   // discards everything the client sends, reporting the throughput of every
+   // interval, and returns the amount of bytes. The bytes of the client's
+   // warmup are not counted in the rate, like on the client
+   private static long stream(DataInputStream dataIn, Map<String, String> options, int bufferSize, long warmup)
+         throws IOException {
+      long interval = Measure.parseSeconds(options.getOrDefault("interval", "1"));
+      byte[] data = new byte[bufferSize];
+      long startTime = System.nanoTime();
+      long measuredStart = -1; // time the warmup ended
+      long total = 0; // bytes received, with the warmup
+      long bytes = 0; // bytes received since the warmup ended
+      long intervalStart = startTime;
+      long intervalBytes = 0;
+      int read;
+      while ((read = dataIn.read(data)) != -1) {
+         long now = System.nanoTime();
+         if (measuredStart < 0 && now - startTime >= warmup) {
+            measuredStart = now;
+         }
+         total += read;
+         intervalBytes += read;
+         if (measuredStart >= 0) {
+            bytes += read;
+         }
+         if (now - intervalStart >= interval) {
+            Measure.interval(startTime, intervalStart, now, Measure.rate(intervalBytes, now - intervalStart)
+                  + (measuredStart < 0 ? " (warmup)" : ""));
+            intervalStart = now;
+            intervalBytes = 0;
+         }
+      }
+      long time = measuredStart < 0 ? 0 : System.nanoTime() - measuredStart;
+      System.out.println("==========================================");
+      System.out.println("Received " + bytes + " bytes in " + time / 1000000 + " ms " + Measure.rate(bytes, time)
+            + " after " + (total - bytes) + " bytes of warmup");
+      return total;
+   }
 
+   // echoes every request of the client back to it and returns the amount of
+   // bytes of the requests
+   private static long echo(DataInputStream dataIn, DataOutputStream dataOut, int requestSize) throws IOException {
+      byte[] request = new byte[requestSize];
+      long requests = 0;
+      while (true) {
+         try {
+            dataIn.readFully(request);
+         } catch (EOFException e) {
+            break;
+         }
+         dataOut.write(request);
+         dataOut.flush();
+         requests++;
+      }
+      System.out.println("Answered " + requests + " requests!");
+      return requests * requestSize;
    }
 }
@@ -1,47 +1,58 @@
 import java.net.*;
 import java.io.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 public class TCPServerRouter {
    public static void main(String[] args) throws IOException {
-      Socket clientSocket = null; // socket for the thread
-      Object[][] RoutingTable = new Object[10][2]; // routing table
-
-      Boolean running = true;
-      int ind = 0; // indext in the routing table
+      // port number, 5555 unless given as the first argument
+      int port = args.length > 0 ? Integer.parseInt(args[0]) : 5555;
 
       // Accepting connections
-      ServerSocket serverSocket = null; // server socket for accepting connections
+      ServerSocketChannel serverSocket = null; // server socket for accepting connections
       try {
          System.out.println("\n==========================================");
-         serverSocket = new ServerSocket(5555);
-         System.out.println("ROUTER is listening on port: 5555.");
+         // Opened from a channel so the data can be relayed between the channels of the sockets
+         serverSocket = ServerSocketChannel.open();
+         serverSocket.socket().setReuseAddress(true);
+         serverSocket.bind(new InetSocketAddress(port));
+         System.out.println("ROUTER is listening on port: " + port + ".");
          System.out.println("==========================================");
 
       } catch (IOException e) {
-         System.err.println("Could not listen on port: 5555.");
+         System.err.println("Could not listen on port: " + port + ".");
          System.exit(1);
       }
 
+      serve(serverSocket, new RoutingTable());
+   }
+
+   // accepts machines and relays for each of them on its own thread until the
+   // server socket is closed
+   public static void serve(ServerSocketChannel serverSocket, RoutingTable RoutingTable) throws IOException {
+      Socket clientSocket = null; // socket for the thread
+
       // Creating threads with accepted connections
-      while (running == true) {
+      while (serverSocket.isOpen()) {
          try {
-            clientSocket = serverSocket.accept();
-            SThread t = new SThread(RoutingTable, clientSocket, ind); // creates a thread with a random port
+            SocketChannel channel = serverSocket.accept();
+            clientSocket = channel.socket();
+            SThread t = new SThread(RoutingTable, clientSocket); // creates a thread for the machine
             t.start(); // starts the thread
-            ind++; // increments the index
 
             System.out.println(
                   "ROUTER connected with Client/Server: " + clientSocket.getInetAddress().getHostAddress());
             System.out.println("==========================================\n");
          } catch (IOException e) {
-            System.err.println("Client/Server failed to connect.");
-            System.exit(1);
+            if (serverSocket.isOpen()) {
+               System.err.println("Client/Server failed to connect.");
+               System.exit(1);
+            }
          }
       } // end while
 
       // closing connections
-      clientSocket.close();
       serverSocket.close();
 
    }
-}
\ No newline at end of file
+}
@@ -3,7 +3,8 @@ package part2;
 import part2.exceptions.NotConnectedToRouterException;
 import part2.nodes.Node;
 
-// This is for running a node that connects to RouterTwo
+// This is for running a node that connects to RouterTwo. The address and port
+// of the router can be given as arguments
 public class M1 {
 
     public static void main(final String[] args) {
@@ -11,7 +12,8 @@ public class M1 {
         // Connect this node to RouterTwo
         Node node;
         try {
-            node = new Node("192.168.1.5", 5557);
+            node = new Node(args.length > 0 ? args[0] : "192.168.1.5",
+                    args.length > 1 ? Integer.parseInt(args[1]) : 5557);
 
             // Get user input
             node.menu();
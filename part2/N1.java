@@ -3,7 +3,8 @@ package part2;
 import part2.exceptions.NotConnectedToRouterException;
 import part2.nodes.Node;
 
-// This is for running a node that connects to RouterOne
+// This is for running a node that connects to RouterOne. The address and port
+// of the router can be given as arguments
 public class N1 {
 
     public static void main(String[] args) {
@@ -13,7 +14,8 @@ public class N1 {
         // Connect this node to RouterOne
         Node node;
         try {
-            node = new Node("192.168.1.13", 5557);
+            node = new Node(args.length > 0 ? args[0] : "192.168.1.13",
+                    args.length > 1 ? Integer.parseInt(args[1]) : 5557);
 
             // Get user input
             node.menu();
@@ -14,8 +14,9 @@ public class RouterTwo {
             // Create a router of routerType "client"
             router = new SRouter("client");
 
-            // Connect to the router of routerType "server"
-            router.connectToRouter("192.168.1.13");
+            // Connect to the router of routerType "server", at the address given as
+            // the first argument
+            router.connectToRouter(args.length > 0 ? args[0] : "192.168.1.13");
 
             // Listen for nodes to connect to this router
             router.listenForNodes();
@@ -0,0 +1,113 @@
+package part2.bench;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import part2.transfer.BatchReceiver;
+import part2.transfer.BatchSender;
+import part2.transfer.TransferHeader;
+
+/**
+ * Measures sending a directory of many small files over loopback as one batch
+ * against sending the same files one session at a time, which costs a
+ * connection and a round trip for every file.
+ *
+ * Usage: java part2.bench.BatchBenchmark [files] [size]
+ * files is the amount of files in the directory, 2000 by default, and size is
+ * the size of every file, 16K by default.
+ */
+public class BatchBenchmark {
+
+    public static void main(final String[] args) throws Exception {
+        final int files = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int size = (int) BenchUtil.parseSize(args.length > 1 ? args[1] : "16K");
+
+        // Spread the files over a few directories
+        final Path source = Files.createTempDirectory("bench-batch-");
+        final byte[] data = new byte[size];
+        final Random random = new Random(files);
+        for (int i = 0; i < files; i++) {
+            final Path file = source.resolve("dir" + (i % 16)).resolve("file" + i + ".bin");
+            Files.createDirectories(file.getParent());
+            random.nextBytes(data);
+            Files.write(file, data);
+        }
+        final String remote = "bench-batch-" + System.nanoTime();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final Thread receiver = new Thread(() -> {
+                while (true) {
+                    try (SocketChannel channel = server.accept()) {
+                        final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                        TransferHeader.readStart(in);
+                        new BatchReceiver().receive(in, channel,
+                                new DataOutputStream(channel.socket().getOutputStream()));
+                    } catch (final IOException e) {
+                        return;
+                    }
+                }
+            });
+            receiver.setDaemon(true);
+            receiver.start();
+            final BatchSender sender = new BatchSender((InetSocketAddress) server.getLocalAddress());
+
+            System.out.printf("%-14s %8s %10s %12s %12s%n", "mode", "files", "ms", "files/s", "MB/s");
+
+            // One session per file
+            long startTime = System.nanoTime();
+            try (Stream<Path> paths = Files.walk(source)) {
+                for (final Path file : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+                    sender.send(file.toString(), remote + "/single/" + source.relativize(file.getParent()));
+                }
+            }
+            print("per file", files, size, System.nanoTime() - startTime);
+
+            // One batch for the whole directory
+            startTime = System.nanoTime();
+            sender.send(source.toString(), remote + "/batch");
+            print("batch", files, size, System.nanoTime() - startTime);
+        } finally {
+            delete(source);
+            delete(new File(remote).toPath());
+        }
+    }
+
+    /**
+     * print one row of the results
+     *
+     * @param mode    how the files were sent
+     * @param files   the amount of files
+     * @param size    the size of every file
+     * @param elapsed the time the files took to send in nanoseconds
+     */
+    private static void print(final String mode, final int files, final int size, final long elapsed) {
+        System.out.printf("%-14s %8d %10.1f %12.0f %12.2f%n", mode, files, elapsed / 1e6, files / (elapsed / 1e9),
+                BenchUtil.megabytesPerSecond((long) files * size, elapsed));
+    }
+
+    /**
+     * delete a directory and everything below it
+     *
+     * @param path the directory
+     */
+    private static void delete(final Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
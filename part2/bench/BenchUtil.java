@@ -0,0 +1,97 @@
+package part2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Helper functions shared by the benchmarks in this package.
+ */
+public final class BenchUtil {
+
+    private BenchUtil() {
+    }
+
+    /**
+     * parse a size such as 512, 64K, 100M or 2G into a number of bytes
+     *
+     * @param size the string representation of the size
+     * @return the amount of bytes
+     */
+    public static long parseSize(final String size) {
+        final String value = size.trim().toUpperCase();
+        final char unit = value.charAt(value.length() - 1);
+        long multiplier = 1;
+        if (unit == 'K') {
+            multiplier = 1024L;
+        } else if (unit == 'M') {
+            multiplier = 1024L * 1024;
+        } else if (unit == 'G') {
+            multiplier = 1024L * 1024 * 1024;
+        }
+        final String digits = multiplier == 1 ? value : value.substring(0, value.length() - 1);
+        return Long.parseLong(digits) * multiplier;
+    }
+
+    /**
+     * format an amount of bytes in a human readable way
+     *
+     * @param bytes the amount of bytes
+     * @return the formatted string
+     */
+    public static String formatSize(final long bytes) {
+        if (bytes >= 1024L * 1024 * 1024) {
+            return String.format("%.1fG", bytes / (1024.0 * 1024 * 1024));
+        } else if (bytes >= 1024L * 1024) {
+            return String.format("%.1fM", bytes / (1024.0 * 1024));
+        } else if (bytes >= 1024L) {
+            return String.format("%.1fK", bytes / 1024.0);
+        }
+        return bytes + "B";
+    }
+
+    /**
+     * convert an amount of bytes and a duration into megabytes per second
+     *
+     * @param bytes the amount of bytes
+     * @param nanos the duration in nanoseconds
+     * @return the throughput in MB/s
+     */
+    public static double megabytesPerSecond(final long bytes, final long nanos) {
+        return nanos <= 0 ? 0 : bytes * 1_000_000_000.0 / nanos / (1024 * 1024);
+    }
+
+    /**
+     * create a temporary file filled with pseudo random data. The file gets
+     * deleted when the JVM exits.
+     *
+     * @param size the size of the file in bytes
+     * @return the created file
+     * @throws IOException if the file cannot be written
+     */
+    public static File createTempFile(final long size) throws IOException {
+        final File file = File.createTempFile("bench-", ".bin");
+        file.deleteOnExit();
+
+        final Random random = new Random(size);
+        final byte[] block = new byte[1024 * 1024];
+        random.nextBytes(block);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            long written = 0;
+            while (written < size) {
+                // Vary the first bytes of every block so the blocks are not identical
+                block[0] = (byte) (written >>> 20);
+                final int length = (int) Math.min(block.length, size - written);
+                final ByteBuffer buffer = ByteBuffer.wrap(block, 0, length);
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
+            }
+        }
+        return file;
+    }
+}
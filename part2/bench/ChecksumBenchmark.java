@@ -0,0 +1,87 @@
+package part2.bench;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import part2.transfer.FramedReceiver;
+import part2.transfer.FramedSender;
+import part2.transfer.TransferHeader;
+import part2.transfer.TransferStats;
+
+/**
+ * Measures the cost of the per frame CRC32C of FramedSender and FramedReceiver
+ * against the same framing without checksums over loopback.
+ *
+ * Usage: java part2.bench.ChecksumBenchmark [sizes] [runs]
+ * sizes is a comma separated list such as 256M,1G (the default) and runs is
+ * the amount of times each case is repeated (3 by default). The best run is
+ * reported.
+ */
+public class ChecksumBenchmark {
+
+    public static void main(final String[] args) throws Exception {
+        final String sizes = args.length > 0 ? args[0] : "256M,1G";
+        final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        System.out.printf("%-8s %-12s %12s %10s%n", "size", "mode", "MB/s", "overhead");
+        for (final String size : sizes.split(",")) {
+            final File file = BenchUtil.createTempFile(BenchUtil.parseSize(size));
+
+            double baseline = 0;
+            for (final boolean checksums : new boolean[] { false, true }) {
+                double best = 0;
+                for (int run = 0; run < runs; run++) {
+                    final TransferStats stats = run(file, checksums);
+                    best = Math.max(best, BenchUtil.megabytesPerSecond(stats.getBytes(), stats.getElapsedNanos()));
+                }
+                if (!checksums) {
+                    baseline = best;
+                }
+                System.out.printf("%-8s %-12s %12.2f %9.1f%%%n", size, checksums ? "CRC32C" : "unchecked", best,
+                        checksums ? (baseline / best - 1) * 100 : 0.0);
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * send a file as frames over a loopback connection
+     *
+     * @param file      the file to send
+     * @param checksums true to checksum every frame
+     * @return the statistics of the receive
+     */
+    private static TransferStats run(final File file, final boolean checksums) throws Exception {
+        final File target = new File(file.getPath() + ".received");
+        target.deleteOnExit();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            final TransferStats[] received = new TransferStats[1];
+            final Thread receiver = new Thread(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                    TransferHeader.readStart(in);
+                    received[0] = new FramedReceiver().receive(in, channel,
+                            new DataOutputStream(channel.socket().getOutputStream()));
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            receiver.start();
+
+            final FramedSender sender = new FramedSender((InetSocketAddress) server.getLocalAddress());
+            sender.setChecksums(checksums);
+            sender.send(file.getPath(), target.getPath());
+            receiver.join();
+            target.delete();
+            return received[0];
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package part2.bench;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import part2.protocol.ControlCodec;
+import part2.protocol.ControlMessage;
+import part2.routers.RoutingIndex;
+
+/**
+ * Measures how long encoding and decoding one control message takes, and how
+ * many bytes of heap it allocates, for the binary codec and its text mode
+ * against the original protocol, which concatenated a String for every message
+ * and parsed it with split(":").
+ *
+ * Usage: java part2.bench.ControlCodecBenchmark [messages]
+ * messages is the amount of messages of every run, 10000000 by default.
+ */
+public class ControlCodecBenchmark {
+    // Amount of different messages that are cycled through
+    private static final int DISTINCT = 1024;
+
+    /**
+     * one way of encoding and decoding messages
+     */
+    private interface Codec {
+        /**
+         * encode message i and decode it again
+         *
+         * @param i the index of the message
+         * @return a value of the decoded message, so the work is not optimized away
+         */
+        int roundTrip(int i) throws Exception;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+
+        final Random random = new Random(42);
+        final ControlMessage[] inputs = new ControlMessage[DISTINCT];
+        final String[] origins = new String[DISTINCT];
+        final String[] destinations = new String[DISTINCT];
+        for (int i = 0; i < DISTINCT; i++) {
+            inputs[i] = new ControlMessage().set(ControlMessage.ROUTER_RESPONSE, i & 1, i, random.nextInt(),
+                    random.nextInt());
+            origins[i] = RoutingIndex.unpack(inputs[i].getOrigin());
+            destinations[i] = RoutingIndex.unpack(inputs[i].getDestination());
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(ControlCodec.MAX_MESSAGE);
+        final ControlMessage decoded = new ControlMessage();
+
+        System.out.printf("%d messages%n", messages);
+        System.out.printf("%-10s %10s %12s %10s%n", "codec", "ns/msg", "bytes/msg", "size");
+
+        run("binary", messages, ControlCodec.HEADER_LENGTH + ControlCodec.PAYLOAD_LENGTH, i -> {
+            buffer.clear();
+            ControlCodec.encode(inputs[i], buffer);
+            buffer.flip();
+            ControlCodec.decode(buffer, decoded);
+            return decoded.getDestination();
+        });
+
+        run("text", messages, 0, i -> {
+            buffer.clear();
+            ControlCodec.encodeText(inputs[i], buffer);
+            buffer.flip();
+            final int newline = ControlCodec.findLine(buffer);
+            ControlCodec.decodeText(buffer.array(), 0, newline, decoded);
+            return decoded.getDestination();
+        });
+
+        // What the routers did before: build the line, send its bytes, turn
+        // the received bytes back into a String and split it
+        run("split", messages, 0, i -> {
+            final String line = "router:response:" + origins[i] + ":" + destinations[i] + ":"
+                    + (inputs[i].isYes() ? "YES" : "NO");
+            final byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            final String received = new String(bytes, 0, bytes.length - 1, StandardCharsets.UTF_8);
+            final String[] parts = received.split(":");
+            return parts[3].length() + (parts[4].equals("YES") ? 1 : 0);
+        });
+    }
+
+    /**
+     * time one codec and print its row
+     *
+     * @param name     the name of the codec
+     * @param messages the amount of messages
+     * @param size     the size of an encoded message, or 0 if it varies
+     * @param codec    the codec
+     */
+    private static void run(final String name, final int messages, final int size, final Codec codec)
+            throws Exception {
+        // Warm up
+        int sink = 0;
+        for (int i = 0; i < messages / 10; i++) {
+            sink += codec.roundTrip(i & (DISTINCT - 1));
+        }
+
+        final long allocatedBefore = allocated();
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            sink += codec.roundTrip(i & (DISTINCT - 1));
+        }
+        final long time = System.nanoTime() - startTime;
+        final long bytes = allocated() - allocatedBefore;
+
+        System.out.printf("%-10s %10.1f %12.1f %10s%n", name, (double) time / messages, (double) bytes / messages,
+                size > 0 ? size + " B" : "varies");
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * gets the bytes of heap the current thread allocated so far
+     *
+     * @return the amount of bytes
+     */
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
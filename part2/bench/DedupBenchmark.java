@@ -0,0 +1,184 @@
+package part2.bench;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+import part2.transfer.ChunkList;
+import part2.transfer.ChunkStore;
+import part2.transfer.DedupReceiver;
+import part2.transfer.DedupSender;
+import part2.transfer.TransferHeader;
+import part2.transfer.TransferStats;
+
+/**
+ * Measures the parts of a dedup transfer that could limit it: content defined
+ * chunking and hashing, lookups in a full chunk store, and a transfer over
+ * loopback of a file that shares most of its chunks with a file received
+ * earlier. Chunking and lookups are reported as the throughput of file data
+ * they keep up with, to compare against the network.
+ *
+ * Usage: java part2.bench.DedupBenchmark [size] [entries]
+ * size is the size of the transferred files, 256M by default, and entries is
+ * the amount of chunks in the store for the lookup test, 262144 by default.
+ */
+public class DedupBenchmark {
+    // Size of a single modified region of the second file
+    private static final int REGION_SIZE = 64 * 1024;
+
+    public static void main(final String[] args) throws Exception {
+        final long size = BenchUtil.parseSize(args.length > 0 ? args[0] : "256M");
+        final int entries = args.length > 1 ? Integer.parseInt(args[1]) : 262144;
+        final File directory = Files.createTempDirectory("bench-chunks-").toFile();
+        directory.deleteOnExit();
+
+        // Chunk and hash a file
+        final File first = randomFile(size);
+        long startTime = System.nanoTime();
+        final ChunkList chunks = ChunkList.scan(first);
+        long elapsed = System.nanoTime() - startTime;
+        System.out.printf("chunking: %d chunks of %s on average, %.2f MB/s%n", chunks.getCount(),
+                BenchUtil.formatSize(size / Math.max(1, chunks.getCount())),
+                BenchUtil.megabytesPerSecond(size, elapsed));
+
+        // Look up hashes in a full store, half of which it holds
+        final ChunkStore lookups = new ChunkStore(new File(directory, "lookups"), entries);
+        final ChunkList held = new ChunkList();
+        final byte[] hashes = new byte[2 * entries * ChunkList.HASH_LENGTH];
+        new Random(1).nextBytes(hashes);
+        for (int i = 0; i < entries; i++) {
+            held.add((long) i * 65536, 65536, hashes, i * ChunkList.HASH_LENGTH);
+        }
+        lookups.addFile(first, held);
+
+        int found = 0;
+        startTime = System.nanoTime();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 2 * entries; i++) {
+                if (lookups.find(hashes, i * ChunkList.HASH_LENGTH) != null) {
+                    found++;
+                }
+            }
+        }
+        elapsed = System.nanoTime() - startTime;
+        final double perSecond = 10.0 * entries / (elapsed / 1e9);
+        System.out.printf("lookups: %d of %d found, %.0f lookups/s, %.2f GB/s of 64 KB chunks%n", found,
+                10 * entries, perSecond, perSecond * 65536 / 1e9);
+        lookups.close();
+
+        // Transfer a file and then a file that shares most of its chunks with it
+        final ChunkStore store = new ChunkStore(new File(directory, "store"), entries);
+        final File second = modify(first, 0.1);
+        final File target = new File(first.getPath() + ".received");
+        target.deleteOnExit();
+        System.out.printf("%-12s %14s %8s %10s%n", "file", "wire bytes", "wire", "ms");
+        print("first", run(store, first, target.getPath()));
+        print("10% changed", run(store, second, target.getPath() + "2"));
+        new File(target.getPath() + "2").delete();
+        target.delete();
+        second.delete();
+        first.delete();
+        store.close();
+    }
+
+    /**
+     * print one row of the transfer results
+     *
+     * @param label the file that was sent
+     * @param stats the statistics of the transfer
+     */
+    private static void print(final String label, final TransferStats stats) {
+        System.out.printf("%-12s %14d %7.1f%% %10.1f%n", label, stats.getWireBytes(),
+                100.0 * stats.getWireBytes() / stats.getBytes(), stats.getElapsedNanos() / 1e6);
+    }
+
+    /**
+     * create a file of random bytes, so no chunk repeats
+     *
+     * @param size the size of the file
+     * @return the file
+     */
+    private static File randomFile(final long size) throws Exception {
+        final File file = File.createTempFile("bench-", ".bin");
+        file.deleteOnExit();
+        final Random random = new Random(size);
+        final byte[] block = new byte[1024 * 1024];
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * create a copy of a file with random regions overwritten at even intervals
+     * and a few bytes inserted at the start
+     *
+     * @param file     the original file
+     * @param fraction the fraction of the file to overwrite
+     * @return the modified file
+     */
+    private static File modify(final File file, final double fraction) throws Exception {
+        final File modified = File.createTempFile("bench-", ".modified");
+        modified.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(modified)) {
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7 });
+            Files.copy(file.toPath(), out);
+        }
+
+        final Random random = new Random(42);
+        final byte[] region = new byte[REGION_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(modified, "rw")) {
+            final long length = raf.length();
+            final long regions = Math.max(1, (long) (length * fraction / REGION_SIZE));
+            final long interval = length / regions;
+            for (long i = 0; i < regions; i++) {
+                random.nextBytes(region);
+                raf.seek(i * interval + interval / 2);
+                raf.write(region, 0, (int) Math.min(REGION_SIZE, length - i * interval - interval / 2));
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * send a file to a DedupReceiver over a loopback connection
+     *
+     * @param store      the chunk store of the receiver
+     * @param file       the file to send
+     * @param remoteName the name the receiver saves the file under
+     * @return the statistics of the sender
+     */
+    private static TransferStats run(final ChunkStore store, final File file, final String remoteName)
+            throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            final Thread receiver = new Thread(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                    TransferHeader.readStart(in);
+                    new DedupReceiver(store).receive(in, new DataOutputStream(channel.socket().getOutputStream()));
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            receiver.start();
+
+            final TransferStats stats = new DedupSender((InetSocketAddress) server.getLocalAddress())
+                    .send(file.getPath(), remoteName);
+            receiver.join();
+            return stats;
+        }
+    }
+}
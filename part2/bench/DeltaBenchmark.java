@@ -0,0 +1,136 @@
+package part2.bench;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+import part2.transfer.DeltaReceiver;
+import part2.transfer.DeltaSender;
+import part2.transfer.TransferHeader;
+import part2.transfer.TransferStats;
+
+/**
+ * Measures the bytes on the wire and the wall time of DeltaSender and
+ * DeltaReceiver over loopback when the receiver already has an older copy of
+ * the file. The new file differs from the old copy in regions spread over the
+ * whole file, and a few bytes are inserted at its start so every block is
+ * shifted. A receiver without a copy is measured as the baseline.
+ *
+ * Usage: java part2.bench.DeltaBenchmark [size] [percentages]
+ * size is the size of the file, 256M by default, and percentages is a comma
+ * separated list of how much of the file is modified, 1,10,50 by default.
+ */
+public class DeltaBenchmark {
+    // Size of a single modified region
+    private static final int REGION_SIZE = 16 * 1024;
+
+    public static void main(final String[] args) throws Exception {
+        final String size = args.length > 0 ? args[0] : "256M";
+        final String percentages = args.length > 1 ? args[1] : "1,10,50";
+
+        final File file = BenchUtil.createTempFile(BenchUtil.parseSize(size));
+        final File copy = new File(file.getPath() + ".copy");
+        copy.deleteOnExit();
+
+        System.out.printf("%-8s %-10s %14s %8s %10s%n", "size", "modified", "wire bytes", "wire", "ms");
+        copy.delete();
+        print(size, "no copy", run(file, copy));
+
+        for (final String percentage : percentages.split(",")) {
+            // The receiver keeps the original file and the sender has the modified one
+            final File modified = modify(file, Double.parseDouble(percentage) / 100);
+            Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            print(size, percentage + "%", run(modified, copy));
+            modified.delete();
+        }
+        copy.delete();
+        file.delete();
+    }
+
+    /**
+     * print one row of the results
+     *
+     * @param size  the size of the file
+     * @param label what was modified
+     * @param stats the statistics of the transfer
+     */
+    private static void print(final String size, final String label, final TransferStats stats) {
+        System.out.printf("%-8s %-10s %14d %7.1f%% %10.1f%n", size, label, stats.getWireBytes(),
+                100.0 * stats.getWireBytes() / stats.getBytes(), stats.getElapsedNanos() / 1e6);
+    }
+
+    /**
+     * create a modified copy of a file. A few bytes are inserted at the start
+     * and random regions are overwritten at even intervals.
+     *
+     * @param file     the original file
+     * @param fraction the fraction of the file to overwrite
+     * @return the modified file
+     */
+    private static File modify(final File file, final double fraction) throws Exception {
+        final File modified = File.createTempFile("bench-", ".modified");
+        modified.deleteOnExit();
+        Files.copy(file.toPath(), modified.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        final Random random = new Random(42);
+        final byte[] region = new byte[REGION_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(modified, "rw")) {
+            final long length = raf.length();
+            final long regions = Math.max(1, (long) (length * fraction / REGION_SIZE));
+            final long interval = length / regions;
+            for (long i = 0; i < regions; i++) {
+                random.nextBytes(region);
+                raf.seek(i * interval);
+                raf.write(region, 0, (int) Math.min(REGION_SIZE, length - i * interval));
+            }
+        }
+
+        // Shift every block by inserting bytes at the start
+        final File shifted = File.createTempFile("bench-", ".modified");
+        shifted.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(shifted)) {
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7 });
+            Files.copy(modified.toPath(), out);
+        }
+        modified.delete();
+        return shifted;
+    }
+
+    /**
+     * send the delta of a file over a loopback connection
+     *
+     * @param file the file to send
+     * @param copy the receiver's copy of the file, which may not exist
+     * @return the statistics of the sender
+     */
+    private static TransferStats run(final File file, final File copy) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            final Thread receiver = new Thread(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                    TransferHeader.readStart(in);
+                    new DeltaReceiver().receive(in, new DataOutputStream(channel.socket().getOutputStream()));
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            receiver.start();
+
+            final TransferStats stats = new DeltaSender((InetSocketAddress) server.getLocalAddress())
+                    .send(file.getPath(), copy.getPath());
+            receiver.join();
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package part2.bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs microbenchmarks the way JMH does, without needing JMH on the class
+ * path: every benchmark runs warmup iterations that are thrown away and then
+ * measured iterations of a fixed time, and its score is the mean of the
+ * measured iterations with a 99.9% confidence interval. The results are
+ * printed as a table and can be written as JSON in the format of JMH, so the
+ * tools that read JMH results read them too.
+ *
+ * A run can be compared against the JSON of an earlier run. A benchmark
+ * regressed if it got worse by more than the tolerance and by more than the
+ * errors of both runs together.
+ *
+ * The harness is configured with system properties:
+ * bench.warmup is the amount of warmup iterations, 3 by default,
+ * bench.iterations the amount of measured iterations, 5 by default,
+ * bench.time the time of every iteration in milliseconds, 1000 by default,
+ * bench.include a regular expression the names of the benchmarks that run
+ * have to contain, bench.json a file the results are written to,
+ * bench.baseline the JSON of an earlier run to compare against and
+ * bench.tolerance the change that is not a regression yet, 0.1 by default.
+ */
+public class Harness {
+    // Student's t for a two sided 99.9% interval by degrees of freedom, from
+    // 1 to 30. More degrees of freedom use the normal distribution
+    private static final double[] T_999 = { 636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781,
+            4.587, 4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850, 3.819, 3.792, 3.768,
+            3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646 };
+    private static final double Z_999 = 3.291;
+
+    private static long sink; // values of the benchmarks, so their work is not optimized away
+
+    /**
+     * The ways a benchmark is scored
+     */
+    public enum Mode {
+        THROUGHPUT("thrpt"), // amount of operations per second, higher is better
+        AVERAGE_TIME("avgt"); // nanoseconds per operation, lower is better
+
+        private final String label; // name of the mode in the results of JMH
+
+        Mode(final String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * one invocation of a benchmark
+     */
+    public interface Invocation {
+        /**
+         * do the work of the benchmark once
+         *
+         * @return the amount of operations or bytes the invocation did
+         */
+        long invoke() throws Exception;
+    }
+
+    /**
+     * The measured iterations of one benchmark with one set of parameters
+     */
+    public static final class Result {
+        private final String benchmark; // full name of the benchmark
+        private final Map<String, String> params; // parameters the benchmark ran with
+        private final Mode mode; // how the benchmark is scored
+        private final String unit; // unit of the score
+        private final double[] scores; // score of every measured iteration
+
+        private Result(final String benchmark, final Map<String, String> params, final Mode mode,
+                final String unit, final double[] scores) {
+            this.benchmark = benchmark;
+            this.params = params;
+            this.mode = mode;
+            this.unit = unit;
+            this.scores = scores;
+        }
+
+        /**
+         * gets the mean score of the measured iterations
+         *
+         * @return the score
+         */
+        public double getScore() {
+            double sum = 0;
+            for (final double score : scores) {
+                sum += score;
+            }
+            return sum / scores.length;
+        }
+
+        /**
+         * gets half the width of the 99.9% confidence interval of the score
+         *
+         * @return the error, or NaN if there was a single iteration
+         */
+        public double getError() {
+            if (scores.length < 2) {
+                return Double.NaN;
+            }
+            final double mean = getScore();
+            double squares = 0;
+            for (final double score : scores) {
+                squares += (score - mean) * (score - mean);
+            }
+            final int freedom = scores.length - 1;
+            final double t = freedom <= T_999.length ? T_999[freedom - 1] : Z_999;
+            return t * Math.sqrt(squares / freedom) / Math.sqrt(scores.length);
+        }
+
+        /**
+         * gets the key the result is matched with in other runs: the name of
+         * the benchmark and its parameters
+         *
+         * @return the key
+         */
+        public String getKey() {
+            return benchmark + params;
+        }
+    }
+
+    private final String prefix; // class the benchmarks belong to
+    private final int warmup = Integer.getInteger("bench.warmup", 3); // warmup iterations per benchmark
+    private final int iterations = Integer.getInteger("bench.iterations", 5); // measured iterations per benchmark
+    private final long time = Long.getLong("bench.time", 1000); // milliseconds per iteration
+    private final Pattern include = Pattern.compile(System.getProperty("bench.include", "")); // benchmarks that run
+    private final List<Result> results = new ArrayList<>(); // results of the benchmarks that ran
+
+    /**
+     * create a harness for the benchmarks of a class
+     *
+     * @param type the class the benchmarks belong to
+     */
+    public Harness(final Class<?> type) {
+        this.prefix = type.getName() + ".";
+    }
+
+    /**
+     * build the parameters of a benchmark
+     *
+     * @param namesAndValues the names of the parameters, each followed by its
+     *                       value
+     * @return the parameters in order
+     */
+    public static Map<String, String> params(final Object... namesAndValues) {
+        final Map<String, String> params = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+            params.put(String.valueOf(namesAndValues[i]), String.valueOf(namesAndValues[i + 1]));
+        }
+        return params;
+    }
+
+    /**
+     * keep a value a benchmark computed, so the JIT cannot leave out the work
+     * that computed it
+     *
+     * @param value the value
+     */
+    public static void consume(final long value) {
+        sink ^= value;
+    }
+
+    /**
+     * tell whether a benchmark is selected by bench.include. Benchmarks that
+     * need expensive setup check this first.
+     *
+     * @param name the name of the benchmark
+     * @return true if it runs
+     */
+    public boolean includes(final String name) {
+        return include.matcher(prefix + name).find();
+    }
+
+    /**
+     * run a benchmark scored in operations per second
+     *
+     * @param name       the name of the benchmark
+     * @param params     the parameters it runs with
+     * @param unit       the unit of the score
+     * @param perUnit    the amount of operations that make one unit, such as
+     *                   1048576 bytes for MB/s
+     * @param invocation the work of the benchmark
+     */
+    public void throughput(final String name, final Map<String, String> params, final String unit,
+            final double perUnit, final Invocation invocation) throws Exception {
+        run(name, params, Mode.THROUGHPUT, unit, perUnit, invocation);
+    }
+
+    /**
+     * run a benchmark scored in nanoseconds per operation
+     *
+     * @param name       the name of the benchmark
+     * @param params     the parameters it runs with
+     * @param invocation the work of the benchmark
+     */
+    public void averageTime(final String name, final Map<String, String> params, final Invocation invocation)
+            throws Exception {
+        run(name, params, Mode.AVERAGE_TIME, "ns/op", 1, invocation);
+    }
+
+    /**
+     * run the iterations of a benchmark and keep its result
+     *
+     * @param name       the name of the benchmark
+     * @param params     the parameters it runs with
+     * @param mode       how it is scored
+     * @param unit       the unit of the score
+     * @param perUnit    the amount of operations that make one unit
+     * @param invocation the work of the benchmark
+     */
+    private void run(final String name, final Map<String, String> params, final Mode mode, final String unit,
+            final double perUnit, final Invocation invocation) throws Exception {
+        if (!includes(name)) {
+            return;
+        }
+        System.out.printf("# %s%s%s%n", prefix, name, params.isEmpty() ? "" : " " + params);
+        for (int i = 0; i < warmup; i++) {
+            System.out.printf("Warmup %d: %s%n", i + 1, format(iteration(mode, perUnit, invocation), unit));
+        }
+        final double[] scores = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            scores[i] = iteration(mode, perUnit, invocation);
+            System.out.printf("Iteration %d: %s%n", i + 1, format(scores[i], unit));
+        }
+        results.add(new Result(prefix + name, params, mode, unit, scores));
+    }
+
+    /**
+     * invoke a benchmark until the time of an iteration is over
+     *
+     * @param mode       how the benchmark is scored
+     * @param perUnit    the amount of operations that make one unit
+     * @param invocation the work of the benchmark
+     * @return the score of the iteration
+     */
+    private double iteration(final Mode mode, final double perUnit, final Invocation invocation) throws Exception {
+        long operations = 0;
+        final long startTime = System.nanoTime();
+        final long end = startTime + time * 1000000;
+        long now;
+        do {
+            operations += invocation.invoke();
+            now = System.nanoTime();
+        } while (now < end);
+        final long elapsed = now - startTime;
+        if (mode == Mode.AVERAGE_TIME) {
+            return (double) elapsed / Math.max(1, operations);
+        }
+        return operations / perUnit / (elapsed / 1e9);
+    }
+
+    /**
+     * print the results of the benchmarks that ran, write them as JSON and
+     * compare them with an earlier run if the properties ask for it
+     *
+     * @return the amount of benchmarks that regressed
+     * @throws IOException if the JSON cannot be written or read
+     */
+    public int finish() throws IOException {
+        System.out.println();
+        System.out.printf("%-50s %-6s %4s %14s %12s  %s%n", "Benchmark", "Mode", "Cnt", "Score", "Error", "Units");
+        for (final Result result : results) {
+            final String params = result.params.isEmpty() ? "" : " " + result.params;
+            System.out.printf("%-50s %-6s %4d %14.3f +- %10.3f  %s%n",
+                    result.benchmark.substring(prefix.length()) + params, result.mode.label, result.scores.length,
+                    result.getScore(), result.getError(), result.unit);
+        }
+
+        final String json = System.getProperty("bench.json");
+        if (json != null) {
+            writeJson(json);
+            System.out.println("Results written to " + json);
+        }
+        final String baseline = System.getProperty("bench.baseline");
+        return baseline == null ? 0 : compare(baseline);
+    }
+
+    /**
+     * write the results in the JSON format of JMH
+     *
+     * @param fileName the file to write
+     * @throws IOException if the file cannot be written
+     */
+    private void writeJson(final String fileName) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName),
+                StandardCharsets.UTF_8))) {
+            out.println("[");
+            for (int r = 0; r < results.size(); r++) {
+                final Result result = results.get(r);
+                final double score = result.getScore();
+                final double error = result.getError();
+                out.println("    {");
+                out.printf("        \"jmhVersion\" : \"none\",%n");
+                out.printf("        \"benchmark\" : %s,%n", quote(result.benchmark));
+                out.printf("        \"mode\" : \"%s\",%n", result.mode.label);
+                out.printf("        \"threads\" : 1,%n");
+                out.printf("        \"forks\" : 0,%n");
+                out.printf("        \"jvm\" : %s,%n", quote(System.getProperty("java.home") + "/bin/java"));
+                out.printf("        \"jdkVersion\" : %s,%n", quote(System.getProperty("java.version")));
+                out.printf("        \"vmName\" : %s,%n", quote(System.getProperty("java.vm.name")));
+                out.printf("        \"vmVersion\" : %s,%n", quote(System.getProperty("java.vm.version")));
+                out.printf("        \"warmupIterations\" : %d,%n", warmup);
+                out.printf("        \"warmupTime\" : \"%d ms\",%n", time);
+                out.printf("        \"measurementIterations\" : %d,%n", iterations);
+                out.printf("        \"measurementTime\" : \"%d ms\",%n", time);
+                if (!result.params.isEmpty()) {
+                    out.println("        \"params\" : {");
+                    int p = 0;
+                    for (final Map.Entry<String, String> param : result.params.entrySet()) {
+                        out.printf("            %s : %s%s%n", quote(param.getKey()), quote(param.getValue()),
+                                ++p < result.params.size() ? "," : "");
+                    }
+                    out.println("        },");
+                }
+                out.println("        \"primaryMetric\" : {");
+                out.printf("            \"score\" : %s,%n", number(score));
+                out.printf("            \"scoreError\" : %s,%n", number(error));
+                out.printf("            \"scoreConfidence\" : [ %s, %s ],%n", number(score - error),
+                        number(score + error));
+                out.printf("            \"scoreUnit\" : %s,%n", quote(result.unit));
+                out.println("            \"rawData\" : [");
+                out.print("                [ ");
+                for (int i = 0; i < result.scores.length; i++) {
+                    out.print((i > 0 ? ", " : "") + number(result.scores[i]));
+                }
+                out.println(" ]");
+                out.println("            ]");
+                out.println("        },");
+                out.println("        \"secondaryMetrics\" : {");
+                out.println("        }");
+                out.println(r + 1 < results.size() ? "    }," : "    }");
+            }
+            out.println("]");
+        }
+    }
+
+    /**
+     * compare the results with the JSON of an earlier run, which this harness
+     * or JMH wrote, and print the change of every benchmark both ran
+     *
+     * @param fileName the JSON of the earlier run
+     * @return the amount of benchmarks that regressed
+     * @throws IOException if the file cannot be read
+     */
+    private int compare(final String fileName) throws IOException {
+        final double tolerance = Double.parseDouble(System.getProperty("bench.tolerance", "0.1"));
+        final Map<String, double[]> baseline = readJson(fileName);
+
+        System.out.println();
+        System.out.printf("%-50s %14s %14s %9s%n", "Against " + fileName, "Before", "After", "Change");
+        int regressions = 0;
+        for (final Result result : results) {
+            final double[] before = baseline.get(result.getKey());
+            if (before == null) {
+                continue;
+            }
+            final double score = result.getScore();
+            final double change = (score - before[0]) / before[0];
+            // Lower throughput or a higher average time is worse
+            final double worse = result.mode == Mode.THROUGHPUT ? -change : change;
+            final double errors = (nan(result.getError()) + nan(before[1])) / before[0];
+            final boolean regressed = worse > tolerance && worse > errors;
+            if (regressed) {
+                regressions++;
+            }
+            final String params = result.params.isEmpty() ? "" : " " + result.params;
+            System.out.printf("%-50s %14.3f %14.3f %+8.1f%%%s%n",
+                    result.benchmark.substring(prefix.length()) + params, before[0], score, change * 100,
+                    regressed ? "  REGRESSED" : "");
+        }
+        System.out.println(regressions + " regressions");
+        return regressions;
+    }
+
+    /**
+     * read the scores and errors of the benchmarks in a JSON file of results.
+     * Only the fields the comparison needs are read, so the file only has to
+     * look like the results of JMH.
+     *
+     * @param fileName the file
+     * @return the score and the error by the key of every result
+     * @throws IOException if the file cannot be read
+     */
+    private static Map<String, double[]> readJson(final String fileName) throws IOException {
+        final String json = new String(Files.readAllBytes(Paths.get(fileName)), StandardCharsets.UTF_8);
+        final Pattern field = Pattern.compile("\"(benchmark|params|score|scoreError)\"\\s*:\\s*"
+                + "(\"(?:[^\"\\\\]|\\\\.)*\"|\\{[^}]*\\}|[-+0-9.eE]+)");
+        final Pattern param = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+        final Map<String, double[]> scores = new HashMap<>();
+        String benchmark = null;
+        Map<String, String> params = new LinkedHashMap<>();
+        double score = Double.NaN;
+        final Matcher matcher = field.matcher(json);
+        while (matcher.find()) {
+            final String value = matcher.group(2);
+            switch (matcher.group(1)) {
+            case "benchmark":
+                benchmark = unquote(value);
+                params = new LinkedHashMap<>();
+                break;
+            case "params":
+                final Matcher entry = param.matcher(value);
+                while (entry.find()) {
+                    params.put(unquote('"' + entry.group(1) + '"'), unquote('"' + entry.group(2) + '"'));
+                }
+                break;
+            case "score":
+                score = Double.parseDouble(value);
+                break;
+            default:
+                // The error is the last field of a result that is needed
+                if (benchmark != null) {
+                    scores.put(benchmark + params, new double[] { score, Double.parseDouble(value.replace("\"", "")) });
+                }
+                benchmark = null;
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * quote a string for JSON
+     *
+     * @param value the string
+     * @return the quoted string
+     */
+    private static String quote(final String value) {
+        return '"' + String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    /**
+     * remove the quotes of a JSON string
+     *
+     * @param value the quoted string
+     * @return the string
+     */
+    private static String unquote(final String value) {
+        return value.substring(1, value.length() - 1).replace("\\\"", "\"").replace("\\\\", "\\");
+    }
+
+    /**
+     * format a number for JSON, which writes NaN as a string like JMH does
+     *
+     * @param value the number
+     * @return the formatted number
+     */
+    private static String number(final double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    /**
+     * format a score for the log of a run
+     *
+     * @param score the score
+     * @param unit  the unit of the score
+     * @return the formatted score
+     */
+    private static String format(final double score, final String unit) {
+        return String.format("%.3f %s", score, unit);
+    }
+
+    /**
+     * treat an unknown error as no error
+     *
+     * @param error the error
+     * @return the error, or 0 if it is NaN
+     */
+    private static double nan(final double error) {
+        return Double.isNaN(error) ? 0 : error;
+    }
+}
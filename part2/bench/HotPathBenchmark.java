@@ -0,0 +1,295 @@
+package part2.bench;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import part2.protocol.ControlCodec;
+import part2.protocol.ControlMessage;
+import part2.protocol.ControlStream;
+import part2.routers.RoutingIndex;
+import part2.transfer.FileReceiver;
+import part2.transfer.FileSender;
+
+/**
+ * The benchmarks of the hot paths that are tracked between releases, run by
+ * the Harness:
+ * send is a file sent over loopback with every strategy of FileSender, and
+ * with the buffered copy it falls back to when the socket has no channel,
+ * receive is a file received by FileReceiver with streams and with mmap,
+ * parse is a control message read by the ControlStream every router
+ * connection reads from, in binary and in text, and routing is the
+ * routing index of a router at several sizes: looking up a node that is
+ * connected, one that is not, and a node that disconnects and connects again.
+ *
+ * Usage: java part2.bench.HotPathBenchmark [size] [entries]
+ * size is the size of the files, 64M by default. The byte loop needs two
+ * system calls per byte, so it sends files of bench.byteLoopSize (64K by
+ * default) instead. entries is a comma separated list of the sizes of the
+ * routing index, 1000,100000,1000000 by default. The properties of the Harness
+ * select the benchmarks, write the results as JSON and compare them with an
+ * earlier run, for example:
+ * java -Dbench.json=after.json -Dbench.baseline=before.json part2.bench.HotPathBenchmark
+ * The exit status is 1 if a benchmark regressed against the baseline.
+ */
+public class HotPathBenchmark {
+    // Amount of different messages or addresses every invocation cycles through
+    private static final int DISTINCT = 1024;
+
+    public static void main(final String[] args) throws Exception {
+        final String size = args.length > 0 ? args[0] : "64M";
+        final String entries = args.length > 1 ? args[1] : "1000,100000,1000000";
+        final String byteLoopSize = System.getProperty("bench.byteLoopSize", "64K");
+
+        final Harness harness = new Harness(HotPathBenchmark.class);
+        if (harness.includes("send") || harness.includes("receive")) {
+            transfers(harness, size, byteLoopSize);
+        }
+        parse(harness);
+        for (final String count : entries.split(",")) {
+            routing(harness, Integer.parseInt(count.trim()));
+        }
+        System.exit(harness.finish() > 0 ? 1 : 0);
+    }
+
+    /**
+     * benchmark sending and receiving files over loopback
+     *
+     * @param harness      the harness
+     * @param size         the size of the files
+     * @param byteLoopSize the size of the files the byte loop sends
+     */
+    private static void transfers(final Harness harness, final String size, final String byteLoopSize)
+            throws Exception {
+        final File file = BenchUtil.createTempFile(BenchUtil.parseSize(size));
+        final File small = BenchUtil.createTempFile(BenchUtil.parseSize(byteLoopSize));
+        final File target = new File(file.getPath() + ".received");
+        target.deleteOnExit();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            harness.throughput("send", Harness.params("strategy", "BYTE_LOOP", "size", byteLoopSize), "MB/s",
+                    1 << 20, () -> send(server, small, FileSender.Strategy.BYTE_LOOP, true));
+            harness.throughput("send", Harness.params("strategy", "BUFFERED", "size", size), "MB/s", 1 << 20,
+                    () -> send(server, file, FileSender.Strategy.TRANSFER_TO, false));
+            harness.throughput("send", Harness.params("strategy", "TRANSFER_TO", "size", size), "MB/s", 1 << 20,
+                    () -> send(server, file, FileSender.Strategy.TRANSFER_TO, true));
+
+            for (final boolean mapped : new boolean[] { false, true }) {
+                harness.throughput("receive", Harness.params("engine", mapped ? "mmap" : "stream", "size", size),
+                        "MB/s", 1 << 20, () -> receive(server, file, target, mapped));
+            }
+        } finally {
+            file.delete();
+            small.delete();
+            target.delete();
+        }
+    }
+
+    /**
+     * send a file over a loopback connection to a receiver that discards the
+     * payload, and wait until the receiver drained every byte
+     *
+     * @param server   the server socket the receiver accepts from
+     * @param file     the file to send
+     * @param strategy the strategy of the sender
+     * @param channel  false to send through the stream of the socket only,
+     *                 which copies the file through a buffer
+     * @return the amount of bytes received
+     */
+    private static long send(final ServerSocketChannel server, final File file, final FileSender.Strategy strategy,
+            final boolean channel) throws Exception {
+        final long[] received = new long[1];
+        final Thread drain = new Thread(() -> {
+            try (SocketChannel socket = server.accept()) {
+                final DataInputStream in = new DataInputStream(socket.socket().getInputStream());
+                in.readUTF();
+                long remaining = in.readLong();
+                final ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+                while (remaining > 0) {
+                    buffer.clear();
+                    final int read = socket.read(buffer);
+                    if (read < 0) {
+                        break;
+                    }
+                    remaining -= read;
+                    received[0] += read;
+                }
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        });
+        drain.start();
+
+        try (SocketChannel socket = SocketChannel.open(server.getLocalAddress())) {
+            final OutputStream out = socket.socket().getOutputStream();
+            final FileSender sender = new FileSender(new DataOutputStream(out), channel ? socket : null);
+            sender.setStrategy(strategy);
+            sender.send(file.getPath());
+            drain.join();
+        }
+        return received[0];
+    }
+
+    /**
+     * receive a file over a loopback connection into a new file
+     *
+     * @param server the server socket the receiver accepts from
+     * @param file   the file to send
+     * @param target the file to receive into
+     * @param mapped true to receive in mmap mode
+     * @return the amount of bytes received
+     */
+    private static long receive(final ServerSocketChannel server, final File file, final File target,
+            final boolean mapped) throws Exception {
+        final Thread sender = new Thread(() -> {
+            try (SocketChannel socket = SocketChannel.open(server.getLocalAddress())) {
+                new FileSender(new DataOutputStream(socket.socket().getOutputStream()), socket)
+                        .send(file.getPath());
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        });
+        sender.start();
+
+        try (SocketChannel socket = server.accept()) {
+            final DataInputStream in = new DataInputStream(socket.socket().getInputStream());
+            final FileReceiver receiver = new FileReceiver(in, socket);
+            receiver.setMmapThreshold(mapped ? 0 : Long.MAX_VALUE);
+            in.readUTF();
+            final long bytes = receiver.receive(target.getPath(), in.readLong()).getBytes();
+            sender.join();
+            return bytes;
+        }
+    }
+
+    /**
+     * benchmark reading control messages from a stream of encoded messages,
+     * which is what the connection of a router does for every message
+     *
+     * @param harness the harness
+     */
+    private static void parse(final Harness harness) throws Exception {
+        final Random random = new Random(42);
+        final ControlMessage input = new ControlMessage();
+        for (final boolean binary : new boolean[] { true, false }) {
+            final ByteBuffer encoded = ByteBuffer.allocate(DISTINCT * ControlCodec.MAX_MESSAGE);
+            for (int i = 0; i < DISTINCT; i++) {
+                input.set(ControlMessage.ROUTER_RESPONSE, i & 1, i, random.nextInt(), random.nextInt());
+                if (binary) {
+                    ControlCodec.encode(input, encoded);
+                } else {
+                    ControlCodec.encodeText(input, encoded);
+                }
+            }
+            final ControlStream stream = new ControlStream(new Replay(encoded.array(), encoded.position()), null,
+                    binary);
+            final ControlMessage message = new ControlMessage();
+            harness.averageTime("parse", Harness.params("format", binary ? "binary" : "text"), () -> {
+                for (int i = 0; i < DISTINCT; i++) {
+                    stream.receive(message);
+                    Harness.consume(message.getDestination());
+                }
+                return DISTINCT;
+            });
+        }
+    }
+
+    /**
+     * benchmark the routing index of a router with an amount of nodes
+     *
+     * @param harness the harness
+     * @param entries the amount of nodes
+     */
+    private static void routing(final Harness harness, final int entries) throws Exception {
+        if (!harness.includes("routing")) {
+            return;
+        }
+        // Distinct random addresses. The last DISTINCT ones are never added
+        final int[] addresses = new Random(entries).ints().distinct().limit(entries + DISTINCT).toArray();
+        final RoutingIndex<Object> index = new RoutingIndex<>();
+        final long[] sessions = new long[entries];
+        final Object value = new Object();
+        for (int i = 0; i < entries; i++) {
+            sessions[i] = index.put(addresses[i], value);
+        }
+
+        // Every invocation goes on where the last one stopped, so it does not
+        // find the same few nodes in the cache every time
+        final int[] next = new int[1];
+        harness.averageTime("routing.lookup", Harness.params("entries", entries), () -> {
+            int i = next[0];
+            for (int n = 0; n < DISTINCT; n++) {
+                i = i + 1 == entries ? 0 : i + 1;
+                Harness.consume(index.get(addresses[i]) == value ? 1 : 0);
+            }
+            next[0] = i;
+            return DISTINCT;
+        });
+        harness.averageTime("routing.miss", Harness.params("entries", entries), () -> {
+            for (int n = 0; n < DISTINCT; n++) {
+                Harness.consume(index.get(addresses[entries + n]) == null ? 1 : 0);
+            }
+            return DISTINCT;
+        });
+        harness.averageTime("routing.reconnect", Harness.params("entries", entries), () -> {
+            int i = next[0];
+            for (int n = 0; n < DISTINCT; n++) {
+                i = i + 1 == entries ? 0 : i + 1;
+                index.remove(sessions[i]);
+                sessions[i] = index.put(addresses[i], value);
+            }
+            next[0] = i;
+            return DISTINCT;
+        });
+        if (index.size() != entries) {
+            System.err.println("The routing index lost entries!");
+        }
+    }
+
+    /**
+     * A stream that reads the same bytes over and over, so messages can be
+     * parsed for as long as a benchmark runs
+     */
+    private static final class Replay extends InputStream {
+        private final byte[] data; // bytes that are replayed
+        private final int length; // amount of bytes that are replayed
+        private int position; // next byte that is read
+
+        /**
+         * create a stream that replays bytes
+         *
+         * @param data   the bytes
+         * @param length the amount of bytes
+         */
+        Replay(final byte[] data, final int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        @Override
+        public int read() {
+            final int value = data[position] & 0xFF;
+            position = position + 1 == length ? 0 : position + 1;
+            return value;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int count) {
+            final int read = Math.min(count, length - position);
+            System.arraycopy(data, position, buffer, offset, read);
+            position = position + read == length ? 0 : position + read;
+            return read;
+        }
+    }
+}
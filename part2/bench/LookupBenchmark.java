@@ -0,0 +1,175 @@
+package part2.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+import part2.concurrent.Execution;
+import part2.nodes.LookupClient;
+import part2.nodes.ReachabilityCache;
+import part2.protocol.ControlMessage;
+import part2.protocol.ControlStream;
+import part2.routers.RouterCore;
+import part2.routers.RouterEventLoop;
+import part2.routers.RoutingIndex;
+import part2.routers.ServerThread;
+
+/**
+ * Measures the latency and throughput of peer lookups with many of them in
+ * flight at once. Nodes on loopback ask an event loop router, which forwards
+ * every lookup to a fake other router that answers YES, so a lookup is a full
+ * trip from the node through both routers and back, matched to its future by
+ * request id.
+ *
+ * The nodes have no reachability cache, so every lookup goes to the routers.
+ * Every node keeps up to window lookups outstanding, and the latency of a
+ * lookup is the time from sending it to the completion of its future.
+ *
+ * Usage: java -Drouter.verbose=false part2.bench.LookupBenchmark [lookups]
+ * [nodes] [windows...]
+ * lookups is the amount of lookups of every run, 200000 by default, nodes the
+ * amount of connected nodes, 4 by default, and windows the amounts of
+ * outstanding lookups per node, 1 10 100 1000 by default.
+ */
+public class LookupBenchmark {
+
+    public static void main(final String[] args) throws Exception {
+        final int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        final int nodes = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int[] windows = args.length > 2
+                ? Arrays.stream(args, 2, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[] { 1, 10, 100, 1000 };
+
+        final RouterCore core = new RouterCore();
+        final RouterEventLoop loop = new RouterEventLoop(core, "loop");
+        loop.start();
+        try (ServerSocket linkServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                ServerSocketChannel server = ServerSocketChannel.open()) {
+            answerLookups(core, linkServer);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            final LookupClient[] clients = new LookupClient[nodes];
+            for (int i = 0; i < nodes; i++) {
+                final String address = "127.0.1." + (i + 1);
+                final Socket socket = new Socket();
+                socket.bind(new InetSocketAddress(address, 0));
+                socket.connect(server.getLocalAddress());
+                socket.setTcpNoDelay(true);
+                loop.add(server.accept());
+                clients[i] = new LookupClient(
+                        new ControlStream(socket.getInputStream(), socket.getOutputStream(), true),
+                        RoutingIndex.pack(address), new ReachabilityCache(0, 0, 0));
+                Execution.execute(clients[i]);
+            }
+            while (core.size() < nodes) {
+                Thread.sleep(1);
+            }
+
+            System.out.printf("%d lookups, %d nodes%n", lookups, nodes);
+            System.out.printf("%8s %12s %10s %10s %10s %10s%n", "window", "lookups/s", "p50 us", "p99 us",
+                    "max us", "in flight");
+            // Warm up
+            run(clients, lookups / 4, 100, false);
+            for (final int window : windows) {
+                run(clients, lookups, window, true);
+            }
+        } finally {
+            core.close();
+            loop.close();
+        }
+    }
+
+    /**
+     * run lookups from every node with a window of outstanding lookups and
+     * print one row of the results
+     *
+     * @param clients the lookup clients of the nodes
+     * @param lookups the amount of lookups of all nodes together
+     * @param window  the amount of outstanding lookups per node
+     * @param print   false to leave out the row, for warming up
+     */
+    private static void run(final LookupClient[] clients, final int lookups, final int window,
+            final boolean print) throws Exception {
+        final int perNode = lookups / clients.length;
+        final long[] latencies = new long[perNode * clients.length];
+        final CountDownLatch done = new CountDownLatch(perNode * clients.length);
+        final Thread[] senders = new Thread[clients.length];
+
+        final long startTime = System.nanoTime();
+        for (int n = 0; n < clients.length; n++) {
+            final LookupClient client = clients[n];
+            final int offset = n * perNode;
+            senders[n] = new Thread(() -> {
+                final Semaphore outstanding = new Semaphore(window);
+                for (int i = 0; i < perNode; i++) {
+                    outstanding.acquireUninterruptibly();
+                    final int index = offset + i;
+                    final long sent = System.nanoTime();
+                    client.lookup(RoutingIndex.pack("10.0.0.1")).whenComplete((yes, e) -> {
+                        latencies[index] = e == null && yes ? System.nanoTime() - sent : Long.MAX_VALUE;
+                        outstanding.release();
+                        done.countDown();
+                    });
+                }
+            });
+            senders[n].start();
+        }
+        done.await();
+        final long time = System.nanoTime() - startTime;
+
+        if (!print) {
+            return;
+        }
+        Arrays.sort(latencies);
+        if (latencies[latencies.length - 1] == Long.MAX_VALUE) {
+            System.err.println("Some lookups failed!");
+        }
+        System.out.printf("%8d %12.0f %10.1f %10.1f %10.1f %10d%n", window, latencies.length / (time / 1e9),
+                latencies[latencies.length / 2] / 1e3, latencies[latencies.length * 99 / 100] / 1e3,
+                latencies[latencies.length - 1] / 1e3, window * clients.length);
+    }
+
+    /**
+     * play the other router and answer every lookup with YES
+     *
+     * @param core       the core of the router
+     * @param linkServer the socket the router connects to the fake router with
+     */
+    private static void answerLookups(final RouterCore core, final ServerSocket linkServer)
+            throws IOException, InterruptedException {
+        final Socket other = new Socket(InetAddress.getLoopbackAddress(), linkServer.getLocalPort());
+        other.setTcpNoDelay(true);
+        Execution.execute(new ServerThread(core, linkServer.accept(), "other router", true));
+
+        // The other router has a route to the node every lookup is for
+        final ControlStream stream = new ControlStream(other.getInputStream(), other.getOutputStream(), true);
+        stream.send(new ControlMessage().set(ControlMessage.ROUTE_UPDATE, 0, 0, 0, RoutingIndex.pack("10.0.0.1")));
+        while (core.routeCount() == 0) {
+            Thread.sleep(1);
+        }
+
+        final Thread responder = new Thread(() -> {
+            try {
+                final ControlMessage message = new ControlMessage();
+                while (stream.receive(message)) {
+                    if (message.getType() != ControlMessage.ROUTER_REQUEST) {
+                        continue;
+                    }
+                    message.setType(ControlMessage.ROUTER_RESPONSE);
+                    message.setFlags(ControlMessage.FLAG_YES);
+                    stream.send(message);
+                }
+            } catch (final IOException e) {
+                // The router was closed
+            }
+        });
+        responder.setDaemon(true);
+        responder.start();
+    }
+}
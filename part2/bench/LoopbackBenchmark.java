@@ -0,0 +1,294 @@
+package part2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import part2.concurrent.Execution;
+import part2.exceptions.NotConnectedToRouterException;
+import part2.metrics.LatencyHistogram;
+import part2.nodes.Node;
+import part2.routers.SRouter;
+import part2.transfer.TransferStats;
+
+/**
+ * Stands up the whole system on the loopback addresses of one host, in one
+ * JVM: two linked mesh routers and pairs of nodes, with the sender of every
+ * pair on the first router and the receiver on the second. Every node has its
+ * own loopback address and listens for peers on a free port, so nothing needs
+ * a network or a fixed port. A scripted workload then runs for every level of
+ * concurrency: the senders of that many pairs look up their receivers through
+ * both routers at once, and once the pairs are connected, they all send the
+ * same mix of files at once.
+ *
+ * The report has the latency of the lookups and the throughput of the
+ * transfers. A transfer is timed until the receivers saved every byte. The
+ * reachability cache of the nodes is off unless node.cacheSize is set, so
+ * every lookup goes to the routers.
+ *
+ * Usage: java -Drouter.verbose=false part2.bench.LoopbackBenchmark [mix]
+ * [concurrency] [lookups]
+ * mix is a comma separated list of file sizes, each with the amount of times
+ * every sender sends it, 1M:32,16M:4,256M:1 by default. concurrency is a comma
+ * separated list of amounts of pairs, 1,2,4 by default. lookups is the amount
+ * of lookups of every sender at every level, 5000 by default.
+ *
+ * The bench.routerAddress system property sets the address of the routers,
+ * 127.0.0.1 by default, and bench.senders and bench.receivers the first three
+ * parts of the addresses of the nodes, 127.0.5 and 127.0.6 by default.
+ * bench.window is the amount of lookups every sender has in flight, 16 by
+ * default, and bench.verbose prints what the routers and nodes print.
+ */
+public class LoopbackBenchmark {
+    // Milliseconds the receivers may take to save the files after they were sent
+    private static final long RECEIVE_TIMEOUT = 600000;
+
+    public static void main(final String[] args) throws Exception {
+        final String mix = args.length > 0 ? args[0] : "1M:32,16M:4,256M:1";
+        final String concurrency = args.length > 1 ? args[1] : "1,2,4";
+        final int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+        final String routerAddress = System.getProperty("bench.routerAddress", "127.0.0.1");
+        final String senderNetwork = System.getProperty("bench.senders", "127.0.5");
+        final String receiverNetwork = System.getProperty("bench.receivers", "127.0.6");
+        final int window = Integer.getInteger("bench.window", 16);
+        if (System.getProperty("node.cacheSize") == null) {
+            System.setProperty("node.cacheSize", "0");
+        }
+
+        // The routers and nodes print every step, which would bury the report
+        final PrintStream report = System.out;
+        if (!Boolean.getBoolean("bench.verbose")) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        // The sizes of the mix, and the file that is sent for every size
+        final String[] entries = mix.split(",");
+        final File[] files = new File[entries.length];
+        final int[] counts = new int[entries.length];
+        long bytesPerSender = 0;
+        for (int i = 0; i < entries.length; i++) {
+            final String[] entry = entries[i].split(":");
+            files[i] = BenchUtil.createTempFile(BenchUtil.parseSize(entry[0]));
+            counts[i] = entry.length > 1 ? Integer.parseInt(entry[1]) : 1;
+            bytesPerSender += files[i].length() * counts[i];
+        }
+        final String[] levels = concurrency.split(",");
+        int pairs = 0;
+        for (final String level : levels) {
+            pairs = Math.max(pairs, Integer.parseInt(level.trim()));
+        }
+
+        final SRouter[] routers = new SRouter[2];
+        final Node[] senders = new Node[pairs];
+        final Node[] receivers = new Node[pairs];
+        final Path[] directories = new Path[pairs];
+        try {
+            for (int r = 0; r < routers.length; r++) {
+                final SRouter router = new SRouter("LOOPBACK ROUTER " + r, routerAddress, 0, 0);
+                router.listenForRouters();
+                Execution.execute(() -> {
+                    try {
+                        router.listenForNodes();
+                    } catch (final NotConnectedToRouterException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                routers[r] = router;
+            }
+            routers[1].connectToRouter(routerAddress, routers[0].getRouterPort());
+
+            for (int p = 0; p < pairs; p++) {
+                senders[p] = new Node(routerAddress, routers[0].getNodePort(), senderNetwork + "." + (p + 1), 0);
+                receivers[p] = new Node(routerAddress, routers[1].getNodePort(), receiverNetwork + "." + (p + 1),
+                        0);
+                directories[p] = Files.createTempDirectory("loopback-");
+                receivers[p].setReceiveDirectory(directories[p]);
+            }
+            // Wait for the routes to the receivers to reach the first router
+            while (routers[0].getRouteCount() < pairs) {
+                Thread.sleep(10);
+            }
+
+            report.printf("2 routers at %s, %d pairs of nodes, %d lookups per sender, %d in flight%n", routerAddress,
+                    pairs, lookups, window);
+            report.printf("%6s %12s %10s %10s %10s %8s%n", "pairs", "lookups/s", "p50 us", "p99 us", "max us",
+                    "failed");
+            // Warm up
+            lookups(senders, receivers, pairs, lookups / 4, window, null);
+            for (final String level : levels) {
+                lookups(senders, receivers, Integer.parseInt(level.trim()), lookups, window, report);
+            }
+
+            for (int p = 0; p < pairs; p++) {
+                if (!senders[p].connectToPeer(receivers[p].getLocalAddress(), receivers[p].getPeerPort())) {
+                    throw new IOException("Sender " + p + " could not connect to its receiver!");
+                }
+            }
+
+            report.printf("%nmix %s, %s per sender%n", mix, BenchUtil.formatSize(bytesPerSender));
+            report.printf("%6s %8s %10s %12s %14s %14s%n", "pairs", "files", "bytes", "MB/s", "file MB/s p50",
+                    "file MB/s min");
+            // Warm up
+            transfers(senders, receivers, pairs, new File[] { files[0] }, new int[] { 1 }, null);
+            for (final String level : levels) {
+                transfers(senders, receivers, Integer.parseInt(level.trim()), files, counts, report);
+            }
+        } finally {
+            for (final File file : files) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+            for (final Path directory : directories) {
+                if (directory != null) {
+                    for (final File file : directory.toFile().listFiles()) {
+                        file.delete();
+                    }
+                    Files.delete(directory);
+                }
+            }
+            for (int p = 0; p < pairs; p++) {
+                if (senders[p] != null) {
+                    senders[p].close();
+                }
+                if (receivers[p] != null) {
+                    receivers[p].close();
+                }
+            }
+            for (final SRouter router : routers) {
+                if (router != null) {
+                    router.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * have the senders of some pairs look up their receivers at once, with a
+     * window of lookups in flight each, and print the row of the level
+     *
+     * @param senders   the senders
+     * @param receivers the receivers
+     * @param pairs     the amount of pairs that look up
+     * @param lookups   the amount of lookups of every sender
+     * @param window    the amount of lookups every sender has in flight
+     * @param report    the stream the row is printed to, or null to not print
+     */
+    private static void lookups(final Node[] senders, final Node[] receivers, final int pairs, final int lookups,
+            final int window, final PrintStream report) throws InterruptedException {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder failed = new LongAdder();
+        final Thread[] threads = new Thread[pairs];
+        final long startTime = System.nanoTime();
+        for (int p = 0; p < pairs; p++) {
+            final Node sender = senders[p];
+            final String receiver = receivers[p].getLocalAddress();
+            threads[p] = new Thread(() -> {
+                final Semaphore inFlight = new Semaphore(window);
+                for (int i = 0; i < lookups; i++) {
+                    inFlight.acquireUninterruptibly();
+                    final long sent = System.nanoTime();
+                    sender.lookup(receiver).whenComplete((reachable, error) -> {
+                        if (error == null && reachable) {
+                            latency.record(System.nanoTime() - sent);
+                        } else {
+                            failed.increment();
+                        }
+                        inFlight.release();
+                    });
+                }
+                inFlight.acquireUninterruptibly(window);
+            });
+            threads[p].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsed = System.nanoTime() - startTime;
+
+        if (report != null) {
+            report.printf("%6d %12.0f %10.1f %10.1f %10.1f %8d%n", pairs, pairs * lookups / (elapsed / 1e9),
+                    latency.getPercentile(50) / 1e3, latency.getPercentile(99) / 1e3, latency.getMax() / 1e3,
+                    failed.sum());
+        }
+    }
+
+    /**
+     * have the senders of some pairs send the mix of files to their receivers
+     * at once, wait until the receivers saved every byte, and print the row of
+     * the level
+     *
+     * @param senders   the senders
+     * @param receivers the receivers
+     * @param pairs     the amount of pairs that send
+     * @param files     the files of the mix
+     * @param counts    the amount of times every file is sent
+     * @param report    the stream the row is printed to, or null to not print
+     */
+    private static void transfers(final Node[] senders, final Node[] receivers, final int pairs, final File[] files,
+            final int[] counts, final PrintStream report) throws Exception {
+        long bytesPerSender = 0;
+        for (int i = 0; i < files.length; i++) {
+            bytesPerSender += files[i].length() * counts[i];
+        }
+        final long[] expected = new long[pairs];
+        for (int p = 0; p < pairs; p++) {
+            expected[p] = receivers[p].getMetrics().getBytesReceived() + bytesPerSender;
+        }
+
+        final List<Double> rates = new ArrayList<>();
+        final LongAdder failed = new LongAdder();
+        final Thread[] threads = new Thread[pairs];
+        final long startTime = System.nanoTime();
+        for (int p = 0; p < pairs; p++) {
+            final Node sender = senders[p];
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < files.length; i++) {
+                    for (int n = 0; n < counts[i]; n++) {
+                        try {
+                            final TransferStats stats = sender.send(files[i].getPath());
+                            synchronized (rates) {
+                                rates.add(BenchUtil.megabytesPerSecond(stats.getBytes(), stats.getElapsedNanos()));
+                            }
+                        } catch (final IOException e) {
+                            failed.increment();
+                            System.err.println("A file could not be sent: " + e.getMessage());
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        if (failed.sum() > 0) {
+            throw new IOException(failed.sum() + " files could not be sent!");
+        }
+        final long deadline = System.currentTimeMillis() + RECEIVE_TIMEOUT;
+        for (int p = 0; p < pairs; p++) {
+            while (receivers[p].getMetrics().getBytesReceived() < expected[p]) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Receiver " + p + " did not save every file!");
+                }
+                Thread.sleep(1);
+            }
+        }
+        final long elapsed = System.nanoTime() - startTime;
+
+        if (report != null) {
+            rates.sort(null);
+            report.printf("%6d %8d %10s %12.1f %14.1f %14.1f%n", pairs, rates.size(),
+                    BenchUtil.formatSize(bytesPerSender * pairs),
+                    BenchUtil.megabytesPerSecond(bytesPerSender * pairs, elapsed), rates.get(rates.size() / 2),
+                    rates.get(0));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package part2.bench;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+import part2.concurrent.Execution;
+import part2.exceptions.NotConnectedToRouterException;
+import part2.nodes.LookupClient;
+import part2.nodes.ReachabilityCache;
+import part2.protocol.ControlStream;
+import part2.routers.RoutingIndex;
+import part2.routers.SRouter;
+
+/**
+ * Measures how the latency of a lookup grows with the amount of routers it
+ * crosses. Mesh routers on loopback are linked in a line, every router has one
+ * node, and the node of the first router looks up the node of every other
+ * router in turn, one lookup at a time, so a lookup for the node of router k
+ * is forwarded k times on its way and k times on the way back.
+ *
+ * The node has no reachability cache, so every lookup goes to the routers.
+ * The lookups that go to the node of the first router itself are answered by
+ * that router alone, which is the row of 0 hops.
+ *
+ * Usage: java -Drouter.verbose=false part2.bench.MeshBenchmark [routers]
+ * [lookups]
+ * routers is the amount of routers of the line, 8 by default, and lookups the
+ * amount of lookups timed for every distance, 20000 by default.
+ */
+public class MeshBenchmark {
+
+    public static void main(final String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        final SRouter[] routers = new SRouter[count];
+        try {
+            for (int r = 0; r < count; r++) {
+                final SRouter router = new SRouter("MESH ROUTER " + r, "127.0.0.1", 0, 0);
+                router.listenForRouters();
+                Execution.execute(() -> {
+                    try {
+                        router.listenForNodes();
+                    } catch (final NotConnectedToRouterException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                routers[r] = router;
+            }
+            for (int r = 1; r < count; r++) {
+                routers[r].connectToRouter("127.0.0.1", routers[r - 1].getRouterPort());
+            }
+
+            // The sockets are kept, a socket that is collected gets closed
+            final Socket[] nodes = new Socket[count];
+            LookupClient client = null;
+            for (int r = 0; r < count; r++) {
+                final String address = "127.0.2." + (r + 1);
+                final Socket socket = new Socket();
+                nodes[r] = socket;
+                socket.bind(new InetSocketAddress(address, 0));
+                socket.connect(new InetSocketAddress("127.0.0.1", routers[r].getNodePort()));
+                socket.setTcpNoDelay(true);
+                if (r == 0) {
+                    client = new LookupClient(
+                            new ControlStream(socket.getInputStream(), socket.getOutputStream(), true),
+                            RoutingIndex.pack(address), new ReachabilityCache(0, 0, 0));
+                    Execution.execute(client);
+                }
+            }
+            // Wait for the routes to reach the first router
+            while (routers[0].getNodeCount() + routers[0].getRouteCount() < count) {
+                Thread.sleep(10);
+            }
+
+            System.out.printf("%d routers in a line, %d lookups per distance%n", count, lookups);
+            System.out.printf("%6s %12s %10s %10s %10s%n", "hops", "lookups/s", "p50 us", "p99 us", "max us");
+            // Warm up
+            run(client, "127.0.2." + count, lookups / 4, -1);
+            for (int r = 0; r < count; r++) {
+                run(client, "127.0.2." + (r + 1), lookups, routers[0].getDistance("127.0.2." + (r + 1)));
+            }
+            for (final Socket socket : nodes) {
+                socket.close();
+            }
+        } finally {
+            for (final SRouter router : routers) {
+                if (router != null) {
+                    router.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * time lookups of one peer, one at a time, and print one row of the
+     * results
+     *
+     * @param client  the lookup client of the node
+     * @param peer    the address of the peer
+     * @param lookups the amount of lookups
+     * @param hops    the amount of routers between the node and the peer, or -1
+     *                to leave out the row, for warming up
+     */
+    private static void run(final LookupClient client, final String peer, final int lookups, final int hops)
+            throws Exception {
+        final long[] latencies = new long[lookups];
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            final long sent = System.nanoTime();
+            if (!client.lookup(peer).get()) {
+                System.err.println("The lookup of " + peer + " failed!");
+                return;
+            }
+            latencies[i] = System.nanoTime() - sent;
+        }
+        final long time = System.nanoTime() - startTime;
+
+        if (hops < 0) {
+            return;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%6d %12.0f %10.1f %10.1f %10.1f%n", hops, lookups / (time / 1e9),
+                latencies[lookups / 2] / 1e3, latencies[lookups * 99 / 100] / 1e3, latencies[lookups - 1] / 1e3);
+    }
+}
@@ -0,0 +1,79 @@
+package part2.bench;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import part2.transfer.FileReceiver;
+import part2.transfer.FileSender;
+import part2.transfer.TransferStats;
+
+/**
+ * Compares the stream based receive of FileReceiver against its mmap mode over
+ * loopback. The sender always uses transferTo.
+ *
+ * Usage: java part2.bench.ReceiveBenchmark [sizes]
+ * sizes is a comma separated list such as 1G,4G (the default).
+ */
+public class ReceiveBenchmark {
+
+    public static void main(final String[] args) throws Exception {
+        final String sizes = args.length > 0 ? args[0] : "1G,4G";
+
+        System.out.printf("%-8s %-22s %12s %10s%n", "size", "engine", "MB/s", "verified");
+        for (final String size : sizes.split(",")) {
+            final File file = BenchUtil.createTempFile(BenchUtil.parseSize(size));
+
+            for (final boolean mapped : new boolean[] { false, true }) {
+                final TransferStats stats = run(file, mapped);
+                System.out.printf("%-8s %-22s %12.2f %10s%n", size, stats.getEngine(),
+                        BenchUtil.megabytesPerSecond(stats.getBytes(), stats.getElapsedNanos()),
+                        stats.isVerified());
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * send a file over a loopback connection and receive it into a new file
+     *
+     * @param file   the file to send
+     * @param mapped true to receive in mmap mode
+     * @return the statistics of the receive
+     */
+    private static TransferStats run(final File file, final boolean mapped) throws Exception {
+        final File target = new File(file.getPath() + ".received");
+        target.deleteOnExit();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            final Thread sender = new Thread(() -> {
+                try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+                    new FileSender(new DataOutputStream(channel.socket().getOutputStream()), channel)
+                            .send(file.getPath());
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            sender.start();
+
+            try (SocketChannel channel = server.accept()) {
+                final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                final FileReceiver receiver = new FileReceiver(in, channel);
+                receiver.setMmapThreshold(mapped ? 0 : Long.MAX_VALUE);
+
+                in.readUTF();
+                final TransferStats stats = receiver.receive(target.getPath(), in.readLong());
+                sender.join();
+                return stats;
+            } finally {
+                target.delete();
+            }
+        }
+    }
+}
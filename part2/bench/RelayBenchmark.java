@@ -0,0 +1,181 @@
+package part2.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import part2.concurrent.Execution;
+import part2.routers.Relay;
+
+/**
+ * Measures what the relay of a router costs against a direct connection over
+ * loopback: the throughput of a bulk transfer and the round trip time of small
+ * messages, for a direct connection and for chains of 1 and more relays, the
+ * way a relay across a mesh chains the forwarding ports of every router on the
+ * route.
+ *
+ * The throughput includes waiting for the receiver to drain every byte, and a
+ * round trip sends 64 bytes and waits for them to come back.
+ *
+ * Usage: java part2.bench.RelayBenchmark [size] [hops...]
+ * size is the amount of bytes of the bulk transfer, such as 1G (the default),
+ * and hops the lengths of the chains of relays, 0 1 2 by default, where 0 is
+ * the direct connection.
+ */
+public class RelayBenchmark {
+    // Amount of round trips that are timed
+    private static final int ROUND_TRIPS = 20000;
+    // Size of a message of a round trip
+    private static final int MESSAGE = 64;
+
+    public static void main(final String[] args) throws Exception {
+        final long size = BenchUtil.parseSize(args.length > 0 ? args[0] : "1G");
+        final int[] chains = args.length > 1
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[] { 0, 1, 2 };
+
+        final Relay relay = new Relay();
+        relay.setAddress(InetAddress.getLoopbackAddress());
+        try (ServerSocketChannel sink = ServerSocketChannel.open();
+                ServerSocketChannel echo = ServerSocketChannel.open()) {
+            sink.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            echo.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Execution.execute(() -> serve(sink, false));
+            Execution.execute(() -> serve(echo, true));
+
+            System.out.printf("%-6s %12s %10s %10s %10s %10s%n", "relays", "MB/s", "overhead", "rtt p50 us",
+                    "rtt p99 us", "overhead");
+            // Warm up
+            throughput(chain(relay, sink, 1), size / 4);
+            roundTrips(chain(relay, echo, 1));
+
+            double directRate = 0;
+            double directRtt = 0;
+            for (final int hops : chains) {
+                final double rate = throughput(chain(relay, sink, hops), size);
+                final long[] rtts = roundTrips(chain(relay, echo, hops));
+                final double rtt = rtts[ROUND_TRIPS / 2] / 1e3;
+                if (hops == 0) {
+                    directRate = rate;
+                    directRtt = rtt;
+                }
+                System.out.printf("%-6d %12.1f %9.1f%% %10.1f %10.1f %9.1f%%%n", hops, rate,
+                        directRate == 0 ? 0 : (directRate / rate - 1) * 100, rtt, rtts[ROUND_TRIPS * 99 / 100] / 1e3,
+                        directRtt == 0 ? 0 : (rtt / directRtt - 1) * 100);
+            }
+        } finally {
+            relay.close();
+        }
+    }
+
+    /**
+     * open a chain of forwarding ports that ends at a server
+     *
+     * @param relay  the relay that opens the ports
+     * @param server the server at the end of the chain
+     * @param hops   the amount of forwarding ports, 0 for the server itself
+     * @return the address a client connects to
+     */
+    private static InetSocketAddress chain(final Relay relay, final ServerSocketChannel server, final int hops)
+            throws IOException {
+        InetSocketAddress target = (InetSocketAddress) server.getLocalAddress();
+        for (int i = 0; i < hops; i++) {
+            target = new InetSocketAddress(InetAddress.getLoopbackAddress(), relay.open(target, InetAddress.getLoopbackAddress()));
+        }
+        return target;
+    }
+
+    /**
+     * send bytes to a sink and wait for it to confirm that it read all of them
+     *
+     * @param address the address of the sink or of the chain in front of it
+     * @param size    the amount of bytes
+     * @return the throughput in MB/s
+     */
+    private static double throughput(final InetSocketAddress address, final long size) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            final long startTime = System.nanoTime();
+            long left = size;
+            while (left > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), left));
+                left -= channel.write(buffer);
+            }
+            channel.shutdownOutput();
+            // The sink answers once it read the end of the stream
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                buffer.clear();
+            }
+            return BenchUtil.megabytesPerSecond(size, System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * time round trips of small messages through an echo server
+     *
+     * @param address the address of the echo server or of the chain in front of
+     *                it
+     * @return the sorted round trip times in nanoseconds
+     */
+    private static long[] roundTrips(final InetSocketAddress address) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            channel.socket().setTcpNoDelay(true);
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(MESSAGE);
+            final long[] times = new long[ROUND_TRIPS];
+            for (int i = 0; i < ROUND_TRIPS; i++) {
+                final long startTime = System.nanoTime();
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("The echo server closed the connection!");
+                    }
+                }
+                times[i] = System.nanoTime() - startTime;
+            }
+            Arrays.sort(times);
+            return times;
+        }
+    }
+
+    /**
+     * serve the connections of a sink, which reads everything and closes once
+     * the stream ended, or of an echo server, which sends everything back
+     *
+     * @param server the server channel
+     * @param echo   true to send everything back, false to discard it
+     */
+    private static void serve(final ServerSocketChannel server, final boolean echo) {
+        try {
+            while (true) {
+                final SocketChannel channel = server.accept();
+                Execution.execute(() -> {
+                    try (SocketChannel connection = channel) {
+                        connection.socket().setTcpNoDelay(true);
+                        final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                        while (connection.read(buffer) >= 0) {
+                            buffer.flip();
+                            while (echo && buffer.hasRemaining()) {
+                                connection.write(buffer);
+                            }
+                            buffer.clear();
+                        }
+                    } catch (final IOException e) {
+                        // The client went away
+                    }
+                });
+            }
+        } catch (final IOException e) {
+            // The server was closed
+        }
+    }
+}
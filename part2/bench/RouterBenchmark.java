@@ -0,0 +1,272 @@
+package part2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import part2.concurrent.Execution;
+import part2.protocol.ControlCodec;
+import part2.protocol.ControlMessage;
+import part2.protocol.ControlStream;
+import part2.routers.RouterCore;
+import part2.routers.RouterEventLoop;
+import part2.routers.RoutingIndex;
+import part2.routers.ServerThread;
+
+/**
+ * Measures the memory a router needs for many connected nodes and the latency
+ * of a lookup from one of them, for the threaded engine (a ServerThread task
+ * per node) on platform threads and on virtual threads, against the event loop
+ * engine. A fake other router answers every lookup with YES, so a lookup is a
+ * full trip from the node through the router to the other router and back.
+ *
+ * Every engine and amount of nodes runs in its own JVM so the memory of one run
+ * does not show up in the next. The nodes connect from their own loopback
+ * addresses in the same JVM as the router, so the process needs about two file
+ * descriptors per node (ulimit -n). Virtual threads need Java 21; older
+ * versions run the "virtual" rows on platform threads and say so. The nodes
+ * send binary frames, or lines of text with -Dcontrol.protocol=text.
+ *
+ * Usage: java part2.bench.RouterBenchmark [nodes...]
+ * nodes are the amounts of connected nodes, 10000 and 50000 by default.
+ */
+public class RouterBenchmark {
+    // Amount of lookups that are timed for every run
+    private static final int LOOKUPS = 2000;
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length == 2 && !Character.isDigit(args[1].charAt(0))) {
+            run(Integer.parseInt(args[0]), args[1]);
+            return;
+        }
+
+        final List<String> counts = args.length > 0 ? Arrays.asList(args) : Arrays.asList("10000", "50000");
+        System.out.printf("%-8s %8s %8s %10s %10s %10s %10s %10s%n", "engine", "nodes", "threads", "heap MB",
+                "rss MB", "p50 us", "p99 us", "max us");
+        final String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        for (final String count : counts) {
+            for (final String engine : new String[] { "threads", "virtual", "nio" }) {
+                final String mode = engine.equals("virtual") ? "virtual" : "platform";
+                final Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        "-Drouter.verbose=false", "-Dexecution.mode=" + mode,
+                        "-Dcontrol.protocol=" + (ControlCodec.BINARY ? "binary" : "text"),
+                        RouterBenchmark.class.getName(), count, engine).inheritIO().start();
+                process.waitFor();
+            }
+        }
+    }
+
+    /**
+     * connect nodes to a router with one engine and print one row of the results
+     *
+     * @param nodes  the amount of nodes
+     * @param engine "threads", "virtual" or "nio"
+     */
+    private static void run(final int nodes, final String engine) throws Exception {
+        final RouterCore core = new RouterCore();
+        final List<SocketChannel> clients = new ArrayList<>(nodes);
+        final List<RouterEventLoop> loops = new ArrayList<>();
+
+        try (ServerSocket linkServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                ServerSocketChannel server = ServerSocketChannel.open()) {
+            answerLookups(core, linkServer);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096);
+
+            if (engine.equals("nio")) {
+                for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) {
+                    final RouterEventLoop loop = new RouterEventLoop(core, "loop " + i);
+                    loop.start();
+                    loops.add(loop);
+                }
+            }
+            final Thread acceptor = new Thread(() -> {
+                int next = 0;
+                try {
+                    while (true) {
+                        final SocketChannel channel = server.accept();
+                        if (loops.isEmpty()) {
+                            Execution.execute(new ServerThread(core, channel.socket(), "node", false));
+                        } else {
+                            loops.get(next++ % loops.size()).add(channel);
+                        }
+                    }
+                } catch (final IOException | OutOfMemoryError e) {
+                    if (server.isOpen()) {
+                        System.err.println(engine + " stopped accepting: " + e);
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            final long heapBefore = usedHeap();
+            final long rssBefore = rss();
+
+            // Every node connects from its own loopback address
+            final String[] addresses = new String[nodes];
+            for (int i = 0; i < nodes; i++) {
+                addresses[i] = "127." + (1 + i / (254 * 256)) + "." + (i / 254 % 256) + "." + (i % 254 + 1);
+                final SocketChannel client = SocketChannel.open();
+                client.bind(new InetSocketAddress(addresses[i], 0));
+                client.connect(server.getLocalAddress());
+                clients.add(client);
+            }
+            final long deadline = System.currentTimeMillis() + 60000;
+            while (core.size() < nodes) {
+                if (System.currentTimeMillis() > deadline) {
+                    System.out.printf("%-8s %8d only %d nodes could connect%n", engine, nodes, core.size());
+                    return;
+                }
+                Thread.sleep(10);
+            }
+
+            final long heap = usedHeap() - heapBefore;
+            final long memory = rss() - rssBefore;
+            final int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+            // Time lookups from random nodes
+            final Random random = new Random(nodes);
+            final ControlMessage message = new ControlMessage();
+            final ByteBuffer request = ByteBuffer.allocate(ControlCodec.MAX_MESSAGE);
+            final ByteBuffer response = ByteBuffer.allocate(ControlCodec.MAX_MESSAGE);
+            final long[] latencies = new long[LOOKUPS];
+            for (int i = 0; i < LOOKUPS; i++) {
+                final int node = random.nextInt(nodes);
+                message.set(ControlMessage.NODE_REQUEST, 0, i, RoutingIndex.pack(addresses[node]),
+                        RoutingIndex.pack("10.0.0.1"));
+                request.clear();
+                if (ControlCodec.BINARY) {
+                    ControlCodec.encode(message, request);
+                } else {
+                    ControlCodec.encodeText(message, request);
+                }
+                request.flip();
+                final long startTime = System.nanoTime();
+                while (request.hasRemaining()) {
+                    clients.get(node).write(request);
+                }
+                readResponse(clients.get(node), response, message);
+                latencies[i] = System.nanoTime() - startTime;
+            }
+            Arrays.sort(latencies);
+
+            System.out.printf("%-8s %8d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n", engine, nodes, threads,
+                    heap / 1048576.0, memory / 1048576.0, latencies[LOOKUPS / 2] / 1e3,
+                    latencies[LOOKUPS * 99 / 100] / 1e3, latencies[LOOKUPS - 1] / 1e3);
+        } finally {
+            core.close();
+            for (final RouterEventLoop loop : loops) {
+                loop.close();
+            }
+            for (final SocketChannel client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * play the other router and answer every lookup with YES
+     *
+     * @param core       the core of the router
+     * @param linkServer the socket the router connects to the fake router with
+     */
+    private static void answerLookups(final RouterCore core, final ServerSocket linkServer)
+            throws IOException, InterruptedException {
+        final Socket other = new Socket(InetAddress.getLoopbackAddress(), linkServer.getLocalPort());
+        Execution.execute(new ServerThread(core, linkServer.accept(), "other router", true));
+
+        // The other router has a route to the node every lookup is for
+        final ControlStream stream = new ControlStream(other.getInputStream(), other.getOutputStream(), true);
+        stream.send(new ControlMessage().set(ControlMessage.ROUTE_UPDATE, 0, 0, 0, RoutingIndex.pack("10.0.0.1")));
+        while (core.routeCount() == 0) {
+            Thread.sleep(1);
+        }
+
+        final Thread responder = new Thread(() -> {
+            try {
+                final ControlMessage message = new ControlMessage();
+                while (stream.receive(message)) {
+                    if (message.getType() != ControlMessage.ROUTER_REQUEST) {
+                        continue;
+                    }
+                    message.setType(ControlMessage.ROUTER_RESPONSE);
+                    message.setFlags(ControlMessage.FLAG_YES);
+                    stream.send(message);
+                }
+            } catch (final IOException e) {
+                // The router was closed
+            }
+        });
+        responder.setDaemon(true);
+        responder.start();
+    }
+
+    /**
+     * read the response to a lookup from a blocking channel
+     *
+     * @param channel the channel
+     * @param buffer  the buffer the response is read into
+     * @param message the message the response is decoded into
+     */
+    private static void readResponse(final SocketChannel channel, final ByteBuffer buffer,
+            final ControlMessage message) throws IOException {
+        buffer.clear();
+        while (true) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("The router closed the connection!");
+            }
+            buffer.flip();
+            if (ControlCodec.isBinary(buffer.get(0)) ? ControlCodec.decode(buffer, message)
+                    : ControlCodec.findLine(buffer) >= 0) {
+                return;
+            }
+            buffer.position(buffer.limit());
+            buffer.limit(buffer.capacity());
+        }
+    }
+
+    /**
+     * gets the heap in use after a garbage collection
+     *
+     * @return the amount of bytes
+     */
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * gets the resident set size of this process
+     *
+     * @return the amount of bytes, or 0 if it is not known on this platform
+     */
+    private static long rss() throws IOException {
+        final File status = new File("/proc/self/status");
+        if (!status.exists()) {
+            return 0;
+        }
+        for (final String line : Files.readAllLines(status.toPath())) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        }
+        return 0;
+    }
+}
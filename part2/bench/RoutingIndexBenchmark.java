@@ -0,0 +1,145 @@
+package part2.bench;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
+
+import part2.routers.RoutingIndex;
+
+/**
+ * Measures the routing index of a router against a ConcurrentHashMap keyed by
+ * the address strings, which is how a table of nodes by address would usually
+ * be kept: the heap a full table needs, lookups per second from several
+ * threads at once, and how fast nodes can connect and disconnect.
+ *
+ * Usage: java part2.bench.RoutingIndexBenchmark [entries] [threads]
+ * entries is the amount of nodes in the table, 1000000 by default, and threads
+ * is the amount of threads doing lookups, the amount of cores by default.
+ */
+public class RoutingIndexBenchmark {
+    // How long every lookup test runs in milliseconds
+    private static final long DURATION = 2000;
+
+    public static void main(final String[] args) throws Exception {
+        final int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+
+        // Distinct random addresses, and a value every entry shares so only the
+        // table itself is measured
+        final int[] addresses = new Random(entries).ints().distinct().limit(entries).toArray();
+        final Object value = new Object();
+
+        long before = usedHeap();
+        final RoutingIndex<Object> index = new RoutingIndex<>();
+        for (final int address : addresses) {
+            index.put(address, value);
+        }
+        final long indexBytes = usedHeap() - before;
+
+        before = usedHeap();
+        final ConcurrentHashMap<String, Object> map = new ConcurrentHashMap<>();
+        for (final int address : addresses) {
+            map.put(RoutingIndex.unpack(address), value);
+        }
+        final long mapBytes = usedHeap() - before;
+
+        final String[] strings = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            strings[i] = RoutingIndex.unpack(addresses[i]);
+        }
+
+        System.out.printf("%d entries, %d lookup threads%n", entries, threads);
+        System.out.printf("%-20s %12s %14s %16s%n", "table", "bytes/entry", "lookups/s", "connects/s");
+
+        // Lookups of the index by string include packing the address as
+        // RouterCore does
+        final double packedLookups = lookups(threads, i -> index.get(addresses[i]) != null, entries);
+        final double indexLookups = lookups(threads, i -> index.get(RoutingIndex.pack(strings[i])) != null,
+                entries);
+        final double mapLookups = lookups(threads, i -> map.get(strings[i]) != null, entries);
+
+        // Disconnect and connect again one node at a time
+        final long[] sessions = new long[entries];
+        for (int i = 0; i < entries; i++) {
+            sessions[i] = index.put(addresses[i], value);
+        }
+        long startTime = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            index.remove(sessions[i]);
+            sessions[i] = index.put(addresses[i], value);
+        }
+        final double indexChurn = entries / ((System.nanoTime() - startTime) / 1e9);
+
+        startTime = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            map.remove(strings[i], value);
+            map.put(RoutingIndex.unpack(addresses[i]), value);
+        }
+        final double mapChurn = entries / ((System.nanoTime() - startTime) / 1e9);
+
+        System.out.printf("%-20s %12.1f %14.0f %16.0f%n", "RoutingIndex", (double) indexBytes / entries,
+                indexLookups, indexChurn);
+        System.out.printf("%-20s %12s %14.0f %16s%n", "  by packed address", "", packedLookups, "");
+        System.out.printf("%-20s %12.1f %14.0f %16.0f%n", "ConcurrentHashMap", (double) mapBytes / entries,
+                mapLookups, mapChurn);
+        if (index.size() != entries || map.size() != entries) {
+            System.err.println("The tables lost entries!");
+        }
+    }
+
+    /**
+     * look up random entries from several threads for a while
+     *
+     * @param threads the amount of threads
+     * @param lookup  looks up the entry with an index and tells if it was found
+     * @param entries the amount of entries
+     * @return the lookups per second of all threads together
+     */
+    private static double lookups(final int threads, final IntPredicate lookup, final int entries)
+            throws InterruptedException {
+        final AtomicLong total = new AtomicLong();
+        final Thread[] workers = new Thread[threads];
+        final long end = System.nanoTime() + DURATION * 1000000;
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            workers[t] = new Thread(() -> {
+                final Random random = new Random(seed);
+                long count = 0;
+                long found = 0;
+                while (System.nanoTime() < end) {
+                    for (int i = 0; i < 1024; i++) {
+                        if (lookup.test(random.nextInt(entries))) {
+                            found++;
+                        }
+                    }
+                    count += 1024;
+                }
+                if (found != count) {
+                    System.err.println("Lookups missed " + (count - found) + " entries!");
+                }
+                total.addAndGet(count);
+            });
+            workers[t].start();
+        }
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+        return total.get() / (DURATION / 1000.0);
+    }
+
+    /**
+     * gets the heap in use after a garbage collection
+     *
+     * @return the amount of bytes
+     */
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,201 @@
+package part2.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import part2.concurrent.Execution;
+import part2.transfer.ScheduledTransfer;
+import part2.transfer.TransferScheduler;
+
+/**
+ * Shows how a TransferScheduler shares a link between transfers that are sent
+ * at the same time over loopback. Every bulk transfer sends the same file over
+ * its own connection with its weight, and once they are all busy a small file
+ * is sent with weight 1. The table shows the rate every bulk transfer achieved
+ * and its share of the bytes over a window while all of them were busy, and
+ * the time the small file took, with and without the scheduler.
+ *
+ * Usage: java part2.bench.SchedulerBenchmark [size] [weights...]
+ * size is the size of every bulk transfer, 512M by default, and weights the
+ * weights of the bulk transfers, 1 1 4 by default. The caps of the scheduler
+ * are taken from the transfer.rate and transfer.peerRate system properties.
+ */
+public class SchedulerBenchmark {
+    // Size of the small file
+    private static final long SMALL = 1024 * 1024;
+    // Milliseconds the shares of the bulk transfers are taken over
+    private static final long WINDOW = 200;
+
+    public static void main(final String[] args) throws Exception {
+        final long size = BenchUtil.parseSize(args.length > 0 ? args[0] : "512M");
+        final List<Integer> weights = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            weights.add(Integer.parseInt(args[i]));
+        }
+        if (weights.isEmpty()) {
+            weights.add(1);
+            weights.add(1);
+            weights.add(4);
+        }
+
+        final File bulk = BenchUtil.createTempFile(size);
+        final File small = BenchUtil.createTempFile(SMALL);
+        try (ServerSocketChannel sink = ServerSocketChannel.open()) {
+            sink.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Execution.execute(() -> discard(sink));
+            final InetSocketAddress address = (InetSocketAddress) sink.getLocalAddress();
+
+            System.out.printf("%d transfers of %s and a small file of %s%n", weights.size(),
+                    BenchUtil.formatSize(size), BenchUtil.formatSize(SMALL));
+            run(address, bulk, small, weights, null);
+            run(address, bulk, small, weights, new TransferScheduler());
+        } finally {
+            bulk.delete();
+            small.delete();
+        }
+    }
+
+    /**
+     * send the bulk transfers and the small file at the same time and print
+     * the results
+     *
+     * @param address   the address of the sink
+     * @param bulk      the file of the bulk transfers
+     * @param small     the small file
+     * @param weights   the weights of the bulk transfers
+     * @param scheduler the scheduler, or null to let the transfers race
+     */
+    private static void run(final InetSocketAddress address, final File bulk, final File small,
+            final List<Integer> weights, final TransferScheduler scheduler) throws Exception {
+        final int count = weights.size();
+        final AtomicLong[] sent = new AtomicLong[count];
+        final long[] times = new long[count];
+        final CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            sent[i] = new AtomicLong();
+            Execution.execute(() -> {
+                final long startTime = System.nanoTime();
+                try {
+                    send(address, bulk, scheduler, weights.get(index), sent[index]);
+                } catch (final IOException e) {
+                    System.err.println("A bulk transfer failed: " + e.getMessage());
+                } finally {
+                    times[index] = System.nanoTime() - startTime;
+                    done.countDown();
+                }
+            });
+        }
+
+        // Send the small file once every bulk transfer is busy
+        for (final AtomicLong bytes : sent) {
+            while (bytes.get() == 0) {
+                Thread.sleep(1);
+            }
+        }
+        final long smallStart = System.nanoTime();
+        send(address, small, scheduler, 1, new AtomicLong());
+        final double smallMillis = (System.nanoTime() - smallStart) / 1e6;
+
+        // The shares are taken over a window while the bulk transfers are busy
+        final long[] start = new long[count];
+        for (int i = 0; i < count; i++) {
+            start[i] = sent[i].get();
+        }
+        Thread.sleep(WINDOW);
+        final long[] end = new long[count];
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            end[i] = sent[i].get();
+            total += end[i] - start[i];
+        }
+        done.await();
+
+        System.out.printf("%n%s, small file sent in %.1f ms%n", scheduler == null ? "No scheduler" : "Scheduler",
+                smallMillis);
+        System.out.printf("%-8s %10s %10s%n", "weight", "MB/s", "share");
+        for (int i = 0; i < count; i++) {
+            System.out.printf("%-8d %10.1f %9.1f%%%n", weights.get(i),
+                    BenchUtil.megabytesPerSecond(sent[i].get(), times[i]),
+                    total == 0 ? 0 : 100.0 * (end[i] - start[i]) / total);
+        }
+    }
+
+    /**
+     * send a file to the sink over its own connection
+     *
+     * @param address   the address of the sink
+     * @param file      the file
+     * @param scheduler the scheduler, or null to send without waiting for turns
+     * @param weight    the weight of the transfer in the scheduler
+     * @param sent      the counter of the bytes that were sent
+     */
+    private static void send(final InetSocketAddress address, final File file, final TransferScheduler scheduler,
+            final int weight, final AtomicLong sent) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address);
+                FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = fileChannel.size();
+            final ScheduledTransfer transfer = scheduler == null ? null
+                    : scheduler.open(file.getName(), "sink", weight);
+            long position = 0;
+            try {
+                while (position < size) {
+                    final long granted = transfer == null ? Math.min(SMALL, size - position)
+                            : transfer.acquire(size - position);
+                    long written = 0;
+                    try {
+                        while (written < granted) {
+                            written += fileChannel.transferTo(position + written, granted - written, channel);
+                        }
+                    } finally {
+                        if (transfer != null) {
+                            transfer.sent(written);
+                        }
+                    }
+                    position += written;
+                    sent.addAndGet(written);
+                }
+            } finally {
+                if (transfer != null) {
+                    transfer.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * read and discard everything every connection to the sink sends
+     *
+     * @param sink the server channel of the sink
+     */
+    private static void discard(final ServerSocketChannel sink) {
+        try {
+            while (true) {
+                final SocketChannel channel = sink.accept();
+                Execution.execute(() -> {
+                    try (SocketChannel connection = channel) {
+                        final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                        while (connection.read(buffer) >= 0) {
+                            buffer.clear();
+                        }
+                    } catch (final IOException e) {
+                        // The sender went away
+                    }
+                });
+            }
+        } catch (final IOException e) {
+            // The sink was closed
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package part2.bench;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import part2.transfer.FileSender;
+import part2.transfer.TransferStats;
+
+/**
+ * Compares the throughput of the send strategies of FileSender over loopback.
+ *
+ * Usage: java part2.bench.SendFileBenchmark [sizes]
+ * sizes is a comma separated list such as 1M,100M,2G (the default). The byte
+ * loop needs two system calls per byte, so it is skipped for files larger than
+ * the bench.byteLoopLimit system property (10M by default).
+ */
+public class SendFileBenchmark {
+
+    public static void main(final String[] args) throws Exception {
+        final String sizes = args.length > 0 ? args[0] : "1M,100M,2G";
+        final long byteLoopLimit = BenchUtil.parseSize(System.getProperty("bench.byteLoopLimit", "10M"));
+
+        System.out.printf("%-8s %-12s %12s%n", "size", "strategy", "MB/s");
+        for (final String size : sizes.split(",")) {
+            final long bytes = BenchUtil.parseSize(size);
+            final File file = BenchUtil.createTempFile(bytes);
+
+            for (final FileSender.Strategy strategy : FileSender.Strategy.values()) {
+                if (strategy == FileSender.Strategy.BYTE_LOOP && bytes > byteLoopLimit) {
+                    System.out.printf("%-8s %-12s %12s%n", size, strategy, "skipped");
+                    continue;
+                }
+                final TransferStats stats = run(file, strategy);
+                System.out.printf("%-8s %-12s %12.2f%n", size, strategy,
+                        BenchUtil.megabytesPerSecond(stats.getBytes(), stats.getElapsedNanos()));
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * send a file over a loopback connection to a receiver that discards the
+     * payload. The elapsed time includes waiting for the receiver to drain
+     * every byte.
+     *
+     * @param file     the file to send
+     * @param strategy the strategy the sender uses
+     * @return the statistics of the transfer
+     */
+    private static TransferStats run(final File file, final FileSender.Strategy strategy) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            final long[] received = new long[1];
+            final Thread drain = new Thread(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                    in.readUTF();
+                    long remaining = in.readLong();
+                    final ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+                    while (remaining > 0) {
+                        buffer.clear();
+                        final int read = channel.read(buffer);
+                        if (read < 0) {
+                            break;
+                        }
+                        remaining -= read;
+                        received[0] += read;
+                    }
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            drain.start();
+
+            try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+                final FileSender sender = new FileSender(
+                        new DataOutputStream(channel.socket().getOutputStream()), channel);
+                sender.setStrategy(strategy);
+
+                final long startTime = System.nanoTime();
+                sender.send(file.getPath());
+                drain.join();
+                final long elapsed = System.nanoTime() - startTime;
+
+                return new TransferStats(file.getName(), received[0], elapsed, strategy.name());
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package part2.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This runs the blocking tasks of routers and nodes: a task per connected node
+ * on a router, and the receiving tasks of a node. The execution mode is chosen
+ * at startup with the execution.mode system property.
+ * "platform": every task runs on a platform thread of a cached pool
+ * "virtual": every task runs on its own virtual thread, so a blocked task only
+ * costs its stack on the heap instead of a platform thread
+ *
+ * Virtual threads need Java 21. They are looked up with reflection so the code
+ * still builds and runs on older versions, which fall back to platform threads.
+ */
+public final class Execution {
+    // Execution mode chosen at startup
+    private static final String MODE = System.getProperty("execution.mode", "platform");
+    // Executor every task of this process runs on
+    private static final ExecutorService EXECUTOR = newExecutor(MODE);
+
+    private Execution() {
+    }
+
+    /**
+     * run a task on the executor of this process
+     *
+     * @param task the task
+     */
+    public static void execute(final Runnable task) {
+        EXECUTOR.execute(task);
+    }
+
+    /**
+     * gets the executor every task of this process runs on
+     *
+     * @return the executor
+     */
+    public static ExecutorService getExecutor() {
+        return EXECUTOR;
+    }
+
+    /**
+     * check if the tasks of this process run on virtual threads
+     *
+     * @return true if they do, false if they run on platform threads
+     */
+    public static boolean isVirtual() {
+        return isVirtual(EXECUTOR);
+    }
+
+    /**
+     * create an executor for an execution mode
+     *
+     * @param mode "platform" or "virtual"
+     * @return the executor. A "virtual" executor is a platform one if this Java
+     *         version has no virtual threads
+     */
+    public static ExecutorService newExecutor(final String mode) {
+        if (mode.equalsIgnoreCase("virtual")) {
+            try {
+                final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) method.invoke(null);
+            } catch (final ReflectiveOperationException e) {
+                System.err.println("Virtual threads need Java 21, running on platform threads instead!");
+            }
+        } else if (!mode.equalsIgnoreCase("platform")) {
+            System.err.println("The execution mode " + mode + " is unknown, running on platform threads instead!");
+        }
+        return Executors.newCachedThreadPool(new PlatformThreads());
+    }
+
+    /**
+     * check if an executor runs its tasks on virtual threads
+     *
+     * @param executor the executor
+     * @return true if it does, false otherwise
+     */
+    public static boolean isVirtual(final ExecutorService executor) {
+        return !(executor instanceof ThreadPoolExecutor);
+    }
+
+    /**
+     * This creates the named daemon threads of the platform executor.
+     */
+    private static final class PlatformThreads implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(); // amount of threads created
+
+        @Override
+        public Thread newThread(final Runnable task) {
+            final Thread thread = new Thread(task, "worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package part2.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This counts latencies in buckets whose width grows with the latency, the way
+ * an HDR histogram does, so every percentile is known to within 1% from a few
+ * microseconds up to minutes, in a fixed amount of memory.
+ *
+ * Latencies below 256 nanoseconds get a bucket each. Above that, every power
+ * of two is split into 128 buckets, so a bucket is never wider than 1/128 of the
+ * latencies it holds. Recording a latency takes no lock and allocates nothing,
+ * so the threads that handle messages can record every one of them.
+ */
+public class LatencyHistogram {
+    // Bits of a latency that select its bucket within its power of two
+    private static final int SUB_BITS = 8;
+    // Amount of buckets of every power of two after the first
+    private static final int HALF = 1 << (SUB_BITS - 1);
+    // Amount of buckets up to the highest latency a long holds
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * HALF + HALF;
+    // Percentiles that are reported, in the order they are reported
+    private static final double[] REPORTED = { 50, 90, 99, 99.9 };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS); // amount of latencies of every bucket
+    private final LongAdder count = new LongAdder(); // amount of latencies
+    private final LongAdder sum = new LongAdder(); // sum of the latencies in nanoseconds
+    private final AtomicLong max = new AtomicLong(); // highest latency in nanoseconds
+
+    /**
+     * count a latency
+     *
+     * @param nanos the latency in nanoseconds. Negative latencies count as 0
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * gets the bucket of a latency
+     *
+     * @param value the latency, not negative
+     * @return the index of the bucket
+     */
+    private static int bucket(final long value) {
+        final int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1));
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * gets the highest latency a bucket holds
+     *
+     * @param bucket the index of the bucket
+     * @return the latency in nanoseconds
+     */
+    private static long highest(final int bucket) {
+        final int shift = Math.max(0, bucket / HALF - 1);
+        final long mantissa = bucket - (long) shift * HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * gets the amount of latencies that were counted
+     *
+     * @return the amount of latencies
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * gets the highest latency that was counted
+     *
+     * @return the latency in nanoseconds, 0 if none was counted
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * gets the mean of the latencies that were counted
+     *
+     * @return the mean in nanoseconds, 0 if none was counted
+     */
+    public double getMean() {
+        final long total = count.sum();
+        return total == 0 ? 0 : (double) sum.sum() / total;
+    }
+
+    /**
+     * gets the latency that a share of the counted latencies is at or below.
+     * The latency is the highest one of its bucket, and never more than the
+     * highest latency that was counted.
+     *
+     * @param percentile the share in percent, such as 99.9
+     * @return the latency in nanoseconds, 0 if none was counted
+     */
+    public long getPercentile(final double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("A percentile is between 0 and 100!");
+        }
+        final long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(highest(bucket), max.get());
+            }
+        }
+        // Latencies recorded while the buckets were read
+        return max.get();
+    }
+
+    /**
+     * gets the reported percentiles, the mean and the highest latency in
+     * microseconds, such as for a JMX attribute
+     *
+     * @return the latencies by name: p50, p90, p99, p99.9, mean and max
+     */
+    public Map<String, Double> getMicros() {
+        final Map<String, Double> micros = new LinkedHashMap<>();
+        for (final double percentile : REPORTED) {
+            final String name = percentile == Math.rint(percentile) ? String.valueOf((long) percentile)
+                    : String.valueOf(percentile);
+            micros.put("p" + name, getPercentile(percentile) / 1e3);
+        }
+        micros.put("mean", getMean() / 1e3);
+        micros.put("max", getMax() / 1e3);
+        return micros;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d latencies, p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us", getCount(),
+                getPercentile(50) / 1e3, getPercentile(99) / 1e3, getPercentile(99.9) / 1e3, getMax() / 1e3);
+    }
+}
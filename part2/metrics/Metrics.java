@@ -0,0 +1,71 @@
+package part2.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This registers the metrics of routers and nodes as MBeans of the platform
+ * MBean server, where JConsole, VisualVM or any other JMX client reads them.
+ *
+ * Every MBean is named part2:type=TYPE,name="NAME". An MBean that is registered
+ * under a name that is taken replaces the one before it, so a router or node
+ * that is created again in the same process shows its own metrics. Metrics are
+ * not registered when the metrics.jmx system property is false.
+ */
+public final class Metrics {
+    // Whether metrics are registered with the platform MBean server
+    private static final boolean JMX = Boolean.parseBoolean(System.getProperty("metrics.jmx", "true"));
+
+    private Metrics() {
+    }
+
+    /**
+     * register an MBean
+     *
+     * @param type  the type of the MBean, such as Router or Node
+     * @param name  the name of the router or node
+     * @param mbean the MBean
+     * @return the name it was registered under, or null if it was not
+     *         registered
+     */
+    public static ObjectName register(final String type, final String name, final Object mbean) {
+        if (!JMX) {
+            return null;
+        }
+        try {
+            final ObjectName objectName = new ObjectName("part2:type=" + type + ",name=" + ObjectName.quote(name));
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                unregister(objectName);
+            }
+            server.registerMBean(mbean, objectName);
+            return objectName;
+        } catch (final JMException e) {
+            System.err.println("The metrics of " + name + " could not be registered: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * unregister an MBean
+     *
+     * @param objectName the name it was registered under, or null if it was not
+     *                   registered
+     */
+    public static void unregister(final ObjectName objectName) {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (final InstanceNotFoundException e) {
+            // It was replaced or unregistered already
+        } catch (final JMException e) {
+            System.err.println("The metrics " + objectName + " could not be unregistered: " + e.getMessage());
+        }
+    }
+}
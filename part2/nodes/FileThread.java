@@ -1,28 +1,31 @@
 package part2.nodes;
 
-import static org.junit.Assert.assertEquals;
-
 import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import part2.transfer.FileReceiver;
+import part2.transfer.TransferStats;
 
 /**
- * A thread for a node which receives incoming data from the peer that is
- * connected to it. This thread first recieves a file name which is used to
+ * A task for a node which receives incoming data from the peer that is
+ * connected to it. This task first recieves a file name which is used to
  * create a new local file. Afterwards, a stream of bytes is recieved which gets
- * written to the new file.
+ * written to the new file in large chunks by a FileReceiver. The task runs on a
+ * platform or a virtual thread depending on the execution mode.
  */
 
-public class FileThread extends Thread {
+public class FileThread implements Runnable {
     // Attributes for interacting with another node
     private final DataInputStream in; // DataInputStream that the current node uses to receive data from its connected
                                       // peer
+    private final FileReceiver receiver; // engine that drains files from the peer into local files
     private final Node[] nodeArr = new Node[1]; // Array that stores a reference to the current node. This allows for
-                                                // the current thread to modify the node's attributes as needed.
+                                                // the current task to modify the node's attributes as needed.
 
     /**
-     * create a new thread for a node which receives incoming data from the peer it
+     * create a new task for a node which receives incoming data from the peer it
      * is connected to
      * 
      * @param peer the socket that is reponsible for the connection from a node to a
@@ -36,19 +39,23 @@ public class FileThread extends Thread {
 
         // Get the nodes input stream for receiving
         in = new DataInputStream(nodeArr[0].getPeerSocket().getInputStream());
+        receiver = new FileReceiver(in, nodeArr[0].getPeerSocket().getChannel());
     }
 
     /**
-     * starts the thread for a node which listens for incoming data.
-     * This thread first recieves a file name which is used to create a new local
+     * starts the task for a node which listens for incoming data.
+     * This task first recieves a file name which is used to create a new local
      * file. It then receives the size of the file that will be received.
      * Afterwards, a stream of bytes is received which gets written to the local
-     * file.
+     * file. This repeats for every file the peer sends. Once the connection to
+     * the peer drops, the node forgets its peer and the task ends. A file that
+     * was only partly received is deleted, since this protocol cannot resume it.
      */
     public void run() {
 
         String message;
-        final boolean running = true;
+        boolean running = true;
+        String receiving = null; // path of the file being received, null between files
 
         // Listen for data over the input stream
         while (running) {
@@ -57,54 +64,42 @@ public class FileThread extends Thread {
                 // Receive a message
                 message = in.readUTF();
 
-                // Connection to peer has been shutdown
-                if (message == null) {
-                    System.out.println("The node has been shutdown");
-                }
-
                 System.out.println("Node received the message: " + message);
 
-                // Create the file locally
-                final FileOutputStream fileOut = new FileOutputStream(message);
-
                 // Receive the size of the file
                 final long size = in.readLong();
 
                 System.out.println("Node received the filesize: " + size);
 
-                // Variable used to store incoming bytes of data
-                int data;
-
-                // Read size bytes of data and write them to the file
-                long count = 0;
-                while (count < size) {
-                    data = in.read();
-                    fileOut.write(data);
-                    count++;
+                // Receive the file and verify the size of the file saved matches what the
+                // peer announced
+                receiving = nodeArr[0].receivedPath(message);
+                final TransferStats stats = receiver.receive(receiving, size);
+                receiving = null;
+                System.out.println("The file written is " + stats.getBytes() + " bytes");
+                if (stats.isVerified()) {
+                    nodeArr[0].getMetrics().received(stats);
+                    System.out.println("Saved " + message + " from a peer!");
+                } else {
+                    System.err.println("The file " + message + " does not match the " + size
+                            + " bytes the peer announced!");
                 }
-
-                fileOut.close();
-
-                // Verify the size of the file received matches what was written to the file
-                final File file = new File(message);
-                final long writtenSize = file.length();
-                System.out.println("The file written is " + writtenSize + " bytes");
-                System.out.println("Saved " + message + " from a peer!");
-                assertEquals(size, writtenSize);
+                System.out.println(stats);
 
             } catch (final IOException e) {
-                nodeArr[0].setPeerStatus(false);
-                try {
-                    nodeArr[0].getPeerSocket().close();
-                    nodeArr[0].getRouterSocket().close();
-                } catch (final IOException e1) {
-                    System.out.println("Socket is already closed");
+                running = false;
+                if (receiving != null) {
+                    try {
+                        Files.deleteIfExists(Paths.get(receiving));
+                        System.err.println("The peer disconnected in the middle of " + receiving
+                                + ", the partial file was deleted!");
+                    } catch (final IOException e1) {
+                        System.err.println("Could not delete the partial file " + receiving + ": " + e1.getMessage());
+                    }
                 }
+                nodeArr[0].peerClosed();
                 System.out.println("The socket from this node to the peer has been closed!");
-                System.out.println("Quitting...");
-                System.exit(0);
             }
-            break;
         }
     }
 }
@@ -0,0 +1,227 @@
+package part2.nodes;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import part2.metrics.LatencyHistogram;
+import part2.protocol.ControlMessage;
+import part2.protocol.ControlStream;
+import part2.routers.RoutingIndex;
+
+/**
+ * This represents the lookups a node asks its router for. Every lookup gets a
+ * request id that the routers carry to the other router and back, so any
+ * amount of lookups can be in flight at once and their answers can come back
+ * in any order.
+ *
+ * Answers are kept in a ReachabilityCache, so a peer that was just looked up
+ * is answered without asking the router again.
+ *
+ * The same connection asks the router for relays to peers that cannot be
+ * connected to directly.
+ *
+ * The task reads the responses from the router and completes the future of
+ * the lookup each one belongs to, and removes peers the router says left from
+ * the cache. It runs until the connection to the router is closed, which fails
+ * every lookup that is still pending.
+ *
+ * The time every answered lookup waited for the router is counted in a
+ * LatencyHistogram. Answers from the cache are not counted.
+ */
+public class LookupClient implements Runnable {
+    // Milliseconds a lookup waits for its answer before it fails
+    private static final long TIMEOUT = Long.getLong("node.lookupTimeout", 5000);
+
+    private final ControlStream stream; // control messages between the node and its router
+    private final int origin; // packed address of the node
+    private final ReachabilityCache cache; // answers of earlier lookups
+    private final AtomicInteger nextId = new AtomicInteger(); // last request id that was handed out
+    private final ConcurrentHashMap<Integer, CompletableFuture<Boolean>> lookups = new ConcurrentHashMap<>(); // pending lookups by id
+    private final ConcurrentHashMap<Integer, CompletableFuture<Integer>> relays = new ConcurrentHashMap<>(); // pending relay requests by id
+    private final LatencyHistogram latency = new LatencyHistogram(); // time lookups waited for the router
+    private volatile boolean closed = false; // whether the connection to the router was closed
+
+    /**
+     * create a new lookup client on the connection of a node to its router
+     *
+     * @param stream the control stream to the router
+     * @param origin the packed address of the node
+     * @param cache  the cache of answers
+     */
+    public LookupClient(final ControlStream stream, final int origin, final ReachabilityCache cache) {
+        this.stream = stream;
+        this.origin = origin;
+        this.cache = cache;
+    }
+
+    /**
+     * ask the router if a peer can be connected to
+     *
+     * @param address the string representation of the peer's IP address
+     * @return a future that completes with true if the peer can be connected to,
+     *         false if it cannot, or fails if no answer comes back
+     */
+    public CompletableFuture<Boolean> lookup(final String address) {
+        final int destination;
+        try {
+            destination = RoutingIndex.pack(address);
+        } catch (final IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return lookup(destination);
+    }
+
+    /**
+     * ask the router if a peer can be connected to
+     *
+     * @param destination the packed address of the peer
+     * @return a future that completes with true if the peer can be connected to,
+     *         false if it cannot, or fails if no answer comes back
+     */
+    public CompletableFuture<Boolean> lookup(final int destination) {
+        final Boolean cached = cache.get(destination);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        final int id = nextId();
+        final Integer key = id;
+
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        lookups.put(key, future);
+        final long sent = System.nanoTime();
+        // The reader completes the future, so the answer is cached before the
+        // next message of the router is handled
+        future.orTimeout(TIMEOUT, TimeUnit.MILLISECONDS).whenComplete((yes, e) -> {
+            lookups.remove(key);
+            if (e == null) {
+                latency.record(System.nanoTime() - sent);
+                cache.put(destination, yes);
+            }
+        });
+        if (closed) {
+            future.completeExceptionally(new IOException("The node is not connected to its router!"));
+            return future;
+        }
+
+        try {
+            stream.send(new ControlMessage().set(ControlMessage.NODE_REQUEST, 0, id, origin, destination));
+        } catch (final IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * ask the router for a relay to a port of a peer, for a peer that cannot be
+     * connected to directly
+     *
+     * @param destination the packed address of the peer
+     * @param port        the port of the peer
+     * @return a future that completes with the port of the router that is
+     *         relayed to the peer, 0 if the router cannot relay to it, or fails
+     *         if no answer comes back
+     */
+    public CompletableFuture<Integer> relay(final int destination, final int port) {
+        final int id = nextId();
+        final Integer key = id;
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        relays.put(key, future);
+        future.orTimeout(TIMEOUT, TimeUnit.MILLISECONDS).whenComplete((relayPort, e) -> relays.remove(key));
+        if (closed) {
+            future.completeExceptionally(new IOException("The node is not connected to its router!"));
+            return future;
+        }
+
+        try {
+            stream.send(new ControlMessage().set(ControlMessage.RELAY_REQUEST, port, id, origin, destination));
+        } catch (final IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * gets the next request id, which is never 0
+     *
+     * @return the id
+     */
+    private int nextId() {
+        int id;
+        do {
+            id = nextId.incrementAndGet();
+        } while (id == 0);
+        return id;
+    }
+
+    /**
+     * gets the amount of lookups that wait for their answer
+     *
+     * @return the amount of lookups
+     */
+    public int getPending() {
+        return lookups.size();
+    }
+
+    /**
+     * gets the histogram of the time answered lookups waited for the router
+     *
+     * @return the histogram
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * gets the cache of answers, with its statistics
+     *
+     * @return the cache
+     */
+    public ReachabilityCache getCache() {
+        return cache;
+    }
+
+    /**
+     * a task that reads the answers of the router until the connection to it is
+     * closed
+     */
+    public void run() {
+        final ControlMessage message = new ControlMessage();
+        IOException failure = new IOException("The router closed the connection!");
+        try {
+            while (stream.receive(message)) {
+                if (message.getType() == ControlMessage.NODE_INVALIDATE) {
+                    cache.invalidate(message.getDestination());
+                    continue;
+                }
+                if (message.getType() == ControlMessage.RELAY_RESPONSE) {
+                    final CompletableFuture<Integer> relay = relays.remove(message.getRequestId());
+                    if (relay != null) {
+                        relay.complete(message.getFlags());
+                    }
+                    continue;
+                }
+                if (message.getType() != ControlMessage.NODE_RESPONSE) {
+                    continue;
+                }
+                final CompletableFuture<Boolean> future = lookups.remove(message.getRequestId());
+                if (future != null) {
+                    future.complete(message.isYes());
+                }
+            }
+        } catch (final IOException e) {
+            failure = e;
+        }
+
+        closed = true;
+        for (final CompletableFuture<Boolean> future : lookups.values()) {
+            future.completeExceptionally(failure);
+        }
+        for (final CompletableFuture<Integer> future : relays.values()) {
+            future.completeExceptionally(failure);
+        }
+    }
+}
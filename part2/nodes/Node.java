@@ -1,21 +1,44 @@
 package part2.nodes;
 
-import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.InputMismatchException;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
+import part2.concurrent.Execution;
 import part2.exceptions.NotConnectedToRouterException;
+import part2.metrics.Metrics;
+import part2.protocol.ControlCodec;
+import part2.protocol.ControlMessage;
+import part2.protocol.ControlStream;
+import part2.routers.RoutingIndex;
+import part2.transfer.BatchSender;
+import part2.transfer.CompressedSender;
+import part2.transfer.DedupSender;
+import part2.transfer.DeltaSender;
+import part2.transfer.FileReceiver;
+import part2.transfer.FileSender;
+import part2.transfer.FramedSender;
+import part2.transfer.ResumableSender;
+import part2.transfer.StripedSender;
+import part2.transfer.ScheduledTransfer;
+import part2.transfer.TransferOptions;
+import part2.transfer.TransferScheduler;
+import part2.transfer.TransferStats;
 
 /**
  * This represents a node which is connected to one of two possible routers.
@@ -27,27 +50,59 @@ import part2.exceptions.NotConnectedToRouterException;
  * peer (node) in the other cluster. The node becomes disconnected from the
  * router once a connection to a peer is established. The node can then send
  * files to its peer. The peer is also able to send files to the node too.
+ *
+ * A peer that cannot be connected to directly is connected to through the
+ * relay of the router, which passes the data on to the peer. Every transfer
+ * then connects to the relay instead of the peer.
+ *
+ * Files can be sent in the background while other files are sent. Every file
+ * shares the link through a scheduler by its weight, within the caps of the
+ * transfer.rate and transfer.peerRate system properties.
+ *
+ * The metrics of the node are registered as the MBean
+ * part2:type=Node,name="Node ID at ADDRESS".
+ *
+ * A node can be given its own address and peer port, so many nodes can run on
+ * the loopback addresses of one host, and be driven without the menu through
+ * connectToPeer and send.
  */
 public class Node {
     // Static attributes
     public static int unusedPort = 5558; // port that is currently not in use
     public static int nodeCount = 0; // current amount of nodes in this cluster
+    // Milliseconds a direct connection to a peer may take before the router is
+    // asked to relay
+    private static final int CONNECT_TIMEOUT = Integer.getInteger("node.connectTimeout", 3000);
+    // Whether peers are always connected to through the relay of the router
+    private static final boolean ALWAYS_RELAY = Boolean.getBoolean("node.alwaysRelay");
+    // Port nodes listen on for peers, and that peers are connected to from the menu
+    private static final int PEER_PORT = Integer.getInteger("node.peerPort", 5558);
 
     // Attributes for interacting with a router
     private int routerPort; // port number of the node's router
     private String routerAddress = null; // IP address of the node's router
     private Socket routerSocket = null; // Socket that connects this node to its router
-    private PrintWriter routerOut = null; // output from this node to its router
-    private BufferedReader routerIn = null; // input from the router to this node
+    private ControlStream routerStream = null; // control messages between this node and its router
+    private LookupClient lookups = null; // lookups of peers that wait for the router
+    private final ReachabilityCache reachability = new ReachabilityCache(
+            Integer.getInteger("node.cacheSize", 4096), Long.getLong("node.cacheTtl", 30000),
+            Long.getLong("node.negativeCacheTtl", 2000)); // answers of earlier lookups
     private String routerRepr = null; // String representation of the router. Format: IP ADDRESS:PORT #
 
     // Attributes for interacting with a peer
     private String peerAddress = null; // IP address of the peer this node is connected to
     private ServerSocket nodeSocket = null; // ServerSocket of this node that listens for incoming connections from
                                             // peers
+    private PeerAcceptor acceptor = null; // accepts the peer and its transfer connections
     private Socket peerSocket = null; // Socket that connects this node to a peer
     private DataInputStream peerIn = null; // DataInputStream from the connected peer to this node
     private DataOutputStream peerOut = null; // DataOutputStream from this node to its connected peer
+    private int peerPort = PEER_PORT; // port the peer listens on for connections from other nodes
+    private int listenPort = PEER_PORT; // port this node listens on for peers, 0 for any free port
+    private Path receiveDirectory = null; // directory received files are saved in, null for their own paths
+    private final TransferOptions transferOptions = new TransferOptions(); // settings used when sending files
+    private final TransferScheduler scheduler = new TransferScheduler(); // shares the link between sent files
+    private final NodeMetrics metrics = new NodeMetrics(this); // counters of the MBean of the node
 
     // Attributes about the current node
     private String localAddress = null; // IP address of this node
@@ -64,11 +119,32 @@ public class Node {
      *                      connections from incoming nodes
      */
     public Node(final String routerAddress, final int routerPort) throws NotConnectedToRouterException {
+        this(routerAddress, routerPort, null, PEER_PORT);
+    }
+
+    /**
+     * This creates a new node on a given address which then connects to a router.
+     *
+     * @param routerAddress the string representation of the router's IP address
+     * @param routerPort    the port number that the router is using to listen for
+     *                      connections from incoming nodes
+     * @param localAddress  the IP address the node connects and listens from, or
+     *                      null for the address the router is reached from
+     * @param peerPort      the port the node listens on for peers, 0 for any free
+     *                      port
+     * @throws NotConnectedToRouterException if the node cannot connect to the
+     *                                       router
+     */
+    public Node(final String routerAddress, final int routerPort, final String localAddress, final int peerPort)
+            throws NotConnectedToRouterException {
         // Increment the amount of nodes in this cluster
         nodeCount++;
+        this.localAddress = localAddress;
+        this.listenPort = peerPort;
 
         // Connect this node to a router
         connectToRouter(routerAddress, routerPort);
+        Metrics.register("Node", "Node " + nodeID + " at " + this.localAddress, metrics);
 
     }
 
@@ -93,7 +169,7 @@ public class Node {
 
                 // Prompt the user
                 System.out.print(
-                        "\nWhat do you want to do?\n1) Connect to a peer\n2) Send a file to the currently connected peer\n3) Quit\nChoice: ");
+                        "\nWhat do you want to do?\n1) Connect to a peer\n2) Send a file to the currently connected peer\n3) Send a directory or glob to the currently connected peer\n4) Send a file in the background\n5) Show the files being sent\n6) Quit\nChoice: ");
 
                 choice = scan.nextInt();
                 scan.nextLine();
@@ -106,7 +182,7 @@ public class Node {
                         } else {
                             System.out.print("What is the IP address of the peer you want to connect to?: ");
                             final String destination = scan.next();
-                            connectToPeer(destination, 5558);
+                            connectToPeer(destination, PEER_PORT);
                         }
                         break;
 
@@ -121,8 +197,38 @@ public class Node {
                             System.out.println("You must connect to a peer first!");
                         }
                         break;
-                    // Quit and disconnect from everything
+                    // Send every file of a directory or glob
                     case 3:
+                        if (isConnectedToPeer()) {
+                            System.out.print("What directory or glob do you want to send: ");
+                            final String pattern = scan.nextLine();
+                            sendBatch(pattern);
+                        } else {
+                            System.out.println("You must connect to a peer first!");
+                        }
+                        break;
+
+                    // Send a file while other files are sent
+                    case 4:
+                        if (isConnectedToPeer()) {
+                            System.out.print("What file do you want to send: ");
+                            final String fileName = scan.nextLine();
+                            System.out.print("What weight should it get against the other files (1 or more): ");
+                            final int weight = scan.nextInt();
+                            scan.nextLine();
+                            sendInBackground(fileName, weight);
+                        } else {
+                            System.out.println("You must connect to a peer first!");
+                        }
+                        break;
+
+                    // Show how fast every file is being sent
+                    case 5:
+                        showTransfers();
+                        break;
+
+                    // Quit and disconnect from everything
+                    case 6:
                         System.out.println("Quitting...");
 
                         if (isConnectedToRouter()) {
@@ -143,7 +249,7 @@ public class Node {
             }
 
         } // Keep repeating the menu until the decide to quit
-        while (choice != 3);
+        while (choice != 6);
 
         scan.close();
 
@@ -153,6 +259,18 @@ public class Node {
 
     // Setters
 
+    /**
+     * sets the directory that files received from the peer are saved in. The
+     * files are saved under their names only, without the directories the peer
+     * sent.
+     *
+     * @param receiveDirectory the directory, or null to save files under the
+     *                         paths the peer sent
+     */
+    public void setReceiveDirectory(final Path receiveDirectory) {
+        this.receiveDirectory = receiveDirectory;
+    }
+
     /**
      * sets the status of the node being connected to a router
      * 
@@ -163,11 +281,12 @@ public class Node {
     }
 
     /**
-     * 
-     * @param routerOut
+     * sets the stream of control messages between this node and its router
+     *
+     * @param routerStream the control stream
      */
-    public void setRouterOut(final PrintWriter routerOut) {
-        this.routerOut = routerOut;
+    public void setRouterStream(final ControlStream routerStream) {
+        this.routerStream = routerStream;
     }
 
     /**
@@ -277,13 +396,141 @@ public class Node {
     }
 
     /**
-     * Gets the PrintWriter object that is used by the current node to communicate
-     * with its router
+     * Gets the ServerSocket that the current node uses to listen for incoming
+     * connections
+     * 
+     * @return ServerSocket object the node listens on
+     */
+    public ServerSocket getNodeSocket() {
+        return nodeSocket;
+    }
+
+    /**
+     * Gets the settings the node uses when it sends files to its peer. Changes to
+     * the returned object apply to the next file that is sent.
+     * 
+     * @return the transfer settings of the node
+     */
+    public TransferOptions getTransferOptions() {
+        return transferOptions;
+    }
+
+    /**
+     * gets the scheduler that shares the link between the files that are sent
+     * at the same time
+     *
+     * @return the scheduler
+     */
+    public TransferScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * gets the metrics of the node, which are also registered as an MBean
+     *
+     * @return the metrics
+     */
+    public NodeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * gets the client that asks the router about peers
+     *
+     * @return the lookup client, or null before the node connected to its router
+     */
+    LookupClient getLookupClient() {
+        return lookups;
+    }
+
+    /**
+     * Gets the stream of control messages that is used by the current node to
+     * communicate with its router
      * 
-     * @return PrintWriter object the node uses to communicate with its router
+     * @return ControlStream the node uses to communicate with its router
+     */
+    public ControlStream getRouterStream() {
+        return this.routerStream;
+    }
+
+    /**
+     * tell the router of this node to remove it from its routing table
+     *
+     * @throws IOException if the message cannot be sent
+     */
+    public void sendDisconnect() throws IOException {
+        routerStream.send(
+                new ControlMessage().set(ControlMessage.NODE_DISCONNECT, 0, 0, packedLocalAddress(), 0));
+    }
+
+    /**
+     * ask the router if a peer can be connected to, without waiting for the
+     * answer. Any amount of lookups can be in flight at once.
+     *
+     * @param address the string representation of the peer's IP address
+     * @return a future that completes with true if the peer can be connected to,
+     *         false if it cannot, or fails if the router does not answer
+     */
+    public CompletableFuture<Boolean> lookup(final String address) {
+        if (lookups == null) {
+            return CompletableFuture
+                    .failedFuture(new NotConnectedToRouterException("You are not connected to a router!"));
+        }
+        return lookups.lookup(address);
+    }
+
+    /**
+     * gets the cache of answers to lookups, with its hit rate and the round
+     * trips it saved
+     *
+     * @return the cache
+     */
+    public ReachabilityCache getReachabilityCache() {
+        return reachability;
+    }
+
+    /**
+     * gets the packed IPv4 address of this node
+     *
+     * @return the packed address, or 0 if the node does not have an IPv4 address
+     */
+    private int packedLocalAddress() {
+        try {
+            return RoutingIndex.pack(localAddress);
+        } catch (final IllegalArgumentException e) {
+            // The router only knows the node by its connection then
+            return 0;
+        }
+    }
+
+    /**
+     * gets the port this node listens on for peers
+     *
+     * @return the port number, or the configured port if the node does not
+     *         listen yet
      */
-    public PrintWriter getRouterOut() {
-        return this.routerOut;
+    public int getPeerPort() {
+        return nodeSocket == null ? listenPort : nodeSocket.getLocalPort();
+    }
+
+    /**
+     * gets the path a file received from the peer is saved under
+     *
+     * @param name the name the peer sent the file under
+     * @return the path to save the file under
+     */
+    String receivedPath(final String name) {
+        return FileReceiver.resolve(receiveDirectory, name);
+    }
+
+    /**
+     * gets the directory that files received from the peer are saved in
+     *
+     * @return the directory, or null if files are saved under the paths the
+     *         peer sent
+     */
+    public Path getReceiveDirectory() {
+        return receiveDirectory;
     }
 
     /**
@@ -314,10 +561,16 @@ public class Node {
 
         // Try to connect to the router
         try {
-            routerSocket = new Socket(routerAddress, routerPort);
-            routerOut = new PrintWriter(routerSocket.getOutputStream(), true);
-            routerIn = new BufferedReader(new InputStreamReader(routerSocket.getInputStream()));
+            routerSocket = new Socket();
+            if (localAddress != null) {
+                routerSocket.bind(new InetSocketAddress(localAddress, 0));
+            }
+            routerSocket.connect(new InetSocketAddress(routerAddress, routerPort));
+            routerStream = new ControlStream(routerSocket.getInputStream(), routerSocket.getOutputStream(),
+                    ControlCodec.BINARY);
             localAddress = routerSocket.getLocalAddress().getHostAddress();
+            lookups = new LookupClient(routerStream, packedLocalAddress(), reachability);
+            Execution.execute(lookups);
 
             System.out
                     .println("Node " + nodeID + " at address " + localAddress + " is connected to the router at "
@@ -341,8 +594,8 @@ public class Node {
     }
 
     /**
-     * This listens for peers to connect to this node. A PeerThread gets started
-     * which accepts connections.
+     * This listens for peers to connect to this node. A PeerAcceptor gets started
+     * which accepts connections from any amount of peers.
      */
     private void listenForPeers() {
         // Check if currently connected to a peer
@@ -352,32 +605,76 @@ public class Node {
             return;
         }
 
-        // Start listening for peers
-        final PeerThread pThread = new PeerThread(this);
-        pThread.start();
+        try {
+            // Listen for incoming connections
+            // The ServerSocket is opened from a channel so accepted sockets have a
+            // SocketChannel that files can be sent through with transferTo
+            final ServerSocketChannel server = ServerSocketChannel.open();
+            server.socket().setReuseAddress(true);
+            server.bind(new InetSocketAddress(localAddress, listenPort));
+            nodeSocket = server.socket();
+            System.out.println("Node " + nodeID + " is listening for peers on port " + nodeSocket.getLocalPort()
+                    + " at the IP address " + localAddress + "!");
+
+            // Start accepting peers
+            acceptor = new PeerAcceptor(server, this);
+            acceptor.start();
+
+        } catch (final IOException e) {
+            System.err.println("An IOException occurred!");
+            e.printStackTrace();
+        }
 
     }
 
     /**
-     * connect the node to a peer
+     * connect the node to a peer. If the peer cannot be connected to directly,
+     * the router is asked to relay the connection.
      * 
      * @param address the string representation of the peer's IP address
      * @param port    the port number the peer is using to listen for connections
      *                from incoming nodes
+     * @return true if the node is connected to the peer, false otherwise
      */
-    private void connectToPeer(final String address, final int port) {
+    public boolean connectToPeer(final String address, final int port) {
         // Check if you can connect
         if (canConnectToPeer(address)) {
             System.out.println("You are able to connect to " + address);
         } else {
             System.err.println("You cannot connect to " + address);
-            return;
+            return false;
         }
 
         // Connect to the peer
         final String nodeRepr = repr(address, port);
         try {
-            peerSocket = new Socket(address, port);
+            // Open the socket from a channel so files can be sent with transferTo
+            SocketChannel channel = null;
+            if (!ALWAYS_RELAY) {
+                channel = SocketChannel.open();
+                try {
+                    channel.socket().connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+                    peerPort = port;
+                } catch (final IOException e) {
+                    metrics.failedConnect();
+                    channel.close();
+                    channel = null;
+                    System.out.println("The node at address: " + localAddress + " could NOT connect directly to "
+                            + nodeRepr + " (" + e.getMessage() + "), asking the router to relay");
+                }
+            }
+            if (channel == null) {
+                final int relayPort = requestRelay(address, port);
+                channel = SocketChannel.open();
+                // The relay only splices connections from the address this node
+                // asked from
+                channel.socket().bind(new InetSocketAddress(localAddress, 0));
+                channel.socket().connect(new InetSocketAddress(routerAddress, relayPort), CONNECT_TIMEOUT);
+                peerPort = relayPort;
+                metrics.relayedConnect();
+                System.out.println("The router relays to " + nodeRepr + " on " + repr(routerAddress, relayPort));
+            }
+            peerSocket = channel.socket();
             peerAddress = address;
             if (peerSocket.isConnected()) {
                 System.out
@@ -388,8 +685,7 @@ public class Node {
                 setPeerStatus(true);
 
                 // Listen for messages from the connected peer
-                final FileThread thread = new FileThread(this);
-                thread.start();
+                Execution.execute(new FileThread(this));
 
                 disconnectFromRouter();
 
@@ -403,11 +699,42 @@ public class Node {
         } catch (final IOException e) {
             System.out
                     .println("The node at address: " + localAddress + " could NOT connect to the node at "
-                            + nodeRepr);
-            e.printStackTrace();
-            System.exit(1);
+                            + nodeRepr + ": " + e.getMessage());
         }
+        return isConnectedToPeer();
+    }
 
+    /**
+     * ask the router for a relay to a peer
+     *
+     * @param address the string representation of the peer's IP address
+     * @param port    the port number the peer listens on
+     * @return the port of the router that is relayed to the peer
+     * @throws IOException if the router cannot relay to the peer
+     */
+    private int requestRelay(final String address, final int port) throws IOException {
+        if (lookups == null) {
+            throw new IOException("You are not connected to a router!");
+        }
+        final int destination;
+        try {
+            destination = RoutingIndex.pack(address);
+        } catch (final IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        try {
+            final int relayPort = lookups.relay(destination, port).get();
+            if (relayPort == 0) {
+                throw new IOException("The router cannot relay to " + repr(address, port) + "!");
+            }
+            return relayPort;
+        } catch (final ExecutionException e) {
+            throw new IOException("The router did not answer the relay request: " + e.getCause().getMessage(),
+                    e.getCause());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The relay request was interrupted!");
+        }
     }
 
     /**
@@ -417,45 +744,161 @@ public class Node {
      */
     private void sendFile(final String fileName) {
 
+        try {
+            final TransferStats stats = send(fileName);
+            System.out.println("Sent the " + stats.getBytes() + " bytes sized file " + fileName
+                    + " to the connected peer!");
+            System.out.println(stats);
+
+        } catch (final FileNotFoundException e) {
+            System.out.println("This file cannot be found!");
+        } catch (final IOException e) {
+            System.err.println("An IOException occurred!");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * send a file to the connected peer in the mode the transfer options of the
+     * node select, and wait until it is sent
+     *
+     * @param fileName the name of the file that will be sent
+     * @return the statistics of the transfer
+     * @throws IOException if the node is not connected to a peer or the file
+     *                     cannot be sent
+     */
+    public TransferStats send(final String fileName) throws IOException {
+        // The peer may drop while the file is sent
+        final Socket peerSocket = this.peerSocket;
+        final DataOutputStream peerOut = this.peerOut;
         try {
             if (peerSocket == null) {
                 throw new IOException("You cannot send a file over a null socket!");
             } else if (peerSocket.isClosed() || peerSocket.isOutputShutdown()) {
                 System.out.println("Error occurred when writing out the socket!");
             }
-            FileInputStream fileIn;
             peerOut.flush();
 
-            // Read in the file and send it to its peer
-            fileIn = new FileInputStream(fileName);
-            int input;
+            final TransferStats stats;
+            final InetSocketAddress peer = new InetSocketAddress(peerSocket.getInetAddress(), peerPort);
+            final int stripes = transferOptions.getStripes();
+            final int weight = transferOptions.getWeight();
+            // Every file shares the link with the others through the scheduler
+            if (transferOptions.isResumable()) {
+                // Send the file over a transfer connection that resumes if it drops
+                final ResumableSender sender = new ResumableSender(peer, transferOptions.getAttempts(), 1000);
+                sender.setScheduler(scheduler, weight);
+                stats = sender.send(fileName);
+            } else if (transferOptions.isChecksums()) {
+                // Send the file as frames that are checked and resent if corrupted
+                final FramedSender sender = new FramedSender(peer);
+                sender.setScheduler(scheduler, weight);
+                stats = sender.send(fileName);
+            } else if (transferOptions.isDelta()) {
+                // Only send the blocks of the file that the peer's copy does not have
+                final DeltaSender sender = new DeltaSender(peer);
+                sender.setScheduler(scheduler, weight);
+                stats = sender.send(fileName);
+            } else if (transferOptions.isDedup()) {
+                // Only send the chunks of the file that the peer's chunk store does not hold
+                final DedupSender sender = new DedupSender(peer);
+                sender.setScheduler(scheduler, weight);
+                stats = sender.send(fileName);
+            } else if (transferOptions.isCompression()) {
+                // Compress the blocks of the file in parallel before they are sent
+                final CompressedSender sender = new CompressedSender(peer, ForkJoinPool.commonPool());
+                sender.setScheduler(scheduler, weight);
+                stats = sender.send(fileName);
+            } else if (stripes > 1) {
+                // Split the file over several connections to the peer's listening port
+                final StripedSender sender = new StripedSender(peer, stripes);
+                sender.setScheduler(scheduler, weight);
+                stats = sender.send(fileName);
+            } else {
+                // Send the file name, its size and its contents to the peer
+                final FileSender sender = new FileSender(peerOut, peerSocket.getChannel());
+                sender.setScheduler(scheduler, peer.getAddress().getHostAddress(), weight);
+                stats = sender.send(fileName);
+            }
 
-            // Send the filename to the peer
-            peerOut.writeUTF(fileName);
-            peerOut.flush();
+            metrics.sent(stats);
+            return stats;
+        } catch (final IOException e) {
+            metrics.failedTransfer();
+            throw e;
+        }
+    }
 
-            // Get the size of the file
-            final File file = new File(fileName);
-            final long size = file.length();
+    /**
+     * send a file to the connected peer over its own transfer connection while
+     * the menu and other files go on. The file shares the link with the other
+     * files by its weight.
+     *
+     * @param fileName the name of the file that will be sent
+     * @param weight   the share of the link the file gets against the others
+     */
+    private void sendInBackground(final String fileName, final int weight) {
+        if (peerSocket == null || weight < 1) {
+            System.out.println("A file needs a connected peer and a weight of at least 1!");
+            return;
+        }
+        final StripedSender sender = new StripedSender(new InetSocketAddress(peerSocket.getInetAddress(), peerPort),
+                transferOptions.getStripes());
+        sender.setScheduler(scheduler, weight);
+        Execution.execute(() -> {
+            try {
+                final TransferStats stats = sender.send(fileName);
+                metrics.sent(stats);
+                System.out.println("\nSent the " + stats.getBytes() + " bytes sized file " + fileName
+                        + " to the connected peer in the background!");
+                System.out.println(stats);
+            } catch (final IOException e) {
+                metrics.failedTransfer();
+                System.err.println("\nThe file " + fileName + " could not be sent: " + e.getMessage());
+            }
+        });
+        System.out.println("Sending " + fileName + " in the background!");
+    }
 
-            // Send the amount of bytes the peer should read
-            peerOut.writeLong(size);
-            peerOut.flush();
+    /**
+     * print the files that are being sent and the rates they achieved so far
+     */
+    private void showTransfers() {
+        final List<ScheduledTransfer> transfers = scheduler.getTransfers();
+        if (transfers.isEmpty()) {
+            System.out.println("No files are being sent!");
+        }
+        for (final ScheduledTransfer transfer : transfers) {
+            System.out.println(transfer);
+        }
+    }
 
-            // Send the file itself to the peer
-            while ((input = fileIn.read()) != -1) {
-                peerOut.write(input);
-                peerOut.flush();
+    /**
+     * send every file of a directory or glob to the connected peer in one
+     * session. The files are streamed back to back over a single transfer
+     * connection and the peer keeps their relative paths.
+     *
+     * @param pattern the directory or glob naming the files that will be sent
+     */
+    private void sendBatch(final String pattern) {
+        try {
+            if (peerSocket == null) {
+                throw new IOException("You cannot send files over a null socket!");
             }
 
-            fileIn.close();
-            System.out.println("Sent the " + size + " bytes sized file " + fileName + " to the connected peer!");
+            final InetSocketAddress peer = new InetSocketAddress(peerSocket.getInetAddress(), peerPort);
+            final BatchSender sender = new BatchSender(peer);
+            sender.setScheduler(scheduler, transferOptions.getWeight());
+            final TransferStats stats = sender.send(pattern);
+            metrics.sent(stats);
+
+            System.out.println("Sent " + stats.getEngine() + " of " + stats.getBytes()
+                    + " bytes to the connected peer!");
+            System.out.println(stats);
 
-        } catch (final FileNotFoundException e) {
-            System.out.println("This file cannot be found!");
         } catch (final IOException e) {
-            System.err.println("An IOException occurred!");
-            e.printStackTrace();
+            metrics.failedTransfer();
+            System.err.println("An IOException occurred while sending " + pattern + ": " + e.getMessage());
         }
     }
 
@@ -472,28 +915,28 @@ public class Node {
             return false;
         }
         // Check if the peer is in the other router's routing table
-        // Send the address to the router
-        final String senderType = "node";
-        final String messageType = "request";
-
-        routerOut.println(senderType + ":" + messageType + ":" + localAddress + ":" + address);
-
+        final CompletableFuture<Boolean> answer = lookup(address);
         System.out
                 .println("Node " + nodeID + " sent the address " + address + " to " + repr(routerAddress, routerPort));
 
-        String response;
         try {
-            response = routerIn.readLine();
-            if (response.equals("YES")) {
-                return true;
-            } else {
+            final boolean reachable = answer.get();
+            System.out.println("Lookup cache: " + reachability);
+            return reachable;
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IllegalArgumentException) {
+                System.err.println("Only peers with an IPv4 address can be connected to: "
+                        + e.getCause().getMessage());
                 return false;
             }
-
-        } catch (final IOException e) {
-            e.printStackTrace();
-            System.err.println("An IO error occurred. Make sure you are connected to the router!");
-            System.exit(1);
+            if (e.getCause() instanceof IOException) {
+                System.err.println("An IO error occurred. Make sure you are connected to the router! "
+                        + e.getCause().getMessage());
+                return false;
+            }
+            System.err.println("The router did not answer: " + e.getCause());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
         return false;
@@ -509,9 +952,8 @@ public class Node {
             System.out.println("You are not connected to a router.");
         } else {
             // Remove the node from the routing table
-            routerOut.println("node:disconnect:" + localAddress + ":" + routerSocket);
-            routerOut.flush();
             try {
+                sendDisconnect();
                 routerSocket.close();
                 System.out.println("You are not connected to a router.");
             } catch (final IOException e) {
@@ -547,6 +989,44 @@ public class Node {
         }
     }
 
+    /**
+     * forget the peer once its connection dropped, so the node keeps running and
+     * the next peer can connect to it
+     */
+    void peerClosed() {
+        setPeerStatus(false);
+        try {
+            if (peerSocket != null) {
+                peerSocket.close();
+            }
+        } catch (final IOException e) {
+            System.out.println("Socket is already closed");
+        }
+        peerSocket = null;
+        peerIn = null;
+        peerOut = null;
+        peerAddress = null;
+    }
+
+    /**
+     * disconnect the node from its peer and its router and stop accepting
+     * connections, without quitting the JVM
+     */
+    public void close() {
+        peerClosed();
+        try {
+            if (acceptor != null) {
+                acceptor.close();
+            }
+            if (routerSocket != null) {
+                routerSocket.close();
+            }
+        } catch (final IOException e) {
+            System.out.println("Socket is already closed");
+        }
+        setRouterStatus(false);
+    }
+
     /**
      * concatenates an address and port into a single string that is in a format
      * used by multiple methods
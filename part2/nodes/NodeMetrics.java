@@ -0,0 +1,161 @@
+package part2.nodes;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import part2.transfer.ScheduledTransfer;
+import part2.transfer.TransferStats;
+
+/**
+ * This counts what a node does, for its MBean. The counters are LongAdders so
+ * the tasks that send files in the background do not contend on them. The
+ * rates of the running transfers come from the scheduler of the node, and the
+ * lookup latencies from its lookup client.
+ */
+public class NodeMetrics implements NodeMetricsMXBean {
+    private final Node node; // node the metrics are of
+    private final LongAdder files = new LongAdder(); // files that were sent
+    private final LongAdder bytes = new LongAdder(); // payload bytes of the files that were sent
+    private final LongAdder filesReceived = new LongAdder(); // files that were received whole
+    private final LongAdder bytesReceived = new LongAdder(); // payload bytes of the files that were received
+    private final LongAdder failedTransfers = new LongAdder(); // sends that failed
+    private final LongAdder failedConnects = new LongAdder(); // direct connections to peers that failed
+    private final LongAdder relayedConnects = new LongAdder(); // connections to peers through the relay
+
+    /**
+     * create the metrics of a node
+     *
+     * @param node the node
+     */
+    NodeMetrics(final Node node) {
+        this.node = node;
+    }
+
+    /**
+     * count a send that finished
+     *
+     * @param stats the statistics of the send
+     */
+    void sent(final TransferStats stats) {
+        files.increment();
+        bytes.add(stats.getBytes());
+    }
+
+    /**
+     * count a file that was received whole
+     *
+     * @param stats the statistics of the receive
+     */
+    void received(final TransferStats stats) {
+        filesReceived.increment();
+        bytesReceived.add(stats.getBytes());
+    }
+
+    /**
+     * count a send that failed
+     */
+    void failedTransfer() {
+        failedTransfers.increment();
+    }
+
+    /**
+     * count a direct connection to a peer that failed
+     */
+    void failedConnect() {
+        failedConnects.increment();
+    }
+
+    /**
+     * count a connection to a peer through the relay of the router
+     */
+    void relayedConnect() {
+        relayedConnects.increment();
+    }
+
+    @Override
+    public boolean isConnectedToRouter() {
+        return node.isConnectedToRouter();
+    }
+
+    @Override
+    public boolean isConnectedToPeer() {
+        return node.isConnectedToPeer();
+    }
+
+    @Override
+    public long getFilesSent() {
+        return files.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytes.sum();
+    }
+
+    @Override
+    public long getFilesReceived() {
+        return filesReceived.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getFailedTransfers() {
+        return failedTransfers.sum();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        double rate = 0;
+        for (final ScheduledTransfer transfer : node.getScheduler().getTransfers()) {
+            rate += transfer.getBytesPerSecond();
+        }
+        return rate;
+    }
+
+    @Override
+    public Map<String, Double> getTransferRates() {
+        final Map<String, Double> rates = new LinkedHashMap<>();
+        for (final ScheduledTransfer transfer : node.getScheduler().getTransfers()) {
+            // Two transfers of the same file each keep their rate
+            String name = transfer.getName();
+            for (int i = 2; rates.containsKey(name); i++) {
+                name = transfer.getName() + " #" + i;
+            }
+            rates.put(name, transfer.getBytesPerSecond());
+        }
+        return rates;
+    }
+
+    @Override
+    public long getLookups() {
+        final LookupClient lookups = node.getLookupClient();
+        return lookups == null ? 0 : lookups.getLatency().getCount();
+    }
+
+    @Override
+    public Map<String, Double> getLookupLatencyMicros() {
+        final LookupClient lookups = node.getLookupClient();
+        return lookups == null ? Collections.emptyMap() : lookups.getLatency().getMicros();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        return node.getReachabilityCache().getHitRate();
+    }
+
+    @Override
+    public long getFailedConnects() {
+        return failedConnects.sum();
+    }
+
+    @Override
+    public long getRelayedConnects() {
+        return relayedConnects.sum();
+    }
+}
@@ -0,0 +1,108 @@
+package part2.nodes;
+
+import java.util.Map;
+
+/**
+ * The metrics of a node as they are seen over JMX.
+ */
+public interface NodeMetricsMXBean {
+
+    /**
+     * returns whether the node is connected to its router
+     *
+     * @return true if it is connected
+     */
+    boolean isConnectedToRouter();
+
+    /**
+     * returns whether the node is connected to a peer
+     *
+     * @return true if it is connected
+     */
+    boolean isConnectedToPeer();
+
+    /**
+     * gets the amount of files the node sent
+     *
+     * @return the amount of files
+     */
+    long getFilesSent();
+
+    /**
+     * gets the amount of payload bytes of the files the node sent
+     *
+     * @return the amount of bytes
+     */
+    long getBytesSent();
+
+    /**
+     * gets the amount of files the node received whole from its peers
+     *
+     * @return the amount of files
+     */
+    long getFilesReceived();
+
+    /**
+     * gets the amount of payload bytes of the files the node received whole
+     *
+     * @return the amount of bytes
+     */
+    long getBytesReceived();
+
+    /**
+     * gets the amount of sends that failed
+     *
+     * @return the amount of sends
+     */
+    long getFailedTransfers();
+
+    /**
+     * gets the rate of the transfers that are running, all together
+     *
+     * @return the rate in bytes per second
+     */
+    double getBytesPerSecond();
+
+    /**
+     * gets the rate every running transfer achieved so far
+     *
+     * @return the rate in bytes per second by the name of the transfer
+     */
+    Map<String, Double> getTransferRates();
+
+    /**
+     * gets the amount of lookups the router answered
+     *
+     * @return the amount of lookups
+     */
+    long getLookups();
+
+    /**
+     * gets the time lookups waited for the router
+     *
+     * @return the percentiles, the mean and the highest time in microseconds
+     */
+    Map<String, Double> getLookupLatencyMicros();
+
+    /**
+     * gets the share of lookups that were answered from the cache
+     *
+     * @return the share between 0 and 1
+     */
+    double getCacheHitRate();
+
+    /**
+     * gets the amount of direct connections to peers that failed
+     *
+     * @return the amount of connections
+     */
+    long getFailedConnects();
+
+    /**
+     * gets the amount of connections to peers that go through the relay of the
+     * router
+     *
+     * @return the amount of connections
+     */
+    long getRelayedConnects();
+}
@@ -0,0 +1,313 @@
+package part2.nodes;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import part2.concurrent.Execution;
+import part2.transfer.FileStreamDecoder;
+import part2.transfer.TransferStats;
+
+/**
+ * This represents a thread for a node which accepts connections from any
+ * amount of peers with a single non-blocking Selector.
+ *
+ * The first connection to a node that has no peer becomes the node's peer, as
+ * before, and is read by a FileThread so the node can also send files back over
+ * it. Every other connection is registered with the selector and gets its own
+ * FileStreamDecoder, so one node can receive files from dozens of senders at
+ * once on a single thread. A connection whose first message is the magic
+ * string of a transfer connection is taken off the selector and handed to a
+ * blocking TransferThread.
+ */
+public class PeerAcceptor extends Thread {
+    // Size of the buffer every payload read on the selector goes through
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final ServerSocketChannel server; // channel that accepts connections
+    private final Node node; // node that the first connection becomes the peer of. May be null
+    private final Selector selector; // selector of the server and every receiving connection
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE); // shared by every connection
+    private final AtomicInteger filesReceived = new AtomicInteger(); // files received on the selector
+    private final AtomicLong bytesReceived = new AtomicLong(); // payload bytes received on the selector
+    private final AtomicInteger connections = new AtomicInteger(); // connections registered with the selector
+    private final List<SocketChannel> transfers = new ArrayList<>(); // transfer connections taken off the selector
+
+    /**
+     * create a new acceptor for a bound server channel
+     *
+     * @param server the bound channel that accepts connections
+     * @param node   the node whose peer the first connection becomes, or null to
+     *               only receive files
+     * @throws IOException if the selector cannot be opened
+     */
+    public PeerAcceptor(final ServerSocketChannel server, final Node node) throws IOException {
+        super("PeerAcceptor");
+        this.server = server;
+        this.node = node;
+        this.selector = Selector.open();
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * accepts connections and receives files until the server channel is closed
+     */
+    public void run() {
+        try {
+            while (server.isOpen()) {
+                selector.select();
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key);
+                    }
+                }
+                handOff();
+            }
+        } catch (final ClosedSelectorException e) {
+            // The acceptor was closed
+        } catch (final IOException e) {
+            if (server.isOpen()) {
+                System.err.println("An IOException occurred!");
+                e.printStackTrace();
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * accept every pending connection
+     *
+     * @throws IOException if the server channel fails
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            // The first connection to a node without a peer becomes its peer
+            if (node != null && !node.isConnectedToPeer()) {
+                attachPeer(channel.socket());
+                continue;
+            }
+
+            channel.configureBlocking(false);
+            final FileStreamDecoder decoder = new FileStreamDecoder(this::report);
+            decoder.setDirectory(receiveDirectory());
+            channel.register(selector, SelectionKey.OP_READ, decoder);
+            connections.incrementAndGet();
+        }
+    }
+
+    /**
+     * read what a connection has available
+     *
+     * @param key the key of the connection
+     */
+    private void read(final SelectionKey key) {
+        final SocketChannel channel = (SocketChannel) key.channel();
+        final FileStreamDecoder decoder = (FileStreamDecoder) key.attachment();
+        try {
+            switch (decoder.readFrom(channel, buffer)) {
+                case TRANSFER:
+                    // The connection is handed to a blocking transfer engine once
+                    // the selected keys are done
+                    key.cancel();
+                    connections.decrementAndGet();
+                    transfers.add(channel);
+                    break;
+
+                case CLOSED:
+                    close(key);
+                    break;
+
+                default:
+                    break;
+            }
+        } catch (final IOException e) {
+            System.err.println("Receiving from a peer failed: " + e.getMessage());
+            try {
+                decoder.abort();
+            } catch (final IOException e1) {
+                System.out.println("The file is already closed");
+            }
+            close(key);
+        }
+    }
+
+    /**
+     * hand the transfer connections taken off the selector to blocking transfer
+     * engines. Their keys are cancelled while the selected keys are iterated, so
+     * they are only deregistered here, after the iteration
+     *
+     * @throws IOException if the selector fails
+     */
+    private void handOff() throws IOException {
+        if (transfers.isEmpty()) {
+            return;
+        }
+        // Deregister the cancelled keys so the channels can block again
+        selector.selectNow();
+        for (final SocketChannel channel : transfers) {
+            try {
+                channel.configureBlocking(true);
+                Execution.execute(new TransferThread(channel.socket(), true, receiveDirectory()));
+            } catch (final IOException e) {
+                System.err.println("Receiving from a peer failed: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (final IOException e1) {
+                    System.out.println("Socket is already closed");
+                }
+            }
+        }
+        transfers.clear();
+    }
+
+    /**
+     * gets the directory the node saves received files in
+     *
+     * @return the directory, or null to save files under the paths the peer
+     *         sent
+     */
+    private Path receiveDirectory() {
+        return node == null ? null : node.getReceiveDirectory();
+    }
+
+    /**
+     * print the result of a file received on the selector
+     *
+     * @param stats the statistics of the file
+     */
+    private void report(final TransferStats stats) {
+        if (stats.isVerified()) {
+            filesReceived.incrementAndGet();
+            bytesReceived.addAndGet(stats.getBytes());
+            if (node != null) {
+                node.getMetrics().received(stats);
+            }
+            System.out.println("Saved " + stats.getFileName() + " from a peer!");
+        } else {
+            System.err.println("The file " + stats.getFileName() + " does not match the "
+                    + stats.getExpectedBytes() + " bytes the peer announced!");
+        }
+        System.out.println(stats);
+    }
+
+    /**
+     * make a connection the peer of the node
+     *
+     * @param peerSocket the socket of the connection
+     * @throws IOException if the streams of the socket cannot be opened
+     */
+    private void attachPeer(final Socket peerSocket) throws IOException {
+        node.setPeerSocket(peerSocket);
+        System.out.println("A peer connected to this node!");
+
+        // Create the streams for the peerSocket
+        node.setPeerIn(new DataInputStream(peerSocket.getInputStream()));
+        node.setPeerOut(new DataOutputStream(peerSocket.getOutputStream()));
+
+        // Set peerStatus of the parent node to true
+        node.setPeerStatus(true);
+
+        // Remove the node from the routing table
+        node.sendDisconnect();
+
+        // Set connectedToRouter of the parent node to false
+        node.setRouterStatus(false);
+
+        // Create a task to accept files from the peer
+        Execution.execute(new FileThread(node));
+    }
+
+    /**
+     * close a connection and take it off the selector
+     *
+     * @param key the key of the connection
+     */
+    private void close(final SelectionKey key) {
+        key.cancel();
+        connections.decrementAndGet();
+        try {
+            key.channel().close();
+        } catch (final IOException e) {
+            System.out.println("Socket is already closed");
+        }
+    }
+
+    /**
+     * close every connection on the selector and the selector itself
+     */
+    private void closeAll() {
+        try {
+            for (final SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof FileStreamDecoder) {
+                    ((FileStreamDecoder) key.attachment()).abort();
+                }
+                key.channel().close();
+            }
+            selector.close();
+        } catch (final IOException | ClosedSelectorException e) {
+            System.out.println("The selector is already closed");
+        }
+    }
+
+    /**
+     * stop accepting connections and close every connection on the selector
+     *
+     * @throws IOException if the server channel cannot be closed
+     */
+    public void close() throws IOException {
+        server.close();
+        selector.wakeup();
+    }
+
+    /**
+     * gets the amount of files received on the selector that matched their
+     * announced size
+     *
+     * @return the amount of files
+     */
+    public int getFilesReceived() {
+        return filesReceived.get();
+    }
+
+    /**
+     * gets the amount of payload bytes of the files received on the selector
+     *
+     * @return the amount of bytes
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * gets the amount of connections currently receiving on the selector
+     *
+     * @return the amount of connections
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+}
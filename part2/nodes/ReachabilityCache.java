@@ -0,0 +1,192 @@
+package part2.nodes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This remembers the answers a node got from its router about peers, so a
+ * peer that was just looked up is not asked for again. YES answers live for
+ * the TTL, NO answers for the shorter negative TTL, since a peer that was not
+ * there may connect to its router any time. The router tells the node when a
+ * peer it answered YES about leaves, which removes the entry before its TTL
+ * runs out.
+ *
+ * The cache holds a bounded amount of peers and drops the oldest entry when
+ * it is full.
+ */
+public class ReachabilityCache {
+    private final int capacity; // amount of peers that are kept at most
+    private final long ttl; // nanoseconds a YES answer is kept
+    private final long negativeTtl; // nanoseconds a NO answer is kept
+    private final ReentrantLock lock = new ReentrantLock(); // guards entries
+    private final Map<Integer, Entry> entries; // answers by packed peer address, oldest first
+    private final LongAdder hits = new LongAdder(); // lookups answered from the cache
+    private final LongAdder misses = new LongAdder(); // lookups that went to the router
+    private final LongAdder invalidations = new LongAdder(); // entries the router removed
+
+    /**
+     * one answer of the router
+     */
+    private static final class Entry {
+        private final boolean reachable; // whether the answer was YES
+        private final long expires; // System.nanoTime when the answer runs out
+
+        private Entry(final boolean reachable, final long expires) {
+            this.reachable = reachable;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * create a new cache
+     *
+     * @param capacity    the amount of peers that are kept at most
+     * @param ttl         the milliseconds a YES answer is kept
+     * @param negativeTtl the milliseconds a NO answer is kept
+     */
+    public ReachabilityCache(final int capacity, final long ttl, final long negativeTtl) {
+        this.capacity = capacity;
+        this.ttl = ttl * 1000000;
+        this.negativeTtl = negativeTtl * 1000000;
+        this.entries = new LinkedHashMap<Integer, Entry>(16, 0.75f, false) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, Entry> eldest) {
+                return size() > ReachabilityCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * gets the cached answer about a peer, and counts the hit or miss
+     *
+     * @param peer the packed address of the peer
+     * @return true or false if an answer is cached, null if the router has to be
+     *         asked
+     */
+    public Boolean get(final int peer) {
+        lock.lock();
+        try {
+            final Entry entry = entries.get(peer);
+            if (entry != null && entry.expires - System.nanoTime() > 0) {
+                hits.increment();
+                return entry.reachable;
+            }
+            if (entry != null) {
+                entries.remove(peer);
+            }
+        } finally {
+            lock.unlock();
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * remember an answer of the router. The router sends answers and
+     * invalidations in order on the same connection, so an answer is never
+     * older than an invalidation that was handled before it.
+     *
+     * @param peer      the packed address of the peer
+     * @param reachable whether the router answered YES
+     */
+    public void put(final int peer, final boolean reachable) {
+        final long expires = System.nanoTime() + (reachable ? ttl : negativeTtl);
+        lock.lock();
+        try {
+            entries.put(peer, new Entry(reachable, expires));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * forget the answer about a peer, because the router said it left
+     *
+     * @param peer the packed address of the peer
+     */
+    public void invalidate(final int peer) {
+        lock.lock();
+        try {
+            if (entries.remove(peer) != null) {
+                invalidations.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * forget every answer
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * gets the amount of peers in the cache
+     *
+     * @return the amount of peers, including answers that ran out
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * gets the amount of lookups that were answered from the cache, which is
+     * the amount of round trips to the routers it saved
+     *
+     * @return the amount of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * gets the amount of lookups that had to ask the router
+     *
+     * @return the amount of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * gets the amount of answers the router removed before their TTL ran out
+     *
+     * @return the amount of invalidations
+     */
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    /**
+     * gets the share of lookups that were answered from the cache
+     *
+     * @return the hit rate between 0 and 1
+     */
+    public double getHitRate() {
+        final long hit = getHits();
+        final long total = hit + getMisses();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d peers cached, %d hits (round trips saved), %d misses, %.1f%% hit rate, "
+                + "%d invalidated", size(), getHits(), getMisses(), getHitRate() * 100, getInvalidations());
+    }
+}
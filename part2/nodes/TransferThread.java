@@ -0,0 +1,170 @@
+package part2.nodes;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Path;
+
+import part2.transfer.BatchReceiver;
+import part2.transfer.ChunkStore;
+import part2.transfer.CompressedReceiver;
+import part2.transfer.DedupReceiver;
+import part2.transfer.DeltaReceiver;
+import part2.transfer.FramedReceiver;
+import part2.transfer.ResumableReceiver;
+import part2.transfer.StripedReceiver;
+import part2.transfer.TransferHeader;
+import part2.transfer.TransferStats;
+
+/**
+ * A task for a node which handles a transfer connection from its peer.
+ * Transfer connections are the extra connections a peer opens to this node's
+ * listening port, after the two nodes are connected, to send files in a mode
+ * other than the original file protocol. The task reads the start of the
+ * connection and hands it to the engine for that transfer mode. It runs on a
+ * platform or a virtual thread depending on the execution mode.
+ */
+public class TransferThread implements Runnable {
+    private final Socket socket; // Socket of the transfer connection
+    private final DataInputStream in; // DataInputStream from the peer over the transfer connection
+    private final DataOutputStream out; // DataOutputStream to the peer over the transfer connection
+    private final boolean magicRead; // whether the magic string of the connection was already read
+    private final Path directory; // directory received files are saved in, null for the paths the peer sent
+
+    /**
+     * create a new task for a transfer connection
+     *
+     * @param socket the socket of the accepted transfer connection
+     * @throws IOException if the streams of the socket cannot be opened
+     */
+    TransferThread(final Socket socket) throws IOException {
+        this(socket, false);
+    }
+
+    /**
+     * create a new task for a transfer connection whose magic string may have
+     * been read already
+     *
+     * @param socket    the socket of the accepted transfer connection
+     * @param magicRead true if the magic string of the connection was already
+     *                  read
+     * @throws IOException if the streams of the socket cannot be opened
+     */
+    TransferThread(final Socket socket, final boolean magicRead) throws IOException {
+        this(socket, magicRead, null);
+    }
+
+    /**
+     * create a new task for a transfer connection that saves the files it
+     * receives in a directory
+     *
+     * @param socket    the socket of the accepted transfer connection
+     * @param magicRead true if the magic string of the connection was already
+     *                  read
+     * @param directory the directory received files are saved in, or null to
+     *                  save them under the paths the peer sent
+     * @throws IOException if the streams of the socket cannot be opened
+     */
+    TransferThread(final Socket socket, final boolean magicRead, final Path directory) throws IOException {
+        this.socket = socket;
+        this.magicRead = magicRead;
+        this.directory = directory;
+        in = new DataInputStream(socket.getInputStream());
+        out = new DataOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * receives the transfer carried by this connection and closes the connection
+     * afterwards
+     */
+    public void run() {
+        try {
+            final byte mode = magicRead ? TransferHeader.readMode(in) : TransferHeader.readStart(in);
+            TransferStats stats = null;
+
+            switch (mode) {
+                // One range of a file that is split over several connections
+                case TransferHeader.MODE_STRIPE:
+                    final StripedReceiver stripedReceiver = new StripedReceiver();
+                    stripedReceiver.setDirectory(directory);
+                    stats = stripedReceiver.receiveStripe(in, socket.getChannel(), out);
+                    break;
+
+                // A file that can be resumed if this connection drops
+                case TransferHeader.MODE_RESUME:
+                    final ResumableReceiver resumableReceiver = new ResumableReceiver();
+                    resumableReceiver.setDirectory(directory);
+                    stats = resumableReceiver.receive(in, socket.getChannel(), out);
+                    break;
+
+                // A file sent as frames that each carry a CRC32C
+                case TransferHeader.MODE_FRAMED:
+                    final FramedReceiver framedReceiver = new FramedReceiver();
+                    framedReceiver.setDirectory(directory);
+                    stats = framedReceiver.receive(in, socket.getChannel(), out);
+                    break;
+
+                // A file sent as blocks that may be compressed
+                case TransferHeader.MODE_COMPRESSED:
+                    final CompressedReceiver compressedReceiver = new CompressedReceiver();
+                    compressedReceiver.setDirectory(directory);
+                    stats = compressedReceiver.receive(in, out);
+                    break;
+
+                // The changes between a file and the copy this node has
+                case TransferHeader.MODE_DELTA:
+                    final DeltaReceiver deltaReceiver = new DeltaReceiver();
+                    deltaReceiver.setDirectory(directory);
+                    stats = deltaReceiver.receive(in, out);
+                    break;
+
+                // The chunks of a file that this node's chunk store does not hold
+                case TransferHeader.MODE_DEDUP:
+                    final DedupReceiver dedupReceiver = new DedupReceiver(ChunkStore.getDefault());
+                    dedupReceiver.setDirectory(directory);
+                    stats = dedupReceiver.receive(in, out);
+                    break;
+
+                // Many files sent back to back in one session
+                case TransferHeader.MODE_BATCH:
+                    final BatchReceiver batchReceiver = new BatchReceiver();
+                    batchReceiver.setDirectory(directory);
+                    stats = batchReceiver.receive(in, socket.getChannel(), out);
+                    break;
+
+                default:
+                    System.err.println("A peer used the unknown transfer mode " + mode + "!");
+            }
+
+            // Only the connection that completes a file reports it
+            if (stats != null) {
+                report(stats);
+            }
+
+        } catch (final IOException e) {
+            System.err.println("A transfer from the peer failed: " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                System.out.println("Socket is already closed");
+            }
+        }
+    }
+
+    /**
+     * print the result of a finished transfer
+     *
+     * @param stats the statistics of the transfer
+     */
+    private void report(final TransferStats stats) {
+        if (stats.isVerified()) {
+            System.out.println("Saved " + stats.getFileName() + " from a peer!");
+        } else {
+            System.err.println("The file " + stats.getFileName() + " does not match the "
+                    + stats.getExpectedBytes() + " bytes the peer announced!");
+        }
+        System.out.println(stats);
+    }
+}
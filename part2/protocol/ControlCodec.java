@@ -0,0 +1,471 @@
+package part2.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This encodes and decodes control messages between nodes and routers on
+ * reusable ByteBuffers, without allocating anything per message.
+ *
+ * Binary frames start with a fixed header, followed by the addresses as raw
+ * bytes:
+ * marker (1 byte): the high bit and the version of the protocol
+ * type (1 byte), flags (2 bytes), request id (4 bytes)
+ * length of the payload (4 bytes)
+ * payload: the origin and destination addresses, 4 bytes each
+ *
+ * The marker never appears as the first byte of a line of the original text
+ * protocol ("node:request:origin:destination" and so on), so a receiver tells
+ * the two apart from the first byte of every message. The text protocol is
+ * kept for nodes that do not speak the binary one, and answers to them are sent
+ * as text as well. Set control.protocol=text to send text from the start.
+ */
+public final class ControlCodec {
+    // Version of the binary protocol
+    public static final int VERSION = 1;
+    // First byte of every binary frame
+    public static final byte MARKER = (byte) (0x80 | VERSION);
+    // Length of the fixed header of a binary frame
+    public static final int HEADER_LENGTH = 12;
+    // Length of the payload of the known types of messages
+    public static final int PAYLOAD_LENGTH = 8;
+    // Longest payload a frame may announce. Later versions may send more than
+    // PAYLOAD_LENGTH bytes, which older receivers skip
+    public static final int MAX_PAYLOAD = 1024;
+    // Longest line of the text protocol
+    public static final int MAX_LINE = 1024;
+    // Room an encoded message can take at most
+    public static final int MAX_MESSAGE = HEADER_LENGTH + PAYLOAD_LENGTH + 64;
+    // Whether messages are sent as binary frames before the host was heard
+    public static final boolean BINARY = !System.getProperty("control.protocol", "binary").equalsIgnoreCase("text");
+
+    // Parts of the text protocol
+    private static final byte[] NODE_REQUEST = ascii("node:request:");
+    private static final byte[] ROUTER_REQUEST = ascii("router:request:");
+    private static final byte[] ROUTER_RESPONSE = ascii("router:response:");
+    private static final byte[] NODE_DISCONNECT = ascii("node:disconnect:");
+    private static final byte[] ROUTER_INVALIDATE = ascii("router:invalidate:");
+    private static final byte[] NODE_INVALIDATE = ascii("node:invalidate:");
+    private static final byte[] ROUTE_UPDATE = ascii("router:route:");
+    private static final byte[] RELAY_REQUEST = ascii("relay:request:");
+    private static final byte[] RELAY_RESPONSE = ascii("relay:response:");
+    private static final byte[] YES = ascii("YES");
+    private static final byte[] NO = ascii("NO");
+
+    private ControlCodec() {
+    }
+
+    /**
+     * check if a message starts with the first byte of a binary frame
+     *
+     * @param first the first byte of the message
+     * @return true if the message is a binary frame, false if it is a line of
+     *         text
+     */
+    public static boolean isBinary(final byte first) {
+        return first == MARKER;
+    }
+
+    /**
+     * write a message as a binary frame
+     *
+     * @param message the message
+     * @param out     the buffer, which needs at least HEADER_LENGTH +
+     *                PAYLOAD_LENGTH bytes of room
+     */
+    public static void encode(final ControlMessage message, final ByteBuffer out) {
+        out.put(MARKER);
+        out.put((byte) message.getType());
+        out.putShort((short) message.getFlags());
+        out.putInt(message.getRequestId());
+        out.putInt(PAYLOAD_LENGTH);
+        out.putInt(message.getOrigin());
+        out.putInt(message.getDestination());
+    }
+
+    /**
+     * read a binary frame if the buffer holds all of it. Nothing is consumed if
+     * the frame is not complete yet.
+     *
+     * @param in      the buffer, read from its position
+     * @param message the message the frame is decoded into
+     * @return true if a frame was decoded, false if more bytes are needed
+     * @throws ProtocolException if the bytes are not a valid frame
+     */
+    public static boolean decode(final ByteBuffer in, final ControlMessage message) throws ProtocolException {
+        if (in.remaining() < HEADER_LENGTH) {
+            return false;
+        }
+        final int start = in.position();
+        if (in.get(start) != MARKER) {
+            throw new ProtocolException("The message is not a frame of version " + VERSION + "!");
+        }
+        final int type = in.get(start + 1) & 0xFF;
+        final int length = in.getInt(start + 8);
+        if (type < 1 || type > ControlMessage.MAX_TYPE) {
+            throw new ProtocolException("The frame has the unknown type " + type + "!");
+        }
+        if (length < PAYLOAD_LENGTH || length > MAX_PAYLOAD) {
+            throw new ProtocolException("The frame has a payload of " + length + " bytes!");
+        }
+        if (in.remaining() < HEADER_LENGTH + length) {
+            return false;
+        }
+        message.set(type, in.getShort(start + 2) & 0xFFFF, in.getInt(start + 4), in.getInt(start + 12),
+                in.getInt(start + 16));
+        in.position(start + HEADER_LENGTH + length);
+        return true;
+    }
+
+    /**
+     * write a message as a line of the text protocol, including its newline
+     *
+     * @param message the message
+     * @param out     the buffer, which needs at least MAX_MESSAGE bytes of room
+     *                and must be backed by an array
+     */
+    public static void encodeText(final ControlMessage message, final ByteBuffer out) {
+        switch (message.getType()) {
+            case ControlMessage.NODE_RESPONSE:
+                out.put(message.isYes() ? YES : NO);
+                break;
+
+            case ControlMessage.NODE_REQUEST:
+                out.put(NODE_REQUEST);
+                addresses(message, out);
+                break;
+
+            case ControlMessage.ROUTER_REQUEST:
+                out.put(ROUTER_REQUEST);
+                addresses(message, out);
+                break;
+
+            case ControlMessage.ROUTER_RESPONSE:
+                out.put(ROUTER_RESPONSE);
+                addresses(message, out);
+                out.put((byte) ':');
+                out.put(message.isYes() ? YES : NO);
+                break;
+
+            case ControlMessage.ROUTER_INVALIDATE:
+                out.put(ROUTER_INVALIDATE);
+                addresses(message, out);
+                break;
+
+            case ControlMessage.NODE_INVALIDATE:
+                out.put(NODE_INVALIDATE);
+                addresses(message, out);
+                break;
+
+            case ControlMessage.ROUTE_UPDATE:
+                out.put(ROUTE_UPDATE);
+                addresses(message, out);
+                out.put((byte) ':');
+                number(message.getFlags(), out);
+                break;
+
+            case ControlMessage.RELAY_REQUEST:
+                out.put(RELAY_REQUEST);
+                addresses(message, out);
+                out.put((byte) ':');
+                number(message.getFlags(), out);
+                break;
+
+            case ControlMessage.RELAY_RESPONSE:
+                out.put(RELAY_RESPONSE);
+                addresses(message, out);
+                out.put((byte) ':');
+                number(message.getFlags(), out);
+                break;
+
+            default:
+                out.put(NODE_DISCONNECT);
+                addresses(message, out);
+                break;
+        }
+        out.put((byte) '\n');
+    }
+
+    /**
+     * write origin:destination of a message as text
+     */
+    private static void addresses(final ControlMessage message, final ByteBuffer out) {
+        address(message.getOrigin(), out);
+        out.put((byte) ':');
+        address(message.getDestination(), out);
+    }
+
+    /**
+     * write a packed IPv4 address as text
+     *
+     * @param address the packed address
+     * @param out     the buffer
+     */
+    private static void address(final int address, final ByteBuffer out) {
+        // Write to the array directly, byte by byte puts cost more than the digits
+        final byte[] data = out.array();
+        int position = out.arrayOffset() + out.position();
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            final int part = address >>> shift & 0xFF;
+            if (part >= 100) {
+                data[position++] = (byte) ('0' + part / 100);
+            }
+            if (part >= 10) {
+                data[position++] = (byte) ('0' + part / 10 % 10);
+            }
+            data[position++] = (byte) ('0' + part % 10);
+            if (shift > 0) {
+                data[position++] = '.';
+            }
+        }
+        out.position(position - out.arrayOffset());
+    }
+
+    /**
+     * write a number from 0 to 65535 as text
+     *
+     * @param number the number
+     * @param out    the buffer
+     */
+    private static void number(final int number, final ByteBuffer out) {
+        for (int divisor = 10000; divisor > 1; divisor /= 10) {
+            if (number >= divisor) {
+                out.put((byte) ('0' + number / divisor % 10));
+            }
+        }
+        out.put((byte) ('0' + number % 10));
+    }
+
+    /**
+     * find the end of the next line of text in a buffer
+     *
+     * @param in the buffer, searched from its position. It must be backed by an
+     *           array
+     * @return the index of the newline, or -1 if the line is not complete yet
+     */
+    public static int findLine(final ByteBuffer in) {
+        final byte[] data = in.array();
+        final int offset = in.arrayOffset();
+        for (int i = offset + in.position(); i < offset + in.limit(); i++) {
+            if (data[i] == '\n') {
+                return i - offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * read a line of the text protocol
+     *
+     * @param data    the array holding the line
+     * @param offset  the position of the line
+     * @param length  the length of the line without its newline
+     * @param message the message the line is decoded into
+     * @throws ProtocolException if the line is not a message of the text
+     *                           protocol
+     */
+    public static void decodeText(final byte[] data, final int offset, final int length,
+            final ControlMessage message) throws ProtocolException {
+        // Accept lines that end with a carriage return as well
+        final int end = length > 0 && data[offset + length - 1] == '\r' ? offset + length - 1 : offset + length;
+
+        if (equals(data, offset, end, YES) || equals(data, offset, end, NO)) {
+            message.set(ControlMessage.NODE_RESPONSE, data[offset] == 'Y' ? ControlMessage.FLAG_YES : 0, 0, 0, 0);
+            return;
+        }
+
+        final int type;
+        int position;
+        if (startsWith(data, offset, end, NODE_REQUEST)) {
+            type = ControlMessage.NODE_REQUEST;
+            position = offset + NODE_REQUEST.length;
+        } else if (startsWith(data, offset, end, ROUTER_REQUEST)) {
+            type = ControlMessage.ROUTER_REQUEST;
+            position = offset + ROUTER_REQUEST.length;
+        } else if (startsWith(data, offset, end, ROUTER_RESPONSE)) {
+            type = ControlMessage.ROUTER_RESPONSE;
+            position = offset + ROUTER_RESPONSE.length;
+        } else if (startsWith(data, offset, end, NODE_DISCONNECT)) {
+            type = ControlMessage.NODE_DISCONNECT;
+            position = offset + NODE_DISCONNECT.length;
+        } else if (startsWith(data, offset, end, ROUTER_INVALIDATE)) {
+            type = ControlMessage.ROUTER_INVALIDATE;
+            position = offset + ROUTER_INVALIDATE.length;
+        } else if (startsWith(data, offset, end, NODE_INVALIDATE)) {
+            type = ControlMessage.NODE_INVALIDATE;
+            position = offset + NODE_INVALIDATE.length;
+        } else if (startsWith(data, offset, end, ROUTE_UPDATE)) {
+            type = ControlMessage.ROUTE_UPDATE;
+            position = offset + ROUTE_UPDATE.length;
+        } else if (startsWith(data, offset, end, RELAY_REQUEST)) {
+            type = ControlMessage.RELAY_REQUEST;
+            position = offset + RELAY_REQUEST.length;
+        } else if (startsWith(data, offset, end, RELAY_RESPONSE)) {
+            type = ControlMessage.RELAY_RESPONSE;
+            position = offset + RELAY_RESPONSE.length;
+        } else {
+            throw new ProtocolException("The message received was an incorrect format!");
+        }
+
+        int colon = indexOf(data, position, end);
+        final int origin = parseAddress(data, position, colon);
+        if (type == ControlMessage.NODE_DISCONNECT) {
+            // Old nodes send the text of their socket here, which is not needed
+            message.set(type, 0, 0, origin, 0);
+            return;
+        }
+        if (colon == end) {
+            throw new ProtocolException("The message received was an incorrect format!");
+        }
+        position = colon + 1;
+        colon = indexOf(data, position, end);
+        // A destination that is not an IPv4 address is never in a routing table,
+        // so it is looked up as 0.0.0.0 and answered with NO as before
+        final int destination = (int) Math.max(0, tryParseAddress(data, position, colon));
+
+        int flags = 0;
+        if (type == ControlMessage.ROUTE_UPDATE || type == ControlMessage.RELAY_REQUEST
+                || type == ControlMessage.RELAY_RESPONSE) {
+            // The distance or the port follows the addresses
+            if (colon == end) {
+                throw new ProtocolException("The message received was an incorrect format!");
+            }
+            flags = parseNumber(data, colon + 1, end);
+            if (flags < 0) {
+                throw new ProtocolException("The message received was an incorrect format!");
+            }
+        } else if (type == ControlMessage.ROUTER_RESPONSE) {
+            if (colon < end && equals(data, colon + 1, end, YES)) {
+                flags = ControlMessage.FLAG_YES;
+            } else if (colon == end || !equals(data, colon + 1, end, NO)) {
+                throw new ProtocolException("The message received was an incorrect format!");
+            }
+        } else if (colon != end) {
+            throw new ProtocolException("The message received was an incorrect format!");
+        }
+        message.set(type, flags, 0, origin, destination);
+    }
+
+    /**
+     * parse an IPv4 address written as text
+     *
+     * @param data  the array holding the address
+     * @param start the position of the address
+     * @param end   the position after the address
+     * @return the packed address
+     * @throws ProtocolException if the text is not an IPv4 address
+     */
+    public static int parseAddress(final byte[] data, final int start, final int end) throws ProtocolException {
+        final long packed = tryParseAddress(data, start, end);
+        if (packed < 0) {
+            throw new ProtocolException("The message holds an address that is not IPv4!");
+        }
+        return (int) packed;
+    }
+
+    /**
+     * parse a number from 0 to 65535 written as text
+     *
+     * @return the number, or -1 if the text is not such a number
+     */
+    private static int parseNumber(final byte[] data, final int start, final int end) {
+        if (end - start < 1 || end - start > 5) {
+            return -1;
+        }
+        int number = 0;
+        for (int i = start; i < end; i++) {
+            if (data[i] < '0' || data[i] > '9') {
+                return -1;
+            }
+            number = number * 10 + (data[i] - '0');
+        }
+        return number <= 0xFFFF ? number : -1;
+    }
+
+    /**
+     * parse an IPv4 address written as text
+     *
+     * @return the packed address as an unsigned value, or -1 if the text is not
+     *         an IPv4 address
+     */
+    private static long tryParseAddress(final byte[] data, final int start, final int end) {
+        long packed = 0;
+        int part = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = start; i < end; i++) {
+            final byte c = data[i];
+            if (c >= '0' && c <= '9' && digits < 3) {
+                part = part * 10 + (c - '0');
+                digits++;
+            } else if (c == '.' && digits > 0 && dots < 3 && part <= 255) {
+                packed = packed << 8 | part;
+                part = 0;
+                digits = 0;
+                dots++;
+            } else {
+                return -1;
+            }
+        }
+        if (digits == 0 || dots != 3 || part > 255) {
+            return -1;
+        }
+        return packed << 8 | part;
+    }
+
+    /**
+     * gets the text form of a message, for printing
+     *
+     * @param message the message
+     * @return the line of the text protocol without its newline
+     */
+    public static String toText(final ControlMessage message) {
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_MESSAGE);
+        encodeText(message, buffer);
+        return new String(buffer.array(), 0, buffer.position() - 1, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * find the next colon of a line
+     *
+     * @return the index of the colon, or end if there is none
+     */
+    private static int indexOf(final byte[] data, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == ':') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * check if a line starts with a prefix
+     */
+    private static boolean startsWith(final byte[] data, final int start, final int end, final byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * check if a part of a line is exactly a word
+     */
+    private static boolean equals(final byte[] data, final int start, final int end, final byte[] word) {
+        return end - start == word.length && startsWith(data, start, end, word);
+    }
+
+    /**
+     * gets the bytes of an ASCII string
+     */
+    private static byte[] ascii(final String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,158 @@
+package part2.protocol;
+
+/**
+ * This is one message of the control protocol between nodes and routers. It
+ * is mutable so the code that handles many messages can decode every one of
+ * them into the same object, and can turn a request into its answer in place.
+ *
+ * Every message carries the IPv4 address of the node that started the lookup
+ * (origin) and of the node it looks for (destination), packed into ints.
+ */
+public class ControlMessage {
+    // Types of messages
+    public static final int NODE_REQUEST = 1; // a node asks its router for a peer
+    public static final int ROUTER_REQUEST = 2; // a router asks the other router for a peer
+    public static final int ROUTER_RESPONSE = 3; // the other router answers a ROUTER_REQUEST
+    public static final int NODE_RESPONSE = 4; // a router answers a NODE_REQUEST
+    public static final int NODE_DISCONNECT = 5; // a node leaves the routing table of its router
+    public static final int ROUTER_INVALIDATE = 6; // a router tells the other router a node of it left
+    public static final int NODE_INVALIDATE = 7; // a router tells a node that a peer it looked up left
+    public static final int ROUTE_UPDATE = 8; // a router tells a neighbor its distance to a node
+    public static final int RELAY_REQUEST = 9; // a node or router asks for a relay to a port of a peer
+    public static final int RELAY_RESPONSE = 10; // the port of the relay, 0 if none was opened
+    public static final int MAX_TYPE = RELAY_RESPONSE; // highest known type
+    // Names of the types, by type
+    private static final String[] TYPE_NAMES = { "UNKNOWN", "NODE_REQUEST", "ROUTER_REQUEST", "ROUTER_RESPONSE",
+            "NODE_RESPONSE", "NODE_DISCONNECT", "ROUTER_INVALIDATE", "NODE_INVALIDATE", "ROUTE_UPDATE",
+            "RELAY_REQUEST", "RELAY_RESPONSE" };
+
+    // Flags of messages
+    public static final int FLAG_YES = 1; // the peer of a response can be connected to
+
+    // Distance to a node that counts as unreachable. The flags of a ROUTE_UPDATE
+    // hold the distance, the flags of a ROUTER_REQUEST the hops it may still take
+    public static final int MAX_HOPS = 16;
+    // The flags of relay messages hold a port instead, up to 65535
+
+    private int type; // type of the message
+    private int flags; // flags of the message
+    private int requestId; // id that ties a response to its request, 0 if there is none
+    private int origin; // packed address of the node that started the lookup
+    private int destination; // packed address of the node that is looked for
+
+    /**
+     * set every field of the message
+     *
+     * @param type        the type of the message
+     * @param flags       the flags of the message
+     * @param requestId   the id of the request, or 0
+     * @param origin      the packed address of the node that started the lookup
+     * @param destination the packed address of the node that is looked for
+     * @return this message
+     */
+    public ControlMessage set(final int type, final int flags, final int requestId, final int origin,
+            final int destination) {
+        this.type = type;
+        this.flags = flags;
+        this.requestId = requestId;
+        this.origin = origin;
+        this.destination = destination;
+        return this;
+    }
+
+    /**
+     * gets the type of the message
+     *
+     * @return the type
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * sets the type of the message, which turns a request into its answer
+     *
+     * @param type the type
+     */
+    public void setType(final int type) {
+        this.type = type;
+    }
+
+    /**
+     * gets the flags of the message
+     *
+     * @return the flags
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * sets the flags of the message
+     *
+     * @param flags the flags
+     */
+    public void setFlags(final int flags) {
+        this.flags = flags;
+    }
+
+    /**
+     * check if the message is a response that says YES
+     *
+     * @return true if FLAG_YES is set, false otherwise
+     */
+    public boolean isYes() {
+        return (flags & FLAG_YES) != 0;
+    }
+
+    /**
+     * gets the id that ties a response to its request
+     *
+     * @return the id, or 0 if there is none
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * sets the id that ties a response to its request
+     *
+     * @param requestId the id, or 0 if there is none
+     */
+    public void setRequestId(final int requestId) {
+        this.requestId = requestId;
+    }
+
+    /**
+     * gets the packed address of the node that started the lookup
+     *
+     * @return the packed address
+     */
+    public int getOrigin() {
+        return origin;
+    }
+
+    /**
+     * gets the packed address of the node that is looked for
+     *
+     * @return the packed address
+     */
+    public int getDestination() {
+        return destination;
+    }
+
+    /**
+     * gets the name of a type of messages
+     *
+     * @param type the type
+     * @return the name, such as NODE_REQUEST, or UNKNOWN
+     */
+    public static String typeName(final int type) {
+        return type < 1 || type > MAX_TYPE ? TYPE_NAMES[0] : TYPE_NAMES[type];
+    }
+
+    @Override
+    public String toString() {
+        return ControlCodec.toText(this);
+    }
+}
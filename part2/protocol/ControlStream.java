@@ -0,0 +1,116 @@
+package part2.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This sends and receives control messages over the blocking streams of a
+ * socket, through buffers that are reused for every message.
+ *
+ * Messages are sent as binary frames or as text, as the stream was created
+ * with, until the host is heard. From then on they are sent the way the host
+ * sends them, so a router answers an old node in text.
+ */
+public class ControlStream {
+    private final InputStream in; // stream from the host
+    private final OutputStream out; // stream to the host
+    private final ByteBuffer input = ByteBuffer.allocate(4096); // bytes received but not decoded yet
+    private final ByteBuffer output = ByteBuffer.allocate(ControlCodec.MAX_MESSAGE); // message being sent
+    private final ReentrantLock sendLock = new ReentrantLock(); // lets one thread send at a time
+    private volatile boolean binary; // whether messages are sent as binary frames
+
+    /**
+     * create a new control stream
+     *
+     * @param in     the stream from the host
+     * @param out    the stream to the host
+     * @param binary true to send binary frames until the host is heard, false to
+     *               send text
+     */
+    public ControlStream(final InputStream in, final OutputStream out, final boolean binary) {
+        this.in = in;
+        this.out = out;
+        this.binary = binary;
+        input.flip();
+    }
+
+    /**
+     * send a message to the host. Any thread can send, one at a time.
+     *
+     * @param message the message
+     * @throws IOException if the message cannot be written
+     */
+    public void send(final ControlMessage message) throws IOException {
+        sendLock.lock();
+        try {
+            output.clear();
+            if (binary) {
+                ControlCodec.encode(message, output);
+            } else {
+                ControlCodec.encodeText(message, output);
+            }
+            out.write(output.array(), 0, output.position());
+            out.flush();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * wait for the next message from the host. Only one thread may receive.
+     *
+     * @param message the message the next message is decoded into
+     * @return true if a message was received, false if the host closed the
+     *         stream
+     * @throws IOException if the stream fails or the host sent something that
+     *                     is not a control message
+     */
+    public boolean receive(final ControlMessage message) throws IOException {
+        while (true) {
+            if (input.hasRemaining()) {
+                if (ControlCodec.isBinary(input.get(input.position()))) {
+                    if (ControlCodec.decode(input, message)) {
+                        binary = true;
+                        return true;
+                    }
+                } else {
+                    final int newline = ControlCodec.findLine(input);
+                    if (newline >= 0) {
+                        final int start = input.position();
+                        input.position(newline + 1);
+                        ControlCodec.decodeText(input.array(), start, newline - start, message);
+                        binary = false;
+                        return true;
+                    }
+                    if (input.remaining() > ControlCodec.MAX_LINE) {
+                        throw new ProtocolException("The host sent a line longer than " + ControlCodec.MAX_LINE
+                                + " bytes!");
+                    }
+                }
+            }
+
+            // Read more of the message
+            input.compact();
+            final int read = in.read(input.array(), input.position(), input.remaining());
+            if (read < 0) {
+                input.flip();
+                return false;
+            }
+            input.position(input.position() + read);
+            input.flip();
+        }
+    }
+
+    /**
+     * check if messages are sent as binary frames
+     *
+     * @return true if they are, false if they are sent as text
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+}
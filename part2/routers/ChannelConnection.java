@@ -0,0 +1,285 @@
+package part2.routers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import part2.protocol.ControlCodec;
+import part2.protocol.ControlMessage;
+
+/**
+ * This represents a connection of a router on a non-blocking channel that
+ * belongs to a RouterEventLoop. Received bytes are decoded into control
+ * messages here, and sent messages are encoded into an output buffer that only
+ * the event loop writes to the channel, so any thread can send to the host
+ * without waiting for it.
+ *
+ * Every message is decoded as a binary frame or as a line of text depending on
+ * its first byte, and messages are sent the way the host last sent one.
+ */
+class ChannelConnection implements Connection {
+    // Room for the start of a message that has not been completed yet, which
+    // holds the longest frame and the longest line
+    private static final int PENDING_SIZE = 2 * 1024;
+    // First size of the output buffer, which grows while the host does not read
+    private static final int OUTPUT_SIZE = 512;
+    // Size the output buffer may grow to. A host that lets more answers pile up
+    // than the router keeps lookups pending does not read, and is disconnected
+    private static final int OUTPUT_LIMIT = Integer.getInteger("router.outputLimit",
+            2 * ControlCodec.MAX_MESSAGE * RouterCore.PENDING_LOOKUPS);
+
+    private final RouterEventLoop loop; // event loop that owns the channel
+    private final SocketChannel channel; // non-blocking channel of the connection
+    private final String address; // address of the host
+    private final String name; // name that describes the connection
+    private volatile long session; // session handle of the connection in the routing index
+    private volatile boolean binary = ControlCodec.BINARY; // whether messages are sent as binary frames
+    private final ReentrantLock outputLock = new ReentrantLock(); // guards output
+    private ByteBuffer output; // encoded messages waiting to be written. Null until something is sent
+    private boolean blocked; // whether the channel did not take all of the output. Guarded by outputLock
+    private final AtomicBoolean scheduled = new AtomicBoolean(); // whether the loop was asked to flush
+    private final AtomicBoolean open = new AtomicBoolean(true); // whether the connection is open
+    private SelectionKey key; // key of the channel in the selector of the loop
+    private ByteBuffer pending; // start of a message that has not been completed yet. Null if there is none
+
+    /**
+     * create a new connection for a channel of an event loop
+     *
+     * @param loop    the event loop that owns the channel
+     * @param channel the connected channel
+     * @param name    the name that describes the connection
+     */
+    ChannelConnection(final RouterEventLoop loop, final SocketChannel channel, final String name) {
+        this.loop = loop;
+        this.channel = channel;
+        this.name = name;
+        String host;
+        try {
+            host = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        } catch (final IOException e) {
+            host = "";
+        }
+        this.address = host;
+    }
+
+    /**
+     * set the key of the channel once it is registered with the selector
+     *
+     * @param key the key of the channel
+     */
+    void setKey(final SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getSession() {
+        return session;
+    }
+
+    @Override
+    public void setSession(final long session) {
+        this.session = session;
+    }
+
+    @Override
+    public void send(final ControlMessage message) {
+        if (!open.get()) {
+            return;
+        }
+        final boolean waiting;
+        outputLock.lock();
+        try {
+            waiting = blocked;
+            if (output == null) {
+                output = ByteBuffer.allocate(OUTPUT_SIZE);
+            } else if (output.remaining() < ControlCodec.MAX_MESSAGE) {
+                if (output.capacity() >= OUTPUT_LIMIT) {
+                    output = null;
+                    overflowed();
+                    return;
+                }
+                final ByteBuffer grown = ByteBuffer.allocate(Math.min(output.capacity() * 2, OUTPUT_LIMIT));
+                output.flip();
+                grown.put(output);
+                output = grown;
+            }
+            if (binary) {
+                ControlCodec.encode(message, output);
+            } else {
+                ControlCodec.encodeText(message, output);
+            }
+        } finally {
+            outputLock.unlock();
+        }
+        if (waiting) {
+            // The loop writes the rest once the host reads
+            return;
+        }
+        if (loop.inLoop()) {
+            flush();
+        } else if (scheduled.compareAndSet(false, true)) {
+            loop.schedule(this);
+        }
+    }
+
+    /**
+     * close the connection of a host that stopped reading while messages for it
+     * piled up, and have the loop remove it from the core
+     */
+    private void overflowed() {
+        System.err.println(name + " stopped reading, " + OUTPUT_LIMIT + " bytes of messages wait for it!");
+        close();
+        loop.drop(this);
+    }
+
+    /**
+     * write as much of the output buffer as the channel takes without blocking.
+     * Only called by the event loop.
+     */
+    void flush() {
+        scheduled.set(false);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        outputLock.lock();
+        try {
+            if (output == null) {
+                return;
+            }
+            output.flip();
+            channel.write(output);
+            final boolean waiting = output.hasRemaining();
+            output.compact();
+            blocked = waiting;
+            if (waiting) {
+                // Wait for the host to read before writing the rest
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (final IOException e) {
+            close();
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    /**
+     * decode received bytes into messages and hand every complete message to
+     * the core. Only called by the event loop.
+     *
+     * @param core    the core that handles the messages
+     * @param in      the received bytes, read from its position
+     * @param message the message every message is decoded into
+     * @throws ProtocolException if the host sent something that is not a
+     *                           control message
+     */
+    void received(final RouterCore core, final ByteBuffer in, final ControlMessage message)
+            throws ProtocolException {
+        if (pending != null) {
+            // Complete the message an earlier read started
+            while (in.hasRemaining() && pending.position() > 0 && open.get()) {
+                final int limit = in.limit();
+                in.limit(in.position() + Math.min(in.remaining(), pending.remaining()));
+                pending.put(in);
+                in.limit(limit);
+                pending.flip();
+                decode(core, pending, message);
+                pending.compact();
+            }
+            if (pending.position() > 0) {
+                return;
+            }
+            // Idle connections do not keep the buffer
+            pending = null;
+        }
+        decode(core, in, message);
+        if (in.hasRemaining() && open.get()) {
+            pending = ByteBuffer.allocate(PENDING_SIZE);
+            pending.put(in);
+        }
+    }
+
+    /**
+     * hand every complete message of a buffer to the core
+     *
+     * @param core    the core that handles the messages
+     * @param in      the buffer, read from its position up to the first message
+     *                that is not complete yet
+     * @param message the message every message is decoded into
+     * @throws ProtocolException if the host sent something that is not a
+     *                           control message
+     */
+    private void decode(final RouterCore core, final ByteBuffer in, final ControlMessage message)
+            throws ProtocolException {
+        while (in.hasRemaining() && open.get()) {
+            if (ControlCodec.isBinary(in.get(in.position()))) {
+                if (!ControlCodec.decode(in, message)) {
+                    return;
+                }
+                binary = true;
+            } else {
+                final int newline = ControlCodec.findLine(in);
+                if (newline < 0) {
+                    if (in.remaining() > ControlCodec.MAX_LINE) {
+                        throw new ProtocolException("The host sent a line longer than " + ControlCodec.MAX_LINE
+                                + " bytes!");
+                    }
+                    return;
+                }
+                final int start = in.position();
+                in.position(newline + 1);
+                ControlCodec.decodeText(in.array(), in.arrayOffset() + start, newline - start, message);
+                binary = false;
+            }
+            core.handle(this, message);
+        }
+    }
+
+    @Override
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * check if the connection is still open
+     *
+     * @return true if the connection is open, false otherwise
+     */
+    boolean isOpen() {
+        return open.get();
+    }
+
+    @Override
+    public void close() {
+        if (!open.compareAndSet(true, false)) {
+            return;
+        }
+        loop.removed();
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            System.out.println("Socket is already closed");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + channel;
+    }
+}
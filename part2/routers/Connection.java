@@ -0,0 +1,62 @@
+package part2.routers;
+
+import part2.protocol.ControlMessage;
+
+/**
+ * This represents a connection of a router to a host, which can be another
+ * router or a node. RouterCore only talks to hosts through this interface so
+ * the same routing logic runs on a thread per connection or on an event loop.
+ */
+public interface Connection {
+
+    /**
+     * gets the IP address of the connected host
+     *
+     * @return the string representation of the address
+     */
+    String getAddress();
+
+    /**
+     * gets the name that describes the connection
+     *
+     * @return the name
+     */
+    String getName();
+
+    /**
+     * gets the session handle the routing index returned for this connection
+     *
+     * @return the session handle, or 0 if the connection is not in the index
+     */
+    long getSession();
+
+    /**
+     * set the session handle the routing index returned for this connection
+     *
+     * @param session the session handle
+     */
+    void setSession(long session);
+
+    /**
+     * send a message of the control protocol to the host, as a binary frame or
+     * as text depending on what the host speaks. The message is encoded before
+     * this returns, so the caller can reuse it. This never waits for the host
+     * to read the message on an event loop connection.
+     *
+     * @param message the message
+     */
+    void send(ControlMessage message);
+
+    /**
+     * check if the host speaks the binary protocol. Hosts that speak text do not
+     * understand messages that were added with it, like invalidations.
+     *
+     * @return true if messages are sent as binary frames, false if as text
+     */
+    boolean isBinary();
+
+    /**
+     * close the connection to the host
+     */
+    void close();
+}
@@ -0,0 +1,105 @@
+package part2.routers;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import part2.metrics.LatencyHistogram;
+import part2.protocol.ControlMessage;
+
+/**
+ * This keeps the lookups a router forwarded to another router until their
+ * responses come back. Every forwarded lookup gets a request id of the router,
+ * because the ids of different nodes can be the same, and the response is
+ * routed back by that id to the node, or to the router that forwarded the
+ * lookup to this one.
+ *
+ * The lookups live in a fixed ring of slots indexed by the low bits of their
+ * id, so adding and taking one allocates nothing and takes no lock. A lookup
+ * that is still pending when its slot comes around again is dropped, and the
+ * node that made it times out.
+ *
+ * The time every lookup waited for its response is counted in a
+ * LatencyHistogram.
+ */
+class PendingLookups {
+    private final int mask; // capacity - 1
+    private final AtomicInteger nextId = new AtomicInteger(); // last id that was handed out
+    private final AtomicIntegerArray ids; // id of the lookup in every slot, 0 if the slot is free
+    private final AtomicReferenceArray<Connection> nodes; // connection of the node of every slot
+    private final int[] nodeIds; // request id the node gave the lookup of every slot
+    private final long[] times; // time the lookup of every slot was forwarded
+    private final LatencyHistogram latency; // time lookups waited for their responses
+
+    /**
+     * create a new table of pending lookups
+     *
+     * @param capacity the amount of lookups that can be pending at once, rounded
+     *                 up to a power of two
+     * @param latency  the histogram the time of every answered lookup is counted
+     *                 in
+     */
+    PendingLookups(final int capacity, final LatencyHistogram latency) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        ids = new AtomicIntegerArray(size);
+        nodes = new AtomicReferenceArray<>(size);
+        nodeIds = new int[size];
+        times = new long[size];
+        this.latency = latency;
+    }
+
+    /**
+     * remember a lookup of a node and give the message an id of the router
+     *
+     * @param node    the connection of the node
+     * @param message the lookup. Its request id is replaced
+     */
+    void add(final Connection node, final ControlMessage message) {
+        int id;
+        do {
+            id = nextId.incrementAndGet();
+        } while (id == 0);
+        final int slot = id & mask;
+
+        // Free the slot first, so a take of the lookup it held before cannot
+        // see the fields of this one
+        ids.set(slot, 0);
+        nodeIds[slot] = message.getRequestId();
+        times[slot] = System.nanoTime();
+        nodes.set(slot, node);
+        ids.set(slot, id);
+        message.setRequestId(id);
+    }
+
+    /**
+     * take the lookup that a response belongs to and give the message back the
+     * request id of the node
+     *
+     * @param message the response. Its request id is replaced if the lookup is
+     *                found
+     * @return the connection of the node, or null if the lookup is not pending
+     */
+    Connection take(final ControlMessage message) {
+        final int id = message.getRequestId();
+        if (id == 0) {
+            return null;
+        }
+        final int slot = id & mask;
+        if (ids.get(slot) != id) {
+            return null;
+        }
+        final Connection node = nodes.get(slot);
+        final int nodeId = nodeIds[slot];
+        final long time = times[slot];
+        if (!ids.compareAndSet(slot, id, 0)) {
+            // The slot was taken by another lookup in the meantime
+            return null;
+        }
+        latency.record(System.nanoTime() - time);
+        // The connection stays in the slot until it is reused, clearing it here
+        // could clear the next lookup of the slot
+        message.setRequestId(nodeId);
+        return node;
+    }
+}
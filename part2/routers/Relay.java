@@ -0,0 +1,336 @@
+package part2.routers;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import part2.concurrent.Execution;
+
+/**
+ * This carries the data of nodes that cannot connect to each other directly.
+ * The relay opens a forwarding port for a target, and every connection to that
+ * port is spliced to a new connection of the router to the target: whatever
+ * one side sends is written to the other, in both directions, until both sides
+ * are done. The nodes speak their own protocols through it unchanged, so every
+ * kind of transfer and every extra connection it opens works through a relay.
+ *
+ * The target is a node of this router, or the forwarding port of the next
+ * router on the way to the node, so a relay across a mesh is a chain of
+ * forwarding ports along the route.
+ *
+ * Bytes are moved through large direct buffers that are reused by every
+ * connection, so the data is never copied into the Java heap. Java has no
+ * splice between two sockets, so this is as close to one as a router gets. When
+ * one side shuts down its output, the relay shuts down the output to the other
+ * side, so a side that waits for the end of the stream sees it.
+ *
+ * A forwarding port is opened on the address of the router and only splices
+ * connections from the host that asked for it, so the relay is not an open
+ * proxy into the nodes of the router. Every host can hold a limited amount of
+ * forwarding ports at once, and so can the whole router. A forwarding port
+ * closes once it had no connections for the idle timeout.
+ */
+public class Relay {
+    // Size of the buffers the data goes through
+    private static final int BUFFER_SIZE = Integer.getInteger("relay.bufferSize", 256 * 1024);
+    // Milliseconds a forwarding port without connections stays open
+    private static final int IDLE_TIMEOUT = Integer.getInteger("relay.idleTimeout", 60000);
+    // Milliseconds the router waits to connect to the target
+    private static final int CONNECT_TIMEOUT = Integer.getInteger("relay.connectTimeout", 5000);
+    // Amount of forwarding ports the relay keeps open at once
+    private static final int MAX_PORTS = Integer.getInteger("relay.maxPorts", 1024);
+    // Amount of forwarding ports a single host can have open at once
+    private static final int MAX_PORTS_PER_HOST = Integer.getInteger("relay.maxPortsPerHost", 16);
+
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>(); // buffers not in use
+    private final Set<ServerSocketChannel> ports = ConcurrentHashMap.newKeySet(); // open forwarding ports
+    private final Set<SocketChannel> channels = ConcurrentHashMap.newKeySet(); // spliced connections
+    private final ConcurrentHashMap<InetAddress, Integer> portsByHost = new ConcurrentHashMap<>(); // open ports by requester
+    private final AtomicInteger reserved = new AtomicInteger(); // forwarding ports that are open or opening
+    private final LongAdder bytes = new LongAdder(); // bytes relayed in both directions
+    private final AtomicInteger spliced = new AtomicInteger(); // connections spliced so far
+    private final LongAdder failedConnects = new LongAdder(); // connections to targets that failed
+    private final LongAdder refused = new LongAdder(); // connections from hosts other than the requester
+    private volatile InetAddress address = null; // address of the router, null for every address
+    private volatile boolean closed = false; // whether the relay was closed
+
+    /**
+     * sets the address of the router, which forwarding ports are opened on and
+     * targets are connected from
+     *
+     * @param address the address of the router
+     */
+    public void setAddress(final InetAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * open a forwarding port to a target for a host
+     *
+     * @param target    the address and port every connection is spliced to
+     * @param requester the host that asked for the port, the only one whose
+     *                  connections are spliced
+     * @return the forwarding port
+     * @throws IOException if no port can be opened, or the host or the relay
+     *                     has too many ports open
+     */
+    public int open(final InetSocketAddress target, final InetAddress requester) throws IOException {
+        if (closed) {
+            throw new IOException("The relay is closed!");
+        }
+        reserve(requester);
+        final ServerSocketChannel server;
+        try {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(address, 0));
+            server.socket().setSoTimeout(IDLE_TIMEOUT);
+        } catch (final IOException e) {
+            release(requester);
+            throw e;
+        }
+        ports.add(server);
+        Execution.execute(() -> accept(server, target, requester));
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * count a new forwarding port of a host against the limits
+     *
+     * @param requester the host that asked for the port
+     * @throws IOException if the host or the relay has too many ports open
+     */
+    private void reserve(final InetAddress requester) throws IOException {
+        if (reserved.incrementAndGet() > MAX_PORTS) {
+            reserved.decrementAndGet();
+            throw new IOException("The relay has " + MAX_PORTS + " forwarding ports open already!");
+        }
+        if (portsByHost.merge(requester, 1, Integer::sum) > MAX_PORTS_PER_HOST) {
+            release(requester);
+            throw new IOException(requester.getHostAddress() + " has " + MAX_PORTS_PER_HOST
+                    + " forwarding ports open already!");
+        }
+    }
+
+    /**
+     * stop counting a forwarding port of a host
+     *
+     * @param requester the host that asked for the port
+     */
+    private void release(final InetAddress requester) {
+        portsByHost.merge(requester, -1, (count, change) -> count + change == 0 ? null : count + change);
+        reserved.decrementAndGet();
+    }
+
+    /**
+     * accept connections to a forwarding port until it was idle for the
+     * timeout
+     *
+     * @param server    the forwarding port
+     * @param target    the address every connection is spliced to
+     * @param requester the host whose connections are spliced
+     */
+    private void accept(final ServerSocketChannel server, final InetSocketAddress target,
+            final InetAddress requester) {
+        final AtomicInteger active = new AtomicInteger(); // spliced connections of this port
+        try {
+            while (!closed) {
+                try {
+                    // The socket of the channel honors the timeout
+                    final SocketChannel from = server.socket().accept().getChannel();
+                    if (!requester.equals(from.socket().getInetAddress())) {
+                        refused.increment();
+                        System.err.println("The relay refused a connection from "
+                                + from.socket().getInetAddress().getHostAddress() + " to a port of "
+                                + requester.getHostAddress() + "!");
+                        close(from);
+                        continue;
+                    }
+                    active.incrementAndGet();
+                    Execution.execute(() -> splice(from, target, active));
+                } catch (final SocketTimeoutException e) {
+                    if (active.get() == 0) {
+                        return;
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            // The forwarding port was closed
+        } finally {
+            ports.remove(server);
+            close(server);
+            release(requester);
+        }
+    }
+
+    /**
+     * connect to the target and move data between it and a connection in both
+     * directions until both are done
+     *
+     * @param from   the connection to the forwarding port
+     * @param target the address to connect to
+     * @param active the counter of spliced connections of the port
+     */
+    private void splice(final SocketChannel from, final InetSocketAddress target, final AtomicInteger active) {
+        SocketChannel to = null;
+        try {
+            channels.add(from);
+            to = SocketChannel.open();
+            channels.add(to);
+            // The next router on the way only splices connections from this one
+            to.socket().bind(new InetSocketAddress(address, 0));
+            to.socket().connect(target, CONNECT_TIMEOUT);
+            from.socket().setTcpNoDelay(true);
+            to.socket().setTcpNoDelay(true);
+            spliced.incrementAndGet();
+
+            // This task moves one direction and a second task the other
+            final SocketChannel connected = to;
+            final CountDownLatch back = new CountDownLatch(1);
+            Execution.execute(() -> {
+                pump(connected, from);
+                back.countDown();
+            });
+            pump(from, to);
+            back.await();
+        } catch (final IOException e) {
+            failedConnects.increment();
+            System.err.println("The relay could not connect to " + target + ": " + e.getMessage());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close(from);
+            channels.remove(from);
+            if (to != null) {
+                close(to);
+                channels.remove(to);
+            }
+            active.decrementAndGet();
+        }
+    }
+
+    /**
+     * move data from one connection to another until the first one ends, then
+     * end the output to the other one
+     *
+     * @param in  the connection that is read
+     * @param out the connection that is written
+     */
+    private void pump(final SocketChannel in, final SocketChannel out) {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        try {
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                final int length = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                bytes.add(length);
+                buffer.clear();
+            }
+            out.shutdownOutput();
+        } catch (final IOException e) {
+            // One side went away, which ends both directions
+            close(in);
+            close(out);
+        } finally {
+            buffer.clear();
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * close a channel and ignore that it may be closed already
+     *
+     * @param channel the channel
+     */
+    private static void close(final Channel channel) {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            // Nothing is left to do
+        }
+    }
+
+    /**
+     * gets the amount of forwarding ports that are open
+     *
+     * @return the amount of ports
+     */
+    public int getOpenPorts() {
+        return ports.size();
+    }
+
+    /**
+     * gets the amount of connections that were spliced to their target
+     *
+     * @return the amount of connections
+     */
+    public int getSpliced() {
+        return spliced.get();
+    }
+
+    /**
+     * gets the amount of connections that are spliced right now, counting both
+     * ends of every splice
+     *
+     * @return the amount of connections
+     */
+    public int getActiveConnections() {
+        return channels.size();
+    }
+
+    /**
+     * gets the amount of connections to targets that failed
+     *
+     * @return the amount of connections
+     */
+    public long getFailedConnects() {
+        return failedConnects.sum();
+    }
+
+    /**
+     * gets the amount of connections to forwarding ports that came from hosts
+     * other than the one that asked for the port
+     *
+     * @return the amount of connections
+     */
+    public long getRefused() {
+        return refused.sum();
+    }
+
+    /**
+     * gets the amount of bytes the relay moved, in both directions together
+     *
+     * @return the amount of bytes
+     */
+    public long getBytesRelayed() {
+        return bytes.sum();
+    }
+
+    /**
+     * close every forwarding port and every spliced connection
+     */
+    public void close() {
+        closed = true;
+        for (final ServerSocketChannel server : ports) {
+            close(server);
+        }
+        for (final SocketChannel channel : channels) {
+            close(channel);
+        }
+    }
+}
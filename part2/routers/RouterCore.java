@@ -0,0 +1,724 @@
+package part2.routers;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+import part2.protocol.ControlMessage;
+
+/**
+ * This holds the routing table of a router and handles the messages of the
+ * control protocol. It does not own any threads: the engine of the router reads
+ * messages from its connections, on a thread per connection or on event loops,
+ * and hands every message to handle.
+ *
+ * Messages arrive as ControlMessages, decoded by the engine from binary frames
+ * or from lines of the text protocol.
+ *
+ * Nodes are kept in a RoutingIndex by their packed IPv4 address. Every node
+ * connection holds the session handle it was added with, and is removed with
+ * it, so an old connection of a node that reconnected never removes the new one.
+ *
+ * A router can be linked to any amount of other routers. Linked routers tell
+ * each other how far they are from every node with ROUTE_UPDATE, as a distance
+ * vector: a router adds one hop to what a neighbor tells it and passes the
+ * route on if it is the best one it knows. A lookup then follows the best next
+ * hop to the router of the node instead of being broadcast, and carries the
+ * amount of hops it may still take. A route is told back to the neighbor it
+ * was learned from as unreachable (split horizon with poison reverse), and
+ * MAX_HOPS counts as unreachable, so a loop that forms while routes change
+ * counts itself out. A router that loses its route to a node tells its
+ * neighbors, and a neighbor that knows another route answers with it.
+ *
+ * A linked router that speaks the text protocol tells no routes. Lookups for
+ * nodes no route is known for are forwarded to it, as they were before
+ * routers formed a mesh.
+ *
+ * Lookups that are forwarded to another router are kept in PendingLookups and
+ * their responses are routed back by request id along the path they came, so a
+ * node can have many lookups in flight and tell their answers apart by the ids
+ * it gave them.
+ *
+ * Nodes cache the answers to their lookups. When a router loses its route to a
+ * node, it tells every node it answered YES about that node with
+ * NODE_INVALIDATE. Only hosts that speak the binary protocol get invalidations.
+ *
+ * A node that cannot connect to a peer directly asks its router for a relay
+ * with RELAY_REQUEST. The request follows the route to the router of the peer
+ * like a lookup, and every router on the way back opens a forwarding port of
+ * its Relay to the port the router after it answered with, so the node
+ * connects to its own router and its data is passed along the chain.
+ *
+ * The messages it handles, by type, and the time forwarded requests wait for
+ * their answers are counted in RouterMetrics, which SRouter registers as an
+ * MBean.
+ */
+public class RouterCore {
+    // Whether every message gets printed. Set router.verbose=false for many nodes
+    private static final boolean VERBOSE = Boolean.parseBoolean(System.getProperty("router.verbose", "true"));
+
+    // Amount of lookups that can wait for other routers at once
+    static final int PENDING_LOOKUPS = Integer.getInteger("router.pendingLookups", 65536);
+
+    // Amount of peers whose watchers are kept. Nodes that looked up more peers
+    // than this rely on the TTL of their cache
+    private static final int WATCHED_PEERS = Integer.getInteger("router.watchedPeers", 65536);
+
+    private final RoutingIndex<Connection> nodes = new RoutingIndex<>(); // nodes by packed address
+    private final RoutingIndex<Route> routes = new RoutingIndex<>(); // routes to nodes of other routers by packed address
+    private final ReentrantLock routesLock = new ReentrantLock(); // lets one thread change nodes and routes at a time
+    private final ControlMessage update = new ControlMessage(); // route updates are built in this under routesLock
+    private final ConcurrentHashMap<Integer, Set<Connection>> watchers = new ConcurrentHashMap<>(); // nodes by peer
+    private final ConcurrentHashMap<Connection, Set<Integer>> watched = new ConcurrentHashMap<>(); // peers by node
+    private final RouterMetrics metrics = new RouterMetrics(this); // counters of the MBean of the router
+    private final PendingLookups pending = new PendingLookups(PENDING_LOOKUPS,
+            metrics.getForwardLatency()); // lookups sent to other routers
+    private final List<Connection> routers = new CopyOnWriteArrayList<>(); // links to other routers
+    private final Relay relay = new Relay(); // forwarding ports for nodes that cannot connect directly
+    private volatile boolean exitWithRouter = true; // whether losing the last link ends the process
+    private volatile boolean closed = false; // whether the router is shutting down
+
+    /**
+     * The best known route to a node of another router. Routes are replaced and
+     * never changed, so lookups read them without a lock.
+     */
+    private static final class Route {
+        private final int destination; // packed address of the node
+        private final Connection via; // link to the next router on the way
+        private final int metric; // amount of routers between this one and the node
+        private long session; // session handle of the route in the index, set under routesLock
+
+        private Route(final int destination, final Connection via, final int metric) {
+            this.destination = destination;
+            this.via = via;
+            this.metric = metric;
+        }
+    }
+
+    /**
+     * add a link to another router and tell it every route of this router
+     *
+     * @param router the connection to the other router
+     */
+    public void addRouter(final Connection router) {
+        routesLock.lock();
+        try {
+            routers.add(router);
+            if (!router.isBinary()) {
+                return;
+            }
+            for (final Connection node : nodes.values()) {
+                advertise(router, RoutingIndex.address(node.getSession()), 0);
+            }
+            for (final Route route : routes.values()) {
+                advertise(router, route.destination, route.via == router ? ControlMessage.MAX_HOPS : route.metric);
+            }
+        } finally {
+            routesLock.unlock();
+        }
+    }
+
+    /**
+     * choose whether the process ends once the last link to another router is
+     * lost, which is how a pair of routers shuts down together. Routers of a
+     * mesh keep running.
+     *
+     * @param exitWithRouter true to end the process, false to keep running
+     */
+    public void setExitWithRouter(final boolean exitWithRouter) {
+        this.exitWithRouter = exitWithRouter;
+    }
+
+    /**
+     * add a node that connected to this router to the routing table
+     *
+     * @param node the connection to the node
+     */
+    public void addNode(final Connection node) {
+        final int address;
+        try {
+            address = RoutingIndex.pack(node.getAddress());
+        } catch (final IllegalArgumentException e) {
+            System.err.println("Only nodes with an IPv4 address can connect: " + e.getMessage());
+            node.close();
+            return;
+        }
+        routesLock.lock();
+        try {
+            node.setSession(nodes.put(address, node));
+            advertiseAll(address, 0, null);
+        } finally {
+            routesLock.unlock();
+        }
+    }
+
+    /**
+     * handle a message that a host sent to this router. Requests are turned into
+     * their answer in place, so no message is allocated.
+     *
+     * @param from    the connection the message arrived on
+     * @param message the message. It may be changed
+     */
+    public void handle(final Connection from, final ControlMessage message) {
+        metrics.message(message.getType());
+        if (VERBOSE) {
+            System.out.println("Router received the message: " + message);
+        }
+
+        switch (message.getType()) {
+            // a router receives destination from a node
+            case ControlMessage.NODE_REQUEST:
+                if (nodes.contains(message.getDestination())) {
+                    message.setType(ControlMessage.NODE_RESPONSE);
+                    message.setFlags(ControlMessage.FLAG_YES);
+                    from.send(message);
+                    if (from.isBinary()) {
+                        watch(message.getDestination(), from);
+                    }
+                    return;
+                }
+                final Connection next = nextHop(message.getDestination());
+                if (next == null) {
+                    message.setType(ControlMessage.NODE_RESPONSE);
+                    message.setFlags(0);
+                    from.send(message);
+                    return;
+                }
+                message.setType(ControlMessage.ROUTER_REQUEST);
+                message.setFlags(ControlMessage.MAX_HOPS);
+                pending.add(from, message);
+                next.send(message);
+                if (VERBOSE) {
+                    System.out.println("Sent: " + message + "\nFrom: " + next.getName());
+                }
+                break;
+
+            // a router receives a destination from another router
+            case ControlMessage.ROUTER_REQUEST:
+                if (!routers.contains(from)) {
+                    malformed(from, "A node sent the message " + message + " that only routers send!");
+                    return;
+                }
+                // The flags hold the hops the lookup may still take. Routers that
+                // speak text send none, and only ask about the nodes of this one
+                final Connection hop = nodes.contains(message.getDestination()) || message.getFlags() <= 1 ? null
+                        : nextHop(message.getDestination());
+                if (hop == null || hop == from) {
+                    message.setType(ControlMessage.ROUTER_RESPONSE);
+                    message.setFlags(nodes.contains(message.getDestination()) ? ControlMessage.FLAG_YES : 0);
+                    from.send(message);
+                    return;
+                }
+                message.setFlags(message.getFlags() - 1);
+                pending.add(from, message);
+                hop.send(message);
+                break;
+
+            // a router receives a response from another router
+            case ControlMessage.ROUTER_RESPONSE:
+                Connection node = pending.take(message);
+                if (node == null && message.getRequestId() == 0) {
+                    // A router that speaks text does not return the id
+                    node = nodes.get(message.getOrigin());
+                }
+                if (node == null) {
+                    if (VERBOSE) {
+                        System.out.println("No node is waiting for the response " + message + " anymore!");
+                    }
+                } else if (routers.contains(node)) {
+                    // Pass the answer back along the path of the lookup
+                    node.send(message);
+                } else {
+                    message.setType(ControlMessage.NODE_RESPONSE);
+                    node.send(message);
+                    if (message.isYes() && node.isBinary()) {
+                        watch(message.getDestination(), node);
+                    }
+                }
+                break;
+
+            // a router receives a request to disconnect a node
+            case ControlMessage.NODE_DISCONNECT:
+                // The node sends the request on its own connection
+                remove(from);
+                from.close();
+                if (VERBOSE) {
+                    System.out.println(
+                            "The node was succesfully disconnected from the router and removed from the routing table!");
+                }
+                break;
+
+            // a node of another router left its routing table
+            case ControlMessage.ROUTER_INVALIDATE:
+                if (!routers.contains(from)) {
+                    malformed(from, "A node sent the message " + message + " that only routers send!");
+                    return;
+                }
+                invalidate(message.getDestination());
+                break;
+
+            // a linked router tells how far it is from a node
+            case ControlMessage.ROUTE_UPDATE:
+                if (!routers.contains(from)) {
+                    malformed(from, "A node sent the message " + message + " that only routers send!");
+                    return;
+                }
+                if (update(from, message.getDestination(), message.getFlags())) {
+                    invalidate(message.getDestination());
+                }
+                break;
+
+            // a node or router asks for a relay to a port of a peer
+            case ControlMessage.RELAY_REQUEST:
+                relayRequest(from, message);
+                break;
+
+            // the next router on the way to a peer opened a relay
+            case ControlMessage.RELAY_RESPONSE:
+                if (!routers.contains(from)) {
+                    malformed(from, "A node sent the message " + message + " that only routers send!");
+                    return;
+                }
+                final Connection requester = pending.take(message);
+                if (requester != null) {
+                    // Open the next link of the chain towards the relay of the other router
+                    message.setFlags(message.getFlags() == 0 ? 0
+                            : openRelay(new InetSocketAddress(from.getAddress(), message.getFlags()), requester));
+                    requester.send(message);
+                }
+                break;
+
+            default:
+                malformed(from, "A host sent the message " + message + " that only nodes receive!");
+        }
+    }
+
+    /**
+     * close a connection that sent something that is not a control message
+     *
+     * @param from   the connection the message arrived on
+     * @param reason what was wrong with the message
+     */
+    public void malformed(final Connection from, final String reason) {
+        metrics.malformed();
+        System.err.println(reason);
+        if (routers.contains(from)) {
+            removeRouter(from);
+        } else {
+            remove(from);
+        }
+        from.close();
+    }
+
+    /**
+     * handle a connection that was closed by its host. A node is removed from
+     * the routing table, and a router takes the routes through it along. Losing
+     * the last linked router shuts this router down, unless it is part of a
+     * mesh.
+     *
+     * @param connection the connection that was closed
+     */
+    public void closed(final Connection connection) {
+        if (closed) {
+            return;
+        }
+        if (!routers.contains(connection)) {
+            remove(connection);
+            return;
+        }
+        removeRouter(connection);
+        if (routers.isEmpty() && exitWithRouter) {
+            System.out.println("The router has been shutdown.");
+            System.exit(0);
+        }
+    }
+
+    /**
+     * open a relay to a node of this router, or pass the request on to the next
+     * router on the way to the node
+     *
+     * @param from    the connection the request arrived on
+     * @param message the request, whose flags hold the port of the peer
+     */
+    private void relayRequest(final Connection from, final ControlMessage message) {
+        final int destination = message.getDestination();
+        if (nodes.contains(destination)) {
+            message.setType(ControlMessage.RELAY_RESPONSE);
+            message.setFlags(
+                    openRelay(new InetSocketAddress(RoutingIndex.unpack(destination), message.getFlags()), from));
+            from.send(message);
+            return;
+        }
+        // Only routers of the mesh relay, routers that speak text do not
+        final Route route = routes.get(destination);
+        if (route == null || route.via == from) {
+            message.setType(ControlMessage.RELAY_RESPONSE);
+            message.setFlags(0);
+            from.send(message);
+            return;
+        }
+        pending.add(from, message);
+        route.via.send(message);
+    }
+
+    /**
+     * open a forwarding port of the relay of this router for the host that asked
+     * for it
+     *
+     * @param target    the address the port forwards to
+     * @param requester the connection of the node or router that asked for the
+     *                  relay
+     * @return the port, or 0 if none could be opened
+     */
+    private int openRelay(final InetSocketAddress target, final Connection requester) {
+        if (requester.getAddress().isEmpty()) {
+            return 0;
+        }
+        try {
+            // The address of a connection is always a literal, so nothing is looked up
+            return relay.open(target, InetAddress.getByName(requester.getAddress()));
+        } catch (final IOException e) {
+            System.err.println("The router could not open a relay to " + target + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * gets the relay that forwards the data of nodes that cannot connect to
+     * each other directly
+     *
+     * @return the relay
+     */
+    public Relay getRelay() {
+        return relay;
+    }
+
+    /**
+     * gets the counters of the router that its MBean shows
+     *
+     * @return the metrics
+     */
+    public RouterMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * find the link a lookup for a node is forwarded on
+     *
+     * @param destination the packed address of the node
+     * @return the link to the next router, or null if no router is known to
+     *         have the node
+     */
+    private Connection nextHop(final int destination) {
+        final Route route = routes.get(destination);
+        if (route != null) {
+            return route.via;
+        }
+        // Routers that speak text tell no routes, so they are asked
+        for (final Connection router : routers) {
+            if (!router.isBinary()) {
+                return router;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * handle the distance a linked router told to a node
+     *
+     * @param from        the link to the router
+     * @param destination the packed address of the node
+     * @param distance    the distance of the router to the node
+     * @return true if the route to the node was lost, false otherwise
+     */
+    private boolean update(final Connection from, final int destination, final int distance) {
+        final int metric = Math.min(distance + 1, ControlMessage.MAX_HOPS);
+        routesLock.lock();
+        try {
+            if (nodes.contains(destination)) {
+                // The node is connected to this router, no route is better
+                if (metric == ControlMessage.MAX_HOPS) {
+                    advertise(from, destination, 0);
+                }
+                return false;
+            }
+            final Route current = routes.get(destination);
+            if (current == null) {
+                if (metric < ControlMessage.MAX_HOPS) {
+                    install(new Route(destination, from, metric));
+                }
+            } else if (current.via == from) {
+                if (metric == ControlMessage.MAX_HOPS) {
+                    routes.remove(current.session);
+                    advertiseAll(destination, ControlMessage.MAX_HOPS, null);
+                    return true;
+                }
+                if (metric != current.metric) {
+                    install(new Route(destination, from, metric));
+                }
+            } else if (metric < current.metric) {
+                install(new Route(destination, from, metric));
+            } else if (metric == ControlMessage.MAX_HOPS) {
+                // The router lost its route, tell it this one
+                advertise(from, destination, current.metric);
+            }
+            return false;
+        } finally {
+            routesLock.unlock();
+        }
+    }
+
+    /**
+     * put a route into the table and tell the linked routers. Only called under
+     * routesLock.
+     *
+     * @param route the route
+     */
+    private void install(final Route route) {
+        route.session = routes.put(route.destination, route);
+        advertiseAll(route.destination, route.metric, route.via);
+    }
+
+    /**
+     * tell every linked router that speaks the binary protocol how far this
+     * router is from a node. The router the route goes through is told the node
+     * is unreachable. Only called under routesLock.
+     *
+     * @param destination the packed address of the node
+     * @param metric      the distance to the node
+     * @param via         the link the route goes through, or null
+     */
+    private void advertiseAll(final int destination, final int metric, final Connection via) {
+        for (final Connection router : routers) {
+            if (router.isBinary()) {
+                advertise(router, destination, router == via ? ControlMessage.MAX_HOPS : metric);
+            }
+        }
+    }
+
+    /**
+     * tell a linked router how far this router is from a node. Only called
+     * under routesLock.
+     *
+     * @param router      the link to the router
+     * @param destination the packed address of the node
+     * @param metric      the distance to the node
+     */
+    private void advertise(final Connection router, final int destination, final int metric) {
+        router.send(update.set(ControlMessage.ROUTE_UPDATE, metric, 0, 0, destination));
+    }
+
+    /**
+     * remove a link to another router and every route through it
+     *
+     * @param router the link to the other router
+     */
+    private void removeRouter(final Connection router) {
+        final List<Integer> lost = new ArrayList<>();
+        routesLock.lock();
+        try {
+            if (!routers.remove(router)) {
+                return;
+            }
+            for (final Route route : routes.values()) {
+                if (route.via == router && routes.remove(route.session)) {
+                    lost.add(route.destination);
+                    if (!closed) {
+                        advertiseAll(route.destination, ControlMessage.MAX_HOPS, null);
+                    }
+                }
+            }
+        } finally {
+            routesLock.unlock();
+        }
+        for (final int destination : lost) {
+            invalidate(destination);
+        }
+    }
+
+    /**
+     * remove a node from the routing table with its session handle
+     *
+     * @param node the connection to the node
+     */
+    private void remove(final Connection node) {
+        unwatch(node);
+        final long session = node.getSession();
+        if (session == 0) {
+            return;
+        }
+        routesLock.lock();
+        try {
+            if (!nodes.remove(session)) {
+                return;
+            }
+            // Tell the other routers, whose nodes may have cached this one
+            if (!closed) {
+                advertiseAll(RoutingIndex.address(session), ControlMessage.MAX_HOPS, null);
+            }
+        } finally {
+            routesLock.unlock();
+        }
+        invalidate(RoutingIndex.address(session));
+    }
+
+    /**
+     * remember that a node was told a peer can be connected to, so it is told
+     * when the peer leaves
+     *
+     * @param peer the packed address of the peer
+     * @param node the connection to the node
+     */
+    private void watch(final int peer, final Connection node) {
+        Set<Connection> watching = watchers.get(peer);
+        if (watching == null) {
+            if (watchers.size() >= WATCHED_PEERS) {
+                return;
+            }
+            watching = watchers.computeIfAbsent(peer, key -> ConcurrentHashMap.newKeySet());
+        }
+        watching.add(node);
+        watched.computeIfAbsent(node, key -> ConcurrentHashMap.newKeySet()).add(peer);
+    }
+
+    /**
+     * forget every peer a node was told about, so a node that left is not kept
+     * by the sets of watchers
+     *
+     * @param node the connection to the node
+     */
+    private void unwatch(final Connection node) {
+        final Set<Integer> peers = watched.remove(node);
+        if (peers == null) {
+            return;
+        }
+        for (final int peer : peers) {
+            watchers.computeIfPresent(peer, (key, watching) -> {
+                watching.remove(node);
+                return watching.isEmpty() ? null : watching;
+            });
+        }
+    }
+
+    /**
+     * tell every node that was told a peer can be connected to that it cannot
+     * anymore
+     *
+     * @param peer the packed address of the peer
+     */
+    private void invalidate(final int peer) {
+        final Set<Connection> watching = watchers.remove(peer);
+        if (watching == null) {
+            return;
+        }
+        final ControlMessage message = new ControlMessage().set(ControlMessage.NODE_INVALIDATE, 0, 0, 0, peer);
+        for (final Connection watcher : watching) {
+            watcher.send(message);
+            final Set<Integer> peers = watched.get(watcher);
+            if (peers != null) {
+                peers.remove(peer);
+            }
+        }
+    }
+
+    /**
+     * find the connection of a node
+     *
+     * @param address the string representation of the node's IP address
+     * @return the connection, or null if the node is not connected to this router
+     */
+    private Connection find(final String address) {
+        try {
+            return nodes.get(RoutingIndex.pack(address));
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * check if a node is in the routing table
+     *
+     * @param address the string representation of the node's IP address
+     * @return true if the node is connected to this router, false otherwise
+     */
+    public boolean contains(final String address) {
+        return find(address) != null;
+    }
+
+    /**
+     * gets the amount of nodes in the routing table
+     *
+     * @return the amount of nodes
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * gets how far this router is from a node
+     *
+     * @param address the string representation of the node's IP address
+     * @return 0 if the node is connected to this router, the amount of routers
+     *         between this one and the node, or -1 if no route is known
+     */
+    public int distance(final String address) {
+        if (contains(address)) {
+            return 0;
+        }
+        try {
+            final Route route = routes.get(RoutingIndex.pack(address));
+            return route == null ? -1 : route.metric;
+        } catch (final IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * gets the amount of nodes of other routers that this router has a route to
+     *
+     * @return the amount of routes
+     */
+    public int routeCount() {
+        return routes.size();
+    }
+
+    /**
+     * gets the amount of nodes that are told when a peer they looked up leaves
+     *
+     * @return the amount of nodes
+     */
+    public int watcherCount() {
+        return watched.size();
+    }
+
+    /**
+     * gets the amount of linked routers
+     *
+     * @return the amount of links
+     */
+    public int routerCount() {
+        return routers.size();
+    }
+
+    /**
+     * close the links to other routers and every node
+     */
+    public void close() {
+        closed = true;
+        relay.close();
+        for (final Connection router : routers) {
+            router.close();
+        }
+        for (final Connection node : nodes.values()) {
+            node.close();
+        }
+        nodes.clear();
+        routes.clear();
+    }
+}
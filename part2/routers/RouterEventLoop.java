@@ -0,0 +1,219 @@
+package part2.routers;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import part2.protocol.ControlMessage;
+
+/**
+ * This represents one event loop of the non-blocking router engine. Every loop
+ * owns a Selector and serves any amount of node connections on a single thread,
+ * so a router needs one loop per core instead of one thread per node. The
+ * accepting thread hands new channels to the loops with add.
+ */
+public class RouterEventLoop extends Thread {
+    // Size of the buffer every read of the loop goes through
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final RouterCore core; // routing table and message handling of the router
+    private final Selector selector; // selector of every connection of the loop
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE); // shared by every connection
+    private final ControlMessage message = new ControlMessage(); // every received message is decoded into it
+    private final Queue<SocketChannel> added = new ConcurrentLinkedQueue<>(); // channels waiting to be registered
+    private final Queue<ChannelConnection> flushes = new ConcurrentLinkedQueue<>(); // connections with messages to write
+    private final Queue<ChannelConnection> dropped = new ConcurrentLinkedQueue<>(); // connections closed by the router
+    private final AtomicInteger connections = new AtomicInteger(); // open connections of the loop
+    private volatile boolean running = true; // whether the loop keeps running
+
+    /**
+     * create a new event loop
+     *
+     * @param core the routing table and message handling of the router
+     * @param name the name of the thread of the loop
+     * @throws IOException if the selector cannot be opened
+     */
+    public RouterEventLoop(final RouterCore core, final String name) throws IOException {
+        super(name);
+        this.core = core;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * hand a connection from a node to this loop
+     *
+     * @param channel the accepted channel of the node
+     */
+    public void add(final SocketChannel channel) {
+        added.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * check if the calling thread is the thread of this loop
+     *
+     * @return true if it is, false otherwise
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    /**
+     * ask the loop to flush a connection that another thread sent a message to
+     *
+     * @param connection the connection
+     */
+    void schedule(final ChannelConnection connection) {
+        flushes.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * ask the loop to remove a connection the router closed from the core, on
+     * the thread of the loop
+     *
+     * @param connection the closed connection
+     */
+    void drop(final ChannelConnection connection) {
+        dropped.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * count a connection of the loop that was closed
+     */
+    void removed() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * serve the connections of the loop until it is closed
+     */
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                register();
+
+                ChannelConnection connection;
+                while ((connection = flushes.poll()) != null) {
+                    connection.flush();
+                }
+                while ((connection = dropped.poll()) != null) {
+                    core.closed(connection);
+                }
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        ((ChannelConnection) key.attachment()).flush();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                }
+            }
+        } catch (final ClosedSelectorException e) {
+            // The loop was closed
+        } catch (final IOException e) {
+            System.err.println("An IOException occurred!");
+            e.printStackTrace();
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * register the channels that were handed to the loop
+     */
+    private void register() {
+        SocketChannel channel;
+        while ((channel = added.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                final ChannelConnection connection = new ChannelConnection(this, channel, "Node to " + getName());
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                connections.incrementAndGet();
+                core.addNode(connection);
+            } catch (final IOException e) {
+                System.err.println("A node could not be registered: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (final IOException e1) {
+                    System.out.println("Socket is already closed");
+                }
+            }
+        }
+    }
+
+    /**
+     * read what a connection has available and handle every complete message
+     *
+     * @param key the key of the connection
+     */
+    private void read(final SelectionKey key) {
+        final SocketChannel channel = (SocketChannel) key.channel();
+        final ChannelConnection connection = (ChannelConnection) key.attachment();
+        try {
+            buffer.clear();
+            final int read = channel.read(buffer);
+            if (read < 0) {
+                connection.close();
+                core.closed(connection);
+            } else if (read > 0) {
+                buffer.flip();
+                connection.received(core, buffer, message);
+            }
+        } catch (final ProtocolException e) {
+            core.malformed(connection, e.getMessage());
+        } catch (final IOException e) {
+            System.err.println("Reading from a node failed: " + e.getMessage());
+            connection.close();
+            core.closed(connection);
+        }
+    }
+
+    /**
+     * close every connection of the loop and the selector itself
+     */
+    private void closeAll() {
+        try {
+            for (final SelectionKey key : selector.keys()) {
+                ((ChannelConnection) key.attachment()).close();
+            }
+            selector.close();
+        } catch (final IOException | ClosedSelectorException e) {
+            System.out.println("The selector is already closed");
+        }
+    }
+
+    /**
+     * stop the loop and close every connection of it
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * gets the amount of connections currently served by the loop
+     *
+     * @return the amount of connections
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+}
@@ -0,0 +1,148 @@
+package part2.routers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import part2.metrics.LatencyHistogram;
+import part2.protocol.ControlMessage;
+
+/**
+ * This counts what a router does, for its MBean. The counters are LongAdders,
+ * which every thread adds to its own cell of, so the threads that handle
+ * messages do not contend on them. The sizes of the routing table are read
+ * from the router when they are asked for.
+ */
+public class RouterMetrics implements RouterMetricsMXBean {
+    private final RouterCore core; // router the metrics are of
+    private final LongAdder[] messages = new LongAdder[ControlMessage.MAX_TYPE + 1]; // messages handled by type
+    private final LongAdder malformed = new LongAdder(); // messages that were rejected
+    private final LongAdder failedConnects = new LongAdder(); // connections to routers that failed
+    private final LatencyHistogram forwardLatency = new LatencyHistogram(); // time forwarded requests waited
+    private final long startTime = System.nanoTime(); // time the router started
+
+    /**
+     * create the metrics of a router
+     *
+     * @param core the router
+     */
+    RouterMetrics(final RouterCore core) {
+        this.core = core;
+        for (int type = 0; type < messages.length; type++) {
+            messages[type] = new LongAdder();
+        }
+    }
+
+    /**
+     * count a message the router handled
+     *
+     * @param type the type of the message
+     */
+    void message(final int type) {
+        messages[type < 0 || type >= messages.length ? 0 : type].increment();
+    }
+
+    /**
+     * count a message that was rejected
+     */
+    void malformed() {
+        malformed.increment();
+    }
+
+    /**
+     * count a connection to another router that failed
+     */
+    public void failedConnect() {
+        failedConnects.increment();
+    }
+
+    /**
+     * gets the histogram of the time forwarded requests waited for their answers
+     *
+     * @return the histogram
+     */
+    public LatencyHistogram getForwardLatency() {
+        return forwardLatency;
+    }
+
+    @Override
+    public int getNodeCount() {
+        return core.size();
+    }
+
+    @Override
+    public int getRouteCount() {
+        return core.routeCount();
+    }
+
+    @Override
+    public int getRouterCount() {
+        return core.routerCount();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return core.size() + core.routerCount() + core.getRelay().getActiveConnections();
+    }
+
+    @Override
+    public long getMessages() {
+        long total = 0;
+        for (final LongAdder count : messages) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getMessageCounts() {
+        final Map<String, Long> counts = new LinkedHashMap<>();
+        for (int type = 0; type < messages.length; type++) {
+            final long count = messages[type].sum();
+            if (count > 0) {
+                counts.put(ControlMessage.typeName(type), count);
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getMessageRates() {
+        final double seconds = Math.max(1e-9, (System.nanoTime() - startTime) / 1e9);
+        final Map<String, Double> rates = new LinkedHashMap<>();
+        for (final Map.Entry<String, Long> count : getMessageCounts().entrySet()) {
+            rates.put(count.getKey(), count.getValue() / seconds);
+        }
+        return rates;
+    }
+
+    @Override
+    public long getMalformedMessages() {
+        return malformed.sum();
+    }
+
+    @Override
+    public long getFailedConnects() {
+        return failedConnects.sum() + core.getRelay().getFailedConnects();
+    }
+
+    @Override
+    public long getForwardedRequests() {
+        return forwardLatency.getCount();
+    }
+
+    @Override
+    public Map<String, Double> getForwardLatencyMicros() {
+        return forwardLatency.getMicros();
+    }
+
+    @Override
+    public long getBytesRelayed() {
+        return core.getRelay().getBytesRelayed();
+    }
+
+    @Override
+    public int getOpenRelayPorts() {
+        return core.getRelay().getOpenPorts();
+    }
+}
@@ -0,0 +1,103 @@
+package part2.routers;
+
+import java.util.Map;
+
+/**
+ * The metrics of a router as they are seen over JMX.
+ */
+public interface RouterMetricsMXBean {
+
+    /**
+     * gets the amount of nodes in the routing table
+     *
+     * @return the amount of nodes
+     */
+    int getNodeCount();
+
+    /**
+     * gets the amount of nodes of other routers the router has a route to
+     *
+     * @return the amount of routes
+     */
+    int getRouteCount();
+
+    /**
+     * gets the amount of linked routers
+     *
+     * @return the amount of links
+     */
+    int getRouterCount();
+
+    /**
+     * gets the amount of connections of the router: nodes, links to routers and
+     * relayed connections
+     *
+     * @return the amount of connections
+     */
+    int getActiveConnections();
+
+    /**
+     * gets the amount of messages the router handled
+     *
+     * @return the amount of messages
+     */
+    long getMessages();
+
+    /**
+     * gets the amount of messages the router handled by type
+     *
+     * @return the amount of messages by the name of their type
+     */
+    Map<String, Long> getMessageCounts();
+
+    /**
+     * gets the rate of messages by type since the router started
+     *
+     * @return the messages per second by the name of their type
+     */
+    Map<String, Double> getMessageRates();
+
+    /**
+     * gets the amount of messages that were not control messages or came from
+     * the wrong kind of host
+     *
+     * @return the amount of messages
+     */
+    long getMalformedMessages();
+
+    /**
+     * gets the amount of connections to routers and relay targets that failed
+     *
+     * @return the amount of connections
+     */
+    long getFailedConnects();
+
+    /**
+     * gets the amount of requests forwarded to other routers that were
+     * answered
+     *
+     * @return the amount of requests
+     */
+    long getForwardedRequests();
+
+    /**
+     * gets the time forwarded requests waited for their answers
+     *
+     * @return the percentiles, the mean and the highest time in microseconds
+     */
+    Map<String, Double> getForwardLatencyMicros();
+
+    /**
+     * gets the amount of bytes the relay of the router moved
+     *
+     * @return the amount of bytes
+     */
+    long getBytesRelayed();
+
+    /**
+     * gets the amount of forwarding ports of the relay that are open
+     *
+     * @return the amount of ports
+     */
+    int getOpenRelayPorts();
+}
@@ -0,0 +1,471 @@
+package part2.routers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This is the routing table of a router: a concurrent map from the IPv4
+ * address of a node, packed into an int, to its connection.
+ *
+ * The map is split into segments by the hash of the address, and every segment
+ * is an open addressing table with linear probing behind its own StampedLock.
+ * Lookups first try an optimistic read, so they normally take no lock at all,
+ * and writers only block the lookups of their own segment. A removed entry is
+ * cleared by shifting the entries after it back, which leaves no tombstones and
+ * lets the slot be reused right away. Segments grow on their own, so the map
+ * has no fixed capacity.
+ *
+ * Every put returns a session handle that holds the address and a sequence
+ * number. A connection is removed with the handle it got, so a node that
+ * reconnected from the same address is never removed by its old connection.
+ *
+ * @param <V> the type of the connections
+ */
+public class RoutingIndex<V> {
+    // Initial amount of slots of a segment
+    private static final int INITIAL_CAPACITY = 16;
+    // A segment grows once it is this full, as a fraction of 4
+    private static final int LOAD_QUARTERS = 3;
+
+    private final Segment<V>[] segments; // segments of the map
+    private final int segmentMask; // mask that selects a segment from a hash
+    private final int segmentBits; // amount of hash bits that select a segment
+    private final AtomicInteger sequence = new AtomicInteger(); // sequence number of the last session
+
+    /**
+     * create a new routing index with 16 segments for every core, rounded up to
+     * a power of two
+     */
+    public RoutingIndex() {
+        this(Runtime.getRuntime().availableProcessors() * 16);
+    }
+
+    /**
+     * create a new routing index
+     *
+     * @param concurrency the amount of segments, which gets rounded up to a power
+     *                    of two
+     */
+    public RoutingIndex(final int concurrency) {
+        int count = 1;
+        int bits = 0;
+        while (count < concurrency) {
+            count <<= 1;
+            bits++;
+        }
+        segments = newSegments(count);
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<>(bits);
+        }
+        segmentMask = count - 1;
+        segmentBits = bits;
+    }
+
+    /**
+     * create the array of the segments. Java cannot create an array of a generic
+     * type, so an array of the erased type is cast
+     *
+     * @param count the amount of segments
+     * @return the empty array
+     */
+    @SuppressWarnings("unchecked")
+    private static <V> Segment<V>[] newSegments(final int count) {
+        return (Segment<V>[]) new Segment<?>[count];
+    }
+
+    /**
+     * pack the string representation of an IPv4 address into an int
+     *
+     * @param address the address, such as 192.168.1.13
+     * @return the four bytes of the address, the first one highest
+     * @throws IllegalArgumentException if address is not an IPv4 address
+     */
+    public static int pack(final String address) {
+        int packed = 0;
+        int part = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = 0; i < address.length(); i++) {
+            final char c = address.charAt(i);
+            if (c >= '0' && c <= '9' && digits < 3) {
+                part = part * 10 + (c - '0');
+                digits++;
+            } else if (c == '.' && digits > 0 && dots < 3) {
+                packed = packed << 8 | check(part, address);
+                part = 0;
+                digits = 0;
+                dots++;
+            } else {
+                throw new IllegalArgumentException(address + " is not an IPv4 address!");
+            }
+        }
+        if (digits == 0 || dots != 3) {
+            throw new IllegalArgumentException(address + " is not an IPv4 address!");
+        }
+        return packed << 8 | check(part, address);
+    }
+
+    /**
+     * check that a part of an IPv4 address fits in a byte
+     *
+     * @param part    the value of the part
+     * @param address the whole address
+     * @return part
+     */
+    private static int check(final int part, final String address) {
+        if (part > 255) {
+            throw new IllegalArgumentException(address + " is not an IPv4 address!");
+        }
+        return part;
+    }
+
+    /**
+     * turn a packed IPv4 address back into its string representation
+     *
+     * @param address the packed address
+     * @return the address, such as 192.168.1.13
+     */
+    public static String unpack(final int address) {
+        return (address >>> 24) + "." + (address >>> 16 & 0xFF) + "." + (address >>> 8 & 0xFF) + "."
+                + (address & 0xFF);
+    }
+
+    /**
+     * gets the packed address a session handle belongs to
+     *
+     * @param session the session handle
+     * @return the packed address
+     */
+    public static int address(final long session) {
+        return (int) session;
+    }
+
+    /**
+     * add a connection for an address, replacing the connection the address had
+     *
+     * @param address the packed address
+     * @param value   the connection
+     * @return the session handle that removes this connection again
+     */
+    public long put(final int address, final V value) {
+        // The sequence number is never 0, so no session handle is 0
+        int number;
+        do {
+            number = sequence.incrementAndGet();
+        } while (number == 0);
+        final long session = (long) number << 32 | (address & 0xFFFFFFFFL);
+
+        final int hash = hash(address);
+        segments[hash & segmentMask].put(address, hash >>> segmentBits, session, value);
+        return session;
+    }
+
+    /**
+     * gets the connection of an address
+     *
+     * @param address the packed address
+     * @return the connection, or null if the address is not in the index
+     */
+    public V get(final int address) {
+        final int hash = hash(address);
+        return segments[hash & segmentMask].get(address, hash >>> segmentBits);
+    }
+
+    /**
+     * check if an address is in the index
+     *
+     * @param address the packed address
+     * @return true if it is, false otherwise
+     */
+    public boolean contains(final int address) {
+        return get(address) != null;
+    }
+
+    /**
+     * remove the connection a session handle was returned for. Nothing is removed
+     * if the address got a newer connection since.
+     *
+     * @param session the session handle
+     * @return true if the connection was removed, false otherwise
+     */
+    public boolean remove(final long session) {
+        final int address = address(session);
+        final int hash = hash(address);
+        return segments[hash & segmentMask].remove(address, hash >>> segmentBits, session);
+    }
+
+    /**
+     * gets the amount of addresses in the index
+     *
+     * @return the amount of addresses
+     */
+    public int size() {
+        int size = 0;
+        for (final Segment<V> segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * gets every connection in the index
+     *
+     * @return a list of the connections
+     */
+    public List<V> values() {
+        final List<V> values = new ArrayList<>();
+        for (final Segment<V> segment : segments) {
+            segment.values(values);
+        }
+        return values;
+    }
+
+    /**
+     * remove every address from the index
+     */
+    public void clear() {
+        for (final Segment<V> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * mix the bits of an address so that both the segment and the slot get
+     * well spread bits
+     *
+     * @param address the packed address
+     * @return the hash
+     */
+    private static int hash(final int address) {
+        int h = address;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * One open addressing table of the index.
+     */
+    private static final class Segment<V> {
+        private final int shift; // amount of hash bits used to select the segment
+        private final StampedLock lock = new StampedLock(); // guards the arrays
+        private int[] keys = new int[INITIAL_CAPACITY]; // packed addresses
+        private long[] sessions = new long[INITIAL_CAPACITY]; // session handles, 0 for a free slot
+        private Object[] values = new Object[INITIAL_CAPACITY]; // connections
+        private volatile int size; // amount of used slots
+
+        /**
+         * create a new empty segment
+         *
+         * @param shift the amount of hash bits used to select the segment
+         */
+        Segment(final int shift) {
+            this.shift = shift;
+        }
+
+        /**
+         * gets the bits of the hash of an address that select its slot
+         *
+         * @param address the packed address
+         * @return the hash bits
+         */
+        private int slotHash(final int address) {
+            return hash(address) >>> shift;
+        }
+
+        /**
+         * find the connection of an address
+         *
+         * @param address the packed address
+         * @param hash    the bits of the hash left for the slot
+         * @return the connection, or null if there is none
+         */
+        V get(final int address, final int hash) {
+            final long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                final V value = find(keys, sessions, values, address, hash);
+                if (lock.validate(stamp)) {
+                    return value;
+                }
+            }
+            final long readStamp = lock.readLock();
+            try {
+                return find(keys, sessions, values, address, hash);
+            } finally {
+                lock.unlockRead(readStamp);
+            }
+        }
+
+        /**
+         * probe a table for an address. The arrays may be changed by a writer while
+         * an optimistic read probes them, so the probe never runs further than the
+         * table and never indexes past the smallest array.
+         *
+         * @return the connection, or null if there is none
+         */
+        @SuppressWarnings("unchecked")
+        private static <V> V find(final int[] keys, final long[] sessions, final Object[] values,
+                final int address, final int hash) {
+            final int capacity = Math.min(keys.length, Math.min(sessions.length, values.length));
+            final int mask = capacity - 1;
+            for (int probes = 0, i = hash & mask; probes < capacity; probes++, i = (i + 1) & mask) {
+                if (sessions[i] == 0) {
+                    return null;
+                }
+                if (keys[i] == address) {
+                    return (V) values[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * add or replace the connection of an address
+         */
+        void put(final int address, final int hash, final long session, final V value) {
+            final long stamp = lock.writeLock();
+            try {
+                if ((size + 1) * 4 > keys.length * LOAD_QUARTERS) {
+                    grow();
+                }
+                final int mask = keys.length - 1;
+                int i = hash & mask;
+                while (sessions[i] != 0 && keys[i] != address) {
+                    i = (i + 1) & mask;
+                }
+                if (sessions[i] == 0) {
+                    size++;
+                }
+                keys[i] = address;
+                sessions[i] = session;
+                values[i] = value;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * remove the connection of an address if it still has a session handle
+         *
+         * @return true if it was removed, false otherwise
+         */
+        boolean remove(final int address, final int hash, final long session) {
+            final long stamp = lock.writeLock();
+            try {
+                final int mask = keys.length - 1;
+                int i = hash & mask;
+                while (sessions[i] != 0) {
+                    if (keys[i] == address) {
+                        if (sessions[i] != session) {
+                            return false;
+                        }
+                        delete(i);
+                        size--;
+                        return true;
+                    }
+                    i = (i + 1) & mask;
+                }
+                return false;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * free a slot and shift back the entries of the probe run after it, so
+         * every entry stays reachable from its home slot
+         *
+         * @param slot the slot to free
+         */
+        private void delete(final int slot) {
+            final int mask = keys.length - 1;
+            int free = slot;
+            int i = slot;
+            while (true) {
+                i = (i + 1) & mask;
+                if (sessions[i] == 0) {
+                    break;
+                }
+                final int home = slotHash(keys[i]) & mask;
+                // Move the entry if its home slot is not between the free slot and it
+                if (((i - home) & mask) >= ((i - free) & mask)) {
+                    keys[free] = keys[i];
+                    sessions[free] = sessions[i];
+                    values[free] = values[i];
+                    free = i;
+                }
+            }
+            keys[free] = 0;
+            sessions[free] = 0;
+            values[free] = null;
+        }
+
+        /**
+         * double the amount of slots and insert every entry again
+         */
+        private void grow() {
+            final int[] oldKeys = keys;
+            final long[] oldSessions = sessions;
+            final Object[] oldValues = values;
+            final int capacity = oldKeys.length * 2;
+            final int mask = capacity - 1;
+            final int[] newKeys = new int[capacity];
+            final long[] newSessions = new long[capacity];
+            final Object[] newValues = new Object[capacity];
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldSessions[j] == 0) {
+                    continue;
+                }
+                int i = slotHash(oldKeys[j]) & mask;
+                while (newSessions[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                newKeys[i] = oldKeys[j];
+                newSessions[i] = oldSessions[j];
+                newValues[i] = oldValues[j];
+            }
+            keys = newKeys;
+            sessions = newSessions;
+            values = newValues;
+        }
+
+        /**
+         * add every connection of the segment to a list
+         *
+         * @param list the list
+         */
+        @SuppressWarnings("unchecked")
+        void values(final List<V> list) {
+            final long stamp = lock.readLock();
+            try {
+                for (int i = 0; i < keys.length; i++) {
+                    if (sessions[i] != 0) {
+                        list.add((V) values[i]);
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * remove every entry and shrink the segment back to its initial size
+         */
+        void clear() {
+            final long stamp = lock.writeLock();
+            try {
+                keys = new int[INITIAL_CAPACITY];
+                sessions = new long[INITIAL_CAPACITY];
+                values = new Object[INITIAL_CAPACITY];
+                size = 0;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+}
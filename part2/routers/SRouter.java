@@ -1,13 +1,23 @@
 package part2.routers;
 
 import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
 
+import javax.management.ObjectName;
+
+import part2.concurrent.Execution;
 import part2.exceptions.NotConnectedToRouterException;
 import part2.exceptions.RouterTypeException;
+import part2.metrics.Metrics;
 
 /**
  * This represents a router which connects to another router. Each router will
@@ -17,20 +27,38 @@ import part2.exceptions.RouterTypeException;
  * "client" type: requests a connection to the other router
  * Other than initial connection between routers, they are identical in the way
  * the handle clusters of nodes.
+ *
+ * A third type, "mesh", links to any amount of other routers: it listens for
+ * routers and connects to routers at the same time, and finds the nodes of
+ * every router of the mesh through the routes its neighbors tell it. A mesh
+ * router is given its address and ports, so many of them can run on one host.
+ *
+ * A "server" router listens on the address of the router.address system
+ * property, or else on the first site local IPv4 address of the host, so it
+ * does not need to reach the internet to find its address. The router.port
+ * and router.nodePort properties set the ports of the "server" and "client"
+ * routers.
+ *
+ * The metrics of every router are registered as the MBean
+ * part2:type=Router,name="NAME OF THE ROUTER".
  */
 public class SRouter {
 
     // Static attributes
-    public static int unusedPort = 5555; // port that is currently not in use
+    public static int unusedPort = Integer.getInteger("router.port", 5555); // port that is currently not in use
+    // Engine that serves the nodes: "threads" for a thread per node or "nio" for event loops
+    private static final String ENGINE = System.getProperty("router.engine", "threads");
+    // Amount of event loops of the "nio" engine
+    private static final int EVENT_LOOPS = Integer.getInteger("router.eventLoops",
+            Runtime.getRuntime().availableProcessors());
 
     // General attributes for this router
-    private final Object[][] routingTable = new Object[100][3]; // Routing table that consists of hosts that are
-                                                                // connected to this router
-    private int indext = 0; // a connected host's position in the routing table
+    private final RouterCore core = new RouterCore(); // routing table of the hosts connected to this router
     private String address; // router's IP address
     private String routerType = "server"; // type of the router: ("server" or "client")
     private String routerName = "S-ROUTER 1"; // name of the router
-    private boolean listeningForNodes = false; // status of the router listening for nodes
+    private volatile boolean listeningForNodes = false; // status of the router listening for nodes
+    private ObjectName metricsName = null; // name the MBean of the metrics is registered under
 
     // Attributes for communication with another router
     private boolean connectedToRouter = false; // status on if the router is connected to another router
@@ -39,9 +67,11 @@ public class SRouter {
     private Socket routerClientSocket; // Socket used to communicate with another router
 
     // Attrributes for communication with a node
-    private final int nodePort = 5557; // port number used to communicate with a node
+    private int nodePort = Integer.getInteger("router.nodePort", 5557); // port number used to communicate with a node
     private ServerSocket routerSocket; // ServerSocket used to listen for connections from a node
     private Socket nodeSocket; // Socket used to communicate with a node
+    private ServerSocketChannel routerChannel; // channel used to listen for nodes with the "nio" engine
+    private RouterEventLoop[] loops; // event loops of the "nio" engine
 
     /*
      * This creates a router of type "server" which listens for incoming connection
@@ -61,13 +91,12 @@ public class SRouter {
             routerServerSocket.setReuseAddress(true);
 
             // Set the address of tjis router
-            final Socket socket = new Socket();
-            socket.connect(new InetSocketAddress("google.com", 80));
-            address = socket.getLocalAddress().getHostAddress();
-            socket.close();
+            address = findAddress();
 
             // Bind the ServerSocket to this router's address
             routerServerSocket.bind(new InetSocketAddress(address, port));
+            core.getRelay().setAddress(routerServerSocket.getInetAddress());
+            metricsName = Metrics.register("Router", routerName, core.getMetrics());
 
         } catch (final IOException e) {
             System.err.println("Could not listen on port: " + port + ".");
@@ -78,6 +107,45 @@ public class SRouter {
         }
     }
 
+    /**
+     * create a router of type "mesh" that listens for routers and nodes on the
+     * given address. Nothing is looked up, so the router also runs without a
+     * network, on loopback addresses.
+     *
+     * @param routerName the name of the router
+     * @param address    the IP address the router listens on
+     * @param routerPort the port to listen for routers on, 0 for any free port
+     * @param nodePort   the port to listen for nodes on, 0 for any free port
+     * @throws IOException if the router cannot listen on the address
+     */
+    public SRouter(final String routerName, final String address, final int routerPort, final int nodePort)
+            throws IOException {
+        this.routerType = "mesh";
+        this.routerName = routerName;
+        this.address = address;
+        // Routers of a mesh come and go, the others keep running
+        core.setExitWithRouter(false);
+
+        final InetAddress bindAddress = InetAddress.getByName(address);
+        routerServerSocket = new ServerSocket();
+        routerServerSocket.setReuseAddress(true);
+        routerServerSocket.bind(new InetSocketAddress(bindAddress, routerPort));
+        port = routerServerSocket.getLocalPort();
+        core.getRelay().setAddress(bindAddress);
+
+        // The nodes are listened for right away, so the port is known before
+        // listenForNodes is called
+        if (ENGINE.equals("nio")) {
+            routerChannel = ServerSocketChannel.open();
+            routerChannel.bind(new InetSocketAddress(bindAddress, nodePort), 1024);
+            this.nodePort = ((InetSocketAddress) routerChannel.getLocalAddress()).getPort();
+        } else {
+            routerSocket = new ServerSocket(nodePort, 1024, bindAddress);
+            this.nodePort = routerSocket.getLocalPort();
+        }
+        metricsName = Metrics.register("Router", routerName, core.getMetrics());
+    }
+
     /**
      * create a router of a given type.
      * 
@@ -105,12 +173,10 @@ public class SRouter {
                 routerServerSocket.setReuseAddress(true);
 
                 // Set the address of the current router
-                final Socket socket = new Socket();
-                socket.connect(new InetSocketAddress("google.com", 80));
-                address = socket.getLocalAddress().getHostAddress();
-                socket.close();
+                address = findAddress();
 
                 routerServerSocket.bind(new InetSocketAddress(address, port));
+                core.getRelay().setAddress(routerServerSocket.getInetAddress());
 
             } catch (final IOException e) {
                 System.err.println("Could not listen on port: " + port + ".");
@@ -128,9 +194,36 @@ public class SRouter {
         } else {
             throw new RouterTypeException("A routerType can only be equal to 'server' or 'client'.");
         }
+        metricsName = Metrics.register("Router", routerName, core.getMetrics());
 
     }
 
+    /**
+     * find the address a "server" router listens on: the router.address system
+     * property, or the first site local IPv4 address of an interface that is up,
+     * or the loopback address if the host has none
+     *
+     * @return the string representation of the address
+     * @throws IOException if the interfaces of the host cannot be listed
+     */
+    private static String findAddress() throws IOException {
+        final String configured = System.getProperty("router.address");
+        if (configured != null) {
+            return configured;
+        }
+        for (final NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                continue;
+            }
+            for (final InetAddress candidate : Collections.list(networkInterface.getInetAddresses())) {
+                if (candidate instanceof Inet4Address && candidate.isSiteLocalAddress()) {
+                    return candidate.getHostAddress();
+                }
+            }
+        }
+        return InetAddress.getLoopbackAddress().getHostAddress();
+    }
+
     /**
      * listen for and accept an incoming connection from another router
      * 
@@ -149,10 +242,7 @@ public class SRouter {
 
         try {
             routerClientSocket = routerServerSocket.accept();
-            final ServerThread thread = new ServerThread(routingTable, routerClientSocket, indext,
-                    "Server router to client router");
-            thread.start();
-            indext++;
+            Execution.execute(new ServerThread(core, routerClientSocket, "Server router to client router", true));
             System.out.println(
                     "\n==========================================\nROUTER 1: The routers are connected!\n==========================================\n");
             connectedToRouter = true;
@@ -166,6 +256,58 @@ public class SRouter {
         }
     }
 
+    /**
+     * accept connections from other routers of the mesh for as long as this
+     * router runs. The connections are accepted by a task of their own, so this
+     * returns right away.
+     *
+     * @throws RouterTypeException if routerType does not equal "mesh"
+     */
+    public void listenForRouters() throws RouterTypeException {
+        if (!routerType.equals("mesh")) {
+            throw new RouterTypeException("This method requires routerType to be 'mesh'.");
+        }
+        System.out.println("\n" + routerName + " is listening for routers on " + address + ":" + port + "!");
+        Execution.execute(() -> {
+            try {
+                while (true) {
+                    final Socket socket = routerServerSocket.accept();
+                    Execution.execute(new ServerThread(core, socket, "Router to " + routerName, true));
+                    System.out.println(routerName + ": A router connected to this router!");
+                }
+            } catch (final IOException e) {
+                // The router was closed
+            }
+        });
+    }
+
+    /**
+     * link this router to another router of the mesh
+     *
+     * @param remoteIP   a string representation of the remote router's IP address
+     * @param remotePort the port the remote router listens for routers on
+     * @throws RouterTypeException if routerType does not equal "mesh"
+     * @throws IOException         if the routers cannot connect
+     */
+    public void connectToRouter(final String remoteIP, final int remotePort) throws RouterTypeException, IOException {
+        if (!routerType.equals("mesh")) {
+            throw new RouterTypeException("This method can only be called on a router with a routerType 'mesh'");
+        }
+        final Socket socket = new Socket();
+        try {
+            socket.bind(new InetSocketAddress(address, 0));
+            socket.connect(new InetSocketAddress(remoteIP, remotePort));
+        } catch (final IOException e) {
+            core.getMetrics().failedConnect();
+            socket.close();
+            throw e;
+        }
+        Execution.execute(new ServerThread(core, socket, routerName + " to router at " + remoteIP + ":" + remotePort,
+                true));
+        System.out.println(routerName + ": This router at " + address + " connected to the router at " + remoteIP
+                + ":" + remotePort);
+    }
+
     /**
      * connect a router to another router that is listening for incoming connections
      * from routers
@@ -179,18 +321,17 @@ public class SRouter {
                     "This method can only be called on a router with a routerType 'client'");
         }
 
-        final int remotePort = 5555;
+        final int remotePort = Integer.getInteger("router.port", 5555);
 
         try {
             routerClientSocket = new Socket(remoteIP, remotePort);
             if (routerClientSocket.isConnected()) {
 
                 address = routerClientSocket.getLocalAddress().getHostAddress();
+                core.getRelay().setAddress(routerClientSocket.getLocalAddress());
 
-                final ServerThread thread = new ServerThread(routingTable, routerClientSocket, indext,
-                        "Client router to server router");
-                thread.start();
-                indext++;
+                Execution.execute(new ServerThread(core, routerClientSocket, "Client router to server router",
+                        true));
 
                 System.out.println("ROUTER 2: The routers are connected!\n This router at " + address
                         + " connected to the router at " + remoteIP + ":" + remotePort);
@@ -203,6 +344,7 @@ public class SRouter {
             System.err.println("ROUTER 2: Unknown host exception occurred!");
             System.exit(1);
         } catch (final IOException e) {
+            core.getMetrics().failedConnect();
             System.err.println("ROUTER 2: Client/Server failed to connect!");
             System.exit(1);
         } catch (final AssertionError e) {
@@ -212,59 +354,180 @@ public class SRouter {
     }
 
     /**
-     * listen for and accept connections from nodes to connect to this router
+     * listen for and accept connections from nodes to connect to this router.
+     * The engine that serves the nodes is chosen with the router.engine system
+     * property.
      * 
      * @throws NotConnectedToRouterException if this router hasn't connected to
      *                                       another router
      */
     public void listenForNodes() throws NotConnectedToRouterException {
-        if (this.connectedToRouter == false) {
+        if (this.connectedToRouter == false && !routerType.equals("mesh")) {
             throw new NotConnectedToRouterException(
                     "The router must be connected to another router before it can listen for nodes.");
         }
         listeningForNodes = true;
         // Create the socket for nodes to connect to
         try {
+            if (ENGINE.equals("nio")) {
+                listenOnEventLoops();
+            } else {
+                listenOnThreads();
+            }
+        } catch (final IOException e) {
+            if (listeningForNodes) {
+                System.err.println("An IOException occurred!");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * accept nodes and serve every node on its own ServerThread task, which runs
+     * on a platform or a virtual thread depending on the execution.mode system
+     * property
+     * 
+     * @throws IOException if the socket cannot listen or accept
+     */
+    private void listenOnThreads() throws IOException {
+        if (routerSocket == null) {
             routerSocket = new ServerSocket(nodePort);
-            while (listeningForNodes) {
-                System.out.println("\n" + routerName + " is listening for nodes on port " + nodePort + "!");
-                nodeSocket = routerSocket.accept();
-                final ServerThread thread = new ServerThread(routingTable, nodeSocket, indext, "Node to " + routerName);
-                thread.start();
-                indext++;
-                System.out.println("\n\n" + routerName + ": A node connected to this router!");
+        }
+        while (listeningForNodes) {
+            System.out.println("\n" + routerName + " is listening for nodes on port " + nodePort + "!");
+            nodeSocket = routerSocket.accept();
+            Execution.execute(new ServerThread(core, nodeSocket, "Node to " + routerName, false));
+            System.out.println("\n\n" + routerName + ": A node connected to this router!");
+        }
+    }
 
-            }
+    /**
+     * accept nodes and spread them over a fixed set of event loops
+     * 
+     * @throws IOException if the channel cannot listen or accept
+     */
+    private void listenOnEventLoops() throws IOException {
+        loops = new RouterEventLoop[EVENT_LOOPS];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new RouterEventLoop(core, routerName + " loop " + i);
+            loops[i].start();
+        }
 
-        } catch (final IOException e) {
-            System.err.println("An IOException occurred!");
-            e.printStackTrace();
+        if (routerChannel == null) {
+            routerChannel = ServerSocketChannel.open();
+            routerChannel.bind(new InetSocketAddress(nodePort), 1024);
+        }
+        System.out.println("\n" + routerName + " is listening for nodes on port " + nodePort + " with "
+                + loops.length + " event loops!");
+        int next = 0;
+        while (listeningForNodes) {
+            final SocketChannel channel = routerChannel.accept();
+            nodeSocket = channel.socket();
+            loops[next].add(channel);
+            next = (next + 1) % loops.length;
+            System.out.println("\n\n" + routerName + ": A node connected to this router!");
         }
     }
 
     /**
      * shutdown the routers
      * 
-     * @throws RouterTypeException if routerType does not equal "server"
+     * @throws RouterTypeException if routerType does not equal "server" or "mesh"
      */
     public void close() throws RouterTypeException {
-        if (!routerType.equals("server")) {
+        if (!routerType.equals("server") && !routerType.equals("mesh")) {
             throw new RouterTypeException(
-                    "This method can only be called on a router with a routerType 'server'");
+                    "This method can only be called on a router with a routerType 'server' or 'mesh'");
         }
 
+        listeningForNodes = false;
+        Metrics.unregister(metricsName);
         try {
-
-            // Close all sockets in the routing table
-            for (int i = 0; i < routingTable.length; i++) {
-                if (routingTable[i][0] != null) {
-                    ((Socket) routingTable[i][1]).close();
+            // Close all connections in the routing table
+            core.close();
+            if (loops != null) {
+                for (final RouterEventLoop loop : loops) {
+                    loop.close();
                 }
             }
-
+            if (routerChannel != null) {
+                routerChannel.close();
+            }
+            if (routerSocket != null) {
+                routerSocket.close();
+            }
+            if (routerServerSocket != null) {
+                routerServerSocket.close();
+            }
         } catch (final IOException e) {
             System.err.println("An error occurred when closing the socket.");
             e.printStackTrace();
         }
     }
+
+    /**
+     * gets the port this router listens for nodes on
+     *
+     * @return the port
+     */
+    public int getNodePort() {
+        return nodePort;
+    }
+
+    /**
+     * gets the port this router listens for other routers on
+     *
+     * @return the port
+     */
+    public int getRouterPort() {
+        return port;
+    }
+
+    /**
+     * gets the amount of nodes connected to this router
+     *
+     * @return the amount of nodes
+     */
+    public int getNodeCount() {
+        return core.size();
+    }
+
+    /**
+     * gets the amount of nodes of other routers that this router knows a route to
+     *
+     * @return the amount of routes
+     */
+    public int getRouteCount() {
+        return core.routeCount();
+    }
+
+    /**
+     * gets how far this router is from a node
+     *
+     * @param address the string representation of the node's IP address
+     * @return 0 if the node is connected to this router, the amount of routers
+     *         between this one and the node, or -1 if no route is known
+     */
+    public int getDistance(final String address) {
+        return core.distance(address);
+    }
+
+    /**
+     * gets the metrics of this router, which are also registered as an MBean
+     *
+     * @return the metrics
+     */
+    public RouterMetrics getMetrics() {
+        return core.getMetrics();
+    }
+
+    /**
+     * gets the relay that forwards the data of nodes that cannot connect to
+     * each other directly
+     *
+     * @return the relay
+     */
+    public Relay getRelay() {
+        return core.getRelay();
+    }
 }
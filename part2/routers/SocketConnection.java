@@ -0,0 +1,218 @@
+package part2.routers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import part2.concurrent.Execution;
+import part2.protocol.ControlCodec;
+import part2.protocol.ControlMessage;
+import part2.protocol.ControlStream;
+
+/**
+ * This represents a connection of a router on a blocking socket. Messages are
+ * written straight to the socket by the thread that sends them, or, for a
+ * queued connection, encoded into a queue that a writer task of the connection
+ * drains. Links between routers are queued, so two routers that send each other
+ * many messages at once never wait on each other while neither reads.
+ */
+public class SocketConnection implements Connection {
+    // First size of the queue of a queued connection, which grows as needed
+    private static final int QUEUE_SIZE = 4096;
+
+    private final Socket socket; // socket of the connection
+    private final ControlStream stream; // control messages to and from the host
+    private final String address; // address of the host
+    private final String name; // name that describes the connection
+    private volatile long session; // session handle of the connection in the routing index
+    private final boolean queued; // whether messages go through the queue
+    private final ReentrantLock queueLock = new ReentrantLock(); // guards queue and closed
+    private final Condition notEmpty = queueLock.newCondition(); // signals the writer
+    private ByteBuffer queue; // encoded messages the writer has not taken yet
+    private boolean closed = false; // whether the connection was closed
+
+    /**
+     * create a new connection on a connected socket
+     *
+     * @param socket the connected socket
+     * @param name   the name that describes the connection
+     * @param binary true to send binary frames until the host is heard, false to
+     *               send text
+     * @throws IOException if the streams of the socket cannot be opened
+     */
+    public SocketConnection(final Socket socket, final String name, final boolean binary) throws IOException {
+        this(socket, name, binary, false);
+    }
+
+    /**
+     * create a new connection on a connected socket
+     *
+     * @param socket the connected socket
+     * @param name   the name that describes the connection
+     * @param binary true to send binary frames until the host is heard, false to
+     *               send text
+     * @param queued true to send through a queue and a writer task, false to
+     *               write on the thread that sends
+     * @throws IOException if the streams of the socket cannot be opened
+     */
+    public SocketConnection(final Socket socket, final String name, final boolean binary, final boolean queued)
+            throws IOException {
+        this.socket = socket;
+        this.stream = new ControlStream(socket.getInputStream(), socket.getOutputStream(), binary);
+        this.address = socket.getInetAddress().getHostAddress();
+        this.name = name;
+        this.queued = queued;
+        if (queued) {
+            queue = ByteBuffer.allocate(QUEUE_SIZE);
+            final OutputStream out = socket.getOutputStream();
+            Execution.execute(() -> write(out));
+        }
+    }
+
+    @Override
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getSession() {
+        return session;
+    }
+
+    @Override
+    public void setSession(final long session) {
+        this.session = session;
+    }
+
+    @Override
+    public void send(final ControlMessage message) {
+        if (queued) {
+            enqueue(message);
+            return;
+        }
+        try {
+            stream.send(message);
+        } catch (final IOException e) {
+            // The reading side of the connection sees the failure and closes it
+            System.err.println("Sending to " + name + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * encode a message into the queue for the writer
+     *
+     * @param message the message
+     */
+    private void enqueue(final ControlMessage message) {
+        queueLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (queue.remaining() < ControlCodec.MAX_MESSAGE) {
+                final ByteBuffer grown = ByteBuffer.allocate(queue.capacity() * 2);
+                queue.flip();
+                grown.put(queue);
+                queue = grown;
+            }
+            if (stream.isBinary()) {
+                ControlCodec.encode(message, queue);
+            } else {
+                ControlCodec.encodeText(message, queue);
+            }
+            notEmpty.signal();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * the writer task of a queued connection: write whatever was queued, many
+     * messages at a time, until the connection is closed
+     *
+     * @param out the stream to the host
+     */
+    private void write(final OutputStream out) {
+        ByteBuffer spare = ByteBuffer.allocate(QUEUE_SIZE);
+        try {
+            while (true) {
+                final ByteBuffer taken;
+                queueLock.lock();
+                try {
+                    while (queue.position() == 0 && !closed) {
+                        notEmpty.await();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    // Swap the buffers so senders fill the other one meanwhile
+                    taken = queue;
+                    queue = spare.capacity() >= taken.capacity() ? spare : ByteBuffer.allocate(taken.capacity());
+                } finally {
+                    queueLock.unlock();
+                }
+                out.write(taken.array(), 0, taken.position());
+                out.flush();
+                taken.clear();
+                spare = taken;
+            }
+        } catch (final IOException e) {
+            // The reading side of the connection sees the failure and closes it
+            System.err.println("Sending to " + name + " failed: " + e.getMessage());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isBinary() {
+        return stream.isBinary();
+    }
+
+    @Override
+    public void close() {
+        queueLock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            queueLock.unlock();
+        }
+        try {
+            socket.close();
+        } catch (final IOException e) {
+            System.out.println("Socket is already closed");
+        }
+    }
+
+    /**
+     * gets the control messages to and from the host
+     *
+     * @return the control stream
+     */
+    public ControlStream getStream() {
+        return stream;
+    }
+
+    /**
+     * gets the socket of the connection
+     *
+     * @return the socket
+     */
+    public Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + socket;
+    }
+}
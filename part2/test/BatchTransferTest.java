@@ -0,0 +1,122 @@
+package part2.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import part2.transfer.BatchReceiver;
+import part2.transfer.BatchSender;
+import part2.transfer.TransferHeader;
+import part2.transfer.TransferStats;
+
+public class BatchTransferTest {
+
+    @Test
+    // Test that every file of a directory arrives under its relative path
+    public void testDirectory() throws Exception {
+        final Path source = Files.createTempDirectory("batch-");
+        final byte[] large = new byte[300 * 1024];
+        new Random(1).nextBytes(large);
+        Files.createDirectories(source.resolve("a/b"));
+        Files.write(source.resolve("top.txt"), "top".getBytes());
+        Files.write(source.resolve("a/empty.txt"), new byte[0]);
+        Files.write(source.resolve("a/b/large.bin"), large);
+
+        final String remote = "batch-test-" + System.nanoTime();
+        try {
+            final TransferStats stats = transfer(source.toString(), remote);
+            assertTrue(stats.isVerified());
+            assertEquals(3 + large.length, stats.getBytes());
+
+            final Path copy = new File(remote).toPath().resolve(source.getFileName());
+            assertArrayEquals("top".getBytes(), Files.readAllBytes(copy.resolve("top.txt")));
+            assertEquals(0, Files.size(copy.resolve("a/empty.txt")));
+            assertArrayEquals(large, Files.readAllBytes(copy.resolve("a/b/large.bin")));
+        } finally {
+            delete(new File(remote).toPath());
+            delete(source);
+        }
+    }
+
+    @Test
+    // Test that a glob only sends the files it matches
+    public void testGlob() throws Exception {
+        final Path source = Files.createTempDirectory("batch-");
+        Files.write(source.resolve("one.txt"), "1".getBytes());
+        Files.write(source.resolve("two.txt"), "22".getBytes());
+        Files.write(source.resolve("three.log"), "333".getBytes());
+
+        final String remote = "batch-test-" + System.nanoTime();
+        try {
+            final TransferStats stats = transfer(source + "/*.txt", remote);
+            assertEquals(3, stats.getBytes());
+            assertTrue(new File(remote, "one.txt").isFile());
+            assertTrue(new File(remote, "two.txt").isFile());
+            assertFalse(new File(remote, "three.log").exists());
+        } finally {
+            delete(new File(remote).toPath());
+            delete(source);
+        }
+    }
+
+    /**
+     * send a batch to a BatchReceiver over loopback
+     *
+     * @param pattern the directory or glob to send
+     * @param remote  the directory the receiver saves the files below
+     * @return the statistics of the receiver
+     */
+    private static TransferStats transfer(final String pattern, final String remote) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            final TransferStats[] received = new TransferStats[1];
+            final Thread receiver = new Thread(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                    TransferHeader.readStart(in);
+                    received[0] = new BatchReceiver().receive(in, channel,
+                            new DataOutputStream(channel.socket().getOutputStream()));
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            receiver.start();
+
+            new BatchSender((InetSocketAddress) server.getLocalAddress()).send(pattern, remote);
+            receiver.join();
+            return received[0];
+        }
+    }
+
+    /**
+     * delete a directory and everything below it
+     *
+     * @param path the directory
+     */
+    private static void delete(final Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package part2.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import part2.transfer.BlockCompressor;
+import part2.transfer.CompressedReceiver;
+import part2.transfer.CompressedSender;
+import part2.transfer.TransferHeader;
+import part2.transfer.TransferStats;
+
+public class CompressedTransferTest {
+
+    @Test(timeout = 30000)
+    // Test that compressible blocks are deflated on the wire and the saved file
+    // matches the original
+    public void testCompressibleRoundTrip() throws Exception {
+        final StringBuilder text = new StringBuilder();
+        final Random random = new Random(3);
+        while (text.length() < 3 * CompressedSender.BLOCK_SIZE + 77) {
+            text.append("line ").append(random.nextInt(1000)).append(" of a log that repeats itself\n");
+        }
+        final byte[] data = text.toString().getBytes(StandardCharsets.US_ASCII);
+
+        final TransferStats[] stats = transfer(data);
+        assertTrue(stats[0].getCompressionRatio() > 1);
+        assertTrue(stats[1].getCompressionRatio() > 1);
+        assertEquals(stats[0].getWireBytes(), stats[1].getWireBytes());
+        assertTrue(stats[1].isVerified());
+    }
+
+    @Test(timeout = 30000)
+    // Test that random blocks are skipped by the entropy estimate and sent
+    // stored
+    public void testRandomBlocksAreStored() throws Exception {
+        final byte[] data = new byte[2 * CompressedSender.BLOCK_SIZE + 5];
+        new Random(9).nextBytes(data);
+        assertTrue(BlockCompressor.sampleEntropy(data, CompressedSender.BLOCK_SIZE) > 7.5);
+        assertEquals(-1, BlockCompressor.compress(data, CompressedSender.BLOCK_SIZE,
+                new byte[CompressedSender.BLOCK_SIZE]));
+
+        final TransferStats[] stats = transfer(data);
+        assertEquals(data.length, stats[0].getWireBytes());
+        assertEquals(data.length, stats[1].getWireBytes());
+        assertTrue(stats[1].isVerified());
+    }
+
+    /**
+     * send data with a CompressedSender to a CompressedReceiver over loopback and
+     * check that the saved file matches it
+     *
+     * @param data the contents of the file
+     * @return the statistics of the sender and of the receiver
+     */
+    private TransferStats[] transfer(final byte[] data) throws Exception {
+        final File source = File.createTempFile("compressed-", ".bin");
+        source.deleteOnExit();
+        Files.write(source.toPath(), data);
+        final File target = new File(source.getPath() + ".copy");
+        target.deleteOnExit();
+
+        final AtomicReference<TransferStats> received = new AtomicReference<>();
+        final TransferStats sent;
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            final Thread receiver = new Thread(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    TransferHeader.readStart(new DataInputStream(channel.socket().getInputStream()));
+                    received.set(new CompressedReceiver().receive(channel.socket().getInputStream(),
+                            new DataOutputStream(channel.socket().getOutputStream())));
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            receiver.start();
+
+            sent = new CompressedSender((InetSocketAddress) server.getLocalAddress(), ForkJoinPool.commonPool())
+                    .send(source.getPath(), target.getPath());
+            receiver.join();
+        }
+
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        return new TransferStats[] { sent, received.get() };
+    }
+}
@@ -0,0 +1,228 @@
+package part2.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import part2.protocol.ControlCodec;
+import part2.protocol.ControlMessage;
+import part2.protocol.ControlStream;
+import part2.routers.RoutingIndex;
+
+public class ControlCodecTest {
+
+    @Test
+    // Test that every field of a message survives a binary frame
+    public void testBinary() throws Exception {
+        final ControlMessage message = new ControlMessage().set(ControlMessage.ROUTER_RESPONSE,
+                ControlMessage.FLAG_YES, 0x7FFF0001, RoutingIndex.pack("10.0.0.1"), RoutingIndex.pack("192.168.255.9"));
+        final ByteBuffer buffer = ByteBuffer.allocate(ControlCodec.MAX_MESSAGE);
+        ControlCodec.encode(message, buffer);
+        assertEquals(ControlCodec.HEADER_LENGTH + ControlCodec.PAYLOAD_LENGTH, buffer.position());
+        buffer.flip();
+
+        final ControlMessage decoded = new ControlMessage();
+        assertTrue(ControlCodec.decode(buffer, decoded));
+        assertFalse(buffer.hasRemaining());
+        assertEquals(ControlMessage.ROUTER_RESPONSE, decoded.getType());
+        assertTrue(decoded.isYes());
+        assertEquals(0x7FFF0001, decoded.getRequestId());
+        assertEquals("router:response:10.0.0.1:192.168.255.9:YES", decoded.toString());
+    }
+
+    @Test
+    // Test that a frame is only decoded once all of it arrived, and that a
+    // longer payload of a later version is skipped
+    public void testPartialFrame() throws Exception {
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+        ControlCodec.encode(new ControlMessage().set(ControlMessage.NODE_REQUEST, 0, 1, 1, 2), buffer);
+        final int length = buffer.position();
+        final ControlMessage decoded = new ControlMessage();
+        for (int i = 0; i < length; i++) {
+            final ByteBuffer part = ByteBuffer.wrap(buffer.array(), 0, i);
+            assertFalse(ControlCodec.decode(part, decoded));
+            assertEquals(0, part.position());
+        }
+
+        // Announce 4 more bytes of payload
+        buffer.putInt(8, ControlCodec.PAYLOAD_LENGTH + 4);
+        buffer.putInt(0xCAFE);
+        ControlCodec.encode(new ControlMessage().set(ControlMessage.NODE_DISCONNECT, 0, 0, 3, 0), buffer);
+        buffer.flip();
+        assertTrue(ControlCodec.decode(buffer, decoded));
+        assertEquals(ControlMessage.NODE_REQUEST, decoded.getType());
+        assertEquals(2, decoded.getDestination());
+        assertTrue(ControlCodec.decode(buffer, decoded));
+        assertEquals(ControlMessage.NODE_DISCONNECT, decoded.getType());
+        assertEquals(3, decoded.getOrigin());
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    // Test that frames with a bad version, type or length are refused
+    public void testBadFrames() throws Exception {
+        final ByteBuffer frame = ByteBuffer.allocate(ControlCodec.MAX_MESSAGE);
+        ControlCodec.encode(new ControlMessage().set(ControlMessage.NODE_REQUEST, 0, 0, 1, 2), frame);
+        frame.flip();
+
+        assertRefused(frame, 0, (byte) 0x82);
+        assertRefused(frame, 1, (byte) 0);
+        assertRefused(frame, 1, (byte) 99);
+        final ByteBuffer shortPayload = copy(frame);
+        shortPayload.putInt(8, 4);
+        assertRefused(shortPayload);
+        final ByteBuffer longPayload = copy(frame);
+        longPayload.putInt(8, ControlCodec.MAX_PAYLOAD + 1);
+        assertRefused(longPayload);
+    }
+
+    @Test
+    // Test that the lines of the original text protocol are understood
+    public void testLegacyText() throws Exception {
+        final ControlMessage message = new ControlMessage();
+        decodeText("node:request:10.0.0.2:10.1.0.3", message);
+        assertEquals(ControlMessage.NODE_REQUEST, message.getType());
+        assertEquals(RoutingIndex.pack("10.0.0.2"), message.getOrigin());
+        assertEquals(RoutingIndex.pack("10.1.0.3"), message.getDestination());
+
+        decodeText("router:response:10.0.0.2:10.1.0.3:NO\r", message);
+        assertEquals(ControlMessage.ROUTER_RESPONSE, message.getType());
+        assertFalse(message.isYes());
+
+        // Old nodes send the text of their router socket after the address
+        decodeText("node:disconnect:10.0.0.2:Socket[addr=/10.0.0.1,port=5555,localport=40000]", message);
+        assertEquals(ControlMessage.NODE_DISCONNECT, message.getType());
+        assertEquals(RoutingIndex.pack("10.0.0.2"), message.getOrigin());
+
+        // A peer that is not an IPv4 address is looked up and not found
+        decodeText("node:request:10.0.0.2:example.com", message);
+        assertEquals(0, message.getDestination());
+
+        decodeText("YES", message);
+        assertEquals(ControlMessage.NODE_RESPONSE, message.getType());
+        assertTrue(message.isYes());
+        decodeText("NO", message);
+        assertFalse(message.isYes());
+
+        for (final String line : new String[] { "", "hello", "node:request:10.0.0.2", "node:request:1.2.3:1.2.3.4",
+                "node:request:1.2.3.256:1.2.3.4", "router:response:1.2.3.4:1.2.3.4",
+                "router:response:1.2.3.4:1.2.3.4:MAYBE", "node:request:1.2.3.4:1.2.3.4:YES",
+                "relay:request:1.2.3.4:1.2.3.4", "relay:request:1.2.3.4:1.2.3.4:65536" }) {
+            try {
+                decodeText(line, message);
+                fail("The line \"" + line + "\" was accepted");
+            } catch (final ProtocolException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    // Test that text is written exactly as the original protocol wrote it
+    public void testTextEncoding() throws Exception {
+        final ControlMessage message = new ControlMessage().set(ControlMessage.ROUTER_REQUEST, 0, 0,
+                RoutingIndex.pack("10.0.0.2"), RoutingIndex.pack("255.0.10.100"));
+        assertEquals("router:request:10.0.0.2:255.0.10.100\n", encodeText(message));
+        message.setType(ControlMessage.ROUTER_RESPONSE);
+        assertEquals("router:response:10.0.0.2:255.0.10.100:NO\n", encodeText(message));
+        message.setType(ControlMessage.NODE_RESPONSE);
+        message.setFlags(ControlMessage.FLAG_YES);
+        assertEquals("YES\n", encodeText(message));
+
+        // Invalidations have a text form for logs and text routers
+        message.setType(ControlMessage.ROUTER_INVALIDATE);
+        assertEquals("router:invalidate:10.0.0.2:255.0.10.100\n", encodeText(message));
+        decodeText("node:invalidate:0.0.0.0:10.0.0.2", message);
+        assertEquals(ControlMessage.NODE_INVALIDATE, message.getType());
+
+        // Relay messages carry a port
+        message.set(ControlMessage.RELAY_REQUEST, 5558, 0, RoutingIndex.pack("10.0.0.2"),
+                RoutingIndex.pack("10.0.0.3"));
+        assertEquals("relay:request:10.0.0.2:10.0.0.3:5558\n", encodeText(message));
+        decodeText("relay:response:10.0.0.2:10.0.0.3:65535", message);
+        assertEquals(ControlMessage.RELAY_RESPONSE, message.getType());
+        assertEquals(65535, message.getFlags());
+    }
+
+    @Test
+    // Test that a stream answers in the protocol the host spoke last
+    public void testStream() throws Exception {
+        final ByteBuffer input = ByteBuffer.allocate(64);
+        ControlCodec.encode(new ControlMessage().set(ControlMessage.NODE_REQUEST, 0, 5, 1, 2), input);
+        input.put("node:request:0.0.0.1:0.0.0.2\n".getBytes(StandardCharsets.US_ASCII));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final ControlStream stream = new ControlStream(
+                new ByteArrayInputStream(input.array(), 0, input.position()), output, false);
+        final ControlMessage message = new ControlMessage();
+
+        assertTrue(stream.receive(message));
+        assertTrue(stream.isBinary());
+        assertEquals(5, message.getRequestId());
+        stream.send(message);
+        assertEquals(ControlCodec.HEADER_LENGTH + ControlCodec.PAYLOAD_LENGTH, output.size());
+
+        assertTrue(stream.receive(message));
+        assertFalse(stream.isBinary());
+        output.reset();
+        stream.send(message);
+        assertEquals("node:request:0.0.0.1:0.0.0.2\n", output.toString("US-ASCII"));
+        assertFalse(stream.receive(message));
+    }
+
+    /**
+     * decode a line of text
+     */
+    private static void decodeText(final String line, final ControlMessage message) throws ProtocolException {
+        final byte[] data = ("##" + line).getBytes(StandardCharsets.US_ASCII);
+        ControlCodec.decodeText(data, 2, data.length - 2, message);
+    }
+
+    /**
+     * encode a message as text
+     */
+    private static String encodeText(final ControlMessage message) {
+        final ByteBuffer buffer = ByteBuffer.allocate(ControlCodec.MAX_MESSAGE);
+        ControlCodec.encodeText(message, buffer);
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * check that a frame with one byte changed is refused
+     */
+    private static void assertRefused(final ByteBuffer frame, final int index, final byte value) {
+        final ByteBuffer changed = copy(frame);
+        changed.put(index, value);
+        assertRefused(changed);
+    }
+
+    /**
+     * check that a frame is refused
+     */
+    private static void assertRefused(final ByteBuffer frame) {
+        try {
+            ControlCodec.decode(frame, new ControlMessage());
+            fail("A bad frame was accepted");
+        } catch (final ProtocolException e) {
+            // expected
+        }
+    }
+
+    /**
+     * copy a buffer
+     */
+    private static ByteBuffer copy(final ByteBuffer buffer) {
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate());
+        copy.flip();
+        return copy;
+    }
+}
@@ -0,0 +1,126 @@
+package part2.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+
+import part2.transfer.ChunkList;
+import part2.transfer.ChunkStore;
+import part2.transfer.DedupReceiver;
+import part2.transfer.DedupSender;
+import part2.transfer.TransferHeader;
+import part2.transfer.TransferStats;
+
+public class DedupTransferTest {
+
+    @Test
+    // Test that the store evicts the least recently used chunk and is loaded again
+    // from its log
+    public void testStoreEvictionAndReload() throws Exception {
+        final File directory = Files.createTempDirectory("chunks-").toFile();
+        directory.deleteOnExit();
+        final File file = File.createTempFile("chunks-", ".bin");
+        file.deleteOnExit();
+        final byte[] data = new byte[4 * ChunkList.MAX_CHUNK];
+        new Random(7).nextBytes(data);
+        Files.write(file.toPath(), data);
+
+        final ChunkList chunks = ChunkList.scan(file);
+        assertTrue(chunks.getCount() >= 3);
+        final int last = chunks.getCount() - 1;
+
+        // Keep room for all chunks but one so the first chunk is evicted
+        final ChunkStore store = new ChunkStore(directory, last);
+        store.addFile(file, chunks);
+        assertEquals(last, store.size());
+        assertNull(store.find(chunks.getHashes(), 0));
+        assertNotNull(store.find(chunks.getHashes(), last * ChunkList.HASH_LENGTH));
+        store.close();
+
+        final ChunkStore reloaded = new ChunkStore(directory, last);
+        assertEquals(last, reloaded.size());
+        final ChunkStore.Location location = reloaded.find(chunks.getHashes(), last * ChunkList.HASH_LENGTH);
+        assertEquals(file.getAbsolutePath(), location.getPath());
+        assertEquals(chunks.getOffset(last), location.getOffset());
+        reloaded.close();
+    }
+
+    @Test
+    // Test that a file sharing most of its content with a file received earlier
+    // only sends the chunks that differ
+    public void testSharedChunksAreSkipped() throws Exception {
+        final File directory = Files.createTempDirectory("chunks-").toFile();
+        directory.deleteOnExit();
+        final ChunkStore store = new ChunkStore(directory, 1024);
+
+        final byte[] first = new byte[8 * 1024 * 1024];
+        new Random(9).nextBytes(first);
+
+        // The second file has new bytes at the start and in the middle
+        final byte[] second = new byte[first.length + 1000];
+        System.arraycopy(first, 0, second, 1000, first.length);
+        for (int i = 4 * 1024 * 1024; i < 4 * 1024 * 1024 + 3000; i++) {
+            second[i] ^= 0x33;
+        }
+
+        final TransferStats initial = transfer(store, first);
+        assertTrue(initial.getWireBytes() > first.length);
+        final TransferStats shared = transfer(store, second);
+        assertTrue(shared.getWireBytes() < second.length / 4);
+        store.close();
+    }
+
+    /**
+     * send data as a file to a DedupReceiver over loopback
+     *
+     * @param store the store of the receiver
+     * @param data  the content of the file
+     * @return the statistics of the sender
+     */
+    private static TransferStats transfer(final ChunkStore store, final byte[] data) throws Exception {
+        final File source = File.createTempFile("dedup-", ".bin");
+        source.deleteOnExit();
+        Files.write(source.toPath(), data);
+        final File target = File.createTempFile("dedup-", ".copy");
+        target.deleteOnExit();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            final TransferStats[] received = new TransferStats[1];
+            final Thread receiver = new Thread(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                    TransferHeader.readStart(in);
+                    received[0] = new DedupReceiver(store).receive(in,
+                            new DataOutputStream(channel.socket().getOutputStream()));
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            receiver.start();
+
+            final TransferStats stats = new DedupSender((InetSocketAddress) server.getLocalAddress())
+                    .send(source.getPath(), target.getPath());
+            receiver.join();
+
+            assertTrue(received[0].isVerified());
+            assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package part2.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Test;
+
+import part2.transfer.DeltaReceiver;
+import part2.transfer.DeltaSender;
+import part2.transfer.DeltaSignatures;
+import part2.transfer.TransferHeader;
+import part2.transfer.TransferStats;
+
+public class DeltaTransferTest {
+
+    @Test
+    // Test that rolling the weak checksum gives the checksum of the shifted window
+    public void testRollingChecksum() {
+        final byte[] data = new byte[10000];
+        new Random(3).nextBytes(data);
+        final int length = 2048;
+
+        int checksum = DeltaSignatures.weakChecksum(data, 0, length);
+        for (int i = 1; i + length <= data.length; i++) {
+            checksum = DeltaSignatures.roll(checksum, data[i - 1], data[i + length - 1], length);
+            assertEquals(DeltaSignatures.weakChecksum(data, i, length), checksum);
+        }
+    }
+
+    @Test
+    // Test that a file with inserted and changed bytes is rebuilt from the old copy
+    // while sending only a small part of it
+    public void testDeltaOfModifiedFile() throws Exception {
+        final byte[] old = new byte[4 * 1024 * 1024];
+        new Random(5).nextBytes(old);
+
+        // Insert bytes at the start and change a region in the middle
+        final byte[] data = new byte[old.length + 100];
+        System.arraycopy(old, 0, data, 100, old.length);
+        for (int i = 2 * 1024 * 1024; i < 2 * 1024 * 1024 + 5000; i++) {
+            data[i] ^= 0x5A;
+        }
+
+        final File source = File.createTempFile("delta-", ".bin");
+        source.deleteOnExit();
+        Files.write(source.toPath(), data);
+        final File target = new File(source.getPath() + ".copy");
+        target.deleteOnExit();
+        Files.write(target.toPath(), old);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            final TransferStats[] received = new TransferStats[1];
+            final Thread receiver = new Thread(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                    TransferHeader.readStart(in);
+                    received[0] = new DeltaReceiver().receive(in,
+                            new DataOutputStream(channel.socket().getOutputStream()));
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            receiver.start();
+
+            final TransferStats stats = new DeltaSender((InetSocketAddress) server.getLocalAddress())
+                    .send(source.getPath(), target.getPath());
+            receiver.join();
+
+            assertTrue(received[0].isVerified());
+            assertTrue(stats.getWireBytes() < data.length / 10);
+            assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        }
+    }
+
+    @Test
+    // Test that a block size larger than any sender chooses is rejected before
+    // anything is allocated for it
+    public void testOversizedBlockSize() throws Exception {
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        final DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeUTF("delta.bin");
+        headerOut.writeLong(1024);
+        headerOut.writeInt(Integer.MAX_VALUE);
+
+        final Path directory = Files.createTempDirectory("delta-");
+        try {
+            final DeltaReceiver receiver = new DeltaReceiver();
+            receiver.setDirectory(directory);
+            receiver.receive(new ByteArrayInputStream(header.toByteArray()),
+                    new DataOutputStream(new ByteArrayOutputStream()));
+            fail("The block size should have been rejected");
+        } catch (final IOException e) {
+            // expected
+        } finally {
+            assertEquals(0, directory.toFile().list().length);
+            directory.toFile().delete();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package part2.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import part2.concurrent.Execution;
+
+public class ExecutionTest {
+
+    @Test
+    // Test that both execution modes run blocking tasks at the same time
+    public void testModes() throws Exception {
+        final boolean virtualThreads = Runtime.version().feature() >= 21;
+        for (final String mode : new String[] { "platform", "virtual" }) {
+            final ExecutorService executor = Execution.newExecutor(mode);
+            assertEquals(mode.equals("virtual") && virtualThreads, Execution.isVirtual(executor));
+
+            // Every task blocks until all of them started
+            final int tasks = 200;
+            final CountDownLatch started = new CountDownLatch(tasks);
+            for (int i = 0; i < tasks; i++) {
+                executor.execute(() -> {
+                    started.countDown();
+                    try {
+                        started.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package part2.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+
+import part2.transfer.FileReceiver;
+import part2.transfer.FileSender;
+import part2.transfer.TransferStats;
+
+public class FileReceiverTest {
+
+    @Test
+    // Test that two files sent back to back are saved with the exact announced
+    // sizes and contents
+    public void testReceiveBackToBack() throws Exception {
+        final File first = createFile(3 * 1024 * 1024 + 17);
+        final File second = createFile(1234);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            final Thread sender = new Thread(() -> {
+                try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+                    final FileSender fileSender = new FileSender(
+                            new DataOutputStream(channel.socket().getOutputStream()), channel);
+                    fileSender.send(first.getPath());
+                    fileSender.send(second.getPath());
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            sender.start();
+
+            try (SocketChannel channel = server.accept()) {
+                final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                final FileReceiver receiver = new FileReceiver(in, channel);
+
+                for (final File expected : new File[] { first, second }) {
+                    final String name = in.readUTF();
+                    final long size = in.readLong();
+                    final File saved = new File(expected.getPath() + ".out");
+                    saved.deleteOnExit();
+
+                    final TransferStats stats = receiver.receive(saved.getPath(), size);
+                    assertTrue(stats.isVerified());
+                    assertEquals(expected.getPath(), name);
+                    assertEquals(expected.length(), stats.getBytes());
+                    assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(saved.toPath()));
+                }
+            }
+            sender.join();
+        }
+    }
+
+    @Test
+    // Test that a file received in mmap mode matches the file that was sent
+    public void testReceiveMapped() throws Exception {
+        final File file = createFile(5 * 1024 * 1024 + 3);
+        final File saved = new File(file.getPath() + ".out");
+        saved.deleteOnExit();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            final Thread sender = new Thread(() -> {
+                try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+                    new FileSender(new DataOutputStream(channel.socket().getOutputStream()), channel)
+                            .send(file.getPath());
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            sender.start();
+
+            try (SocketChannel channel = server.accept()) {
+                final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                final FileReceiver receiver = new FileReceiver(in, channel);
+                receiver.setMmapThreshold(1);
+
+                in.readUTF();
+                final TransferStats stats = receiver.receive(saved.getPath(), in.readLong());
+                assertTrue(stats.isVerified());
+                assertEquals("mmap", stats.getEngine());
+                assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(saved.toPath()));
+            }
+            sender.join();
+        }
+    }
+
+    @Test
+    // Test that a file received in mmap mode keeps the bytes of the current
+    // window when the peer disconnects early
+    public void testReceiveMappedTruncated() throws Exception {
+        final File saved = File.createTempFile("receiver-", ".out");
+        saved.deleteOnExit();
+        final byte[] data = new byte[3 * 1024 * 1024 + 5];
+        new Random(data.length).nextBytes(data);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            final Thread sender = new Thread(() -> {
+                try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+                    // Announce more than is sent
+                    channel.socket().getOutputStream().write(data);
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            sender.start();
+
+            try (SocketChannel channel = server.accept()) {
+                final FileReceiver receiver = new FileReceiver(
+                        new DataInputStream(channel.socket().getInputStream()), channel);
+                receiver.setMmapThreshold(1);
+                try {
+                    receiver.receive(saved.getPath(), data.length * 2L);
+                    fail("The transfer should have ended early");
+                } catch (final EOFException e) {
+                    // expected
+                }
+            }
+            sender.join();
+        }
+        assertArrayEquals(data, Files.readAllBytes(saved.toPath()));
+    }
+
+    private File createFile(final int size) throws Exception {
+        final File file = File.createTempFile("receiver-", ".bin");
+        file.deleteOnExit();
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+}
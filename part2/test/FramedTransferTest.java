@@ -0,0 +1,156 @@
+package part2.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import part2.transfer.FramedReceiver;
+import part2.transfer.FramedSender;
+import part2.transfer.TransferHeader;
+import part2.transfer.TransferStats;
+
+public class FramedTransferTest {
+    private static final int FRAME_SIZE = 64 * 1024;
+
+    @Test(timeout = 30000)
+    // Test that a frame corrupted on the way is the only frame sent again and
+    // that the saved file matches the original
+    public void testCorruptFrameIsResent() throws Exception {
+        final File source = File.createTempFile("framed-", ".bin");
+        source.deleteOnExit();
+        final byte[] data = new byte[10 * FRAME_SIZE + 99];
+        new Random(5).nextBytes(data);
+        Files.write(source.toPath(), data);
+        final File target = new File(source.getPath() + ".copy");
+        target.deleteOnExit();
+
+        // Everything the sender writes in front of the first frame
+        final ByteArrayOutputStream start = new ByteArrayOutputStream();
+        final DataOutputStream startOut = new DataOutputStream(start);
+        TransferHeader.writeStart(startOut, TransferHeader.MODE_FRAMED);
+        startOut.writeUTF(target.getPath());
+        startOut.writeLong(data.length);
+        startOut.writeInt(FRAME_SIZE);
+        startOut.writeBoolean(true);
+        // Flip a byte in the middle of the payload of the fourth frame
+        final long corruptAt = start.size() + 3L * (12 + FRAME_SIZE) + 12 + FRAME_SIZE / 2;
+
+        final AtomicReference<TransferStats> received = new AtomicReference<>();
+        try (ServerSocketChannel server = ServerSocketChannel.open();
+                ServerSocketChannel proxy = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            proxy.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            final Thread receiver = new Thread(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                    final DataOutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+                    TransferHeader.readStart(in);
+                    received.set(new FramedReceiver().receive(in, channel, out));
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            receiver.start();
+
+            // Pass everything on, with one byte flipped on the way to the receiver
+            final Thread forwarder = new Thread(() -> {
+                try (SocketChannel from = proxy.accept();
+                        SocketChannel to = SocketChannel.open(server.getLocalAddress())) {
+                    final Thread back = new Thread(() -> copy(to, from, -1));
+                    back.start();
+                    copy(from, to, corruptAt);
+                    back.join();
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            forwarder.start();
+
+            final FramedSender sender = new FramedSender((InetSocketAddress) proxy.getLocalAddress());
+            sender.setFrameSize(FRAME_SIZE);
+            final TransferStats sent = sender.send(source.getPath(), target.getPath());
+            receiver.join();
+            forwarder.join();
+
+            // Only the corrupt frame went over the link twice
+            assertEquals(data.length + FRAME_SIZE, sent.getBytes());
+            assertEquals("framed CRC32C, 1 frames resent", sent.getEngine());
+        }
+
+        assertTrue(received.get().isVerified());
+        assertEquals("framed CRC32C, 1 corrupt frames", received.get().getEngine());
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    // Test that a frame size the receiver cannot use fails the transfer with an
+    // IOException before anything is allocated
+    public void testMalformedFrameSize() throws Exception {
+        for (final int frameSize : new int[] { 0, -1, FramedSender.MAX_FRAME_SIZE + 1 }) {
+            final ByteArrayOutputStream start = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(start);
+            out.writeUTF("malformed.bin");
+            out.writeLong(1000);
+            out.writeInt(frameSize);
+            out.writeBoolean(true);
+
+            try {
+                new FramedReceiver().receive(new DataInputStream(new ByteArrayInputStream(start.toByteArray())),
+                        null, new DataOutputStream(new ByteArrayOutputStream()));
+                fail("The frame size " + frameSize + " should have been refused");
+            } catch (final IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * copy one direction of a connection until it ends, flipping the byte at a
+     * position of the stream
+     *
+     * @param from      the channel to read from
+     * @param to        the channel to write to
+     * @param corruptAt the position of the byte to flip, or -1 for none
+     */
+    private static void copy(final SocketChannel from, final SocketChannel to, final long corruptAt) {
+        final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = 0;
+        try {
+            int read;
+            while ((read = from.read(buffer)) >= 0) {
+                if (corruptAt >= position && corruptAt < position + read) {
+                    final int index = (int) (corruptAt - position);
+                    buffer.put(index, (byte) ~buffer.get(index));
+                }
+                position += read;
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    to.write(buffer);
+                }
+                buffer.clear();
+            }
+            to.shutdownOutput();
+        } catch (final IOException e) {
+            // The other direction closed the connection
+        }
+    }
+}
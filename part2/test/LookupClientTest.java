@@ -0,0 +1,231 @@
+package part2.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import part2.concurrent.Execution;
+import part2.nodes.LookupClient;
+import part2.nodes.ReachabilityCache;
+import part2.protocol.ControlMessage;
+import part2.protocol.ControlStream;
+import part2.routers.RouterCore;
+import part2.routers.RouterEventLoop;
+import part2.routers.RoutingIndex;
+import part2.routers.ServerThread;
+
+public class LookupClientTest {
+    // Amount of lookups every node has in flight at once
+    private static final int LOOKUPS = 1000;
+
+    @Test(timeout = 30000)
+    // Test that many lookups of two nodes are in flight at once and every answer
+    // reaches the lookup it belongs to, even when the answers come back in the
+    // reverse order
+    public void testPipelinedLookups() throws Exception {
+        final RouterCore core = new RouterCore();
+        final RouterEventLoop loop = new RouterEventLoop(core, "test loop");
+        loop.start();
+        try (ServerSocket linkServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                ServerSocketChannel server = ServerSocketChannel.open()) {
+            final Socket other = new Socket(InetAddress.getLoopbackAddress(), linkServer.getLocalPort());
+            Execution.execute(new ServerThread(core, linkServer.accept(), "test router", true));
+            final ControlStream otherStream = new ControlStream(other.getInputStream(), other.getOutputStream(),
+                    true);
+            // The other router has every address that is looked up
+            final ControlMessage route = new ControlMessage();
+            for (int i = 0; i <= LOOKUPS; i++) {
+                otherStream.send(route.set(ControlMessage.ROUTE_UPDATE, 0, 0, 0, i));
+            }
+            while (core.routeCount() <= LOOKUPS) {
+                Thread.sleep(1);
+            }
+            final Thread otherRouter = new Thread(() -> answerReversed(otherStream));
+            otherRouter.setDaemon(true);
+            otherRouter.start();
+
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final LookupClient first = connect(server, loop, "127.0.0.2");
+            final LookupClient second = connect(server, loop, "127.0.0.3");
+            while (core.size() < 2) {
+                Thread.sleep(1);
+            }
+
+            // Both nodes use the same request ids, the router tells them apart
+            final List<CompletableFuture<Boolean>> firstAnswers = new ArrayList<>();
+            final List<CompletableFuture<Boolean>> secondAnswers = new ArrayList<>();
+            for (int i = 0; i < LOOKUPS; i++) {
+                firstAnswers.add(first.lookup(i));
+                secondAnswers.add(second.lookup(i + 1));
+            }
+            for (int i = 0; i < LOOKUPS; i++) {
+                // The fake router says YES for odd addresses
+                assertEquals("lookup " + i, i % 2 == 1, firstAnswers.get(i).get());
+                assertEquals("lookup " + i, i % 2 == 0, secondAnswers.get(i).get());
+            }
+            assertEquals(0, first.getPending());
+
+            // Lookups that are pending when the router goes away fail
+            core.close();
+            final CompletableFuture<Boolean> lost = first.lookup(LOOKUPS + 1);
+            try {
+                lost.get();
+                fail("A lookup succeeded without a router");
+            } catch (final ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        } finally {
+            core.close();
+            loop.close();
+            loop.join();
+        }
+    }
+
+    @Test(timeout = 30000)
+    // Test that answers are cached, and that a peer that leaves the other router
+    // is removed from the caches of the nodes that looked it up
+    public void testCacheInvalidation() throws Exception {
+        final RouterCore core = new RouterCore();
+        final RouterEventLoop loop = new RouterEventLoop(core, "test loop");
+        loop.start();
+        try (ServerSocket linkServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                ServerSocketChannel server = ServerSocketChannel.open()) {
+            final Socket other = new Socket(InetAddress.getLoopbackAddress(), linkServer.getLocalPort());
+            Execution.execute(new ServerThread(core, linkServer.accept(), "test router", true));
+            final ControlStream otherStream = new ControlStream(other.getInputStream(), other.getOutputStream(),
+                    true);
+            final ControlMessage message = new ControlMessage();
+
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final LookupClient node = connect(server, loop, "127.0.0.2");
+            while (core.size() < 1) {
+                Thread.sleep(1);
+            }
+            final ReachabilityCache cache = node.getCache();
+            final int peer = RoutingIndex.pack("10.0.0.9");
+            final int missing = RoutingIndex.pack("10.0.0.10");
+            // The other router tells its routes to both, one of them left before
+            // the lookup reaches it
+            otherStream.send(message.set(ControlMessage.ROUTE_UPDATE, 0, 0, 0, peer));
+            otherStream.send(message.set(ControlMessage.ROUTE_UPDATE, 0, 0, 0, missing));
+            while (core.routeCount() < 2) {
+                Thread.sleep(1);
+            }
+
+            // The first lookups go to the other router
+            CompletableFuture<Boolean> answer = node.lookup(peer);
+            answer(otherStream, message, true);
+            assertTrue(answer.get());
+            answer = node.lookup(missing);
+            answer(otherStream, message, false);
+            assertFalse(answer.get());
+
+            // The next ones are answered by the cache, YES and NO alike
+            answer = node.lookup(peer);
+            assertTrue(answer.isDone());
+            assertTrue(answer.get());
+            answer = node.lookup(missing);
+            assertTrue(answer.isDone());
+            assertFalse(answer.get());
+            assertEquals(2, cache.getHits());
+            assertEquals(2, cache.getMisses());
+
+            // The other router says the peer cannot be reached anymore
+            otherStream.send(message.set(ControlMessage.ROUTE_UPDATE, ControlMessage.MAX_HOPS, 0, 0, peer));
+            while (cache.getInvalidations() < 1) {
+                Thread.sleep(1);
+            }
+            // No router has a route to it, so the router answers by itself
+            answer = node.lookup(peer);
+            assertFalse(answer.get());
+            assertEquals(1, cache.getInvalidations());
+        } finally {
+            core.close();
+            loop.close();
+            loop.join();
+        }
+    }
+
+    /**
+     * play the other router and answer the next lookup
+     *
+     * @param stream  the control stream of the fake router
+     * @param message the message the lookup is decoded into
+     * @param yes     the answer
+     */
+    private static void answer(final ControlStream stream, final ControlMessage message, final boolean yes)
+            throws IOException {
+        do {
+            assertTrue(stream.receive(message));
+        } while (message.getType() == ControlMessage.ROUTE_UPDATE);
+        assertEquals(ControlMessage.ROUTER_REQUEST, message.getType());
+        message.setType(ControlMessage.ROUTER_RESPONSE);
+        message.setFlags(yes ? ControlMessage.FLAG_YES : 0);
+        stream.send(message);
+    }
+
+    /**
+     * connect a node from its own loopback address and start its lookup client
+     *
+     * @param server  the channel the router listens on
+     * @param loop    the event loop that serves the node
+     * @param address the loopback address of the node
+     * @return the lookup client of the node
+     */
+    private static LookupClient connect(final ServerSocketChannel server, final RouterEventLoop loop,
+            final String address) throws Exception {
+        final Socket socket = new Socket();
+        socket.bind(new InetSocketAddress(address, 0));
+        socket.connect(server.getLocalAddress());
+        loop.add(server.accept());
+        final LookupClient client = new LookupClient(
+                new ControlStream(socket.getInputStream(), socket.getOutputStream(), true), RoutingIndex.pack(address),
+                new ReachabilityCache(4096, 60000, 60000));
+        Execution.execute(client);
+        return client;
+    }
+
+    /**
+     * play the other router: answer lookups in batches of 100 in reverse order,
+     * YES for odd addresses
+     *
+     * @param stream the control stream of the fake router
+     */
+    private static void answerReversed(final ControlStream stream) {
+        try {
+            final List<ControlMessage> batch = new ArrayList<>();
+            ControlMessage message = new ControlMessage();
+            while (stream.receive(message)) {
+                if (message.getType() == ControlMessage.ROUTE_UPDATE) {
+                    continue;
+                }
+                message.setType(ControlMessage.ROUTER_RESPONSE);
+                message.setFlags(message.getDestination() % 2 == 1 ? ControlMessage.FLAG_YES : 0);
+                batch.add(message);
+                message = new ControlMessage();
+                if (batch.size() == 100) {
+                    for (int i = batch.size() - 1; i >= 0; i--) {
+                        stream.send(batch.get(i));
+                    }
+                    batch.clear();
+                }
+            }
+        } catch (final IOException e) {
+            // The router was closed
+        }
+    }
+}
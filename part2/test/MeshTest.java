@@ -0,0 +1,172 @@
+package part2.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import part2.concurrent.Execution;
+import part2.exceptions.NotConnectedToRouterException;
+import part2.nodes.LookupClient;
+import part2.nodes.ReachabilityCache;
+import part2.protocol.ControlMessage;
+import part2.protocol.ControlStream;
+import part2.routers.RoutingIndex;
+import part2.routers.SRouter;
+
+public class MeshTest {
+    // Amount of routers of the mesh
+    private static final int ROUTERS = 8;
+    // Amount of nodes of every router
+    private static final int NODES = 2;
+
+    @Test(timeout = 60000)
+    // Test that routers in a ring with one chord find the nodes of each other
+    // through their neighbors, forget a node that leaves, and route around a
+    // router that goes away
+    public void testMesh() throws Exception {
+        final List<SRouter> routers = new ArrayList<>();
+        final List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int r = 0; r < ROUTERS; r++) {
+                final SRouter router = new SRouter("MESH ROUTER " + r, "127.0.0.1", 0, 0);
+                router.listenForRouters();
+                Execution.execute(() -> {
+                    try {
+                        router.listenForNodes();
+                    } catch (final NotConnectedToRouterException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                routers.add(router);
+            }
+            for (int r = 0; r < ROUTERS; r++) {
+                routers.get(r).connectToRouter("127.0.0.1", routers.get((r + 1) % ROUTERS).getRouterPort());
+            }
+            routers.get(0).connectToRouter("127.0.0.1", routers.get(ROUTERS / 2).getRouterPort());
+
+            final LookupClient[][] clients = new LookupClient[ROUTERS][NODES];
+            for (int r = 0; r < ROUTERS; r++) {
+                for (int n = 0; n < NODES; n++) {
+                    clients[r][n] = connect(routers.get(r), address(r, n), sockets);
+                }
+            }
+            awaitRoutes(routers, ROUTERS * NODES);
+
+            // The chord is one hop, the far side of the ring four
+            assertEquals(0, distance(routers.get(0), address(0, 0), 0));
+            assertEquals(1, distance(routers.get(0), address(1, 0), 1));
+            assertEquals(1, distance(routers.get(0), address(4, 1), 1));
+            assertEquals(2, distance(routers.get(0), address(6, 0), 2));
+            assertEquals(4, distance(routers.get(2), address(6, 0), 4));
+
+            // A lookup travels hop by hop to the router of the peer and back
+            final LookupClient client = clients[2][0];
+            assertTrue(client.lookup(address(6, 0)).get());
+            assertTrue(client.lookup(address(2, 1)).get());
+            assertFalse(client.lookup("10.9.9.9").get());
+
+            // A peer that leaves is dropped from the cache of a node on a router
+            // four hops away and from every routing table
+            final Socket leaving = sockets.get(6 * NODES);
+            new ControlStream(leaving.getInputStream(), leaving.getOutputStream(), true)
+                    .send(new ControlMessage().set(ControlMessage.NODE_DISCONNECT, 0, 0,
+                            RoutingIndex.pack(address(6, 0)), 0));
+            while (client.getCache().getInvalidations() < 1) {
+                Thread.sleep(1);
+            }
+            awaitRoutes(routers, ROUTERS * NODES - 1);
+            assertFalse(client.lookup(address(6, 0)).get());
+            assertEquals(-1, distance(routers.get(2), address(6, 0), -1));
+
+            // Router 1 goes away with its nodes, and router 2 reaches router 0
+            // the long way around
+            routers.get(1).close();
+            routers.remove(1);
+            awaitRoutes(routers, (ROUTERS - 1) * NODES - 1);
+            assertEquals(3, distance(routers.get(1), address(0, 1), 3));
+            assertTrue(client.lookup(address(0, 1)).get());
+            assertFalse(client.lookup(address(1, 1)).get());
+        } finally {
+            for (final SRouter router : routers) {
+                router.close();
+            }
+            for (final Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * gets the loopback address of a node
+     *
+     * @param router the index of the router of the node
+     * @param node   the index of the node at its router
+     * @return the address
+     */
+    private static String address(final int router, final int node) {
+        return "127.0." + (router + 1) + "." + (node + 2);
+    }
+
+    /**
+     * wait until the route counts of every router settled on a total
+     *
+     * @param routers the routers of the mesh
+     * @param nodes   the amount of nodes in the mesh
+     */
+    private static void awaitRoutes(final List<SRouter> routers, final int nodes) throws InterruptedException {
+        boolean settled = false;
+        while (!settled) {
+            Thread.sleep(10);
+            settled = true;
+            for (final SRouter router : routers) {
+                settled &= router.getNodeCount() + router.getRouteCount() == nodes;
+            }
+        }
+    }
+
+    /**
+     * wait a while for the distance of a router to a node to settle on a value
+     *
+     * @param router   the router
+     * @param address  the address of the node
+     * @param expected the distance that is waited for
+     * @return the distance once it is the expected one, or after 5 seconds
+     */
+    private static int distance(final SRouter router, final String address, final int expected)
+            throws InterruptedException {
+        final long end = System.nanoTime() + 5000000000L;
+        while (router.getDistance(address) != expected && System.nanoTime() - end < 0) {
+            Thread.sleep(1);
+        }
+        return router.getDistance(address);
+    }
+
+    /**
+     * connect a node from its own loopback address to a router and start its
+     * lookup client
+     *
+     * @param router  the router
+     * @param address the loopback address of the node
+     * @param sockets the list the socket of the node is added to
+     * @return the lookup client of the node
+     */
+    private static LookupClient connect(final SRouter router, final String address, final List<Socket> sockets)
+            throws Exception {
+        final Socket socket = new Socket();
+        socket.bind(new InetSocketAddress(address, 0));
+        socket.connect(new InetSocketAddress("127.0.0.1", router.getNodePort()));
+        sockets.add(socket);
+        final LookupClient client = new LookupClient(
+                new ControlStream(socket.getInputStream(), socket.getOutputStream(), true), RoutingIndex.pack(address),
+                new ReachabilityCache(4096, 60000, 60000));
+        Execution.execute(client);
+        return client;
+    }
+}
@@ -0,0 +1,161 @@
+package part2.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+import part2.concurrent.Execution;
+import part2.exceptions.NotConnectedToRouterException;
+import part2.metrics.LatencyHistogram;
+import part2.nodes.LookupClient;
+import part2.nodes.ReachabilityCache;
+import part2.protocol.ControlStream;
+import part2.routers.RoutingIndex;
+import part2.routers.SRouter;
+
+public class MetricsTest {
+
+    @Test
+    // Test that the percentiles of the histogram are within 1% of the exact
+    // ones
+    public void testHistogram() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+
+        final Random random = new Random(5);
+        final long[] latencies = new long[100000];
+        for (int i = 0; i < latencies.length; i++) {
+            // Mostly tens of microseconds with a tail into milliseconds
+            latencies[i] = (long) Math.exp(10 + 1.5 * random.nextGaussian());
+            histogram.record(latencies[i]);
+        }
+        Arrays.sort(latencies);
+
+        assertEquals(latencies.length, histogram.getCount());
+        assertEquals(latencies[latencies.length - 1], histogram.getMax());
+        for (final double percentile : new double[] { 1, 50, 90, 99, 99.9, 100 }) {
+            final long exact = latencies[(int) Math.ceil(percentile / 100 * latencies.length) - 1];
+            final long reported = histogram.getPercentile(percentile);
+            assertTrue(percentile + ": " + reported + " against " + exact,
+                    reported >= exact && reported <= exact * 1.01);
+        }
+        assertEquals(histogram.getPercentile(50) / 1e3, histogram.getMicros().get("p50"), 1e-9);
+        assertEquals(histogram.getPercentile(99.9) / 1e3, histogram.getMicros().get("p99.9"), 1e-9);
+    }
+
+    @Test(timeout = 30000)
+    // Test that the MBean of a router shows its routing table, its messages by
+    // type and the latency of the lookups it forwarded, and goes away with it
+    public void testRouterMBean() throws Exception {
+        final int lookups = 200;
+        final List<SRouter> routers = new ArrayList<>();
+        final List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int r = 0; r < 2; r++) {
+                final SRouter router = new SRouter("METRICS ROUTER " + r, "127.0.0.1", 0, 0);
+                router.listenForRouters();
+                Execution.execute(() -> {
+                    try {
+                        router.listenForNodes();
+                    } catch (final NotConnectedToRouterException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                routers.add(router);
+            }
+            routers.get(1).connectToRouter("127.0.0.1", routers.get(0).getRouterPort());
+            final LookupClient node = connect(routers.get(0), "127.0.4.1", sockets);
+            connect(routers.get(1), "127.0.4.2", sockets);
+            while (routers.get(0).getDistance("127.0.4.2") != 1) {
+                Thread.sleep(1);
+            }
+
+            for (int i = 0; i < lookups; i++) {
+                assertTrue(node.lookup("127.0.4.2").get());
+            }
+            assertEquals(lookups, node.getLatency().getCount());
+
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName("part2:type=Router,name=" + ObjectName.quote("METRICS ROUTER 0"));
+            assertEquals(1, server.getAttribute(name, "NodeCount"));
+            assertEquals(1, server.getAttribute(name, "RouteCount"));
+            assertEquals(1, server.getAttribute(name, "RouterCount"));
+            assertEquals(2, server.getAttribute(name, "ActiveConnections"));
+            assertEquals((long) lookups, server.getAttribute(name, "ForwardedRequests"));
+            assertEquals((long) lookups, entry(server.getAttribute(name, "MessageCounts"), "NODE_REQUEST"));
+            assertEquals((long) lookups, entry(server.getAttribute(name, "MessageCounts"), "ROUTER_RESPONSE"));
+            assertTrue((double) entry(server.getAttribute(name, "ForwardLatencyMicros"), "p50") > 0);
+            assertTrue((double) entry(server.getAttribute(name, "MessageRates"), "NODE_REQUEST") > 0);
+            assertEquals(0L, server.getAttribute(name, "MalformedMessages"));
+
+            // Nothing listens on this port
+            try {
+                routers.get(0).connectToRouter("127.0.0.1", 1);
+            } catch (final IOException e) {
+                // Counted below
+            }
+            assertEquals(1L, server.getAttribute(name, "FailedConnects"));
+
+            routers.get(0).close();
+            assertFalse(server.isRegistered(name));
+        } finally {
+            for (final SRouter router : routers) {
+                router.close();
+            }
+            for (final Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * get a value of a map attribute of an MXBean, which JMX shows as a table
+     * of keys and values
+     *
+     * @param attribute the attribute
+     * @param key       the key
+     * @return the value
+     */
+    private static Object entry(final Object attribute, final String key) {
+        final CompositeData row = ((TabularData) attribute).get(new Object[] { key });
+        return row == null ? null : row.get("value");
+    }
+
+    /**
+     * connect a node from its own loopback address to a router and start its
+     * lookup client
+     *
+     * @param router  the router
+     * @param address the loopback address of the node
+     * @param sockets the list the socket of the node is added to
+     * @return the lookup client of the node
+     */
+    private static LookupClient connect(final SRouter router, final String address, final List<Socket> sockets)
+            throws Exception {
+        final Socket socket = new Socket();
+        socket.bind(new InetSocketAddress(address, 0));
+        socket.connect(new InetSocketAddress("127.0.0.1", router.getNodePort()));
+        sockets.add(socket);
+        final LookupClient client = new LookupClient(
+                new ControlStream(socket.getInputStream(), socket.getOutputStream(), true), RoutingIndex.pack(address),
+                new ReachabilityCache(0, 0, 0));
+        Execution.execute(client);
+        return client;
+    }
+}
@@ -1,9 +1,23 @@
 package part2.test;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.Test;
 
+import part2.concurrent.Execution;
 import part2.exceptions.NotConnectedToRouterException;
 import part2.nodes.Node;
+import part2.routers.SRouter;
 
 public class NodeTest {
 
@@ -19,4 +33,131 @@ public class NodeTest {
         }
     }
 
+    @Test(timeout = 30000)
+    // Test that two nodes on their own loopback addresses and free ports find
+    // each other through two routers, connect and send a file
+    public void testLoopbackTransfer() throws Exception {
+        final List<SRouter> routers = new ArrayList<>();
+        final Path directory = Files.createTempDirectory("node-test-");
+        final Path source = Files.createTempFile("node-test-", ".bin");
+        Node sender = null;
+        Node receiver = null;
+        try {
+            startRouters(routers);
+            sender = new Node("127.0.0.1", routers.get(0).getNodePort(), "127.0.7.1", 0);
+            receiver = new Node("127.0.0.1", routers.get(1).getNodePort(), "127.0.7.2", 0);
+            receiver.setReceiveDirectory(directory);
+            assertTrue(sender.getPeerPort() > 0);
+            while (routers.get(0).getRouteCount() < 1) {
+                Thread.sleep(1);
+            }
+            assertTrue(sender.lookup("127.0.7.2").get());
+
+            final byte[] data = new byte[1 << 20];
+            new Random(7).nextBytes(data);
+            Files.write(source, data);
+            assertTrue(sender.connectToPeer("127.0.7.2", receiver.getPeerPort()));
+            assertEquals(data.length, sender.send(source.toString()).getBytes());
+
+            while (receiver.getMetrics().getFilesReceived() < 1) {
+                Thread.sleep(1);
+            }
+            // The file is saved under its name only, in the receive directory
+            assertArrayEquals(data, Files.readAllBytes(directory.resolve(source.getFileName())));
+            assertEquals(1, sender.getMetrics().getFilesSent());
+
+            // So is a file that arrives on a transfer connection
+            Files.delete(directory.resolve(source.getFileName()));
+            sender.getTransferOptions().setChecksums(true);
+            assertTrue(sender.send(source.toString()).isVerified());
+            assertArrayEquals(data, Files.readAllBytes(directory.resolve(source.getFileName())));
+        } finally {
+            close(routers, sender, receiver);
+            Files.deleteIfExists(directory.resolve(source.getFileName()));
+            Files.deleteIfExists(directory);
+            Files.deleteIfExists(source);
+        }
+    }
+
+    @Test(timeout = 30000)
+    // Test that a node whose peer drops in the middle of a file deletes the
+    // partial file, forgets the peer and keeps running
+    public void testPeerDropsMidFile() throws Exception {
+        final List<SRouter> routers = new ArrayList<>();
+        final Path directory = Files.createTempDirectory("node-test-");
+        Node sender = null;
+        Node receiver = null;
+        try {
+            startRouters(routers);
+            sender = new Node("127.0.0.1", routers.get(0).getNodePort(), "127.0.7.3", 0);
+            receiver = new Node("127.0.0.1", routers.get(1).getNodePort(), "127.0.7.4", 0);
+            receiver.setReceiveDirectory(directory);
+            while (routers.get(0).getRouteCount() < 1) {
+                Thread.sleep(1);
+            }
+            assertTrue(sender.connectToPeer("127.0.7.4", receiver.getPeerPort()));
+            while (!receiver.isConnectedToPeer()) {
+                Thread.sleep(1);
+            }
+
+            // Announce a file and drop the connection after part of it
+            final DataOutputStream out = new DataOutputStream(sender.getPeerSocket().getOutputStream());
+            out.writeUTF("dropped.bin");
+            out.writeLong(1 << 20);
+            out.write(new byte[1000]);
+            out.flush();
+            while (!Files.exists(directory.resolve("dropped.bin"))) {
+                Thread.sleep(1);
+            }
+            sender.getPeerSocket().close();
+
+            while (receiver.isConnectedToPeer() || sender.isConnectedToPeer()) {
+                Thread.sleep(1);
+            }
+            assertFalse(Files.exists(directory.resolve("dropped.bin")));
+            assertEquals(0, receiver.getMetrics().getFilesReceived());
+        } finally {
+            close(routers, sender, receiver);
+            Files.deleteIfExists(directory.resolve("dropped.bin"));
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * start two linked routers on loopback
+     *
+     * @param routers the list the routers are added to
+     */
+    private void startRouters(final List<SRouter> routers) throws Exception {
+        for (int r = 0; r < 2; r++) {
+            final SRouter router = new SRouter("NODE TEST ROUTER " + r, "127.0.0.1", 0, 0);
+            router.listenForRouters();
+            Execution.execute(() -> {
+                try {
+                    router.listenForNodes();
+                } catch (final NotConnectedToRouterException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            routers.add(router);
+        }
+        routers.get(1).connectToRouter("127.0.0.1", routers.get(0).getRouterPort());
+    }
+
+    /**
+     * close the routers and nodes of a test
+     *
+     * @param routers the routers
+     * @param nodes   the nodes, which may be null
+     */
+    private void close(final List<SRouter> routers, final Node... nodes) throws Exception {
+        for (final Node node : nodes) {
+            if (node != null) {
+                node.close();
+            }
+        }
+        for (final SRouter router : routers) {
+            router.close();
+        }
+    }
 }
@@ -0,0 +1,197 @@
+package part2.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import part2.nodes.PeerAcceptor;
+import part2.transfer.CompressedSender;
+import part2.transfer.FileSender;
+import part2.transfer.FramedSender;
+
+public class PeerAcceptorTest {
+    private static final int SENDERS = 50;
+    private static final int FILES_PER_SENDER = 4;
+    private static final int FILE_SIZE = 2 * 1024 * 1024;
+
+    @Test(timeout = 120000)
+    // Test that one acceptor receives files from 50 concurrent senders at once
+    public void testConcurrentSenders() throws Exception {
+        final Path directory = Files.createTempDirectory("acceptor-");
+        final byte[] data = new byte[FILE_SIZE];
+        new Random(4).nextBytes(data);
+        final File source = directory.resolve("source.bin").toFile();
+        Files.write(source.toPath(), data);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+            final PeerAcceptor acceptor = new PeerAcceptor(server, null);
+            acceptor.start();
+
+            // Every sender opens its own connection and sends its files back to back
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Thread> senders = new ArrayList<>();
+            for (int i = 0; i < SENDERS; i++) {
+                final int sender = i;
+                final Thread thread = new Thread(() -> {
+                    try (SocketChannel channel = SocketChannel.open(address)) {
+                        final FileSender fileSender = new FileSender(
+                                new DataOutputStream(channel.socket().getOutputStream()), channel);
+                        start.await();
+                        for (int file = 0; file < FILES_PER_SENDER; file++) {
+                            fileSender.send(source.getPath(),
+                                    directory.resolve(sender + "-" + file + ".bin").toString());
+                        }
+                    } catch (final Exception e) {
+                        e.printStackTrace();
+                    }
+                });
+                thread.start();
+                senders.add(thread);
+            }
+
+            final long startTime = System.nanoTime();
+            start.countDown();
+            for (final Thread thread : senders) {
+                thread.join();
+            }
+            while (acceptor.getFilesReceived() < SENDERS * FILES_PER_SENDER) {
+                Thread.sleep(10);
+            }
+            final long elapsed = System.nanoTime() - startTime;
+            acceptor.close();
+            acceptor.join();
+
+            final long total = (long) SENDERS * FILES_PER_SENDER * FILE_SIZE;
+            assertEquals(total, acceptor.getBytesReceived());
+            assertArrayEquals(data, Files.readAllBytes(directory.resolve("49-3.bin")));
+            System.out.printf("%d senders sent %d MB in %.1f ms (%.2f MB/s)%n", SENDERS, total >> 20,
+                    elapsed / 1e6, total / (elapsed / 1e9) / (1024 * 1024));
+        } finally {
+            for (final File file : directory.toFile().listFiles()) {
+                file.delete();
+            }
+            directory.toFile().delete();
+        }
+    }
+
+    @Test(timeout = 60000)
+    // Test that a transfer connection is taken off the selector and received by
+    // its transfer engine
+    public void testTransferConnection() throws Exception {
+        final Path directory = Files.createTempDirectory("acceptor-");
+        final byte[] data = new byte[3 * 1024 * 1024 + 17];
+        new Random(8).nextBytes(data);
+        final File source = directory.resolve("source.bin").toFile();
+        Files.write(source.toPath(), data);
+        final File target = directory.resolve("target.bin").toFile();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final PeerAcceptor acceptor = new PeerAcceptor(server, null);
+            acceptor.start();
+
+            new CompressedSender((InetSocketAddress) server.getLocalAddress(), ForkJoinPool.commonPool())
+                    .send(source.getPath(), target.getPath());
+            acceptor.close();
+            acceptor.join();
+
+            assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        } finally {
+            for (final File file : directory.toFile().listFiles()) {
+                file.delete();
+            }
+            directory.toFile().delete();
+        }
+    }
+
+    @Test(timeout = 60000)
+    // Test that transfer connections are handed off while stream connections keep
+    // the selector busy, without stopping the acceptor
+    public void testTransfersBetweenBusyStreams() throws Exception {
+        final int streams = 8;
+        final int transfers = 32;
+        final Path directory = Files.createTempDirectory("acceptor-");
+        final byte[] data = new byte[64 * 1024];
+        new Random(12).nextBytes(data);
+        final File source = directory.resolve("source.bin").toFile();
+        Files.write(source.toPath(), data);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+            final PeerAcceptor acceptor = new PeerAcceptor(server, null);
+            acceptor.start();
+
+            // Every stream sends a small file every few milliseconds until the
+            // transfers are done, so keys keep becoming ready while the acceptor
+            // hands off the transfer connections
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicInteger sent = new AtomicInteger();
+            final List<Thread> senders = new ArrayList<>();
+            for (int i = 0; i < streams; i++) {
+                final String name = directory.resolve("stream-" + i + ".bin").toString();
+                final Thread thread = new Thread(() -> {
+                    try (SocketChannel channel = SocketChannel.open(address)) {
+                        final FileSender fileSender = new FileSender(
+                                new DataOutputStream(channel.socket().getOutputStream()), channel);
+                        while (!done.get()) {
+                            fileSender.send(source.getPath(), name);
+                            sent.incrementAndGet();
+                            Thread.sleep(2);
+                        }
+                    } catch (final Exception e) {
+                        e.printStackTrace();
+                    }
+                });
+                thread.start();
+                senders.add(thread);
+            }
+
+            // The transfer connections arrive while the streams are being read
+            for (int i = 0; i < transfers; i++) {
+                new FramedSender(address).send(source.getPath(),
+                        directory.resolve("transfer-" + i + ".bin").toString());
+            }
+            done.set(true);
+            for (final Thread thread : senders) {
+                thread.join();
+            }
+            while (acceptor.getFilesReceived() < sent.get() && acceptor.isAlive()) {
+                Thread.sleep(10);
+            }
+            assertTrue(acceptor.isAlive());
+            assertEquals(sent.get(), acceptor.getFilesReceived());
+            acceptor.close();
+            acceptor.join();
+
+            for (int i = 0; i < transfers; i++) {
+                assertArrayEquals(data, Files.readAllBytes(directory.resolve("transfer-" + i + ".bin")));
+            }
+        } finally {
+            for (final File file : directory.toFile().listFiles()) {
+                file.delete();
+            }
+            directory.toFile().delete();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package part2.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import part2.nodes.ReachabilityCache;
+
+public class ReachabilityCacheTest {
+
+    @Test
+    // Test that NO answers run out before YES answers
+    public void testTtl() throws Exception {
+        final ReachabilityCache cache = new ReachabilityCache(16, 10000, 50);
+        cache.put(1, true);
+        cache.put(2, false);
+        assertTrue(cache.get(1));
+        assertFalse(cache.get(2));
+
+        Thread.sleep(100);
+        assertTrue(cache.get(1));
+        assertNull(cache.get(2));
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.75, cache.getHitRate(), 0.001);
+    }
+
+    @Test
+    // Test that the cache holds a bounded amount of peers and drops the oldest
+    public void testBound() {
+        final ReachabilityCache cache = new ReachabilityCache(100, 10000, 10000);
+        for (int peer = 0; peer < 1000; peer++) {
+            cache.put(peer, true);
+        }
+        assertEquals(100, cache.size());
+        assertNull(cache.get(0));
+        assertTrue(cache.get(999));
+    }
+
+    @Test
+    // Test that an invalidated peer is asked for again
+    public void testInvalidate() {
+        final ReachabilityCache cache = new ReachabilityCache(16, 10000, 10000);
+        cache.put(1, true);
+        cache.invalidate(1);
+        cache.invalidate(2);
+        assertNull(cache.get(1));
+        assertEquals(1, cache.getInvalidations());
+    }
+}
@@ -0,0 +1,183 @@
+package part2.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import part2.concurrent.Execution;
+import part2.exceptions.NotConnectedToRouterException;
+import part2.nodes.LookupClient;
+import part2.nodes.ReachabilityCache;
+import part2.protocol.ControlStream;
+import part2.routers.RoutingIndex;
+import part2.routers.SRouter;
+
+public class RelayTest {
+    // Amount of bytes sent through the relay
+    private static final int SIZE = 4 * 1024 * 1024;
+
+    @Test(timeout = 60000)
+    // Test that a node reaches a peer of another router through a chain of
+    // relays, in both directions and up to the end of the stream
+    public void testRelay() throws Exception {
+        final List<SRouter> routers = new ArrayList<>();
+        final List<Socket> sockets = new ArrayList<>();
+        final ServerSocket echo = new ServerSocket(0, 1, InetAddress.getByName("127.0.3.2"));
+        try {
+            for (int r = 0; r < 3; r++) {
+                final SRouter router = new SRouter("RELAY ROUTER " + r, "127.0.0.1", 0, 0);
+                router.listenForRouters();
+                Execution.execute(() -> {
+                    try {
+                        router.listenForNodes();
+                    } catch (final NotConnectedToRouterException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                routers.add(router);
+            }
+            routers.get(1).connectToRouter("127.0.0.1", routers.get(0).getRouterPort());
+            routers.get(2).connectToRouter("127.0.0.1", routers.get(1).getRouterPort());
+
+            // The node is on the first router, the peer two routers away
+            final LookupClient node = connect(routers.get(0), "127.0.1.2", sockets);
+            connect(routers.get(2), "127.0.3.2", sockets);
+            while (routers.get(0).getDistance("127.0.3.2") != 2) {
+                Thread.sleep(1);
+            }
+            Execution.execute(() -> echo(echo));
+
+            final int port = node.relay(RoutingIndex.pack("127.0.3.2"), echo.getLocalPort()).get();
+            assertNotEquals(0, port);
+            final byte[] data = new byte[SIZE];
+            new Random(42).nextBytes(data);
+            // Another host cannot use the port
+            try (Socket other = new Socket("127.0.0.1", port)) {
+                assertEquals(-1, other.getInputStream().read());
+            }
+            assertEquals(1, routers.get(0).getRelay().getRefused());
+            try (Socket relayed = connect("127.0.1.2", port)) {
+                final OutputStream out = relayed.getOutputStream();
+                Execution.execute(() -> {
+                    try {
+                        out.write(data);
+                        relayed.shutdownOutput();
+                    } catch (final IOException e) {
+                        // The test fails on the missing data
+                    }
+                });
+                assertArrayEquals(data, readAll(relayed.getInputStream()));
+            }
+            // Every router on the way moved the data both ways
+            for (final SRouter router : routers) {
+                while (router.getRelay().getBytesRelayed() < 2L * SIZE) {
+                    Thread.sleep(1);
+                }
+                assertEquals(1, router.getRelay().getSpliced());
+            }
+
+            // No relay is opened to a peer no router has
+            assertEquals(0, (int) node.relay(RoutingIndex.pack("10.9.9.9"), echo.getLocalPort()).get());
+
+            // A relay to a port the peer does not listen on drops the connection
+            echo.close();
+            final int closedPort = node.relay(RoutingIndex.pack("127.0.3.2"), echo.getLocalPort()).get();
+            try (Socket relayed = connect("127.0.1.2", closedPort)) {
+                assertEquals(-1, relayed.getInputStream().read());
+            }
+            assertTrue(routers.get(0).getRelay().getOpenPorts() >= 1);
+
+            // A node cannot open forwarding ports without end
+            int opened = routers.get(0).getRelay().getOpenPorts();
+            while (opened < 64 && node.relay(RoutingIndex.pack("127.0.3.2"), echo.getLocalPort()).get() != 0) {
+                opened++;
+            }
+            assertTrue(opened < 64);
+        } finally {
+            echo.close();
+            for (final SRouter router : routers) {
+                router.close();
+            }
+            for (final Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * answer one connection with everything it sends, then end the stream
+     *
+     * @param server the socket the peer listens on
+     */
+    private static void echo(final ServerSocket server) {
+        try (Socket socket = server.accept()) {
+            socket.getInputStream().transferTo(socket.getOutputStream());
+            socket.shutdownOutput();
+        } catch (final IOException e) {
+            // The test fails on the missing data
+        }
+    }
+
+    /**
+     * read a stream up to its end
+     *
+     * @param in the stream
+     * @return the bytes
+     */
+    private static byte[] readAll(final InputStream in) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        in.transferTo(bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * connect to a forwarding port of the first router from a loopback address
+     *
+     * @param address the loopback address to connect from
+     * @param port    the forwarding port
+     * @return the connection
+     */
+    private static Socket connect(final String address, final int port) throws IOException {
+        final Socket socket = new Socket();
+        socket.bind(new InetSocketAddress(address, 0));
+        socket.connect(new InetSocketAddress("127.0.0.1", port));
+        return socket;
+    }
+
+    /**
+     * connect a node from its own loopback address to a router and start its
+     * lookup client
+     *
+     * @param router  the router
+     * @param address the loopback address of the node
+     * @param sockets the list the socket of the node is added to
+     * @return the lookup client of the node
+     */
+    private static LookupClient connect(final SRouter router, final String address, final List<Socket> sockets)
+            throws Exception {
+        final Socket socket = new Socket();
+        socket.bind(new InetSocketAddress(address, 0));
+        socket.connect(new InetSocketAddress("127.0.0.1", router.getNodePort()));
+        sockets.add(socket);
+        final LookupClient client = new LookupClient(
+                new ControlStream(socket.getInputStream(), socket.getOutputStream(), true), RoutingIndex.pack(address),
+                new ReachabilityCache(4096, 60000, 60000));
+        Execution.execute(client);
+        return client;
+    }
+}
@@ -0,0 +1,95 @@
+package part2.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+
+import part2.transfer.ResumableReceiver;
+import part2.transfer.ResumableSender;
+import part2.transfer.TransferHeader;
+import part2.transfer.TransferStats;
+
+public class ResumableTransferTest {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    @Test
+    // Test that a transfer cut off part way through only resends the chunks that
+    // never reached the receiver
+    public void testResumeAfterDrop() throws Exception {
+        final File source = File.createTempFile("resumable-", ".bin");
+        source.deleteOnExit();
+        final byte[] data = new byte[10 * CHUNK_SIZE + 123];
+        new Random(11).nextBytes(data);
+        Files.write(source.toPath(), data);
+
+        final File target = new File(source.getPath() + ".copy");
+        target.deleteOnExit();
+        final String key = target.getPath() + ":" + source.length() + ":" + source.lastModified();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            // Receive every transfer connection with a ResumableReceiver
+            final Thread receiver = new Thread(() -> {
+                for (int i = 0; i < 2; i++) {
+                    try (SocketChannel channel = server.accept()) {
+                        final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                        final DataOutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+                        TransferHeader.readStart(in);
+                        new ResumableReceiver().receive(in, channel, out);
+                    } catch (final Exception e) {
+                        // The first connection is cut off on purpose
+                    }
+                }
+            });
+            receiver.start();
+
+            // Send three and a half chunks and drop the connection
+            try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+                final DataOutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+                final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                TransferHeader.writeStart(out, TransferHeader.MODE_RESUME);
+                out.writeUTF(key);
+                out.writeUTF(target.getPath());
+                out.writeLong(data.length);
+                out.writeInt(CHUNK_SIZE);
+                out.flush();
+
+                assertEquals(0, in.readLong());
+                assertEquals(1, in.readInt());
+                in.readLong();
+                in.readLong();
+
+                final ByteBuffer partial = ByteBuffer.wrap(data, 0, 3 * CHUNK_SIZE + CHUNK_SIZE / 2);
+                while (partial.hasRemaining()) {
+                    channel.write(partial);
+                }
+            }
+
+            // The receiver handles one connection at a time, so the drop is seen first
+            final ResumableSender sender = new ResumableSender((InetSocketAddress) server.getLocalAddress(), 1, 0);
+            sender.setChunkSize(CHUNK_SIZE);
+            final TransferStats stats = sender.send(source.getPath(), target.getPath());
+            receiver.join();
+
+            assertEquals(data.length - 3 * CHUNK_SIZE, stats.getBytes());
+        }
+
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertFalse(new File(target.getPath() + ".part").exists());
+        assertFalse(new File(target.getPath() + ".journal").exists());
+    }
+}
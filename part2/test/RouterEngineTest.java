@@ -0,0 +1,300 @@
+package part2.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.Test;
+
+import part2.concurrent.Execution;
+import part2.protocol.ControlCodec;
+import part2.protocol.ControlMessage;
+import part2.protocol.ControlStream;
+import part2.routers.RouterCore;
+import part2.routers.RouterEventLoop;
+import part2.routers.RoutingIndex;
+import part2.routers.ServerThread;
+
+public class RouterEngineTest {
+
+    @Test(timeout = 30000)
+    // Test that lookups and disconnects work for nodes on an event loop
+    public void testEventLoop() throws Exception {
+        final RouterCore core = new RouterCore();
+        final RouterEventLoop loop = new RouterEventLoop(core, "test loop");
+        loop.start();
+        try {
+            run(core, channel -> loop.add(channel));
+        } finally {
+            core.close();
+            loop.close();
+            loop.join();
+        }
+    }
+
+    @Test(timeout = 30000)
+    // Test that lookups and disconnects work for nodes on their own threads
+    public void testThreads() throws Exception {
+        final RouterCore core = new RouterCore();
+        try {
+            run(core, channel -> Execution.execute(new ServerThread(core, channel.socket(), "test node", false)));
+        } finally {
+            core.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    // Test that a node on an event loop that sends lookups but never reads the
+    // answers is disconnected instead of growing its output buffer without end
+    public void testEventLoopDropsNodeThatDoesNotRead() throws Exception {
+        final RouterCore core = new RouterCore();
+        final RouterEventLoop loop = new RouterEventLoop(core, "test loop");
+        loop.start();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final Socket node = connect(server, channel -> loop.add(channel), "127.0.0.5", 4096);
+            while (!core.contains("127.0.0.5")) {
+                Thread.sleep(1);
+            }
+
+            // Ask about itself over and over, which the router answers right away
+            final ByteBuffer frames = ByteBuffer.allocate(64 * 1024);
+            final ControlMessage message = new ControlMessage();
+            while (frames.remaining() >= ControlCodec.MAX_MESSAGE) {
+                ControlCodec.encode(message.set(ControlMessage.NODE_REQUEST, 0, 1, RoutingIndex.pack("127.0.0.5"),
+                        RoutingIndex.pack("127.0.0.5")), frames);
+            }
+            final OutputStream out = node.getOutputStream();
+            try {
+                while (core.contains("127.0.0.5")) {
+                    out.write(frames.array(), 0, frames.position());
+                }
+            } catch (final IOException e) {
+                // The router closed the connection
+            }
+            while (core.contains("127.0.0.5")) {
+                Thread.sleep(1);
+            }
+            assertEquals(0, core.size());
+            node.close();
+        } finally {
+            core.close();
+            loop.close();
+            loop.join();
+        }
+    }
+
+    /**
+     * the engine under test
+     */
+    private interface Engine {
+        void accept(SocketChannel channel) throws Exception;
+    }
+
+    /**
+     * connect a fake other router and three nodes to a core and check the messages
+     * of the control protocol
+     *
+     * @param core   the core of the router
+     * @param engine the engine that serves the nodes
+     */
+    private static void run(final RouterCore core, final Engine engine) throws Exception {
+        try (ServerSocket linkServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                ServerSocketChannel server = ServerSocketChannel.open()) {
+            // Play the other router, which speaks the binary protocol
+            final Socket other = new Socket(InetAddress.getLoopbackAddress(), linkServer.getLocalPort());
+            Execution.execute(new ServerThread(core, linkServer.accept(), "test router", true));
+            final ControlStream otherStream = new ControlStream(other.getInputStream(), other.getOutputStream(),
+                    true);
+            final ControlMessage message = new ControlMessage();
+
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final Socket first = connect(server, engine, "127.0.0.2");
+            final Socket second = connect(server, engine, "127.0.0.3");
+            while (core.size() < 2) {
+                Thread.sleep(1);
+            }
+
+            // The other router tells its routes to two nodes
+            otherStream.send(message.set(ControlMessage.ROUTE_UPDATE, 0, 0, 0, RoutingIndex.pack("10.0.0.9")));
+            otherStream.send(message.set(ControlMessage.ROUTE_UPDATE, 0, 0, 0, RoutingIndex.pack("10.0.0.8")));
+            while (core.distance("10.0.0.8") != 1) {
+                Thread.sleep(1);
+            }
+            assertEquals(2, core.routeCount());
+
+            // A lookup from a node that speaks the text protocol goes to the other
+            // router and the answer comes back as text
+            final OutputStream firstOut = first.getOutputStream();
+            final BufferedReader firstIn = new BufferedReader(new InputStreamReader(first.getInputStream()));
+            // Split the line over two writes to check that it is reassembled
+            firstOut.write("node:request:127.0.0.2:".getBytes());
+            firstOut.flush();
+            Thread.sleep(20);
+            firstOut.write("10.0.0.9\n".getBytes());
+            firstOut.flush();
+            receive(otherStream, message);
+            assertEquals("router:request:127.0.0.2:10.0.0.9", message.toString());
+            message.setType(ControlMessage.ROUTER_RESPONSE);
+            message.setFlags(ControlMessage.FLAG_YES);
+            otherStream.send(message);
+            assertEquals("YES", firstIn.readLine());
+
+            // A lookup from a node that speaks the binary protocol, split in the
+            // middle of the frame
+            final ByteBuffer frame = ByteBuffer.allocate(ControlCodec.MAX_MESSAGE);
+            ControlCodec.encode(message.set(ControlMessage.NODE_REQUEST, 0, 7, RoutingIndex.pack("127.0.0.3"),
+                    RoutingIndex.pack("10.0.0.8")), frame);
+            final OutputStream secondOut = second.getOutputStream();
+            secondOut.write(frame.array(), 0, 5);
+            secondOut.flush();
+            Thread.sleep(20);
+            secondOut.write(frame.array(), 5, frame.position() - 5);
+            secondOut.flush();
+            receive(otherStream, message);
+            assertEquals(ControlMessage.ROUTER_REQUEST, message.getType());
+            assertEquals(ControlMessage.MAX_HOPS, message.getFlags());
+            // The router gives the lookup an id of its own and restores the one of
+            // the node with the response
+            assertNotEquals(0, message.getRequestId());
+            message.setType(ControlMessage.ROUTER_RESPONSE);
+            message.setFlags(0);
+            otherStream.send(message);
+            final ControlStream secondStream = new ControlStream(second.getInputStream(), secondOut, true);
+            assertTrue(secondStream.receive(message));
+            assertEquals(ControlMessage.NODE_RESPONSE, message.getType());
+            assertEquals(7, message.getRequestId());
+            assertFalse(message.isYes());
+
+            // A lookup of a node of this router is answered right away and the
+            // node is told when that node leaves
+            secondStream.send(message.set(ControlMessage.NODE_REQUEST, 0, 8, RoutingIndex.pack("127.0.0.3"),
+                    RoutingIndex.pack("127.0.0.2")));
+            assertTrue(secondStream.receive(message));
+            assertEquals(ControlMessage.NODE_RESPONSE, message.getType());
+            assertTrue(message.isYes());
+            while (core.watcherCount() != 1) {
+                Thread.sleep(1);
+            }
+
+            // The other router asks for the nodes of this router
+            otherStream.send(message.set(ControlMessage.ROUTER_REQUEST, 0, 0, RoutingIndex.pack("10.0.0.9"),
+                    RoutingIndex.pack("127.0.0.3")));
+            receive(otherStream, message);
+            assertEquals("router:response:10.0.0.9:127.0.0.3:YES", message.toString());
+            otherStream.send(message.set(ControlMessage.ROUTER_REQUEST, 0, 0, RoutingIndex.pack("10.0.0.9"),
+                    RoutingIndex.pack("127.0.0.4")));
+            receive(otherStream, message);
+            assertEquals("router:response:10.0.0.9:127.0.0.4:NO", message.toString());
+
+            // A lookup is never sent back to the router it came from
+            otherStream.send(message.set(ControlMessage.ROUTER_REQUEST, ControlMessage.MAX_HOPS, 3,
+                    RoutingIndex.pack("10.0.0.1"), RoutingIndex.pack("10.0.0.9")));
+            receive(otherStream, message);
+            assertEquals(ControlMessage.ROUTER_RESPONSE, message.getType());
+            assertEquals(3, message.getRequestId());
+            assertFalse(message.isYes());
+
+            // A node that disconnects leaves the routing table
+            secondStream.send(message.set(ControlMessage.NODE_DISCONNECT, 0, 0, RoutingIndex.pack("127.0.0.3"), 0));
+            while (core.contains("127.0.0.3")) {
+                Thread.sleep(1);
+            }
+            assertEquals(-1, second.getInputStream().read());
+            assertTrue(core.contains("127.0.0.2"));
+            // The node that left is not kept as a watcher of the node it looked up
+            assertEquals(0, core.watcherCount());
+            // The other router is told the node cannot be reached anymore, so its
+            // nodes drop the node from their caches
+            receive(otherStream, message);
+            assertEquals(ControlMessage.ROUTE_UPDATE, message.getType());
+            assertEquals(ControlMessage.MAX_HOPS, message.getFlags());
+            assertEquals(RoutingIndex.pack("127.0.0.3"), message.getDestination());
+
+            // A node that sends something else is disconnected
+            final Socket third = connect(server, engine, "127.0.0.4");
+            while (!core.contains("127.0.0.4")) {
+                Thread.sleep(1);
+            }
+            third.getOutputStream().write("hello router\n".getBytes());
+            assertEquals(-1, third.getInputStream().read());
+            assertFalse(core.contains("127.0.0.4"));
+            receive(otherStream, message);
+            assertEquals(ControlMessage.ROUTE_UPDATE, message.getType());
+            assertEquals(RoutingIndex.pack("127.0.0.4"), message.getDestination());
+            third.close();
+
+            // A node that goes away leaves the routing table as well
+            first.close();
+            while (core.contains("127.0.0.2")) {
+                Thread.sleep(1);
+            }
+            assertFalse(core.contains("127.0.0.2"));
+            assertEquals(0, core.size());
+        }
+    }
+
+    /**
+     * receive the next message on the link of the fake other router, skipping
+     * the routes the router tells about nodes that joined, and the routes of
+     * the fake router that it tells back as unreachable (poison reverse)
+     *
+     * @param stream  the control stream of the fake router
+     * @param message the message the next message is decoded into
+     */
+    private static void receive(final ControlStream stream, final ControlMessage message) throws Exception {
+        do {
+            assertTrue(stream.receive(message));
+        } while (message.getType() == ControlMessage.ROUTE_UPDATE
+                && (message.getFlags() < ControlMessage.MAX_HOPS || message.getDestination() >>> 24 != 127));
+    }
+
+    /**
+     * connect a node from its own loopback address
+     *
+     * @param server  the channel the router listens on
+     * @param engine  the engine that serves the node
+     * @param address the loopback address of the node
+     * @return the socket of the node
+     */
+    private static Socket connect(final ServerSocketChannel server, final Engine engine, final String address)
+            throws Exception {
+        return connect(server, engine, address, 0);
+    }
+
+    /**
+     * connect a node from its own loopback address with a receive buffer of a
+     * given size. The size is set before connecting, so the window the node
+     * advertises never outgrows the buffer
+     *
+     * @param server        the channel the router listens on
+     * @param engine        the engine that serves the node
+     * @param address       the loopback address of the node
+     * @param receiveBuffer the size of the receive buffer, 0 for the default
+     * @return the socket of the node
+     */
+    private static Socket connect(final ServerSocketChannel server, final Engine engine, final String address,
+            final int receiveBuffer) throws Exception {
+        final Socket socket = new Socket();
+        if (receiveBuffer > 0) {
+            socket.setReceiveBufferSize(receiveBuffer);
+        }
+        socket.bind(new InetSocketAddress(address, 0));
+        socket.connect(server.getLocalAddress());
+        engine.accept(server.accept());
+        return socket;
+    }
+}
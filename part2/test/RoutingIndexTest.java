@@ -0,0 +1,83 @@
+package part2.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import part2.routers.RoutingIndex;
+
+public class RoutingIndexTest {
+
+    @Test
+    // Test that addresses are packed and unpacked, and that other strings are refused
+    public void testPack() {
+        assertEquals(0xC0A8010D, RoutingIndex.pack("192.168.1.13"));
+        assertEquals("192.168.1.13", RoutingIndex.unpack(RoutingIndex.pack("192.168.1.13")));
+        assertEquals("255.255.255.255", RoutingIndex.unpack(RoutingIndex.pack("255.255.255.255")));
+        for (final String address : new String[] { "", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1..2.3", "::1",
+                "1.2.3.4 " }) {
+            try {
+                RoutingIndex.pack(address);
+                assertTrue(address + " was packed", false);
+            } catch (final IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    // Test that a stale session handle does not remove the connection of a
+    // node that reconnected
+    public void testSessions() {
+        final RoutingIndex<String> index = new RoutingIndex<>(4);
+        final int address = RoutingIndex.pack("10.0.0.1");
+        final long first = index.put(address, "first");
+        final long second = index.put(address, "second");
+        assertEquals(1, index.size());
+        assertEquals(address, RoutingIndex.address(second));
+
+        assertFalse(index.remove(first));
+        assertEquals("second", index.get(address));
+        assertTrue(index.remove(second));
+        assertNull(index.get(address));
+        assertFalse(index.remove(second));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    // Test random puts and removes against a HashMap, so slots are reused and
+    // entries are shifted back across segment growth
+    public void testAgainstHashMap() {
+        final RoutingIndex<Integer> index = new RoutingIndex<>(8);
+        final Map<Integer, Long> sessions = new HashMap<>();
+        final Random random = new Random(14);
+        for (int i = 0; i < 200000; i++) {
+            // A small key range makes long probe runs and many removes
+            final int address = random.nextInt(20000) * 0x01000193;
+            if (random.nextInt(3) == 0 && sessions.containsKey(address)) {
+                assertTrue(index.remove(sessions.remove(address)));
+            } else {
+                sessions.put(address, index.put(address, address));
+            }
+        }
+        assertEquals(sessions.size(), index.size());
+        for (int key = 0; key < 20000; key++) {
+            final int address = key * 0x01000193;
+            if (sessions.containsKey(address)) {
+                assertEquals(Integer.valueOf(address), index.get(address));
+            } else {
+                assertNull(index.get(address));
+            }
+        }
+        assertEquals(sessions.size(), index.values().size());
+        index.clear();
+        assertEquals(0, index.size());
+    }
+}
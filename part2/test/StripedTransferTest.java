@@ -0,0 +1,137 @@
+package part2.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import part2.transfer.StripedReceiver;
+import part2.transfer.StripedSender;
+import part2.transfer.TransferHeader;
+import part2.transfer.TransferStats;
+
+public class StripedTransferTest {
+
+    @Test
+    // Test that a file split over several connections is reassembled at the
+    // right offsets
+    public void testStripedTransfer() throws Exception {
+        final int stripes = 4;
+        final File source = File.createTempFile("striped-", ".bin");
+        source.deleteOnExit();
+        final byte[] data = new byte[2 * 1024 * 1024 + 5];
+        new Random(7).nextBytes(data);
+        Files.write(source.toPath(), data);
+
+        // The receiver saves the file in a directory of its own, so the sender
+        // never reads the file that is being written
+        final Path directory = Files.createTempDirectory("striped-");
+        final File saved = directory.resolve(source.getName()).toFile();
+
+        final AtomicReference<TransferStats> completed = new AtomicReference<>();
+        final ExecutorService executor = Executors.newCachedThreadPool();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            // Accept one transfer connection per stripe
+            executor.submit(() -> {
+                for (int i = 0; i < stripes; i++) {
+                    final SocketChannel channel = server.accept();
+                    executor.submit(() -> {
+                        try (SocketChannel stripe = channel) {
+                            final DataInputStream in = new DataInputStream(stripe.socket().getInputStream());
+                            final DataOutputStream out = new DataOutputStream(stripe.socket().getOutputStream());
+                            assertEquals(TransferHeader.MODE_STRIPE, TransferHeader.readStart(in));
+                            final StripedReceiver receiver = new StripedReceiver();
+                            receiver.setDirectory(directory);
+                            final TransferStats stats = receiver.receiveStripe(in, stripe, out);
+                            if (stats != null) {
+                                completed.set(stats);
+                            }
+                        }
+                        return null;
+                    });
+                }
+                return null;
+            });
+
+            final TransferStats sent = new StripedSender((InetSocketAddress) server.getLocalAddress(), stripes)
+                    .send(source.getPath());
+            assertEquals(stripes, sent.getStripes());
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        try {
+            final TransferStats received = completed.get();
+            assertNotNull(received);
+            assertTrue(received.isVerified());
+            assertEquals(stripes, received.getStripes());
+            assertArrayEquals(data, Files.readAllBytes(saved.toPath()));
+        } finally {
+            saved.delete();
+            directory.toFile().delete();
+        }
+    }
+
+    @Test
+    // Test that a file whose other stripes never arrive is closed after the
+    // timeout
+    public void testIncompleteTransferTimesOut() throws Exception {
+        final File saved = File.createTempFile("striped-", ".part");
+        saved.deleteOnExit();
+        final long transferId = new Random().nextLong();
+        final byte[] range = new byte[1000];
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            try (SocketChannel sender = SocketChannel.open(server.getLocalAddress());
+                    SocketChannel channel = server.accept()) {
+                // The first of two stripes
+                final DataOutputStream stripe = new DataOutputStream(sender.socket().getOutputStream());
+                stripe.writeLong(transferId);
+                stripe.writeUTF(saved.getPath());
+                stripe.writeLong(range.length * 2);
+                stripe.writeInt(2);
+                stripe.writeLong(0);
+                stripe.writeLong(range.length);
+                stripe.write(range);
+                stripe.flush();
+
+                final StripedReceiver receiver = new StripedReceiver();
+                receiver.setTimeout(200);
+                assertNull(receiver.receiveStripe(new DataInputStream(channel.socket().getInputStream()),
+                        channel, new DataOutputStream(channel.socket().getOutputStream())));
+                assertTrue(StripedReceiver.isReceiving(transferId));
+            }
+        }
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (StripedReceiver.isReceiving(transferId) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertFalse(StripedReceiver.isReceiving(transferId));
+    }
+}
@@ -0,0 +1,322 @@
+package part2.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+import part2.transfer.FileReceiver;
+import part2.transfer.FileSender;
+import part2.transfer.ScheduledTransfer;
+import part2.transfer.TransferScheduler;
+
+public class TransferSchedulerTest {
+    // Bytes every transfer asks for at a time
+    private static final long CHUNK = 1024 * 1024;
+    // Bytes per second of the simulated link
+    private static final long LINK = 256 * CHUNK;
+
+    @Test(timeout = 30000)
+    // Test that busy transfers share the link by their weights. Every
+    // transfer takes as long to send its bytes as a real link would, so the
+    // other transfers wait for their turn meanwhile
+    public void testWeights() throws Exception {
+        final TransferScheduler scheduler = new TransferScheduler(0, 0);
+        final ScheduledTransfer light = scheduler.open("light", "peer", 1);
+        final ScheduledTransfer heavy = scheduler.open("heavy", "peer", 3);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final List<Thread> threads = start(stop, light, heavy);
+
+        // Only count the bytes sent once both threads run
+        while (light.getBytes() == 0 || heavy.getBytes() == 0) {
+            Thread.sleep(1);
+        }
+        final long lightStart = light.getBytes();
+        final long heavyStart = heavy.getBytes();
+        while (light.getBytes() - lightStart < 32 * CHUNK) {
+            Thread.sleep(1);
+        }
+        stop.set(true);
+        join(threads);
+
+        final double ratio = (double) (heavy.getBytes() - heavyStart) / (light.getBytes() - lightStart);
+        assertTrue("The ratio was " + ratio, ratio > 2.5 && ratio < 3.5);
+        assertEquals(2, scheduler.getTransfers().size());
+        light.close();
+        heavy.close();
+        assertTrue(scheduler.getTransfers().isEmpty());
+    }
+
+    @Test(timeout = 30000)
+    // Test that busy transfers to different peers also share the link by their
+    // weights, as the grants on the link are capped across peers
+    public void testWeightsAcrossPeers() throws Exception {
+        final TransferScheduler scheduler = new TransferScheduler(0, 0);
+        scheduler.setMaxGrants(1);
+        final ScheduledTransfer bulk = scheduler.open("bulk", "first", 1);
+        final ScheduledTransfer urgent = scheduler.open("urgent", "second", 3);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final List<Thread> threads = start(stop, bulk, urgent);
+
+        // Only count the bytes sent once both threads run
+        while (bulk.getBytes() == 0 || urgent.getBytes() == 0) {
+            Thread.sleep(1);
+        }
+        final long bulkStart = bulk.getBytes();
+        final long urgentStart = urgent.getBytes();
+        while (bulk.getBytes() - bulkStart < 32 * CHUNK) {
+            Thread.sleep(1);
+        }
+        stop.set(true);
+        join(threads);
+
+        final double ratio = (double) (urgent.getBytes() - urgentStart) / (bulk.getBytes() - bulkStart);
+        assertTrue("The ratio was " + ratio, ratio > 2.5 && ratio < 3.5);
+        bulk.close();
+        urgent.close();
+    }
+
+    @Test(timeout = 30000)
+    // Test that a small transfer is done after a few turns of a busy transfer
+    public void testSmallTransfer() throws Exception {
+        final TransferScheduler scheduler = new TransferScheduler(0, 0);
+        final ScheduledTransfer bulk = scheduler.open("bulk", "peer", 1);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final List<Thread> threads = start(stop, bulk);
+        while (bulk.getBytes() < 16 * CHUNK) {
+            Thread.sleep(1);
+        }
+
+        final long before = bulk.getBytes();
+        try (ScheduledTransfer small = scheduler.open("small", "peer", 4)) {
+            long left = CHUNK;
+            while (left > 0) {
+                left -= send(small, left);
+            }
+        }
+        // The small file needed one turn, the bulk transfer got about as many
+        final long during = bulk.getBytes() - before;
+        stop.set(true);
+        join(threads);
+        assertTrue("The bulk transfer sent " + during + " bytes", during <= 2 * CHUNK);
+        bulk.close();
+    }
+
+    @Test(timeout = 30000)
+    // Test that the cap of the link holds on average
+    public void testRate() throws Exception {
+        final long rate = 16 * CHUNK;
+        final TransferScheduler scheduler = new TransferScheduler(rate, 0);
+        try (ScheduledTransfer transfer = scheduler.open("capped", "peer", 1)) {
+            final long startTime = System.nanoTime();
+            long left = 8 * CHUNK;
+            while (left > 0) {
+                final long granted = transfer.acquire(left);
+                transfer.sent(granted);
+                left -= granted;
+            }
+            // The bucket starts full with a tenth of a second of tokens
+            final double seconds = (System.nanoTime() - startTime) / 1e9;
+            assertTrue("The transfer took " + seconds + " s", seconds >= 0.3);
+            assertTrue(transfer.getBytesPerSecond() < rate * 1.5);
+        }
+    }
+
+    @Test(timeout = 30000)
+    // Test that a peer over its cap does not hold back the transfers to other
+    // peers
+    public void testPeerRate() throws Exception {
+        final TransferScheduler scheduler = new TransferScheduler(0, 8 * CHUNK);
+        final ScheduledTransfer first = scheduler.open("first", "slow", 1);
+        final ScheduledTransfer second = scheduler.open("second", "slow", 1);
+        final ScheduledTransfer other = scheduler.open("other", "fast", 1);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final List<Thread> threads = start(stop, first, second, other);
+        Thread.sleep(1000);
+        stop.set(true);
+        join(threads);
+
+        // Both peers get their cap, which the first two transfers share
+        final double slow = first.getBytes() + second.getBytes();
+        assertTrue("The slow peer got " + slow + " bytes", slow < 12 * CHUNK);
+        assertTrue("The fast peer got " + other.getBytes() + " bytes", other.getBytes() > slow * 0.6);
+        assertTrue(Math.abs(first.getBytes() - second.getBytes()) <= 2 * CHUNK);
+        first.close();
+        second.close();
+        other.close();
+    }
+
+    @Test(timeout = 30000)
+    // Test that a range of a file sent through the scheduler arrives whole and
+    // is counted
+    public void testTransferTo() throws Exception {
+        final File file = File.createTempFile("scheduled-", ".bin");
+        file.deleteOnExit();
+        final byte[] data = new byte[3 * (int) CHUNK + 5];
+        new Random(3).nextBytes(data);
+        Files.write(file.toPath(), data);
+
+        final TransferScheduler scheduler = new TransferScheduler(0, 0);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                ScheduledTransfer transfer = scheduler.open(file.getName(), "peer", 1)) {
+            transfer.transferTo(fileChannel, 5, data.length - 5, Channels.newChannel(received));
+            assertEquals(data.length - 5, transfer.getBytes());
+        }
+        assertArrayEquals(Arrays.copyOfRange(data, 5, data.length), received.toByteArray());
+        assertTrue(scheduler.getTransfers().isEmpty());
+    }
+
+    @Test(timeout = 30000)
+    // Test that a peer that stops reading only holds up the transfers to itself
+    public void testStalledPeer() throws Exception {
+        final TransferScheduler scheduler = new TransferScheduler(0, 0);
+        final ScheduledTransfer stalled = scheduler.open("stalled", "slow", 1);
+        final ScheduledTransfer waiting = scheduler.open("waiting", "slow", 1);
+        final ScheduledTransfer other = scheduler.open("other", "fast", 1);
+
+        // The grant of the stalled transfer is never reported
+        stalled.acquire(CHUNK);
+        final CompletableFuture<Long> blocked = CompletableFuture.supplyAsync(() -> {
+            try {
+                return send(waiting, CHUNK);
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        long left = 4 * CHUNK;
+        while (left > 0) {
+            left -= send(other, left);
+        }
+        assertEquals(4 * CHUNK, other.getBytes());
+        try {
+            blocked.get(200, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            // expected
+        }
+        assertFalse(blocked.isDone());
+
+        // Once the peer reads again the other transfer to it goes on
+        stalled.sent(CHUNK);
+        assertTrue(blocked.get() > 0);
+        stalled.close();
+        waiting.close();
+        other.close();
+    }
+
+    @Test(timeout = 30000)
+    // Test that a file sent over the peer connection goes through the scheduler
+    // and its cap
+    public void testFileSenderIsScheduled() throws Exception {
+        final long rate = 4 * CHUNK;
+        final File file = File.createTempFile("scheduled-", ".bin");
+        file.deleteOnExit();
+        final File saved = new File(file.getPath() + ".out");
+        saved.deleteOnExit();
+        final byte[] data = new byte[2 * (int) CHUNK];
+        new Random(5).nextBytes(data);
+        Files.write(file.toPath(), data);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final CompletableFuture<Void> received = CompletableFuture.runAsync(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                    in.readUTF();
+                    new FileReceiver(in, channel).receive(saved.getPath(), in.readLong());
+                } catch (final IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+            try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+                final FileSender sender = new FileSender(new DataOutputStream(channel.socket().getOutputStream()),
+                        channel);
+                sender.setScheduler(new TransferScheduler(rate, 0), "peer", 1);
+                final long startTime = System.nanoTime();
+                sender.send(file.getPath());
+                // The bucket starts full with a tenth of a second of tokens
+                final double seconds = (System.nanoTime() - startTime) / 1e9;
+                assertTrue("The file took " + seconds + " s", seconds >= 0.3);
+            }
+            received.get();
+        }
+        assertArrayEquals(data, Files.readAllBytes(saved.toPath()));
+    }
+
+    /**
+     * start a thread per transfer that asks for bytes and reports them sent as
+     * fast as it can
+     *
+     * @param stop      the flag that ends the threads
+     * @param transfers the transfers
+     * @return the threads
+     */
+    private static List<Thread> start(final AtomicBoolean stop, final ScheduledTransfer... transfers) {
+        final List<Thread> threads = new ArrayList<>();
+        for (final ScheduledTransfer transfer : transfers) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    while (!stop.get()) {
+                        send(transfer, CHUNK);
+                    }
+                } catch (final IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+    /**
+     * ask for bytes and take as long to send them as the simulated link would
+     *
+     * @param transfer the transfer
+     * @param wanted   the amount of bytes the transfer wants to send
+     * @return the amount of bytes that were sent
+     */
+    private static long send(final ScheduledTransfer transfer, final long wanted) throws IOException {
+        final long granted = transfer.acquire(wanted);
+        LockSupport.parkNanos(granted * 1_000_000_000 / LINK);
+        transfer.sent(granted);
+        return granted;
+    }
+
+    /**
+     * wait for threads to end
+     *
+     * @param threads the threads
+     */
+    private static void join(final List<Thread> threads) throws InterruptedException {
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
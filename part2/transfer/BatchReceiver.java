@@ -0,0 +1,104 @@
+package part2.transfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * This receives batches of files that a peer sends with BatchSender. Every file
+ * is saved under the relative path the peer sent, below the working directory
+ * of this node, and the directories of the path are created as needed. Paths
+ * that would leave the working directory are refused.
+ */
+public class BatchReceiver {
+    private Path directory = null; // directory files are saved in, null for the working directory
+
+    /**
+     * sets the directory received files are saved in. The files keep the
+     * relative paths the peer sent, below the directory.
+     *
+     * @param directory the directory, or null to save files below the working
+     *                  directory
+     */
+    public void setDirectory(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * receive a batch of files from a transfer connection whose start has
+     * already been read
+     *
+     * @param in      the stream of the transfer connection. Must not be buffered
+     *                because the contents of the files are read from the
+     *                channel
+     * @param channel the channel of the transfer connection
+     * @param out     the stream used to answer the peer
+     * @return the statistics of the whole batch
+     * @throws IOException if the connection drops, a path is refused or a file
+     *                     cannot be written
+     */
+    public TransferStats receive(final DataInputStream in, final ReadableByteChannel channel,
+            final DataOutputStream out) throws IOException {
+        final FileReceiver receiver = new FileReceiver(in, channel);
+        final long startTime = System.nanoTime();
+        int files = 0;
+        int saved = 0;
+        long bytes = 0;
+        long expectedBytes = 0;
+
+        while (in.readBoolean()) {
+            final String path = in.readUTF();
+            final long size = in.readLong();
+            final File file = checkPath(directory, path);
+            final File parent = file.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create the directory " + parent + "!");
+            }
+
+            // The whole file is always read so the next file starts at the right place
+            final TransferStats stats = receiver.receive(path, size);
+            files++;
+            expectedBytes += size;
+            if (stats.isVerified()) {
+                saved++;
+                bytes += stats.getBytes();
+            } else {
+                System.err.println("The file " + path + " does not match the " + size
+                        + " bytes the peer announced!");
+            }
+        }
+
+        // Answer once for the whole batch
+        out.writeInt(saved);
+        out.writeLong(bytes);
+        out.flush();
+        return new TransferStats(files + " files", bytes, System.nanoTime() - startTime,
+                "batch of " + files + " files", expectedBytes, saved == files);
+    }
+
+    /**
+     * check that a path from the peer stays below the directory files are saved
+     * in
+     *
+     * @param directory the directory files are saved in, or null for the
+     *                  working directory
+     * @param path      the relative path the peer sent
+     * @return the file the path names
+     * @throws IOException if the path is empty, absolute or leaves the
+     *                     directory
+     */
+    static File checkPath(final Path directory, final String path) throws IOException {
+        if (path.isEmpty() || path.startsWith("/") || path.startsWith("\\") || new File(path).isAbsolute()) {
+            throw new IOException("The peer sent the path " + path + " which is not relative!");
+        }
+        for (final String part : path.split("[/\\\\]")) {
+            if (part.equals("..")) {
+                throw new IOException("The peer sent the path " + path + " which leaves this directory!");
+            }
+        }
+        return directory == null ? new File(path) : directory.resolve(path).toFile();
+    }
+}
@@ -0,0 +1,207 @@
+package part2.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This sends many files to a peer in one session over a single transfer
+ * connection.
+ *
+ * The files are named by a directory, which sends every file below it, or by a
+ * glob such as logs/*.txt. Every file is announced with its relative path
+ * (writeUTF, with / between the parts) and its size (writeLong), followed by
+ * its contents, and the next file follows right after without waiting for the
+ * peer. Small files are copied into the stream buffer so that many of them go
+ * out in one write, and larger files are sent with transferTo. A false boolean
+ * ends the batch, and the peer answers once with the amount of files and bytes
+ * it saved.
+ *
+ * The files of a directory keep their path relative to the parent of the
+ * directory, so the peer recreates the directory itself. The files of a glob
+ * keep their path relative to the directory the glob starts in.
+ */
+public class BatchSender {
+    // Files up to this size are copied into the stream buffer instead of being
+    // sent with transferTo
+    private static final int SMALL_FILE = 64 * 1024;
+
+    private final InetSocketAddress peer; // address of the peer's listening port
+    private TransferScheduler scheduler = null; // scheduler the files are sent through, null for none
+    private int weight = 1; // weight of the batch in the scheduler
+
+    /**
+     * create a new engine for sending batches of files
+     *
+     * @param peer the address and port the peer listens on
+     */
+    public BatchSender(final InetSocketAddress peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * sets the scheduler the files are sent through
+     *
+     * @param scheduler the scheduler, null to send without one
+     * @param weight    the weight of the batch in the scheduler
+     */
+    public void setScheduler(final TransferScheduler scheduler, final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("A transfer needs a weight of at least 1!");
+        }
+        this.scheduler = scheduler;
+        this.weight = weight;
+    }
+
+    /**
+     * send every file of a directory or glob to the peer
+     *
+     * @param pattern a directory, a single file or a glob
+     * @return the statistics of the whole batch
+     * @throws IOException if a file cannot be read or the peer cannot be
+     *                     written to
+     */
+    public TransferStats send(final String pattern) throws IOException {
+        return send(pattern, "");
+    }
+
+    /**
+     * send every file of a directory or glob to the peer and have the peer save
+     * the files below another directory
+     *
+     * @param pattern         a directory, a single file or a glob
+     * @param remoteDirectory the directory the peer saves the files below, or an
+     *                        empty string for the peer's working directory
+     * @return the statistics of the whole batch
+     * @throws IOException if a file cannot be read or the peer cannot be
+     *                     written to
+     */
+    public TransferStats send(final String pattern, final String remoteDirectory) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        final Path base = resolve(pattern, files);
+        if (files.isEmpty()) {
+            throw new IOException("No files match " + pattern + "!");
+        }
+        final String prefix = remoteDirectory.isEmpty() || remoteDirectory.endsWith("/") ? remoteDirectory
+                : remoteDirectory + "/";
+
+        final byte[] small = new byte[SMALL_FILE];
+        try (SocketChannel channel = SocketChannel.open(peer);
+                ScheduledTransfer transfer = ScheduledTransfer.open(scheduler, pattern, peer, weight)) {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    ScheduledTransfer.wrap(transfer, channel.socket().getOutputStream()), 256 * 1024));
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(channel.socket().getInputStream()));
+
+            final long startTime = System.nanoTime();
+            TransferHeader.writeStart(out, TransferHeader.MODE_BATCH);
+            long total = 0;
+
+            for (final Path file : files) {
+                try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    final long size = fileChannel.size();
+                    out.writeBoolean(true);
+                    out.writeUTF(prefix + base.relativize(file).toString().replace(File.separatorChar, '/'));
+                    out.writeLong(size);
+
+                    if (size <= SMALL_FILE) {
+                        // Let small files share writes with the files around them
+                        final ByteBuffer buffer = ByteBuffer.wrap(small, 0, (int) size);
+                        while (buffer.hasRemaining()) {
+                            if (fileChannel.read(buffer) < 0) {
+                                throw new IOException("The file " + file + " ended while it was being sent!");
+                            }
+                        }
+                        out.write(small, 0, (int) size);
+                    } else {
+                        out.flush();
+                        ScheduledTransfer.transferTo(transfer, fileChannel, 0, size, channel);
+                    }
+                    total += size;
+                }
+            }
+            out.writeBoolean(false);
+            out.flush();
+
+            // The peer answers once for the whole batch
+            final int saved = in.readInt();
+            final long savedBytes = in.readLong();
+            if (saved != files.size() || savedBytes != total) {
+                throw new IOException("The peer saved " + saved + " of " + files.size() + " files!");
+            }
+            return new TransferStats(pattern, total, System.nanoTime() - startTime,
+                    "batch of " + files.size() + " files");
+        }
+    }
+
+    /**
+     * find the files named by a directory, a single file or a glob
+     *
+     * @param pattern a directory, a single file or a glob
+     * @param files   the list the files are added to
+     * @return the directory the paths sent to the peer are relative to
+     * @throws IOException if a directory cannot be listed
+     */
+    static Path resolve(final String pattern, final List<Path> files) throws IOException {
+        final Path path = Paths.get(pattern);
+
+        // A directory or a single file
+        if (Files.exists(path)) {
+            final Path parent = path.toAbsolutePath().normalize().getParent();
+            final Path base = parent == null ? path.toAbsolutePath() : parent;
+            files.addAll(walk(path.toAbsolutePath().normalize()));
+            return base;
+        }
+
+        // A glob starts below its longest leading part without wildcards
+        Path root = path.isAbsolute() ? path.getRoot() : Paths.get("");
+        for (final Path part : path) {
+            if (part.toString().matches(".*[*?\\[{].*")) {
+                break;
+            }
+            root = root.resolve(part);
+        }
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        final Path start = root.toString().isEmpty() ? Paths.get(".") : root;
+        for (final Path file : walk(start)) {
+            final Path relative = start.equals(Paths.get(".")) ? start.relativize(file) : file;
+            if (matcher.matches(relative)) {
+                files.add(file.toAbsolutePath().normalize());
+            }
+        }
+        return start.toAbsolutePath().normalize();
+    }
+
+    /**
+     * list every regular file below a path
+     *
+     * @param start a directory or a single file
+     * @return the regular files below start
+     * @throws IOException if a directory cannot be listed
+     */
+    private static List<Path> walk(final Path start) throws IOException {
+        if (!Files.isDirectory(start)) {
+            return Files.isRegularFile(start) ? List.of(start) : List.of();
+        }
+        try (Stream<Path> paths = Files.walk(start)) {
+            return paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+    }
+}
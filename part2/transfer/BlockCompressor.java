@@ -0,0 +1,128 @@
+package part2.transfer;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This compresses and decompresses the independent blocks of a compressed
+ * transfer.
+ *
+ * Before a block is compressed, the entropy of a sample of the block is
+ * estimated. Content that is already compressed, like video, has close to 8
+ * bits of entropy per byte and is stored as it is instead of wasting CPU time
+ * on it. A block is also stored as it is if compressing it did not make it
+ * smaller.
+ */
+public final class BlockCompressor {
+    // How a block is stored on the wire
+    public static final byte STORED = 0; // the block is sent as it is
+    public static final byte DEFLATED = 1; // the block is compressed with Deflater
+
+    // Amount of bytes sampled to estimate the entropy of a block
+    private static final int SAMPLE_SIZE = 8 * 1024;
+
+    // Blocks with more entropy than this, in bits per byte, are not compressed
+    private static final double MAX_ENTROPY = 7.5;
+
+    // Every thread keeps its own Deflater and Inflater
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal
+            .withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private BlockCompressor() {
+    }
+
+    /**
+     * estimate the Shannon entropy of a block from a sample of it
+     *
+     * @param data   the array holding the block
+     * @param length the length of the block
+     * @return the estimated entropy in bits per byte
+     */
+    public static double sampleEntropy(final byte[] data, final int length) {
+        final int sample = Math.min(SAMPLE_SIZE, length);
+        if (sample == 0) {
+            return 0;
+        }
+
+        // Spread the sample over the block in 4 parts
+        final int[] counts = new int[256];
+        final int part = Math.max(1, sample / 4);
+        final int stride = Math.max(part, length / 4);
+        int sampled = 0;
+        for (int start = 0; start < length && sampled < sample; start += stride) {
+            final int end = Math.min(length, start + part);
+            for (int i = start; i < end; i++) {
+                counts[data[i] & 0xFF]++;
+            }
+            sampled += end - start;
+        }
+
+        double entropy = 0;
+        for (final int count : counts) {
+            if (count > 0) {
+                final double p = (double) count / sampled;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    /**
+     * compress a block if it is worth compressing
+     *
+     * @param data   the array holding the block
+     * @param length the length of the block
+     * @param out    the array the compressed block is written into. Must be at
+     *               least length bytes long
+     * @return the length of the compressed block in out, or -1 if the block
+     *         should be stored as it is
+     */
+    public static int compress(final byte[] data, final int length, final byte[] out) {
+        if (sampleEntropy(data, length) > MAX_ENTROPY) {
+            return -1;
+        }
+
+        final Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+
+        // Give up once the output is not smaller than the input
+        int compressed = 0;
+        while (!deflater.finished() && compressed < length) {
+            compressed += deflater.deflate(out, compressed, length - compressed);
+        }
+        return deflater.finished() && compressed < length ? compressed : -1;
+    }
+
+    /**
+     * decompress a block
+     *
+     * @param data   the array holding the compressed block
+     * @param length the length of the compressed block
+     * @param out    the array the block is written into
+     * @param size   the length of the block before it was compressed
+     * @throws DataFormatException if the block is not valid deflate data or has
+     *                             the wrong length
+     */
+    public static void decompress(final byte[] data, final int length, final byte[] out, final int size)
+            throws DataFormatException {
+        final Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(data, 0, length);
+
+        int inflated = 0;
+        while (inflated < size && !inflater.finished()) {
+            final int count = inflater.inflate(out, inflated, size - inflated);
+            if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                break;
+            }
+            inflated += count;
+        }
+        if (inflated != size || !inflater.finished()) {
+            throw new DataFormatException("A block inflated to " + inflated + " instead of " + size + " bytes!");
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package part2.transfer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This is a pool of direct ByteBuffers that are reused between transfers.
+ * Allocating a direct buffer is expensive, so the receive engines borrow a
+ * buffer for the length of a transfer and give it back afterwards.
+ */
+public class BufferPool {
+    private final int bufferSize; // capacity of every buffer in the pool
+    private final int maxPooled; // maximum amount of idle buffers kept in the pool
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>(); // idle buffers
+    private final AtomicInteger pooled = new AtomicInteger(); // amount of idle buffers in the pool
+
+    /**
+     * create a new pool of direct buffers
+     *
+     * @param bufferSize the capacity of every buffer in bytes
+     * @param maxPooled  the maximum amount of idle buffers kept in the pool
+     */
+    public BufferPool(final int bufferSize, final int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * borrow a cleared buffer from the pool. A new buffer is allocated if the
+     * pool is empty.
+     *
+     * @return a cleared direct buffer
+     */
+    public ByteBuffer acquire() {
+        final ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * give a buffer back to the pool. The buffer is dropped if the pool is
+     * already full.
+     *
+     * @param buffer the buffer that was borrowed with acquire
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            buffers.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * gets the capacity of the buffers in this pool
+     *
+     * @return the capacity in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,186 @@
+package part2.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * This is the checkpoint journal of a resumable transfer. It records which
+ * chunks of a file have been written to the temporary file and forced to disk.
+ *
+ * The journal starts with the key of the transfer, the size of the file and the
+ * chunk size, followed by the index of every completed chunk. Chunk indices are
+ * only appended after the data of the chunk is on disk, so after a crash every
+ * chunk in the journal is known to be complete. A torn record at the end of the
+ * journal is ignored.
+ */
+public class ChunkJournal {
+    private final File file; // the journal file
+    private final String key; // key that identifies the transfer
+    private final long size; // size of the whole file
+    private final int chunkSize; // size of every chunk except the last
+    private final BitSet completed = new BitSet(); // chunks that are on disk
+    private final FileOutputStream fileOut; // stream used to append to the journal
+    private final DataOutputStream out; // data stream over fileOut
+
+    /**
+     * open the journal of a transfer. A journal left behind by the same transfer
+     * is loaded. A journal of any other transfer is replaced.
+     *
+     * @param file      the journal file
+     * @param key       the key that identifies the transfer
+     * @param size      the size of the whole file
+     * @param chunkSize the size of every chunk except the last
+     * @throws IOException if the journal cannot be read or written
+     */
+    public ChunkJournal(final File file, final String key, final long size, final int chunkSize)
+            throws IOException {
+        this.file = file;
+        this.key = key;
+        this.size = size;
+        this.chunkSize = chunkSize;
+
+        final boolean resumed = file.exists() && load();
+        fileOut = new FileOutputStream(file, resumed);
+        out = new DataOutputStream(fileOut);
+        if (!resumed) {
+            out.writeUTF(key);
+            out.writeLong(size);
+            out.writeInt(chunkSize);
+            sync();
+        }
+    }
+
+    /**
+     * read the chunks completed by a previous attempt of the same transfer
+     *
+     * @return true if the journal belongs to this transfer, false otherwise
+     * @throws IOException if the journal cannot be read
+     */
+    private boolean load() throws IOException {
+        boolean matches = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            matches = key.equals(in.readUTF()) && in.readLong() == size && in.readInt() == chunkSize;
+            while (matches) {
+                final long chunk = in.readLong();
+                if (chunk >= 0 && chunk < getChunkCount()) {
+                    completed.set((int) chunk);
+                }
+            }
+        } catch (final EOFException e) {
+            // Either the end of the journal or a torn record
+        }
+        return matches;
+    }
+
+    /**
+     * gets the amount of chunks in the file
+     *
+     * @return the amount of chunks
+     */
+    public int getChunkCount() {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * gets the amount of bytes held by completed chunks
+     *
+     * @return the amount of bytes
+     */
+    public long getCompletedBytes() {
+        long bytes = (long) completed.cardinality() * chunkSize;
+
+        // The last chunk may be shorter than the others
+        final int last = getChunkCount() - 1;
+        if (last >= 0 && completed.get(last)) {
+            final long lastLength = size - (long) last * chunkSize;
+            bytes -= chunkSize - lastLength;
+        }
+        return bytes;
+    }
+
+    /**
+     * returns whether every chunk of the file is complete
+     *
+     * @return true if the file is complete, false otherwise
+     */
+    public boolean isComplete() {
+        return completed.cardinality() == getChunkCount();
+    }
+
+    /**
+     * gets the ranges of the file that are missing. Neighbouring missing chunks
+     * are merged into a single range.
+     *
+     * @return the missing ranges as {offset, length} pairs in file order
+     */
+    public List<long[]> getMissingRanges() {
+        final List<long[]> ranges = new ArrayList<>();
+        final int count = getChunkCount();
+        int chunk = completed.nextClearBit(0);
+        while (chunk < count) {
+            final int next = completed.nextSetBit(chunk);
+            final int end = next < 0 ? count : Math.min(next, count);
+            final long offset = (long) chunk * chunkSize;
+            final long length = Math.min((long) end * chunkSize, size) - offset;
+            ranges.add(new long[] { offset, length });
+            chunk = completed.nextClearBit(end);
+        }
+        return ranges;
+    }
+
+    /**
+     * record that chunks are complete. The data of the chunks must already be
+     * forced to disk.
+     *
+     * @param chunks the indices of the completed chunks
+     * @throws IOException if the journal cannot be written
+     */
+    public void checkpoint(final List<Integer> chunks) throws IOException {
+        if (chunks.isEmpty()) {
+            return;
+        }
+        for (final int chunk : chunks) {
+            out.writeLong(chunk);
+            completed.set(chunk);
+        }
+        sync();
+    }
+
+    /**
+     * close the journal and keep it so the transfer can be resumed
+     *
+     * @throws IOException if the journal cannot be closed
+     */
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * close and delete the journal once the transfer is complete
+     *
+     * @throws IOException if the journal cannot be closed
+     */
+    public void delete() throws IOException {
+        close();
+        file.delete();
+    }
+
+    /**
+     * force everything written to the journal to disk
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void sync() throws IOException {
+        out.flush();
+        fileOut.getFD().sync();
+    }
+}
@@ -0,0 +1,204 @@
+package part2.transfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * This is the list of content defined chunks of a file, with the position,
+ * length and SHA-256 hash of every chunk.
+ *
+ * Chunk boundaries are found with a gear hash, as in FastCDC. The hash only
+ * depends on the last 64 bytes, so a boundary is placed by the content around
+ * it rather than by its position in the file. Inserting or removing bytes only
+ * changes the chunks around the edit, and identical regions of different files
+ * are split into identical chunks.
+ */
+public class ChunkList {
+    // Limits and target of the chunk length
+    public static final int MIN_CHUNK = 16 * 1024;
+    public static final int MAX_CHUNK = 256 * 1024;
+
+    // A boundary is placed where the top 16 bits of the hash are zero, which
+    // gives chunks of about MIN_CHUNK + 64 KB
+    private static final long MASK = 0xFFFFL << 48;
+
+    // Length of the hash of a chunk
+    public static final int HASH_LENGTH = 32;
+
+    // Random value for every byte value, the same on every node
+    private static final long[] GEAR = new long[256];
+    static {
+        final Random random = new Random(0x5EED_C0DEL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private int count; // amount of chunks
+    private long[] offsets = new long[64]; // position of every chunk in the file
+    private int[] lengths = new int[64]; // length of every chunk
+    private byte[] hashes = new byte[64 * HASH_LENGTH]; // hash of every chunk, HASH_LENGTH bytes each
+
+    /**
+     * split a file into chunks and hash every chunk
+     *
+     * @param file the file to split
+     * @return the chunks of the file
+     * @throws IOException if the file cannot be read
+     */
+    public static ChunkList scan(final File file) throws IOException {
+        final ChunkList chunks = new ChunkList();
+        final MessageDigest digest = newDigest();
+        final byte[] buffer = new byte[4 * MAX_CHUNK];
+        int filled = 0;
+        int start = 0;
+        long position = 0;
+        boolean ended = false;
+
+        try (InputStream in = new FileInputStream(file)) {
+            while (true) {
+                // Keep at least MAX_CHUNK bytes ahead of the next boundary
+                if (!ended && filled - start < MAX_CHUNK) {
+                    System.arraycopy(buffer, start, buffer, 0, filled - start);
+                    filled -= start;
+                    start = 0;
+                    while (filled < buffer.length) {
+                        final int read = in.read(buffer, filled, buffer.length - filled);
+                        if (read < 0) {
+                            ended = true;
+                            break;
+                        }
+                        filled += read;
+                    }
+                }
+                if (start == filled) {
+                    break;
+                }
+
+                final int length = cut(buffer, start, filled - start);
+                digest.update(buffer, start, length);
+                chunks.add(position, length, digest.digest(), 0);
+                position += length;
+                start += length;
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * find the length of the next chunk
+     *
+     * @param data   the array holding the data after the previous boundary
+     * @param offset the position of the previous boundary in data
+     * @param length the amount of data available. Anything shorter than
+     *               MAX_CHUNK must be the end of the file
+     * @return the length of the next chunk
+     */
+    public static int cut(final byte[] data, final int offset, final int length) {
+        if (length <= MIN_CHUNK) {
+            return length;
+        }
+        final int end = Math.min(length, MAX_CHUNK);
+        long hash = 0;
+        for (int i = MIN_CHUNK; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * add a chunk to the end of the list
+     *
+     * @param offset     the position of the chunk in the file
+     * @param length     the length of the chunk
+     * @param hash       the array holding the hash of the chunk
+     * @param hashOffset the position of the hash in hash
+     */
+    public void add(final long offset, final int length, final byte[] hash, final int hashOffset) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+            hashes = Arrays.copyOf(hashes, count * 2 * HASH_LENGTH);
+        }
+        offsets[count] = offset;
+        lengths[count] = length;
+        System.arraycopy(hash, hashOffset, hashes, count * HASH_LENGTH, HASH_LENGTH);
+        count++;
+    }
+
+    /**
+     * gets the amount of chunks
+     *
+     * @return the amount of chunks
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * gets the position of a chunk in the file
+     *
+     * @param index the index of the chunk
+     * @return the position of the chunk
+     */
+    public long getOffset(final int index) {
+        return offsets[index];
+    }
+
+    /**
+     * gets the length of a chunk
+     *
+     * @param index the index of the chunk
+     * @return the length of the chunk
+     */
+    public int getLength(final int index) {
+        return lengths[index];
+    }
+
+    /**
+     * gets the array holding the hashes of the chunks. The hash of chunk i
+     * starts at i * HASH_LENGTH.
+     *
+     * @return the hashes of the chunks
+     */
+    public byte[] getHashes() {
+        return hashes;
+    }
+
+    /**
+     * check whether data has the hash of a chunk
+     *
+     * @param index  the index of the chunk
+     * @param data   the array holding the data
+     * @param length the length of the data
+     * @param digest the digest used for the hash
+     * @return true if the data matches the chunk
+     */
+    public boolean matches(final int index, final byte[] data, final int length, final MessageDigest digest) {
+        digest.update(data, 0, length);
+        return length == lengths[index] && Arrays.equals(digest.digest(), 0, HASH_LENGTH, hashes,
+                index * HASH_LENGTH, (index + 1) * HASH_LENGTH);
+    }
+
+    /**
+     * create the digest used for the hashes of chunks
+     *
+     * @return a new SHA-256 digest
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available!", e);
+        }
+    }
+}
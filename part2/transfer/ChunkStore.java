@@ -0,0 +1,323 @@
+package part2.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This is the content addressed index of the chunks a node already holds. It
+ * maps the hash of a chunk to a file this node received and the position of the
+ * chunk in that file, so a chunk that arrives again can be copied locally
+ * instead of being sent over the network.
+ *
+ * The index is kept in memory in a LinkedHashMap in access order, which evicts
+ * the least recently used chunk once the index holds maxEntries chunks. Every
+ * added chunk is appended to a log on disk (index.log in the store directory)
+ * that is replayed when the node starts, and the log is rewritten from memory
+ * once it holds twice as many records as the index.
+ *
+ * The index only points into files, so a file that was changed or deleted
+ * since leaves stale entries behind. Callers must check the hash of every chunk
+ * they read through the index.
+ *
+ * The store is guarded by a ReentrantLock rather than synchronized methods, so
+ * appending to the log does not pin the carrier of a virtual thread.
+ */
+public class ChunkStore {
+    // Directory and size of the store every node uses
+    private static final String DEFAULT_DIRECTORY = System.getProperty("transfer.chunkStore", ".chunks");
+    private static final int DEFAULT_MAX_ENTRIES = Integer.getInteger("transfer.chunkStoreEntries", 262144);
+
+    private static final ReentrantLock DEFAULT_LOCK = new ReentrantLock(); // guards defaultStore
+    private static ChunkStore defaultStore; // store shared by every receive of this node
+
+    /**
+     * This is the hash of a chunk, used as the key of the index
+     */
+    private static final class Key {
+        private final long a; // bytes 0 to 7 of the hash
+        private final long b; // bytes 8 to 15 of the hash
+        private final long c; // bytes 16 to 23 of the hash
+        private final long d; // bytes 24 to 31 of the hash
+
+        Key(final byte[] hash, final int offset) {
+            final ByteBuffer buffer = ByteBuffer.wrap(hash, offset, ChunkList.HASH_LENGTH);
+            a = buffer.getLong();
+            b = buffer.getLong();
+            c = buffer.getLong();
+            d = buffer.getLong();
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) other;
+            return a == key.a && b == key.b && c == key.c && d == key.d;
+        }
+
+        @Override
+        public int hashCode() {
+            // The hash is already uniformly distributed
+            return (int) a;
+        }
+
+        /**
+         * write the hash to the log
+         *
+         * @param out the stream of the log
+         * @throws IOException if an I/O error occurs
+         */
+        void write(final DataOutputStream out) throws IOException {
+            out.writeLong(a);
+            out.writeLong(b);
+            out.writeLong(c);
+            out.writeLong(d);
+        }
+    }
+
+    /**
+     * This is where a chunk can be found on this node
+     */
+    public static final class Location {
+        private final String path; // absolute path of the file holding the chunk
+        private final long offset; // position of the chunk in the file
+        private final int length; // length of the chunk
+
+        Location(final String path, final long offset, final int length) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * gets the path of the file holding the chunk
+         *
+         * @return the absolute path of the file
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * gets the position of the chunk in the file
+         *
+         * @return the position of the chunk
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * gets the length of the chunk
+         *
+         * @return the length of the chunk
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private final File log; // log of the added chunks
+    private final int maxEntries; // maximum amount of chunks in the index
+    private final LinkedHashMap<Key, Location> index; // chunks by hash, least recently used first
+    private DataOutputStream out; // stream used to append to the log
+    private int records; // amount of records in the log
+    private final ReentrantLock lock = new ReentrantLock(); // guards the index and the log
+
+    /**
+     * open the store in a directory, loading the chunks recorded by an earlier
+     * run of the node
+     *
+     * @param directory  the directory of the store
+     * @param maxEntries the maximum amount of chunks in the index
+     * @throws IOException if the log cannot be read or written
+     */
+    public ChunkStore(final File directory, final int maxEntries) throws IOException {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("The chunk store needs room for at least one chunk!");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the chunk store " + directory + "!");
+        }
+        this.log = new File(directory, "index.log");
+        this.maxEntries = maxEntries;
+        this.index = new LinkedHashMap<Key, Location>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, Location> eldest) {
+                return size() > ChunkStore.this.maxEntries;
+            }
+        };
+
+        if (log.exists()) {
+            // Rewrite the log so new records never follow a torn record
+            load();
+            compact();
+        } else {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(log), 64 * 1024));
+        }
+    }
+
+    /**
+     * gets the store every receive of this node shares. It is opened the first
+     * time it is needed from the transfer.chunkStore and
+     * transfer.chunkStoreEntries system properties.
+     *
+     * @return the store of this node
+     * @throws IOException if the store cannot be opened
+     */
+    public static ChunkStore getDefault() throws IOException {
+        DEFAULT_LOCK.lock();
+        try {
+            if (defaultStore == null) {
+                defaultStore = new ChunkStore(new File(DEFAULT_DIRECTORY), DEFAULT_MAX_ENTRIES);
+            }
+            return defaultStore;
+        } finally {
+            DEFAULT_LOCK.unlock();
+        }
+    }
+
+    /**
+     * replay the log into the index. A torn record at the end of the log is
+     * ignored.
+     *
+     * @throws IOException if the log cannot be read
+     */
+    private void load() throws IOException {
+        final Map<String, String> paths = new HashMap<>(); // share one String per file
+        final byte[] hash = new byte[ChunkList.HASH_LENGTH];
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(log), 64 * 1024))) {
+            while (true) {
+                in.readFully(hash);
+                final String path = in.readUTF();
+                final long offset = in.readLong();
+                final int length = in.readInt();
+                index.put(new Key(hash, 0), new Location(paths.computeIfAbsent(path, p -> p), offset, length));
+                records++;
+            }
+        } catch (final EOFException e) {
+            // Either the end of the log or a torn record
+        }
+    }
+
+    /**
+     * find where a chunk is held on this node
+     *
+     * @param hashes the array holding the hash of the chunk
+     * @param offset the position of the hash in hashes
+     * @return the location of the chunk, or null if this node does not hold it
+     */
+    public Location find(final byte[] hashes, final int offset) {
+        lock.lock();
+        try {
+            return index.get(new Key(hashes, offset));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * add every chunk of a file to the index and append them to the log
+     *
+     * @param file   the file holding the chunks
+     * @param chunks the chunks of the file
+     * @throws IOException if the log cannot be written
+     */
+    public void addFile(final File file, final ChunkList chunks) throws IOException {
+        final String path = file.getAbsolutePath();
+        lock.lock();
+        try {
+            for (int i = 0; i < chunks.getCount(); i++) {
+                final Key key = new Key(chunks.getHashes(), i * ChunkList.HASH_LENGTH);
+                index.put(key, new Location(path, chunks.getOffset(i), chunks.getLength(i)));
+                key.write(out);
+                out.writeUTF(path);
+                out.writeLong(chunks.getOffset(i));
+                out.writeInt(chunks.getLength(i));
+                records++;
+            }
+            out.flush();
+
+            // Drop the records of evicted and replaced chunks from the log
+            if (records > 2 * maxEntries) {
+                compact();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * rewrite the log with only the chunks in the index
+     *
+     * @throws IOException if the log cannot be written
+     */
+    private void compact() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        final File temp = new File(log.getPath() + ".tmp");
+        try (DataOutputStream tempOut = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024))) {
+            for (final Map.Entry<Key, Location> entry : index.entrySet()) {
+                entry.getKey().write(tempOut);
+                tempOut.writeUTF(entry.getValue().path);
+                tempOut.writeLong(entry.getValue().offset);
+                tempOut.writeInt(entry.getValue().length);
+            }
+        }
+        try {
+            Files.move(temp.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        records = index.size();
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(log, true), 64 * 1024));
+    }
+
+    /**
+     * gets the amount of chunks in the index
+     *
+     * @return the amount of chunks
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * close the log of the store
+     *
+     * @throws IOException if the log cannot be closed
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            out.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
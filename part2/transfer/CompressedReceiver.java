@@ -0,0 +1,98 @@
+package part2.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.zip.DataFormatException;
+
+/**
+ * This receives files that a peer sends with CompressedSender. Compressed
+ * blocks are inflated as they arrive and every block is written to the file in
+ * order, so the saved file is identical to the file the peer sent.
+ */
+public class CompressedReceiver {
+    private Path directory = null; // directory files are saved in, null for the paths the peer sent
+
+    /**
+     * sets the directory received files are saved in. The files are saved
+     * under their names only, without the directories the peer sent.
+     *
+     * @param directory the directory, or null to save files under the paths
+     *                  the peer sent
+     */
+    public void setDirectory(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * receive a file from a transfer connection whose start has already been
+     * read
+     *
+     * @param socketIn the stream of the transfer connection
+     * @param out      the stream used to answer the peer
+     * @return the statistics of the transfer
+     * @throws IOException if the connection drops, a block is corrupt or the
+     *                     file cannot be written
+     */
+    public TransferStats receive(final InputStream socketIn, final DataOutputStream out) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socketIn, 64 * 1024));
+
+        // Read what the peer wants to send
+        final String fileName = FileReceiver.resolve(directory, in.readUTF());
+        final long size = in.readLong();
+
+        final byte[] packed = new byte[CompressedSender.BLOCK_SIZE];
+        final byte[] data = new byte[CompressedSender.BLOCK_SIZE];
+        final long startTime = System.nanoTime();
+        long received = 0;
+        long wireBytes = 0;
+        long cpuNanos = 0;
+
+        try (FileOutputStream fileOut = new FileOutputStream(fileName)) {
+            while (true) {
+                final byte type = in.readByte();
+                if (type == CompressedSender.END_OF_FILE) {
+                    break;
+                }
+                final int length = in.readInt();
+                final int packedLength = in.readInt();
+                if (length < 0 || length > data.length || packedLength < 0 || packedLength > packed.length) {
+                    throw new IOException("Malformed block of length " + length + "!");
+                }
+
+                if (type == BlockCompressor.STORED) {
+                    in.readFully(data, 0, length);
+                } else if (type == BlockCompressor.DEFLATED) {
+                    in.readFully(packed, 0, packedLength);
+                    final long startCpu = CompressedSender.cpuTime();
+                    try {
+                        BlockCompressor.decompress(packed, packedLength, data, length);
+                    } catch (final DataFormatException e) {
+                        throw new IOException("A compressed block of " + fileName + " is corrupt!", e);
+                    }
+                    cpuNanos += CompressedSender.cpuTime() - startCpu;
+                } else {
+                    throw new IOException("Unknown block type " + type + "!");
+                }
+
+                fileOut.write(data, 0, length);
+                received += length;
+                wireBytes += packedLength;
+            }
+        }
+
+        final TransferStats stats = FileReceiver.verify(fileName, size, received, System.nanoTime() - startTime,
+                "compressed");
+        stats.setWireBytes(wireBytes);
+        stats.setCpuNanos(cpuNanos);
+
+        // Tell the peer the file is complete
+        out.writeBoolean(stats.isVerified());
+        out.flush();
+        return stats;
+    }
+}
@@ -0,0 +1,237 @@
+package part2.transfer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This sends a file to a peer with on-the-fly compression.
+ *
+ * The file is read in batches of independent blocks and the blocks of a batch
+ * are compressed in parallel on a ForkJoinPool. BlockCompressor skips blocks
+ * whose content does not compress, so already compressed files cost little
+ * extra CPU. The blocks are written to the peer in file order and the peer
+ * decompresses them as they arrive.
+ *
+ * Block format: how the block is stored (byte), length before compression
+ * (int), length on the wire (int), data. A block stored as END_OF_FILE ends the
+ * file.
+ */
+public class CompressedSender {
+    // Size of a single block before compression
+    public static final int BLOCK_SIZE = 1024 * 1024;
+
+    // Marks the end of the blocks of a file
+    static final byte END_OF_FILE = -1;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final InetSocketAddress peer; // address of the peer's listening port
+    private final ForkJoinPool pool; // pool the blocks are compressed on
+    private TransferScheduler scheduler = null; // scheduler the file is sent through, null for none
+    private int weight = 1; // weight of the file in the scheduler
+
+    /**
+     * This is a block of the file and its compressed form
+     */
+    private static class Block {
+        private final byte[] data = new byte[BLOCK_SIZE]; // the block as it is in the file
+        private final byte[] packed = new byte[BLOCK_SIZE]; // the compressed block
+        private int length; // length of the block
+        private int packedLength; // length of the compressed block, or -1 if it is stored
+    }
+
+    /**
+     * This compresses a range of the blocks of a batch, splitting the range in
+     * half until every task holds a single block
+     */
+    private static class CompressBlocks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Block[] blocks; // blocks of the batch
+        private final int from; // first block of the range
+        private final int to; // block after the last block of the range
+        private final LongAdder cpuNanos; // CPU time spent compressing
+
+        CompressBlocks(final Block[] blocks, final int from, final int to, final LongAdder cpuNanos) {
+            this.blocks = blocks;
+            this.from = from;
+            this.to = to;
+            this.cpuNanos = cpuNanos;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new CompressBlocks(blocks, from, middle, cpuNanos),
+                        new CompressBlocks(blocks, middle, to, cpuNanos));
+                return;
+            }
+            final long startCpu = cpuTime();
+            final Block block = blocks[from];
+            block.packedLength = BlockCompressor.compress(block.data, block.length, block.packed);
+            cpuNanos.add(cpuTime() - startCpu);
+        }
+    }
+
+    /**
+     * create a new engine for sending compressed files
+     *
+     * @param peer the address and port the peer listens on
+     * @param pool the pool the blocks are compressed on
+     */
+    public CompressedSender(final InetSocketAddress peer, final ForkJoinPool pool) {
+        this.peer = peer;
+        this.pool = pool;
+    }
+
+    /**
+     * sets the scheduler the blocks are sent through
+     *
+     * @param scheduler the scheduler, null to send without one
+     * @param weight    the weight of the file in the scheduler
+     */
+    public void setScheduler(final TransferScheduler scheduler, final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("A transfer needs a weight of at least 1!");
+        }
+        this.scheduler = scheduler;
+        this.weight = weight;
+    }
+
+    /**
+     * send a compressed file to the peer
+     *
+     * @param fileName the name of the file that will be sent
+     * @return the statistics of the transfer
+     * @throws IOException if the file cannot be read or the peer cannot be
+     *                     written to
+     */
+    public TransferStats send(final String fileName) throws IOException {
+        return send(fileName, fileName);
+    }
+
+    /**
+     * send a compressed file to the peer and have the peer save it under another
+     * name
+     *
+     * @param fileName   the name of the local file that will be sent
+     * @param remoteName the name the peer saves the file under
+     * @return the statistics of the transfer
+     * @throws IOException if the file cannot be read or the peer cannot be
+     *                     written to
+     */
+    public TransferStats send(final String fileName, final String remoteName) throws IOException {
+        final File file = new File(fileName);
+        final long size = file.length();
+
+        // Keep every thread of the pool busy with two blocks
+        final Block[] batch = new Block[pool.getParallelism() * 2];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new Block();
+        }
+
+        final LongAdder cpuNanos = new LongAdder();
+        long wireBytes = 0;
+
+        try (SocketChannel channel = SocketChannel.open(peer); FileInputStream fileIn = new FileInputStream(file);
+                ScheduledTransfer transfer = ScheduledTransfer.open(scheduler, remoteName, peer, weight)) {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    ScheduledTransfer.wrap(transfer, channel.socket().getOutputStream()), 64 * 1024));
+            final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+
+            // Announce the file
+            TransferHeader.writeStart(out, TransferHeader.MODE_COMPRESSED);
+            out.writeUTF(remoteName);
+            out.writeLong(size);
+
+            final long startTime = System.nanoTime();
+            long remaining = size;
+            while (remaining > 0) {
+                // Read the next batch of blocks
+                int count = 0;
+                while (count < batch.length && remaining > 0) {
+                    final Block block = batch[count];
+                    block.length = (int) Math.min(BLOCK_SIZE, remaining);
+                    readFully(fileIn, block.data, block.length);
+                    remaining -= block.length;
+                    count++;
+                }
+
+                // Compress the batch in parallel
+                pool.invoke(new CompressBlocks(batch, 0, count, cpuNanos));
+
+                // Write the blocks in file order
+                for (int i = 0; i < count; i++) {
+                    final Block block = batch[i];
+                    if (block.packedLength < 0) {
+                        out.writeByte(BlockCompressor.STORED);
+                        out.writeInt(block.length);
+                        out.writeInt(block.length);
+                        out.write(block.data, 0, block.length);
+                        wireBytes += block.length;
+                    } else {
+                        out.writeByte(BlockCompressor.DEFLATED);
+                        out.writeInt(block.length);
+                        out.writeInt(block.packedLength);
+                        out.write(block.packed, 0, block.packedLength);
+                        wireBytes += block.packedLength;
+                    }
+                }
+            }
+            out.writeByte(END_OF_FILE);
+            out.flush();
+
+            // Wait for the peer to confirm the file is complete
+            if (!in.readBoolean()) {
+                throw new IOException("The peer could not verify " + remoteName + "!");
+            }
+
+            final TransferStats stats = new TransferStats(fileName, size, System.nanoTime() - startTime,
+                    "compressed");
+            stats.setWireBytes(wireBytes);
+            stats.setCpuNanos(cpuNanos.sum());
+            return stats;
+        }
+    }
+
+    /**
+     * gets the CPU time of the current thread
+     *
+     * @return the CPU time in nanoseconds, or 0 if it cannot be measured
+     */
+    static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * read exactly length bytes from a stream
+     *
+     * @param in     the stream to read from
+     * @param data   the array to read into
+     * @param length the amount of bytes to read
+     * @throws IOException if the stream ends first
+     */
+    private static void readFully(final FileInputStream in, final byte[] data, final int length)
+            throws IOException {
+        int read = 0;
+        while (read < length) {
+            final int count = in.read(data, read, length - read);
+            if (count < 0) {
+                throw new IOException("The file ended while it was being sent!");
+            }
+            read += count;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package part2.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This receives files that a peer sends with DedupSender.
+ *
+ * Every offered chunk is looked up in the chunk store of this node. Chunks the
+ * store knows are copied from the file that holds them and checked against
+ * their hash, and every other chunk is requested from the peer. The file is
+ * rebuilt into a temporary file (NAME.dedup) that takes the real name once
+ * every chunk is in place, and its chunks are then added to the store.
+ */
+public class DedupReceiver {
+    // Rounds of requests before a file that keeps arriving damaged is given up
+    private static final int MAX_ROUNDS = 4;
+
+    private final ChunkStore store; // chunks this node already holds
+    private Path directory = null; // directory files are saved in, null for the paths the peer sent
+
+    /**
+     * create a new engine for receiving files that may share chunks with files
+     * this node holds
+     *
+     * @param store the chunk store of this node
+     */
+    public DedupReceiver(final ChunkStore store) {
+        this.store = store;
+    }
+
+    /**
+     * sets the directory received files are saved in. The files are saved
+     * under their names only, without the directories the peer sent.
+     *
+     * @param directory the directory, or null to save files under the paths
+     *                  the peer sent
+     */
+    public void setDirectory(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * receive a file from a transfer connection whose start has already been
+     * read
+     *
+     * @param socketIn the stream of the transfer connection
+     * @param out      the stream used to answer the peer
+     * @return the statistics of the transfer
+     * @throws IOException if the connection drops, the offer is malformed or the
+     *                     file cannot be written
+     */
+    public TransferStats receive(final InputStream socketIn, final DataOutputStream out) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socketIn, 256 * 1024));
+
+        // Read the chunks the peer offers
+        final String fileName = FileReceiver.resolve(directory, in.readUTF());
+        final long size = in.readLong();
+        final int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid amount of chunks " + count + "!");
+        }
+        final ChunkList chunks = new ChunkList();
+        final byte[] hash = new byte[ChunkList.HASH_LENGTH];
+        long offset = 0;
+        for (int i = 0; i < count; i++) {
+            final int length = in.readInt();
+            if (length <= 0 || length > ChunkList.MAX_CHUNK) {
+                throw new IOException("Malformed chunk of length " + length + "!");
+            }
+            in.readFully(hash);
+            chunks.add(offset, length, hash, 0);
+            offset += length;
+        }
+        if (offset != size) {
+            throw new IOException("The chunks add up to " + offset + " instead of " + size + " bytes!");
+        }
+
+        final File target = new File(fileName);
+        final File temp = new File(fileName + ".dedup");
+        final long startTime = System.nanoTime();
+        final MessageDigest digest = ChunkList.newDigest();
+        final byte[] data = new byte[ChunkList.MAX_CHUNK];
+        long wireBytes = 12 + (long) count * (4 + ChunkList.HASH_LENGTH);
+        long reused = 0;
+        long written = 0;
+
+        try (FileChannel fileChannel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Copy every chunk this node holds
+            List<Integer> requested = new ArrayList<>();
+            final Map<String, FileChannel> sources = new HashMap<>();
+            try {
+                for (int i = 0; i < count; i++) {
+                    final ChunkStore.Location location = store.find(chunks.getHashes(), i * ChunkList.HASH_LENGTH);
+                    if (location != null && location.getLength() == chunks.getLength(i)
+                            && read(sources, location, data)
+                            && chunks.matches(i, data, location.getLength(), digest)) {
+                        write(fileChannel, data, chunks.getLength(i), chunks.getOffset(i));
+                        reused += chunks.getLength(i);
+                    } else {
+                        requested.add(i);
+                    }
+                }
+            } finally {
+                for (final FileChannel source : sources.values()) {
+                    if (source != null) {
+                        source.close();
+                    }
+                }
+            }
+            written = reused;
+
+            // Ask the peer for the rest until every chunk arrived intact
+            int rounds = 0;
+            while (!requested.isEmpty()) {
+                if (++rounds > MAX_ROUNDS) {
+                    throw new IOException("Chunks of " + fileName + " kept arriving damaged!");
+                }
+                out.writeInt(requested.size());
+                for (final int index : requested) {
+                    out.writeInt(index);
+                }
+                out.flush();
+                wireBytes += 4 + 4L * requested.size();
+
+                final List<Integer> damaged = new ArrayList<>();
+                for (final int index : requested) {
+                    final int length = chunks.getLength(index);
+                    in.readFully(data, 0, length);
+                    wireBytes += length;
+                    if (chunks.matches(index, data, length, digest)) {
+                        write(fileChannel, data, length, chunks.getOffset(index));
+                        written += length;
+                    } else {
+                        damaged.add(index);
+                    }
+                }
+                requested = damaged;
+            }
+            out.writeInt(0);
+            out.flush();
+            wireBytes += 4;
+        } catch (final IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        final boolean verified = written == size && temp.length() == size;
+        final TransferStats stats = new TransferStats(fileName, written, System.nanoTime() - startTime,
+                "dedup, " + reused + " of " + size + " bytes from the chunk store", size, verified);
+        stats.setWireBytes(wireBytes);
+
+        // Only a complete file takes the real name and joins the store
+        if (verified) {
+            try {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            store.addFile(target, chunks);
+        } else {
+            temp.delete();
+        }
+
+        // Tell the peer the file is complete
+        out.writeBoolean(verified);
+        out.flush();
+        return stats;
+    }
+
+    /**
+     * read a chunk from the file the store says holds it
+     *
+     * @param sources  the files opened so far by path, or null for files that
+     *                 cannot be opened
+     * @param location the location of the chunk
+     * @param data     the array the chunk is read into
+     * @return true if the whole chunk was read, false if the file is gone or
+     *         too short
+     */
+    private static boolean read(final Map<String, FileChannel> sources, final ChunkStore.Location location,
+            final byte[] data) {
+        try {
+            if (!sources.containsKey(location.getPath())) {
+                final File file = new File(location.getPath());
+                sources.put(location.getPath(),
+                        file.isFile() ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null);
+            }
+            final FileChannel source = sources.get(location.getPath());
+            if (source == null) {
+                return false;
+            }
+
+            final ByteBuffer buffer = ByteBuffer.wrap(data, 0, location.getLength());
+            long position = location.getOffset();
+            while (buffer.hasRemaining()) {
+                final int read = source.read(buffer, position);
+                if (read < 0) {
+                    return false;
+                }
+                position += read;
+            }
+            return true;
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * write a chunk at its position in the file
+     *
+     * @param fileChannel the channel of the file
+     * @param data        the array holding the chunk
+     * @param length      the length of the chunk
+     * @param position    the position of the chunk in the file
+     * @throws IOException if the file cannot be written
+     */
+    private static void write(final FileChannel fileChannel, final byte[] data, final int length,
+            final long position) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        long at = position;
+        while (buffer.hasRemaining()) {
+            at += fileChannel.write(buffer, at);
+        }
+    }
+}
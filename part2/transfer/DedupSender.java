@@ -0,0 +1,144 @@
+package part2.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This sends a file to a peer that may already hold parts of it in its chunk
+ * store.
+ *
+ * The file is split into content defined chunks and the sender offers the
+ * length and hash of every chunk. The peer answers with the chunks it does not
+ * hold, the sender streams only those chunks with transferTo, and the peer
+ * copies every other chunk from its own files. The peer may ask again for
+ * chunks that arrived damaged, so the offer is answered in rounds until the
+ * peer asks for nothing.
+ *
+ * Offer format: amount of chunks (int), then the length (int) and SHA-256 (32
+ * bytes) of every chunk. Request format: amount of chunks (int), then the index
+ * (int) of every chunk, which the sender answers with the data of those chunks
+ * in the same order.
+ */
+public class DedupSender {
+    private final InetSocketAddress peer; // address of the peer's listening port
+    private TransferScheduler scheduler = null; // scheduler the file is sent through, null for none
+    private int weight = 1; // weight of the file in the scheduler
+
+    /**
+     * create a new engine for sending files the peer may partly hold
+     *
+     * @param peer the address and port the peer listens on
+     */
+    public DedupSender(final InetSocketAddress peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * sets the scheduler the chunks are sent through
+     *
+     * @param scheduler the scheduler, null to send without one
+     * @param weight    the weight of the file in the scheduler
+     */
+    public void setScheduler(final TransferScheduler scheduler, final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("A transfer needs a weight of at least 1!");
+        }
+        this.scheduler = scheduler;
+        this.weight = weight;
+    }
+
+    /**
+     * send a file to the peer, skipping the chunks the peer already holds
+     *
+     * @param fileName the name of the file that will be sent
+     * @return the statistics of the transfer
+     * @throws IOException if the file cannot be read or the peer cannot be
+     *                     written to
+     */
+    public TransferStats send(final String fileName) throws IOException {
+        return send(fileName, fileName);
+    }
+
+    /**
+     * send a file to the peer and have the peer save it under another name
+     *
+     * @param fileName   the name of the local file that will be sent
+     * @param remoteName the name the peer saves the file under
+     * @return the statistics of the transfer
+     * @throws IOException if the file cannot be read or the peer cannot be
+     *                     written to
+     */
+    public TransferStats send(final String fileName, final String remoteName) throws IOException {
+        final File file = new File(fileName);
+        final long size = file.length();
+        final long startTime = System.nanoTime();
+        final ChunkList chunks = ChunkList.scan(file);
+        final int count = chunks.getCount();
+
+        try (SocketChannel channel = SocketChannel.open(peer);
+                FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                ScheduledTransfer transfer = ScheduledTransfer.open(scheduler, remoteName, peer, weight)) {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    ScheduledTransfer.wrap(transfer, channel.socket().getOutputStream()), 64 * 1024));
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(channel.socket().getInputStream(), 64 * 1024));
+
+            // Offer every chunk of the file
+            TransferHeader.writeStart(out, TransferHeader.MODE_DEDUP);
+            out.writeUTF(remoteName);
+            out.writeLong(size);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeInt(chunks.getLength(i));
+                out.write(chunks.getHashes(), i * ChunkList.HASH_LENGTH, ChunkList.HASH_LENGTH);
+            }
+            out.flush();
+            long wireBytes = 12 + (long) count * (4 + ChunkList.HASH_LENGTH);
+            long sent = 0;
+
+            // Send the chunks the peer asks for until it asks for none
+            while (true) {
+                final int requested = in.readInt();
+                if (requested == 0) {
+                    break;
+                }
+                if (requested < 0 || requested > count) {
+                    throw new IOException("The peer asked for " + requested + " chunks!");
+                }
+                final int[] indices = new int[requested];
+                for (int i = 0; i < requested; i++) {
+                    indices[i] = in.readInt();
+                    if (indices[i] < 0 || indices[i] >= count) {
+                        throw new IOException("The peer asked for the unknown chunk " + indices[i] + "!");
+                    }
+                }
+                wireBytes += 4 + 4L * requested;
+
+                for (final int index : indices) {
+                    ScheduledTransfer.transferTo(transfer, fileChannel, chunks.getOffset(index),
+                            chunks.getLength(index), channel);
+                    sent += chunks.getLength(index);
+                }
+            }
+            wireBytes += 4 + sent;
+
+            // Wait for the peer to confirm the file is complete
+            if (!in.readBoolean()) {
+                throw new IOException("The peer could not verify " + remoteName + "!");
+            }
+
+            final TransferStats stats = new TransferStats(fileName, size, System.nanoTime() - startTime,
+                    "dedup, " + (size - sent) + " of " + size + " bytes held by the peer");
+            stats.setWireBytes(wireBytes);
+            return stats;
+        }
+    }
+}
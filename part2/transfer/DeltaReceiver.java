@@ -0,0 +1,149 @@
+package part2.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * This receives files that a peer sends with DeltaSender.
+ *
+ * The signatures of the copy of the file this node already has are sent to the
+ * peer, which answers with instructions to copy blocks of that copy or to write
+ * literal bytes. The new file is rebuilt into a temporary file (NAME.delta) and
+ * only takes the real name once its MD5 matches the file the peer has, so the
+ * old copy is never damaged by a failed transfer.
+ */
+public class DeltaReceiver {
+    private Path directory = null; // directory files are saved in, null for the paths the peer sent
+
+    /**
+     * sets the directory received files are saved in. The files are saved
+     * under their names only, without the directories the peer sent.
+     *
+     * @param directory the directory, or null to save files under the paths
+     *                  the peer sent
+     */
+    public void setDirectory(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * receive a file from a transfer connection whose start has already been
+     * read
+     *
+     * @param socketIn the stream of the transfer connection
+     * @param out      the stream used to answer the peer
+     * @return the statistics of the transfer
+     * @throws IOException if the connection drops, an instruction is malformed
+     *                     or the file cannot be written
+     */
+    public TransferStats receive(final InputStream socketIn, final DataOutputStream out) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socketIn, 64 * 1024));
+
+        // Read what the peer wants to send
+        final String fileName = FileReceiver.resolve(directory, in.readUTF());
+        final long size = in.readLong();
+        final int blockSize = in.readInt();
+        // The block size comes from the peer, so it is checked before anything
+        // is allocated for it
+        if (blockSize <= 0 || blockSize > DeltaSender.MAX_BLOCK_SIZE) {
+            throw new IOException("Invalid block size " + blockSize + "!");
+        }
+
+        final File target = new File(fileName);
+        final File temp = new File(fileName + ".delta");
+        final long startTime = System.nanoTime();
+
+        // Tell the peer which blocks this node already has
+        final DeltaSignatures signatures = target.isFile() ? DeltaSignatures.compute(target, blockSize)
+                : DeltaSignatures.empty(blockSize);
+        signatures.write(out);
+
+        final MessageDigest digest = DeltaSignatures.newDigest();
+        final byte[] data = new byte[Math.max(blockSize, DeltaSender.MAX_LITERAL)];
+        final byte[] expected = new byte[DeltaSignatures.STRONG_LENGTH];
+        long received = 0;
+        long copied = 0;
+        long wireBytes = 4 + (long) signatures.getCount() * (4 + DeltaSignatures.STRONG_LENGTH);
+
+        try (RandomAccessFile basis = signatures.getCount() > 0 ? new RandomAccessFile(target, "r") : null;
+                OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(temp), 256 * 1024)) {
+            while (true) {
+                final byte instruction = in.readByte();
+                if (instruction == DeltaSender.END) {
+                    in.readFully(expected);
+                    wireBytes += 1 + expected.length;
+                    break;
+                }
+
+                final int length;
+                if (instruction == DeltaSender.COPY) {
+                    // Copy a block of the old copy of the file
+                    final int block = in.readInt();
+                    if (block < 0 || block >= signatures.getCount()) {
+                        throw new IOException("Invalid block " + block + "!");
+                    }
+                    length = blockSize;
+                    basis.seek((long) block * blockSize);
+                    basis.readFully(data, 0, length);
+                    copied += length;
+                    wireBytes += 5;
+                } else if (instruction == DeltaSender.LITERAL) {
+                    // Write the bytes the peer sent
+                    length = in.readInt();
+                    if (length < 0 || length > DeltaSender.MAX_LITERAL) {
+                        throw new IOException("Malformed literal of length " + length + "!");
+                    }
+                    in.readFully(data, 0, length);
+                    wireBytes += 5 + length;
+                } else {
+                    throw new IOException("Unknown delta instruction " + instruction + "!");
+                }
+
+                fileOut.write(data, 0, length);
+                digest.update(data, 0, length);
+                received += length;
+            }
+        } catch (final IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        // The rebuilt file must have the size and the MD5 of the peer's file
+        final boolean verified = received == size && temp.length() == size
+                && Arrays.equals(digest.digest(), expected);
+        final TransferStats stats = new TransferStats(fileName, received, System.nanoTime() - startTime,
+                "delta, " + copied + " of " + size + " bytes reused", size, verified);
+        stats.setWireBytes(wireBytes);
+
+        // Only a complete file replaces the old copy
+        if (stats.isVerified()) {
+            try {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } else {
+            temp.delete();
+        }
+
+        // Tell the peer whether the file was rebuilt
+        out.writeBoolean(stats.isVerified());
+        out.flush();
+        return stats;
+    }
+}
@@ -0,0 +1,284 @@
+package part2.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+
+/**
+ * This sends a file to a peer that may already have an older version of it, in
+ * the style of rsync.
+ *
+ * The peer answers the announcement of the file with the block signatures of
+ * its copy. The sender slides a window over the new file, rolling the weak
+ * checksum one byte at a time, and every window that matches a block of the
+ * peer's copy is sent as a reference to that block instead of its bytes.
+ * Everything between matches is sent as literal bytes. The MD5 of the whole new
+ * file is sent last so the peer can check the file it rebuilt.
+ *
+ * Instruction format: COPY (byte) block index (int), LITERAL (byte) length
+ * (int) bytes, END (byte) MD5 of the file (16 bytes).
+ */
+public class DeltaSender {
+    // Instructions the receiver rebuilds the file from
+    static final byte COPY = 0; // copy a block of the receiver's old copy
+    static final byte LITERAL = 1; // write the bytes that follow
+    static final byte END = 2; // the file is complete
+
+    // Longest run of literal bytes sent as a single instruction
+    static final int MAX_LITERAL = 64 * 1024;
+
+    // Limits of the block size chosen for a file. A peer rejects larger blocks
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+    private final InetSocketAddress peer; // address of the peer's listening port
+    private TransferScheduler scheduler = null; // scheduler the file is sent through, null for none
+    private int weight = 1; // weight of the file in the scheduler
+
+    /**
+     * create a new engine for sending deltas of files
+     *
+     * @param peer the address and port the peer listens on
+     */
+    public DeltaSender(final InetSocketAddress peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * choose the block size for a file. Like rsync, the block size grows with the
+     * square root of the file size so the amount of signatures stays reasonable.
+     *
+     * @param size the size of the file
+     * @return the block size in bytes
+     */
+    public static int blockSizeFor(final long size) {
+        final long root = (long) Math.sqrt((double) size);
+        final long rounded = (root + 1023) / 1024 * 1024;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, rounded));
+    }
+
+    /**
+     * sets the scheduler the instructions are sent through
+     *
+     * @param scheduler the scheduler, null to send without one
+     * @param weight    the weight of the file in the scheduler
+     */
+    public void setScheduler(final TransferScheduler scheduler, final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("A transfer needs a weight of at least 1!");
+        }
+        this.scheduler = scheduler;
+        this.weight = weight;
+    }
+
+    /**
+     * send the delta of a file to the peer
+     *
+     * @param fileName the name of the file that will be sent
+     * @return the statistics of the transfer
+     * @throws IOException if the file cannot be read or the peer cannot be
+     *                     written to
+     */
+    public TransferStats send(final String fileName) throws IOException {
+        return send(fileName, fileName);
+    }
+
+    /**
+     * send the delta of a file to the peer, which rebuilds it from its copy of
+     * remoteName
+     *
+     * @param fileName   the name of the local file that will be sent
+     * @param remoteName the name of the peer's copy of the file
+     * @return the statistics of the transfer
+     * @throws IOException if the file cannot be read or the peer cannot be
+     *                     written to
+     */
+    public TransferStats send(final String fileName, final String remoteName) throws IOException {
+        final File file = new File(fileName);
+        final long size = file.length();
+        final int blockSize = blockSizeFor(size);
+
+        try (SocketChannel channel = SocketChannel.open(peer); InputStream fileIn = new FileInputStream(file);
+                ScheduledTransfer transfer = ScheduledTransfer.open(scheduler, remoteName, peer, weight)) {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    ScheduledTransfer.wrap(transfer, channel.socket().getOutputStream()), 64 * 1024));
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(channel.socket().getInputStream(), 64 * 1024));
+
+            // Announce the file
+            final long startTime = System.nanoTime();
+            TransferHeader.writeStart(out, TransferHeader.MODE_DELTA);
+            out.writeUTF(remoteName);
+            out.writeLong(size);
+            out.writeInt(blockSize);
+            out.flush();
+
+            // The peer answers with the signatures of its copy
+            final DeltaSignatures signatures = DeltaSignatures.read(in, blockSize);
+            long wireBytes = 4 + (long) signatures.getCount() * (4 + DeltaSignatures.STRONG_LENGTH);
+
+            final Scan scan = new Scan(fileIn, out, signatures);
+            scan.run();
+            wireBytes += scan.sent;
+
+            // Wait for the peer to confirm the rebuilt file
+            if (!in.readBoolean()) {
+                throw new IOException("The peer could not rebuild " + remoteName + "!");
+            }
+
+            final TransferStats stats = new TransferStats(fileName, size, System.nanoTime() - startTime,
+                    "delta, " + scan.copied + " of " + size + " bytes matched");
+            stats.setWireBytes(wireBytes);
+            return stats;
+        }
+    }
+
+    /**
+     * This slides the window over the new file and writes the instructions
+     */
+    private static class Scan {
+        private final InputStream fileIn; // the new file
+        private final DataOutputStream out; // stream to the peer
+        private final DeltaSignatures signatures; // signatures of the peer's copy
+        private final int blockSize; // size of the blocks and the window
+        private final MessageDigest fileDigest = DeltaSignatures.newDigest(); // MD5 of the whole new file
+        private final MessageDigest blockDigest = DeltaSignatures.newDigest(); // strong hash of a window
+        private final byte[] buffer; // part of the file between the pending literal and the window
+        private int filled; // amount of valid bytes in the buffer
+        private int literalStart; // start of the bytes not yet sent
+        private int position; // start of the window
+        private boolean ended; // whether the whole file has been read
+        private long sent; // amount of instruction bytes written
+        private long copied; // amount of bytes sent as block references
+
+        Scan(final InputStream fileIn, final DataOutputStream out, final DeltaSignatures signatures) {
+            this.fileIn = fileIn;
+            this.out = out;
+            this.signatures = signatures;
+            this.blockSize = signatures.getBlockSize();
+            this.buffer = new byte[4 * (MAX_LITERAL + blockSize)];
+        }
+
+        /**
+         * write the instructions for the whole file
+         *
+         * @throws IOException if an I/O error occurs
+         */
+        void run() throws IOException {
+            // Without signatures every byte is literal
+            final boolean match = signatures.getCount() > 0;
+            boolean rolling = false;
+            int checksum = 0;
+
+            while (match && available(position + blockSize)) {
+                if (!rolling) {
+                    checksum = DeltaSignatures.weakChecksum(buffer, position, blockSize);
+                    rolling = true;
+                }
+
+                final int block = signatures.find(checksum, buffer, position, blockDigest);
+                if (block >= 0) {
+                    // The window matches a block of the peer's copy
+                    writeLiteral(literalStart, position);
+                    out.writeByte(COPY);
+                    out.writeInt(block);
+                    sent += 5;
+                    copied += blockSize;
+                    position += blockSize;
+                    literalStart = position;
+                    rolling = false;
+                    continue;
+                }
+
+                // Keep literal instructions short so the buffer never fills up
+                if (position - literalStart >= MAX_LITERAL) {
+                    writeLiteral(literalStart, position);
+                    literalStart = position;
+                }
+
+                // Slide the window one byte forward
+                if (!available(position + blockSize + 1)) {
+                    break;
+                }
+                checksum = DeltaSignatures.roll(checksum, buffer[position], buffer[position + blockSize],
+                        blockSize);
+                position++;
+            }
+
+            // Everything after the last match is literal
+            while (available(literalStart + 1)) {
+                final int end = available(literalStart + MAX_LITERAL) ? literalStart + MAX_LITERAL : filled;
+                writeLiteral(literalStart, end);
+                literalStart = end;
+                position = end;
+            }
+
+            out.writeByte(END);
+            out.write(fileDigest.digest());
+            out.flush();
+            sent += 1 + DeltaSignatures.STRONG_LENGTH;
+        }
+
+        /**
+         * make sure the buffer holds the bytes up to end, reading more of the file
+         * if needed. Bytes before literalStart are dropped, which moves every
+         * position in the buffer.
+         *
+         * @param end the position in the buffer that must be filled
+         * @return true if the buffer holds the bytes up to end, false if the file
+         *         ends first
+         * @throws IOException if the file cannot be read
+         */
+        private boolean available(final int end) throws IOException {
+            if (end <= filled) {
+                return true;
+            }
+            if (ended) {
+                return false;
+            }
+
+            // Drop the bytes that were already sent
+            System.arraycopy(buffer, literalStart, buffer, 0, filled - literalStart);
+            filled -= literalStart;
+            position -= literalStart;
+            final int wanted = end - literalStart;
+            literalStart = 0;
+
+            while (filled < buffer.length) {
+                final int read = fileIn.read(buffer, filled, buffer.length - filled);
+                if (read < 0) {
+                    ended = true;
+                    break;
+                }
+                fileDigest.update(buffer, filled, read);
+                filled += read;
+            }
+            return wanted <= filled;
+        }
+
+        /**
+         * write the bytes between two positions of the buffer as a literal
+         *
+         * @param from the first position
+         * @param to   the position after the last byte
+         * @throws IOException if an I/O error occurs
+         */
+        private void writeLiteral(final int from, final int to) throws IOException {
+            if (to <= from) {
+                return;
+            }
+            out.writeByte(LITERAL);
+            out.writeInt(to - from);
+            out.write(buffer, from, to - from);
+            sent += 5 + to - from;
+        }
+    }
+}
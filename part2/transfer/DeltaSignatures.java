@@ -0,0 +1,262 @@
+package part2.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * This holds the block signatures of the copy of a file a node already has,
+ * for delta transfers.
+ *
+ * Every block has a weak rolling checksum (in the style of Adler-32, as used
+ * by rsync) that can be slid over the new file one byte at a time, and a strong
+ * MD5 hash that confirms a match of the weak checksum. The weak checksums are
+ * kept in an open addressing table so the sender can look one up for every
+ * byte of the new file without allocating.
+ */
+public class DeltaSignatures {
+    // Length of the strong hash of a block
+    static final int STRONG_LENGTH = 16;
+
+    private final int blockSize; // size of every block except the last
+    private final int count; // amount of blocks
+    private final int[] weak; // weak checksum of every block
+    private final byte[] strong; // strong hash of every block, STRONG_LENGTH bytes each
+    private final int[] table; // open addressing table of block indices + 1 by weak checksum. 0 is empty
+    private final int mask; // mask for positions in the table
+
+    /**
+     * create the signatures from checksums that were already computed
+     *
+     * @param blockSize the size of every block except the last
+     * @param weak      the weak checksum of every block
+     * @param strong    the strong hash of every block
+     */
+    private DeltaSignatures(final int blockSize, final int[] weak, final byte[] strong) {
+        this.blockSize = blockSize;
+        this.count = weak.length;
+        this.weak = weak;
+        this.strong = strong;
+
+        // Keep the table at most half full
+        int capacity = 2;
+        while (capacity < count * 2) {
+            capacity <<= 1;
+        }
+        table = new int[capacity];
+        mask = capacity - 1;
+
+        // Identical blocks, like runs of zeros, are only kept once so they do not
+        // build long chains that every lookup has to walk
+        for (int i = 0; i < count; i++) {
+            int slot = mix(weak[i]) & mask;
+            while (table[slot] != 0 && !sameBlock(table[slot] - 1, i)) {
+                slot = (slot + 1) & mask;
+            }
+            if (table[slot] == 0) {
+                table[slot] = i + 1;
+            }
+        }
+    }
+
+    /**
+     * compute the signatures of every full block of a file. A short last block
+     * is left out because it can never match a full block of the new file.
+     *
+     * @param file      the file the node already has
+     * @param blockSize the size of the blocks
+     * @return the signatures of the file
+     * @throws IOException if the file cannot be read
+     */
+    public static DeltaSignatures compute(final File file, final int blockSize) throws IOException {
+        final int count = (int) (file.length() / blockSize);
+        final int[] weak = new int[count];
+        final byte[] strong = new byte[count * STRONG_LENGTH];
+        final MessageDigest digest = newDigest();
+        final byte[] block = new byte[blockSize];
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            for (int i = 0; i < count; i++) {
+                in.readFully(block);
+                weak[i] = weakChecksum(block, 0, blockSize);
+                digest.update(block);
+                System.arraycopy(digest.digest(), 0, strong, i * STRONG_LENGTH, STRONG_LENGTH);
+            }
+        }
+        return new DeltaSignatures(blockSize, weak, strong);
+    }
+
+    /**
+     * create signatures for a file the node does not have
+     *
+     * @param blockSize the size of the blocks
+     * @return signatures without any blocks
+     */
+    public static DeltaSignatures empty(final int blockSize) {
+        return new DeltaSignatures(blockSize, new int[0], new byte[0]);
+    }
+
+    /**
+     * write the signatures to a peer
+     *
+     * @param out the stream to write to
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(final DataOutputStream out) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeInt(weak[i]);
+            out.write(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+        out.flush();
+    }
+
+    /**
+     * read signatures a peer wrote with write
+     *
+     * @param in        the stream to read from
+     * @param blockSize the size of the blocks
+     * @return the signatures
+     * @throws IOException if an I/O error occurs
+     */
+    public static DeltaSignatures read(final DataInputStream in, final int blockSize) throws IOException {
+        final int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid amount of signatures " + count + "!");
+        }
+        final int[] weak = new int[count];
+        final byte[] strong = new byte[count * STRONG_LENGTH];
+        for (int i = 0; i < count; i++) {
+            weak[i] = in.readInt();
+            in.readFully(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+        return new DeltaSignatures(blockSize, weak, strong);
+    }
+
+    /**
+     * find a block whose weak checksum and strong hash match a window of the new
+     * file. The strong hash is only computed when a weak checksum matches.
+     *
+     * @param checksum the weak checksum of the window
+     * @param data     the array holding the window
+     * @param offset   the position of the window in data
+     * @param digest   the digest used for the strong hash
+     * @return the index of the matching block, or -1 if no block matches
+     */
+    public int find(final int checksum, final byte[] data, final int offset, final MessageDigest digest) {
+        byte[] hash = null;
+        int slot = mix(checksum) & mask;
+        while (table[slot] != 0) {
+            final int block = table[slot] - 1;
+            if (weak[block] == checksum) {
+                if (hash == null) {
+                    digest.update(data, offset, blockSize);
+                    hash = digest.digest();
+                }
+                if (Arrays.equals(hash, 0, STRONG_LENGTH, strong, block * STRONG_LENGTH,
+                        (block + 1) * STRONG_LENGTH)) {
+                    return block;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * gets the size of every block
+     *
+     * @return the block size in bytes
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * gets the amount of blocks
+     *
+     * @return the amount of blocks
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * compute the weak checksum of a window
+     *
+     * @param data   the array holding the window
+     * @param offset the position of the window in data
+     * @param length the length of the window
+     * @return the weak checksum
+     */
+    public static int weakChecksum(final byte[] data, final int offset, final int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            final int value = data[offset + i] & 0xFF;
+            a += value;
+            b += (length - i) * value;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * slide the weak checksum of a window one byte forward
+     *
+     * @param checksum the weak checksum of the window
+     * @param out      the byte leaving the window
+     * @param in       the byte entering the window
+     * @param length   the length of the window
+     * @return the weak checksum of the window one byte further on
+     */
+    public static int roll(final int checksum, final byte out, final byte in, final int length) {
+        final int outValue = out & 0xFF;
+        int a = checksum & 0xFFFF;
+        int b = checksum >>> 16;
+        a = (a - outValue + (in & 0xFF)) & 0xFFFF;
+        b = (b - length * outValue + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    /**
+     * create the digest used for strong hashes
+     *
+     * @return a new MD5 digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available!", e);
+        }
+    }
+
+    /**
+     * check whether two blocks have the same weak checksum and strong hash
+     *
+     * @param first  the index of the first block
+     * @param second the index of the second block
+     * @return true if the blocks have the same signature
+     */
+    private boolean sameBlock(final int first, final int second) {
+        return weak[first] == weak[second] && Arrays.equals(strong, first * STRONG_LENGTH,
+                (first + 1) * STRONG_LENGTH, strong, second * STRONG_LENGTH, (second + 1) * STRONG_LENGTH);
+    }
+
+    /**
+     * spread the bits of a weak checksum over a table position
+     *
+     * @param checksum the weak checksum
+     * @return the mixed value
+     */
+    private static int mix(final int checksum) {
+        final int h = checksum * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
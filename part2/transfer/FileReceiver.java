@@ -0,0 +1,269 @@
+package part2.transfer;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This is the engine a node uses to receive a file from its connected peer. It
+ * is the counterpart of FileSender.
+ *
+ * The file name (readUTF) and the size of the file (readLong) are read first.
+ * The payload is then drained from the peer's SocketChannel in large chunks
+ * through a pooled direct ByteBuffer and written straight into the FileChannel
+ * of the new file. Exactly the announced amount of bytes is read so the next
+ * file on the same connection starts at the right place.
+ *
+ * Files at or above the mmap threshold are received in mmap mode instead. The
+ * destination is preallocated to the announced size and the socket is read
+ * directly into MappedByteBuffer windows of the file. The windows slide over
+ * the file so files larger than 2 GB can be mapped. The mode is off unless the
+ * threshold is set, either with setMmapThreshold or the
+ * transfer.mmapThreshold system property (in bytes).
+ */
+public class FileReceiver {
+    // Direct buffers shared by every receive on this node
+    private static final BufferPool POOL = new BufferPool(1024 * 1024, 16);
+
+    // Size of a single mapped window of the destination file
+    private static final long MMAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    // Files of this size or larger are received in mmap mode. Off by default
+    public static final long DEFAULT_MMAP_THRESHOLD = Long.getLong("transfer.mmapThreshold", Long.MAX_VALUE);
+
+    private final DataInputStream in; // DataInputStream from the connected peer to this node
+    private final ReadableByteChannel channel; // SocketChannel from the connected peer. May be null
+    private long mmapThreshold = DEFAULT_MMAP_THRESHOLD; // files at least this large are received in mmap mode
+
+    /**
+     * create a new engine for receiving files from a peer
+     *
+     * @param in      the DataInputStream that is used to read from the peer
+     * @param channel the SocketChannel of the peer socket, or null if the socket
+     *                was not created from a channel
+     */
+    public FileReceiver(final DataInputStream in, final ReadableByteChannel channel) {
+        this.in = in;
+        this.channel = channel;
+    }
+
+    /**
+     * sets the size at which files are received in mmap mode
+     *
+     * @param mmapThreshold the size in bytes, or Long.MAX_VALUE to never use mmap
+     *                      mode
+     */
+    public void setMmapThreshold(final long mmapThreshold) {
+        this.mmapThreshold = mmapThreshold;
+    }
+
+    /**
+     * gets the size at which files are received in mmap mode
+     *
+     * @return the size in bytes
+     */
+    public long getMmapThreshold() {
+        return mmapThreshold;
+    }
+
+    /**
+     * receive a single file from the peer and save it locally under the name the
+     * peer sent
+     *
+     * @return the statistics of the transfer, including whether the saved file
+     *         matches the announced size
+     * @throws IOException if the peer closes the connection before the whole
+     *                     file is received or the file cannot be written
+     */
+    public TransferStats receive() throws IOException {
+        // Receive the name and the size of the file
+        final String fileName = in.readUTF();
+        final long size = in.readLong();
+        return receive(fileName, size);
+    }
+
+    /**
+     * receive the payload of a file whose header has already been read
+     *
+     * @param fileName the name the file is saved under
+     * @param size     the amount of bytes the peer announced
+     * @return the statistics of the transfer
+     * @throws IOException if the peer closes the connection before the whole
+     *                     file is received or the file cannot be written
+     */
+    public TransferStats receive(final String fileName, final long size) throws IOException {
+        final long startTime = System.nanoTime();
+        final long received;
+        final String engine;
+
+        if (channel != null && size > 0 && size >= mmapThreshold) {
+            received = receiveMapped(fileName, size);
+            engine = "mmap";
+        } else if (channel != null) {
+            received = receiveChannel(fileName, size);
+            engine = "pooled direct buffer";
+        } else {
+            received = receiveStream(fileName, size);
+            engine = "buffered stream";
+        }
+        final long elapsed = System.nanoTime() - startTime;
+
+        return verify(fileName, size, received, elapsed, engine);
+    }
+
+    /**
+     * check that what was saved matches the size the peer announced
+     *
+     * @param fileName the name of the saved file
+     * @param size     the amount of bytes the peer announced
+     * @param received the amount of bytes read from the peer
+     * @param elapsed  the time the payload took to receive in nanoseconds
+     * @param engine   the name of the engine that received the payload
+     * @return the statistics of the transfer
+     */
+    static TransferStats verify(final String fileName, final long size, final long received, final long elapsed,
+            final String engine) {
+        final long writtenSize = new File(fileName).length();
+        final boolean verified = received == size && writtenSize == size;
+        return new TransferStats(fileName, writtenSize, elapsed, engine, size, verified);
+    }
+
+    /**
+     * gets the path a file received from the peer is saved under
+     *
+     * @param directory the directory received files are saved in, or null to
+     *                  save them under the names the peer sent
+     * @param name      the name the peer sent the file under
+     * @return the path to save the file under
+     */
+    public static String resolve(final Path directory, final String name) {
+        if (directory == null) {
+            return name;
+        }
+        final Path fileName = directory.getFileSystem().getPath(name).getFileName();
+        return directory.resolve(fileName == null ? "unnamed" : fileName.toString()).toString();
+    }
+
+    /**
+     * drain the payload from the peer's channel into the file's channel
+     *
+     * @param fileName the name the file is saved under
+     * @param size     the amount of bytes to read
+     * @return the amount of bytes read
+     * @throws IOException if an I/O error occurs
+     */
+    private long receiveChannel(final String fileName, final long size) throws IOException {
+        final ByteBuffer buffer = POOL.acquire();
+        try (FileChannel fileChannel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long count = 0;
+            while (count < size) {
+                // Never read past the end of this file
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), size - count));
+
+                final int read = channel.read(buffer);
+                if (read < 0) {
+                    throw new EOFException("The peer closed the connection after " + count + " of " + size
+                            + " bytes of " + fileName + "!");
+                }
+
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    fileChannel.write(buffer);
+                }
+                count += read;
+            }
+            return count;
+        } finally {
+            POOL.release(buffer);
+        }
+    }
+
+    /**
+     * preallocate the file and read the payload from the peer's channel directly
+     * into mapped windows of the file. Every window is forced to disk once it is
+     * full, before the next one is mapped. If the peer disconnects early the file
+     * is cut down to the bytes that were received.
+     *
+     * @param fileName the name the file is saved under
+     * @param size     the amount of bytes to read
+     * @return the amount of bytes read
+     * @throws IOException if an I/O error occurs
+     */
+    private long receiveMapped(final String fileName, final long size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+                FileChannel fileChannel = file.getChannel()) {
+            // Preallocate the whole file so every window can be mapped
+            file.setLength(size);
+
+            long count = 0;
+            MappedByteBuffer window = null;
+            try {
+                while (count < size) {
+                    final long windowSize = Math.min(MMAP_WINDOW_SIZE, size - count);
+                    window = fileChannel.map(FileChannel.MapMode.READ_WRITE, count, windowSize);
+
+                    while (window.hasRemaining()) {
+                        final int read = channel.read(window);
+                        if (read < 0) {
+                            throw new EOFException("The peer closed the connection after "
+                                    + (count + window.position()) + " of " + size + " bytes of " + fileName + "!");
+                        }
+                    }
+
+                    // Pages written through a mapping are only guaranteed to reach
+                    // the disk when the mapping itself is forced. The window is
+                    // unmapped once it is garbage collected
+                    window.force();
+                    count += windowSize;
+                    window = null;
+                }
+            } catch (final EOFException e) {
+                // Keep the bytes that already arrived in the current window
+                if (window != null) {
+                    window.force();
+                    count += window.position();
+                }
+                file.setLength(count);
+                throw e;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * read the payload from the peer's stream in large chunks. This is used when
+     * the peer socket does not have a channel.
+     *
+     * @param fileName the name the file is saved under
+     * @param size     the amount of bytes to read
+     * @return the amount of bytes read
+     * @throws IOException if an I/O error occurs
+     */
+    private long receiveStream(final String fileName, final long size) throws IOException {
+        final byte[] buffer = new byte[POOL.getBufferSize()];
+        try (FileOutputStream fileOut = new FileOutputStream(fileName)) {
+            long count = 0;
+            while (count < size) {
+                final int read = in.read(buffer, 0, (int) Math.min(buffer.length, size - count));
+                if (read < 0) {
+                    throw new EOFException("The peer closed the connection after " + count + " of " + size
+                            + " bytes of " + fileName + "!");
+                }
+                fileOut.write(buffer, 0, read);
+                count += read;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package part2.transfer;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * This is the engine a node uses to send a file to its connected peer.
+ *
+ * Every file is announced with the file name (writeUTF) followed by the size of
+ * the file (writeLong) so that receivers which only understand that header
+ * still work. The payload is then streamed straight from the file's
+ * FileChannel into the peer's SocketChannel with transferTo, which lets the
+ * operating system copy the data without bringing it into the JVM (sendfile on
+ * Linux). The original one byte at a time loop is kept as a strategy so the
+ * two can be compared.
+ *
+ * With a TransferScheduler the payload is sent one grant at a time, so the
+ * file shares the link with the other transfers of the node by its weight.
+ */
+public class FileSender {
+
+    /**
+     * The ways the payload of a file can be written to the peer
+     */
+    public enum Strategy {
+        BYTE_LOOP, // read and write a single byte at a time, flushing after every byte
+        TRANSFER_TO // stream the file's channel into the socket's channel
+    }
+
+    // Size of the buffer used when the peer socket does not have a channel
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final DataOutputStream out; // DataOutputStream from this node to its connected peer
+    private final SocketChannel channel; // SocketChannel from this node to its connected peer. May be null
+    private Strategy strategy = Strategy.TRANSFER_TO; // how the payload is written to the peer
+    private TransferScheduler scheduler = null; // scheduler the payload is sent through, null for none
+    private String peer = null; // address of the peer in the scheduler
+    private int weight = 1; // weight of the file in the scheduler
+
+    /**
+     * create a new engine for sending files to a peer
+     *
+     * @param out     the DataOutputStream that is used to write to the peer
+     * @param channel the SocketChannel of the peer socket, or null if the socket
+     *                was not created from a channel
+     */
+    public FileSender(final DataOutputStream out, final SocketChannel channel) {
+        this.out = out;
+        this.channel = channel;
+    }
+
+    /**
+     * sets how the payload of a file gets written to the peer
+     *
+     * @param strategy the strategy used for the payload
+     */
+    public void setStrategy(final Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * sets the scheduler the payload of every file is sent through
+     *
+     * @param scheduler the scheduler, null to send without one
+     * @param peer      the address of the peer, which shares its cap with the
+     *                  other transfers to it
+     * @param weight    the weight of every file in the scheduler
+     */
+    public void setScheduler(final TransferScheduler scheduler, final String peer, final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("A transfer needs a weight of at least 1!");
+        }
+        this.scheduler = scheduler;
+        this.peer = peer;
+        this.weight = weight;
+    }
+
+    /**
+     * gets how the payload of a file gets written to the peer
+     *
+     * @return the strategy used for the payload
+     */
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * send a file to the peer. The file name and the size of the file are sent
+     * first, followed by the contents of the file.
+     *
+     * @param fileName the name of the file that will be sent
+     * @return the statistics of the transfer
+     * @throws IOException if the file cannot be read or the peer cannot be
+     *                     written to
+     */
+    public TransferStats send(final String fileName) throws IOException {
+        return send(fileName, fileName);
+    }
+
+    /**
+     * send a file to the peer and have the peer save it under another name
+     *
+     * @param fileName   the name of the local file that will be sent
+     * @param remoteName the name the peer saves the file under
+     * @return the statistics of the transfer
+     * @throws IOException if the file cannot be read or the peer cannot be
+     *                     written to
+     */
+    public TransferStats send(final String fileName, final String remoteName) throws IOException {
+        try (FileInputStream fileIn = new FileInputStream(fileName);
+                ScheduledTransfer transfer = scheduler == null ? null : scheduler.open(remoteName, peer, weight)) {
+            // Get the size of the file
+            final long size = new File(fileName).length();
+
+            // Send the filename and the amount of bytes the peer should read
+            out.writeUTF(remoteName);
+            out.writeLong(size);
+            out.flush();
+
+            final long startTime = System.nanoTime();
+            final String engine;
+
+            // Send the file itself to the peer
+            if (strategy == Strategy.BYTE_LOOP) {
+                sendByteLoop(fileIn, ScheduledTransfer.wrap(transfer, out));
+                engine = "byte loop";
+            } else if (channel != null) {
+                sendTransferTo(fileIn.getChannel(), size, transfer);
+                engine = "transferTo";
+            } else {
+                sendBuffered(fileIn, ScheduledTransfer.wrap(transfer, out));
+                engine = "buffered copy";
+            }
+
+            return new TransferStats(fileName, size, System.nanoTime() - startTime, engine);
+        }
+    }
+
+    /**
+     * send the contents of a file one byte at a time
+     *
+     * @param fileIn the stream of the file being sent
+     * @param out    the stream to the peer
+     * @throws IOException if an I/O error occurs
+     */
+    private static void sendByteLoop(final FileInputStream fileIn, final OutputStream out) throws IOException {
+        int input;
+        while ((input = fileIn.read()) != -1) {
+            out.write(input);
+            out.flush();
+        }
+    }
+
+    /**
+     * send the contents of a file by transferring its channel into the peer's
+     * channel until every byte has been written
+     *
+     * @param fileChannel the channel of the file being sent
+     * @param size        the amount of bytes to send
+     * @param transfer    the transfer the payload is sent through, or null
+     * @throws IOException if an I/O error occurs
+     */
+    private void sendTransferTo(final FileChannel fileChannel, final long size, final ScheduledTransfer transfer)
+            throws IOException {
+        if (transfer != null) {
+            transfer.transferTo(fileChannel, 0, size, channel);
+            return;
+        }
+        long position = 0;
+        while (position < size) {
+            final long sent = fileChannel.transferTo(position, size - position, channel);
+
+            // The file shrank while it was being sent
+            if (sent <= 0 && fileChannel.size() <= position) {
+                throw new IOException("The file ended after " + position + " of " + size + " bytes!");
+            }
+            position += sent;
+        }
+    }
+
+    /**
+     * send the contents of a file through the peer's output stream in large
+     * chunks. This is used when the peer socket does not have a channel.
+     *
+     * @param fileIn the stream of the file being sent
+     * @param out    the stream to the peer
+     * @throws IOException if an I/O error occurs
+     */
+    private static void sendBuffered(final FileInputStream fileIn, final OutputStream out) throws IOException {
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int read;
+        while ((read = fileIn.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,211 @@
+package part2.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * This receives the original file protocol (file name, size, payload, repeated
+ * for every file) from a non-blocking connection. Every call of readFrom reads
+ * what the connection has available and remembers where it stopped, so a single
+ * selector thread can receive from many connections at once.
+ *
+ * No more bytes are read than the current part of the protocol needs. If the
+ * first name on the connection is the magic string of a transfer connection,
+ * the decoder stops right after it so the connection can be handed to a
+ * blocking transfer engine with nothing consumed that the engine needs.
+ */
+public class FileStreamDecoder {
+
+    /**
+     * The state of the connection after a call of readFrom
+     */
+    public enum Status {
+        OPEN, // more data is expected
+        CLOSED, // the peer closed the connection
+        TRANSFER // the connection is a transfer connection whose magic string was read
+    }
+
+    /**
+     * The part of the protocol that is being read
+     */
+    private enum State {
+        NAME_LENGTH, NAME, SIZE, PAYLOAD
+    }
+
+    private final Consumer<TransferStats> completed; // called with the statistics of every received file
+    private ByteBuffer header = ByteBuffer.allocate(256); // the name length, the name or the size being read
+    private State state = State.NAME_LENGTH; // part of the protocol that is being read
+    private boolean first = true; // whether the first name of the connection is being read
+    private String fileName; // name of the file being received
+    private long size; // announced size of the file being received
+    private long received; // amount of payload bytes received
+    private long startTime; // when the payload of the file started
+    private FileChannel fileChannel; // channel of the file being received
+    private Path directory = null; // directory files are saved in, null for the paths the peer sent
+
+    /**
+     * create a new decoder for a connection
+     *
+     * @param completed called with the statistics of every file that is
+     *                  received, including files cut off by the peer
+     */
+    public FileStreamDecoder(final Consumer<TransferStats> completed) {
+        this.completed = completed;
+        header.limit(2);
+    }
+
+    /**
+     * sets the directory received files are saved in. The files are saved
+     * under their names only, without the directories the peer sent.
+     *
+     * @param directory the directory, or null to save files under the paths
+     *                  the peer sent
+     */
+    public void setDirectory(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * read what the connection has available without blocking
+     *
+     * @param channel the non-blocking channel of the connection
+     * @param buffer  the buffer payloads are read through. It can be shared by
+     *                every connection of a selector thread
+     * @return the state of the connection
+     * @throws IOException if a file cannot be written
+     */
+    public Status readFrom(final ReadableByteChannel channel, final ByteBuffer buffer) throws IOException {
+        while (true) {
+            if (state == State.PAYLOAD) {
+                if (received < size) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), size - received));
+                    final int read = channel.read(buffer);
+                    if (read < 0) {
+                        return close();
+                    }
+                    if (read == 0) {
+                        return Status.OPEN;
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        received += fileChannel.write(buffer);
+                    }
+                }
+                if (received == size) {
+                    finishFile();
+                }
+                continue;
+            }
+
+            // Read exactly the bytes of the current field of the header
+            final int read = channel.read(header);
+            if (read < 0) {
+                return close();
+            }
+            if (header.hasRemaining()) {
+                return Status.OPEN;
+            }
+
+            header.flip();
+            switch (state) {
+                case NAME_LENGTH:
+                    final int length = header.getShort(0) & 0xFFFF;
+                    if (header.capacity() < 2 + length) {
+                        header = ByteBuffer.allocate(2 + length).put(header);
+                    } else {
+                        header.position(2);
+                    }
+                    header.limit(2 + length);
+                    state = State.NAME;
+                    break;
+
+                case NAME:
+                    fileName = new DataInputStream(new ByteArrayInputStream(header.array(), 0, header.limit()))
+                            .readUTF();
+                    if (first && TransferHeader.MAGIC.equals(fileName)) {
+                        return Status.TRANSFER;
+                    }
+                    first = false;
+                    header.clear();
+                    header.limit(8);
+                    state = State.SIZE;
+                    break;
+
+                default:
+                    size = header.getLong(0);
+                    if (size < 0) {
+                        throw new IOException("The peer announced the negative size " + size + "!");
+                    }
+                    startFile();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * open the file whose header was just read
+     *
+     * @throws IOException if the file cannot be created
+     */
+    private void startFile() throws IOException {
+        fileName = FileReceiver.resolve(directory, fileName);
+        fileChannel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        received = 0;
+        startTime = System.nanoTime();
+        state = State.PAYLOAD;
+    }
+
+    /**
+     * close the file that was received and wait for the next header
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    private void finishFile() throws IOException {
+        fileChannel.close();
+        fileChannel = null;
+        completed.accept(FileReceiver.verify(fileName, size, received, System.nanoTime() - startTime,
+                "selector"));
+        header.clear();
+        header.limit(2);
+        state = State.NAME_LENGTH;
+    }
+
+    /**
+     * handle the peer closing the connection. A file that was cut off is
+     * reported as failing verification.
+     *
+     * @return CLOSED
+     * @throws IOException if the file cannot be closed
+     */
+    private Status close() throws IOException {
+        if (fileChannel != null) {
+            fileChannel.close();
+            fileChannel = null;
+            completed.accept(FileReceiver.verify(fileName, size, received, System.nanoTime() - startTime,
+                    "selector"));
+        }
+        return Status.CLOSED;
+    }
+
+    /**
+     * release the file of a connection that failed
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    public void abort() throws IOException {
+        if (fileChannel != null) {
+            fileChannel.close();
+            fileChannel = null;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package part2.transfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * This receives files that a peer sends with FramedSender.
+ *
+ * Every frame is read into a direct buffer and its CRC32C is checked while the
+ * data is still in the cache. A good frame is written at its offset in the
+ * file. A corrupt frame is dropped and requested again once the round of
+ * frames ends, so only the corrupt frames are sent twice.
+ */
+public class FramedReceiver {
+    private Path directory = null; // directory files are saved in, null for the paths the peer sent
+
+    /**
+     * sets the directory received files are saved in. The files are saved
+     * under their names only, without the directories the peer sent.
+     *
+     * @param directory the directory, or null to save files under the paths
+     *                  the peer sent
+     */
+    public void setDirectory(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * receive a file from a transfer connection whose start has already been
+     * read
+     *
+     * @param in      the stream of the transfer connection
+     * @param channel the channel of the transfer connection
+     * @param out     the stream used to answer the peer
+     * @return the statistics of the transfer
+     * @throws IOException if the connection drops, the frames are malformed or
+     *                     the file cannot be written
+     */
+    public TransferStats receive(final DataInputStream in, final ReadableByteChannel channel,
+            final DataOutputStream out) throws IOException {
+        // Read what the peer wants to send
+        final String fileName = FileReceiver.resolve(directory, in.readUTF());
+        final long size = in.readLong();
+        final int frameSize = in.readInt();
+        final boolean checksums = in.readBoolean();
+        // The frame size and size come from the peer, so they are checked
+        // before anything is allocated for them
+        if (frameSize <= 0 || frameSize > FramedSender.MAX_FRAME_SIZE || size < 0
+                || (size + frameSize - 1) / frameSize > Integer.MAX_VALUE) {
+            throw new IOException("Malformed frame size " + frameSize + " for " + size + " bytes of " + fileName
+                    + "!");
+        }
+        final int frames = (int) ((size + frameSize - 1) / frameSize);
+
+        final ByteBuffer header = ByteBuffer.allocateDirect(FramedSender.FRAME_HEADER_SIZE);
+        final ByteBuffer payload = ByteBuffer.allocateDirect(frameSize);
+        final CRC32C crc = new CRC32C();
+        final BitSet written = new BitSet(frames); // frames that passed their checksum
+        final long startTime = System.nanoTime();
+        long received = 0;
+        int corrupt = 0;
+
+        try (FileChannel fileChannel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int rounds = 0; rounds < FramedSender.MAX_ROUNDS; rounds++) {
+                final List<Integer> failed = new ArrayList<>();
+
+                while (true) {
+                    // Read the header of the next frame
+                    readFully(channel, header, FramedSender.FRAME_HEADER_SIZE);
+                    final int index = header.getInt();
+                    final int length = header.getInt();
+                    final int checksum = header.getInt();
+                    if (index == FramedSender.END_OF_ROUND) {
+                        break;
+                    }
+                    if (index < 0 || index >= frames || length < 0 || length > frameSize) {
+                        throw new IOException("Malformed frame " + index + " of length " + length + "!");
+                    }
+
+                    // Read the payload and check it while it is still in the cache
+                    readFully(channel, payload, length);
+                    if (checksums) {
+                        crc.reset();
+                        crc.update(payload);
+                        payload.flip();
+                        if ((int) crc.getValue() != checksum) {
+                            failed.add(index);
+                            continue;
+                        }
+                    }
+
+                    final long offset = (long) index * frameSize;
+                    while (payload.hasRemaining()) {
+                        fileChannel.write(payload, offset + payload.position());
+                    }
+                    if (!written.get(index)) {
+                        written.set(index);
+                        received += length;
+                    }
+                }
+
+                // Ask the peer for the corrupt frames again
+                out.writeInt(failed.size());
+                for (final int index : failed) {
+                    out.writeInt(index);
+                }
+                out.flush();
+                corrupt += failed.size();
+
+                if (failed.isEmpty()) {
+                    break;
+                }
+            }
+        }
+
+        return FileReceiver.verify(fileName, size, received, System.nanoTime() - startTime,
+                checksums ? "framed CRC32C, " + corrupt + " corrupt frames" : "framed unchecked");
+    }
+
+    /**
+     * read exactly length bytes into a buffer and flip it for reading
+     *
+     * @param channel the channel to read from
+     * @param buffer  the buffer to read into
+     * @param length  the amount of bytes to read
+     * @throws IOException if the channel ends first
+     */
+    private static void readFully(final ReadableByteChannel channel, final ByteBuffer buffer, final int length)
+            throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("The peer closed the connection inside a frame!");
+            }
+        }
+        buffer.flip();
+    }
+}
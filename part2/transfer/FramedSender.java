@@ -0,0 +1,240 @@
+package part2.transfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * This sends a file to a peer as a stream of frames that each carry a CRC32C
+ * of their payload.
+ *
+ * Every frame is read from the file into a direct buffer, checksummed while the
+ * data is still in the cache and written to the peer, so the checksum needs no
+ * extra pass over the file. After the last frame the peer answers with the
+ * frames that failed their checksum and only those frames are sent again, so a
+ * corrupted frame never fails the whole file.
+ *
+ * Frame format: index (int), length (int), CRC32C (int), payload. A frame with
+ * the index -1 ends a round.
+ */
+public class FramedSender {
+    // Default size of the payload of a single frame
+    public static final int DEFAULT_FRAME_SIZE = 256 * 1024;
+
+    // Largest payload of a single frame a peer accepts
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    // Size of the header in front of every frame
+    static final int FRAME_HEADER_SIZE = 12;
+
+    // Index of the frame that ends a round of frames
+    static final int END_OF_ROUND = -1;
+
+    // Amount of rounds of retransmits before the transfer fails
+    static final int MAX_ROUNDS = 8;
+
+    private final InetSocketAddress peer; // address of the peer's listening port
+    private int frameSize = DEFAULT_FRAME_SIZE; // size of the payload of a single frame
+    private boolean checksums = true; // whether frames carry a CRC32C
+    private TransferScheduler scheduler = null; // scheduler the file is sent through, null for none
+    private int weight = 1; // weight of the file in the scheduler
+
+    /**
+     * create a new engine for sending checksummed frames
+     *
+     * @param peer the address and port the peer listens on
+     */
+    public FramedSender(final InetSocketAddress peer) {
+        this.peer = peer;
+    }
+
+    /**
+     * sets the size of the payload of a single frame
+     *
+     * @param frameSize the frame size in bytes, from 1 to MAX_FRAME_SIZE
+     */
+    public void setFrameSize(final int frameSize) {
+        if (frameSize <= 0 || frameSize > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("The frame size must be from 1 to " + MAX_FRAME_SIZE + " bytes!");
+        }
+        this.frameSize = frameSize;
+    }
+
+    /**
+     * sets the scheduler the frames are sent through
+     *
+     * @param scheduler the scheduler, null to send without one
+     * @param weight    the weight of the file in the scheduler
+     */
+    public void setScheduler(final TransferScheduler scheduler, final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("A transfer needs a weight of at least 1!");
+        }
+        this.scheduler = scheduler;
+        this.weight = weight;
+    }
+
+    /**
+     * sets whether frames carry a CRC32C. Turning checksums off keeps the framing
+     * and is only meant for measuring the cost of the checksum.
+     *
+     * @param checksums true to checksum every frame
+     */
+    public void setChecksums(final boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    /**
+     * send a file to the peer as checksummed frames
+     *
+     * @param fileName the name of the file that will be sent
+     * @return the statistics of the transfer
+     * @throws IOException if the file cannot be read or the peer cannot be
+     *                     written to
+     */
+    public TransferStats send(final String fileName) throws IOException {
+        return send(fileName, fileName);
+    }
+
+    /**
+     * send a file to the peer as checksummed frames and have the peer save it
+     * under another name
+     *
+     * @param fileName   the name of the local file that will be sent
+     * @param remoteName the name the peer saves the file under
+     * @return the statistics of the transfer
+     * @throws IOException if the file cannot be read or the peer cannot be
+     *                     written to
+     */
+    public TransferStats send(final String fileName, final String remoteName) throws IOException {
+        final File file = new File(fileName);
+        final long size = file.length();
+        final int frames = (int) ((size + frameSize - 1) / frameSize);
+
+        try (SocketChannel channel = SocketChannel.open(peer);
+                FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                ScheduledTransfer transfer = ScheduledTransfer.open(scheduler, remoteName, peer, weight)) {
+            final DataOutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+            final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+
+            // Announce the file
+            TransferHeader.writeStart(out, TransferHeader.MODE_FRAMED);
+            out.writeUTF(remoteName);
+            out.writeLong(size);
+            out.writeInt(frameSize);
+            out.writeBoolean(checksums);
+            out.flush();
+
+            final ByteBuffer header = ByteBuffer.allocateDirect(FRAME_HEADER_SIZE);
+            final ByteBuffer payload = ByteBuffer.allocateDirect(frameSize);
+            final ByteBuffer[] frame = { header, payload };
+            final CRC32C crc = new CRC32C();
+            final long startTime = System.nanoTime();
+            long sent = 0;
+            int retransmits = 0;
+
+            // The first round sends every frame
+            int[] round = null;
+            for (int rounds = 0; rounds < MAX_ROUNDS; rounds++) {
+                final int count = round == null ? frames : round.length;
+                for (int i = 0; i < count; i++) {
+                    final int index = round == null ? i : round[i];
+                    sent += sendFrame(channel, fileChannel, frame, crc, index, size, transfer);
+                }
+                putHeader(header, END_OF_ROUND, 0, 0);
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+
+                // Ask the peer which frames failed their checksum
+                final int failed = in.readInt();
+                if (failed == 0) {
+                    return new TransferStats(fileName, sent, System.nanoTime() - startTime,
+                            checksums ? "framed CRC32C, " + retransmits + " frames resent" : "framed unchecked");
+                }
+                round = new int[failed];
+                for (int i = 0; i < failed; i++) {
+                    round[i] = in.readInt();
+                }
+                retransmits += failed;
+            }
+            throw new IOException(fileName + " still had corrupt frames after " + MAX_ROUNDS + " rounds!");
+        }
+    }
+
+    /**
+     * read a frame from the file, checksum it and write it to the peer
+     *
+     * @param channel     the channel of the transfer connection
+     * @param fileChannel the channel of the file being sent
+     * @param frame       the buffers used for the frame header and payload
+     * @param crc         the checksum that gets reset for this frame
+     * @param index       the index of the frame
+     * @param size        the size of the whole file
+     * @param transfer    the transfer the frame is sent through, or null
+     * @return the amount of payload bytes sent
+     * @throws IOException if an I/O error occurs
+     */
+    private int sendFrame(final SocketChannel channel, final FileChannel fileChannel, final ByteBuffer[] frame,
+            final CRC32C crc, final int index, final long size, final ScheduledTransfer transfer)
+            throws IOException {
+        final ByteBuffer header = frame[0];
+        final ByteBuffer payload = frame[1];
+        final long offset = (long) index * frameSize;
+        final int length = (int) Math.min(frameSize, size - offset);
+
+        // Read the payload of the frame
+        payload.clear();
+        payload.limit(length);
+        while (payload.hasRemaining()) {
+            if (fileChannel.read(payload, offset + payload.position()) < 0) {
+                throw new EOFException("The file ended inside frame " + index + "!");
+            }
+        }
+        payload.flip();
+
+        // Checksum the payload while it is still in the cache
+        int checksum = 0;
+        if (checksums) {
+            crc.reset();
+            crc.update(payload);
+            payload.flip();
+            checksum = (int) crc.getValue();
+        }
+
+        // Write the header and the payload with a single gathering write, or
+        // one grant of the scheduler at a time
+        putHeader(header, index, length, checksum);
+        if (transfer == null) {
+            while (payload.hasRemaining()) {
+                channel.write(frame);
+            }
+        } else {
+            transfer.write(header, channel);
+            transfer.write(payload, channel);
+        }
+        return length;
+    }
+
+    /**
+     * fill the header buffer of a frame and flip it for writing
+     *
+     * @param header   the buffer used for the frame header
+     * @param index    the index of the frame
+     * @param length   the length of the payload
+     * @param checksum the CRC32C of the payload
+     */
+    private static void putHeader(final ByteBuffer header, final int index, final int length, final int checksum) {
+        header.clear();
+        header.putInt(index).putInt(length).putInt(checksum);
+        header.flip();
+    }
+}
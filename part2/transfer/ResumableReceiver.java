@@ -0,0 +1,189 @@
+package part2.transfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This receives files that a peer sends with ResumableSender.
+ *
+ * The file is written into a temporary file (NAME.part) next to a checkpoint
+ * journal (NAME.journal) of the chunks that are safely on disk. When the peer
+ * connects it is told which ranges are missing, so a transfer that was cut off,
+ * even by a crash of this node, only resends what never made it to disk. Once
+ * every chunk is on disk the temporary file is atomically renamed to the real
+ * name and the journal is deleted.
+ */
+public class ResumableReceiver {
+    // Direct buffers shared by every resumable receive on this node
+    private static final BufferPool POOL = new BufferPool(256 * 1024, 16);
+
+    // Amount of received bytes between two checkpoints of the journal
+    private static final long CHECKPOINT_BYTES = 32L * 1024 * 1024;
+
+    private Path directory = null; // directory files are saved in, null for the paths the peer sent
+
+    /**
+     * sets the directory received files are saved in. The files are saved
+     * under their names only, without the directories the peer sent.
+     *
+     * @param directory the directory, or null to save files under the paths
+     *                  the peer sent
+     */
+    public void setDirectory(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * receive a file from a transfer connection whose start has already been
+     * read. If the connection drops, the chunks received so far are kept for the
+     * next attempt.
+     *
+     * @param in      the stream of the transfer connection
+     * @param channel the channel of the transfer connection
+     * @param out     the stream used to answer the peer
+     * @return the statistics of the transfer
+     * @throws IOException if the connection drops or the file cannot be written
+     */
+    public TransferStats receive(final DataInputStream in, final ReadableByteChannel channel,
+            final DataOutputStream out) throws IOException {
+        // Read what the peer wants to send
+        final String key = in.readUTF();
+        final String fileName = FileReceiver.resolve(directory, in.readUTF());
+        final long size = in.readLong();
+        final int chunkSize = in.readInt();
+        if (chunkSize <= 0) {
+            throw new IOException("Invalid chunk size " + chunkSize + "!");
+        }
+
+        final File target = new File(fileName);
+        final File temp = new File(fileName + ".part");
+        final File journalFile = new File(fileName + ".journal");
+
+        // A journal without its temporary file cannot be resumed
+        if (!temp.exists()) {
+            journalFile.delete();
+        }
+
+        final long startTime = System.nanoTime();
+        final ChunkJournal journal = new ChunkJournal(journalFile, key, size, chunkSize);
+        final long resumedBytes = journal.getCompletedBytes();
+        long received = 0;
+
+        try (FileChannel fileChannel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            // Tell the peer which ranges are missing
+            final List<long[]> missing = journal.getMissingRanges();
+            out.writeLong(resumedBytes);
+            out.writeInt(missing.size());
+            for (final long[] range : missing) {
+                out.writeLong(range[0]);
+                out.writeLong(range[1]);
+            }
+            out.flush();
+
+            // The peer sends the missing ranges in the order they were listed
+            final List<Integer> pending = new ArrayList<>();
+            try {
+                for (final long[] range : missing) {
+                    received += receiveRange(fileChannel, channel, journal, pending, chunkSize, range[0],
+                            range[1]);
+                }
+            } finally {
+                // Keep every complete chunk, even if the connection dropped
+                fileChannel.force(false);
+                journal.checkpoint(pending);
+            }
+        } catch (final IOException e) {
+            journal.close();
+            throw e;
+        }
+
+        // Every chunk is on disk, so the file can take its real name
+        journal.delete();
+        try {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        final TransferStats stats = FileReceiver.verify(fileName, size, resumedBytes + received,
+                System.nanoTime() - startTime, "resumable, " + resumedBytes + " bytes resumed");
+
+        // Tell the peer the file is complete
+        out.writeBoolean(stats.isVerified());
+        out.flush();
+        return stats;
+    }
+
+    /**
+     * read one missing range and write it at its offset in the temporary file.
+     * The journal is checkpointed whenever enough chunks are complete.
+     *
+     * @param fileChannel the channel of the temporary file
+     * @param channel     the channel of the transfer connection
+     * @param journal     the journal of the transfer
+     * @param pending     complete chunks that have not been checkpointed yet
+     * @param chunkSize   the size of every chunk except the last
+     * @param offset      the position of the range in the file
+     * @param length      the length of the range
+     * @return the amount of bytes received
+     * @throws IOException if the connection drops or the file cannot be written
+     */
+    private long receiveRange(final FileChannel fileChannel, final ReadableByteChannel channel,
+            final ChunkJournal journal, final List<Integer> pending, final int chunkSize, final long offset,
+            final long length) throws IOException {
+        final ByteBuffer buffer = POOL.acquire();
+        try {
+            long count = 0;
+            long unsynced = 0;
+            while (count < length) {
+                // Never read past the end of the current chunk
+                final long position = offset + count;
+                final long chunkEnd = Math.min((position / chunkSize + 1) * chunkSize, offset + length);
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), chunkEnd - position));
+
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("The peer closed the connection at byte " + position + "!");
+                }
+
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    final int written = fileChannel.write(buffer, offset + count);
+                    count += written;
+                    unsynced += written;
+                }
+
+                // A chunk is complete once the position reaches its end
+                if (offset + count == chunkEnd) {
+                    pending.add((int) ((chunkEnd - 1) / chunkSize));
+                }
+
+                // Force the data before the journal records it
+                if (unsynced >= CHECKPOINT_BYTES) {
+                    fileChannel.force(false);
+                    journal.checkpoint(pending);
+                    pending.clear();
+                    unsynced = 0;
+                }
+            }
+            return count;
+        } finally {
+            POOL.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package part2.transfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This sends a file to a peer so that the transfer can be resumed.
+ *
+ * Every attempt opens a transfer connection, asks the peer which ranges of the
+ * file it is still missing and only sends those ranges. If the connection
+ * drops, the sender reconnects and asks again, so a transfer that was cut off
+ * continues where the peer's checkpoint journal left off instead of starting
+ * over.
+ */
+public class ResumableSender {
+    // Size of the chunks the peer checkpoints
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final InetSocketAddress peer; // address of the peer's listening port
+    private final int attempts; // amount of times a transfer is tried before giving up
+    private final long retryDelayMillis; // time waited before reconnecting
+    private int chunkSize = DEFAULT_CHUNK_SIZE; // size of the chunks the peer checkpoints
+    private TransferScheduler scheduler = null; // scheduler the file is sent through, null for none
+    private int weight = 1; // weight of the file in the scheduler
+
+    /**
+     * create a new engine for sending resumable files
+     *
+     * @param peer             the address and port the peer listens on
+     * @param attempts         the amount of times a transfer is tried before
+     *                         giving up
+     * @param retryDelayMillis the time waited before reconnecting in milliseconds
+     */
+    public ResumableSender(final InetSocketAddress peer, final int attempts, final long retryDelayMillis) {
+        this.peer = peer;
+        this.attempts = attempts;
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * sets the size of the chunks the peer checkpoints
+     *
+     * @param chunkSize the chunk size in bytes
+     */
+    public void setChunkSize(final int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * sets the scheduler the missing ranges are sent through
+     *
+     * @param scheduler the scheduler, null to send without one
+     * @param weight    the weight of the file in the scheduler
+     */
+    public void setScheduler(final TransferScheduler scheduler, final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("A transfer needs a weight of at least 1!");
+        }
+        this.scheduler = scheduler;
+        this.weight = weight;
+    }
+
+    /**
+     * send a file to the peer, reconnecting and resuming if the connection drops
+     *
+     * @param fileName the name of the file that will be sent
+     * @return the statistics of the last attempt
+     * @throws IOException if every attempt fails
+     */
+    public TransferStats send(final String fileName) throws IOException {
+        return send(fileName, fileName);
+    }
+
+    /**
+     * send a file to the peer and have the peer save it under another name,
+     * reconnecting and resuming if the connection drops
+     *
+     * @param fileName   the name of the local file that will be sent
+     * @param remoteName the name the peer saves the file under
+     * @return the statistics of the last attempt
+     * @throws IOException if every attempt fails
+     */
+    public TransferStats send(final String fileName, final String remoteName) throws IOException {
+        final File file = new File(fileName);
+
+        // The key changes whenever the file changes, so a stale journal is never used
+        final String key = remoteName + ":" + file.length() + ":" + file.lastModified();
+
+        IOException failure = null;
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            try {
+                return sendAttempt(file, remoteName, key);
+            } catch (final IOException e) {
+                failure = e;
+                System.err.println("Attempt " + attempt + " of " + attempts + " to send " + fileName + " failed: "
+                        + e.getMessage());
+                try {
+                    Thread.sleep(retryDelayMillis);
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * connect to the peer and send the ranges it is missing
+     *
+     * @param file       the file being sent
+     * @param remoteName the name the peer saves the file under
+     * @param key        the key that identifies this version of the file
+     * @return the statistics of the attempt
+     * @throws IOException if the attempt fails
+     */
+    private TransferStats sendAttempt(final File file, final String remoteName, final String key)
+            throws IOException {
+        final long size = file.length();
+        try (SocketChannel channel = SocketChannel.open(peer);
+                FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                ScheduledTransfer transfer = ScheduledTransfer.open(scheduler, remoteName, peer, weight)) {
+            final DataOutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+            final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+
+            // Announce the file
+            TransferHeader.writeStart(out, TransferHeader.MODE_RESUME);
+            out.writeUTF(key);
+            out.writeUTF(remoteName);
+            out.writeLong(size);
+            out.writeInt(chunkSize);
+            out.flush();
+
+            // Ask the peer which ranges it is missing
+            final long resumedBytes = in.readLong();
+            final int ranges = in.readInt();
+            final long[][] missing = new long[ranges][2];
+            for (int i = 0; i < ranges; i++) {
+                missing[i][0] = in.readLong();
+                missing[i][1] = in.readLong();
+            }
+
+            // Send only the missing ranges
+            final long startTime = System.nanoTime();
+            long sent = 0;
+            for (final long[] range : missing) {
+                ScheduledTransfer.transferTo(transfer, fileChannel, range[0], range[1], channel);
+                sent += range[1];
+            }
+
+            // Wait for the peer to confirm the file is complete
+            if (!in.readBoolean()) {
+                throw new IOException("The peer could not verify " + remoteName + "!");
+            }
+            return new TransferStats(file.getPath(), sent, System.nanoTime() - startTime,
+                    "resumable, " + resumedBytes + " bytes resumed");
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package part2.transfer;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * This is a transfer that sends its bytes through a TransferScheduler. Before
+ * it writes, the transfer asks the scheduler how many bytes it may send, and
+ * once it wrote them it reports them so the next transfer gets the link.
+ *
+ * The bytes a transfer sent and the rate it achieved can be read while it
+ * runs, which shows how the link is shared between the transfers.
+ */
+public class ScheduledTransfer implements Closeable {
+    private final TransferScheduler scheduler; // scheduler that grants the bytes
+    private final String name; // name of the transfer
+    private final String peer; // peer the transfer goes to
+    private final int weight; // share of the link against the other transfers
+    private final long openTime = System.nanoTime(); // time the transfer was opened
+
+    // Guarded by the lock of the scheduler
+    long pending = 0; // bytes the transfer asked for
+    long granted = 0; // bytes the transfer may send now, 0 while it waits
+    long deficit = 0; // bytes the transfer may still send on its turn
+    long bytes = 0; // bytes the transfer sent so far
+    boolean sending = false; // whether the transfer holds a grant of the link to its peer
+    long grantTime = 0; // time the grant the transfer holds was made
+    volatile boolean closed = false; // whether the transfer was closed
+    volatile long closeTime = 0; // time the transfer was closed
+
+    /**
+     * create a transfer of a scheduler
+     *
+     * @param scheduler the scheduler
+     * @param name      the name of the transfer
+     * @param peer      the peer the transfer goes to
+     * @param weight    the share of the link against the other transfers
+     */
+    ScheduledTransfer(final TransferScheduler scheduler, final String name, final String peer, final int weight) {
+        this.scheduler = scheduler;
+        this.name = name;
+        this.peer = peer;
+        this.weight = weight;
+    }
+
+    /**
+     * wait until the transfer may send bytes. Every call must be followed by a
+     * call to sent once the bytes were written.
+     *
+     * @param wanted the amount of bytes the transfer wants to send
+     * @return the amount of bytes it may send, at least 1 and at most wanted
+     * @throws IOException if the transfer is closed or the thread is
+     *                     interrupted
+     */
+    public long acquire(final long wanted) throws IOException {
+        if (wanted < 1) {
+            throw new IllegalArgumentException("A transfer has to ask for at least 1 byte!");
+        }
+        return scheduler.acquire(this, wanted);
+    }
+
+    /**
+     * report the bytes that were written after a call to acquire, which lets
+     * the next transfer send
+     *
+     * @param sent the amount of bytes that were written
+     */
+    public void sent(final long sent) {
+        scheduler.sent(this, sent);
+    }
+
+    /**
+     * send a range of a file to a channel with transferTo, one grant of the
+     * scheduler at a time
+     *
+     * @param fileChannel the channel of the file
+     * @param position    the position of the range in the file
+     * @param count       the length of the range
+     * @param target      the channel the range is written to
+     * @throws IOException if an I/O error occurs or the file ends early
+     */
+    public void transferTo(final FileChannel fileChannel, final long position, final long count,
+            final WritableByteChannel target) throws IOException {
+        long done = 0;
+        while (done < count) {
+            final long granted = acquire(count - done);
+            long written = 0;
+            try {
+                while (written < granted) {
+                    final long sent = fileChannel.transferTo(position + done + written, granted - written, target);
+                    if (sent <= 0 && fileChannel.size() <= position + done + written) {
+                        throw new IOException("The file ended after " + (position + done + written) + " bytes!");
+                    }
+                    written += sent;
+                }
+            } finally {
+                sent(written);
+            }
+            done += written;
+        }
+    }
+
+    /**
+     * write a buffer to a channel, one grant of the scheduler at a time
+     *
+     * @param buffer the buffer, which is written up to its limit
+     * @param target the channel the buffer is written to
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(final ByteBuffer buffer, final WritableByteChannel target) throws IOException {
+        final int limit = buffer.limit();
+        while (buffer.hasRemaining()) {
+            final long granted = acquire(buffer.remaining());
+            buffer.limit(buffer.position() + (int) granted);
+            long written = 0;
+            try {
+                while (buffer.hasRemaining()) {
+                    written += target.write(buffer);
+                }
+            } finally {
+                buffer.limit(limit);
+                sent(written);
+            }
+        }
+    }
+
+    /**
+     * send a range of a file to a channel with transferTo, through a transfer
+     * of a scheduler if there is one
+     *
+     * @param transfer    the transfer, or null to send without a scheduler
+     * @param fileChannel the channel of the file
+     * @param position    the position of the range in the file
+     * @param count       the length of the range
+     * @param target      the channel the range is written to
+     * @throws IOException if an I/O error occurs or the file ends early
+     */
+    static void transferTo(final ScheduledTransfer transfer, final FileChannel fileChannel, final long position,
+            final long count, final WritableByteChannel target) throws IOException {
+        if (transfer != null) {
+            transfer.transferTo(fileChannel, position, count, target);
+            return;
+        }
+        long done = 0;
+        while (done < count) {
+            final long sent = fileChannel.transferTo(position + done, count - done, target);
+            if (sent <= 0 && fileChannel.size() <= position + done) {
+                throw new IOException("The file ended after " + (position + done) + " bytes!");
+            }
+            done += sent;
+        }
+    }
+
+    /**
+     * wrap a stream so every write waits for grants of a transfer
+     *
+     * @param transfer the transfer, or null to write without a scheduler
+     * @param out      the stream to the peer
+     * @return the wrapped stream, or the stream itself if there is no transfer
+     */
+    static OutputStream wrap(final ScheduledTransfer transfer, final OutputStream out) {
+        if (transfer == null) {
+            return out;
+        }
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(final int b) throws IOException {
+                transfer.acquire(1);
+                try {
+                    out.write(b);
+                } finally {
+                    transfer.sent(1);
+                }
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                int done = 0;
+                while (done < len) {
+                    final int granted = (int) transfer.acquire(len - done);
+                    try {
+                        out.write(b, off + done, granted);
+                    } finally {
+                        transfer.sent(granted);
+                    }
+                    done += granted;
+                }
+            }
+        };
+    }
+
+    /**
+     * open a transfer of a scheduler if there is one
+     *
+     * @param scheduler the scheduler, or null to send without one
+     * @param name      the name of the transfer
+     * @param peer      the address of the peer the transfer goes to
+     * @param weight    the share of the link against the other transfers
+     * @return the transfer, or null if there is no scheduler
+     */
+    static ScheduledTransfer open(final TransferScheduler scheduler, final String name,
+            final InetSocketAddress peer, final int weight) {
+        return scheduler == null ? null : scheduler.open(name, peer.getAddress().getHostAddress(), weight);
+    }
+
+    /**
+     * gets the name of the transfer
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * gets the peer the transfer goes to
+     *
+     * @return the peer
+     */
+    public String getPeer() {
+        return peer;
+    }
+
+    /**
+     * gets the share of the link the transfer gets against the others
+     *
+     * @return the weight
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * gets the amount of bytes the transfer sent so far
+     *
+     * @return the amount of bytes
+     */
+    public long getBytes() {
+        return scheduler.bytes(this);
+    }
+
+    /**
+     * gets the rate the transfer achieved since it was opened, up to the time
+     * it was closed
+     *
+     * @return the rate in bytes per second
+     */
+    public double getBytesPerSecond() {
+        final long elapsed = (closed ? closeTime : System.nanoTime()) - openTime;
+        return elapsed <= 0 ? 0 : getBytes() * 1_000_000_000.0 / elapsed;
+    }
+
+    /**
+     * returns whether the transfer was closed
+     *
+     * @return true if it was closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * close the transfer, which gives up its place on the link
+     */
+    @Override
+    public void close() {
+        scheduler.close(this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s to %s: %d bytes at %.2f MB/s (weight %d)", name, peer, getBytes(),
+                getBytesPerSecond() / (1024 * 1024), weight);
+    }
+}
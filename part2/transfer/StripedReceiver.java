@@ -0,0 +1,244 @@
+package part2.transfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This receives the stripes of files that a peer sends with StripedSender.
+ *
+ * Every stripe arrives on its own transfer connection. The first stripe of a
+ * file to arrive creates the file, and every stripe writes its range at its
+ * offset with positional FileChannel writes, so the stripes can arrive in any
+ * order and at the same time. The stripe that completes the file closes it and
+ * reports the statistics of the whole transfer.
+ *
+ * A file whose missing stripes do not arrive is closed once no stripe was
+ * received for the timeout, so its FileChannel is not kept open forever. The
+ * timeout is set with setTimeout or the transfer.stripeTimeout system property
+ * (in milliseconds).
+ */
+public class StripedReceiver {
+    // Direct buffers shared by every stripe on this node
+    private static final BufferPool POOL = new BufferPool(256 * 1024, 64);
+
+    // Files that are currently being received, by transfer ID
+    private static final ConcurrentHashMap<Long, StripedFile> TRANSFERS = new ConcurrentHashMap<>();
+
+    // Time a file may go without receiving a stripe before it is closed
+    public static final long DEFAULT_TIMEOUT = Long.getLong("transfer.stripeTimeout", 60000);
+
+    private long timeout = DEFAULT_TIMEOUT; // milliseconds an incomplete file waits for its next stripe
+    private Path directory = null; // directory files are saved in, null for the paths the peer sent
+
+    /**
+     * This is a file that is being received over several stripes
+     */
+    private static class StripedFile {
+        private final String fileName; // name the file is saved under
+        private final long size; // size of the whole file
+        private final int stripes; // amount of stripes the file was split across
+        private final FileChannel fileChannel; // channel the stripes write into
+        private final AtomicInteger remaining; // amount of stripes that have not finished
+        private final AtomicLong received = new AtomicLong(); // amount of bytes received by every stripe
+        private final long startTime = System.nanoTime(); // time the first stripe arrived
+        // Guarded by the lock of the file
+        private int active; // amount of stripes that are being received
+        private long lastActive = startTime; // time the last stripe ended
+        private boolean expired; // whether the file was closed for its timeout
+
+        StripedFile(final String fileName, final long size, final int stripes) throws IOException {
+            this.fileName = fileName;
+            this.size = size;
+            this.stripes = stripes;
+            this.remaining = new AtomicInteger(stripes);
+            this.fileChannel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    }
+
+    /**
+     * sets the directory received files are saved in. The files are saved
+     * under their names only, without the directories the peer sent.
+     *
+     * @param directory the directory, or null to save files under the paths
+     *                  the peer sent
+     */
+    public void setDirectory(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * sets the time a file may go without receiving a stripe before it is closed
+     *
+     * @param timeout the time in milliseconds
+     */
+    public void setTimeout(final long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * check if the stripes of a transfer are still being received
+     *
+     * @param transferId the ID of the transfer
+     * @return true if the file of the transfer is open, false otherwise
+     */
+    public static boolean isReceiving(final long transferId) {
+        return TRANSFERS.containsKey(transferId);
+    }
+
+    /**
+     * receive one stripe from a transfer connection whose start has already been
+     * read. The peer is told whether the range was written.
+     *
+     * @param in      the stream of the transfer connection
+     * @param channel the channel of the transfer connection
+     * @param out     the stream used to answer the peer
+     * @return the statistics of the whole file if this stripe completed it, null
+     *         otherwise
+     * @throws IOException if the stripe could not be received
+     */
+    public TransferStats receiveStripe(final DataInputStream in, final ReadableByteChannel channel,
+            final DataOutputStream out) throws IOException {
+        // Read the range this stripe carries
+        final long transferId = in.readLong();
+        final String fileName = FileReceiver.resolve(directory, in.readUTF());
+        final long size = in.readLong();
+        final int stripes = in.readInt();
+        final long offset = in.readLong();
+        final long length = in.readLong();
+
+        final StripedFile file;
+        try {
+            file = TRANSFERS.computeIfAbsent(transferId, id -> {
+                try {
+                    final StripedFile created = new StripedFile(fileName, size, stripes);
+                    expireLater(id, created, timeout);
+                    return created;
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+        synchronized (file) {
+            if (file.expired) {
+                out.writeBoolean(false);
+                throw new IOException("The stripe of " + fileName + " arrived after the transfer timed out!");
+            }
+            file.active++;
+        }
+
+        try {
+            file.received.addAndGet(writeRange(file.fileChannel, channel, offset, length));
+        } catch (final IOException e) {
+            // One missing range means the file can never be completed
+            TRANSFERS.remove(transferId);
+            file.fileChannel.close();
+            out.writeBoolean(false);
+            throw e;
+        } finally {
+            synchronized (file) {
+                file.active--;
+                file.lastActive = System.nanoTime();
+            }
+        }
+
+        TransferStats stats = null;
+        if (file.remaining.decrementAndGet() == 0) {
+            TRANSFERS.remove(transferId);
+            file.fileChannel.close();
+            stats = FileReceiver.verify(file.fileName, file.size, file.received.get(),
+                    System.nanoTime() - file.startTime, "striped");
+            stats.setStripes(file.stripes);
+        }
+
+        // Tell the peer the range was written
+        out.writeBoolean(true);
+        out.flush();
+        return stats;
+    }
+
+    /**
+     * check a file after a delay, and close it if it is still incomplete and no
+     * stripe arrived for the timeout. Otherwise the check is repeated when the
+     * timeout could next pass.
+     *
+     * @param transferId the ID of the transfer
+     * @param file       the file being received
+     * @param delay      the delay in milliseconds
+     */
+    private void expireLater(final long transferId, final StripedFile file, final long delay) {
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+            // The file was completed or failed in the meantime
+            if (TRANSFERS.get(transferId) != file) {
+                return;
+            }
+            synchronized (file) {
+                final long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - file.lastActive);
+                if (file.active > 0 || idle < timeout) {
+                    expireLater(transferId, file, file.active > 0 ? timeout : timeout - idle);
+                    return;
+                }
+                file.expired = true;
+            }
+            TRANSFERS.remove(transferId, file);
+            try {
+                file.fileChannel.close();
+            } catch (final IOException e) {
+                System.err.println("Could not close " + file.fileName + ": " + e.getMessage());
+            }
+            System.err.println("Gave up on " + file.fileName + " after " + (file.stripes - file.remaining.get())
+                    + " of " + file.stripes + " stripes!");
+        });
+    }
+
+    /**
+     * read a range from a transfer connection and write it at its offset
+     *
+     * @param fileChannel the channel of the file being received
+     * @param channel     the channel of the transfer connection
+     * @param offset      the position of the range in the file
+     * @param length      the length of the range
+     * @return the amount of bytes written
+     * @throws IOException if the peer disconnects before the whole range arrived
+     */
+    private long writeRange(final FileChannel fileChannel, final ReadableByteChannel channel, final long offset,
+            final long length) throws IOException {
+        final ByteBuffer buffer = POOL.acquire();
+        try {
+            long count = 0;
+            while (count < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), length - count));
+
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("The peer closed the stripe after " + count + " of " + length
+                            + " bytes!");
+                }
+
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    count += fileChannel.write(buffer, offset + count);
+                }
+            }
+            return count;
+        } finally {
+            POOL.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package part2.transfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This sends a single file to a peer over several parallel connections.
+ *
+ * The file is split into one contiguous range per stripe. Every stripe opens
+ * its own transfer connection to the peer, announces the range it carries and
+ * streams the range with transferTo. The peer writes every range at its offset
+ * and answers each stripe once its range is on disk, so the send is complete
+ * when every stripe has been answered.
+ *
+ * With a TransferScheduler every stripe is a transfer of the scheduler, so the
+ * stripes share the link with the other transfers of the node by their weight.
+ */
+public class StripedSender {
+    private static final Random RANDOM = new Random(); // source of transfer IDs
+
+    private final InetSocketAddress peer; // address of the peer's listening port
+    private final int stripes; // amount of parallel connections
+    private TransferScheduler scheduler = null; // scheduler the stripes send through, null for none
+    private int weight = 1; // weight of every stripe in the scheduler
+
+    /**
+     * create a new engine for sending files over parallel connections
+     *
+     * @param peer    the address and port the peer listens on
+     * @param stripes the amount of parallel connections per file
+     */
+    public StripedSender(final InetSocketAddress peer, final int stripes) {
+        this.peer = peer;
+        this.stripes = stripes;
+    }
+
+    /**
+     * sets the scheduler the stripes send their bytes through
+     *
+     * @param scheduler the scheduler, null to send without one
+     * @param weight    the weight of every stripe in the scheduler
+     */
+    public void setScheduler(final TransferScheduler scheduler, final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("A transfer needs a weight of at least 1!");
+        }
+        this.scheduler = scheduler;
+        this.weight = weight;
+    }
+
+    /**
+     * send a file to the peer over parallel connections
+     *
+     * @param fileName the name of the file that will be sent
+     * @return the statistics of the transfer
+     * @throws IOException if the file cannot be read or any stripe fails
+     */
+    public TransferStats send(final String fileName) throws IOException {
+        final long size = new File(fileName).length();
+        final long transferId = RANDOM.nextLong();
+
+        // Never use more stripes than there are bytes
+        final int count = (int) Math.max(1, Math.min(stripes, size));
+        final long stripeSize = size / count;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(count);
+        final long startTime = System.nanoTime();
+        try (FileChannel fileChannel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ)) {
+            final List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                final long offset = i * stripeSize;
+
+                // The last stripe also carries the remainder of the division
+                final long length = i == count - 1 ? size - offset : stripeSize;
+                results.add(executor.submit(() -> {
+                    sendStripe(fileChannel, fileName, transferId, size, count, offset, length);
+                    return null;
+                }));
+            }
+
+            for (final Future<Void> result : results) {
+                result.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("The striped transfer was interrupted!", e);
+        } catch (final ExecutionException e) {
+            throw new IOException("A stripe of " + fileName + " failed!", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final TransferStats stats = new TransferStats(fileName, size, System.nanoTime() - startTime, "striped");
+        stats.setStripes(count);
+        return stats;
+    }
+
+    /**
+     * open a transfer connection and send a single range of the file over it
+     *
+     * @param fileChannel the channel of the file being sent
+     * @param fileName    the name of the file being sent
+     * @param transferId  the ID shared by every stripe of this file
+     * @param size        the size of the whole file
+     * @param count       the amount of stripes of this file
+     * @param offset      the position of the range in the file
+     * @param length      the length of the range
+     * @throws IOException if an I/O error occurs or the peer rejects the range
+     */
+    private void sendStripe(final FileChannel fileChannel, final String fileName, final long transferId,
+            final long size, final int count, final long offset, final long length) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(peer)) {
+            final DataOutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+            final DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+
+            // Announce the range this stripe carries
+            TransferHeader.writeStart(out, TransferHeader.MODE_STRIPE);
+            out.writeLong(transferId);
+            out.writeUTF(fileName);
+            out.writeLong(size);
+            out.writeInt(count);
+            out.writeLong(offset);
+            out.writeLong(length);
+            out.flush();
+
+            // Send the range itself
+            try (ScheduledTransfer transfer = ScheduledTransfer.open(scheduler,
+                    count == 1 ? fileName : fileName + "@" + offset, peer, weight)) {
+                ScheduledTransfer.transferTo(transfer, fileChannel, offset, length, channel);
+            }
+
+            // Wait for the peer to confirm the range was written
+            if (!in.readBoolean()) {
+                throw new IOException("The peer could not write the range at " + offset + "!");
+            }
+        }
+    }
+}
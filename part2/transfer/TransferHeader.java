@@ -0,0 +1,79 @@
+package part2.transfer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * This describes the header that starts every transfer connection.
+ *
+ * The connection between two peers only carries the original file protocol
+ * (file name, size, payload). Transfer modes that need more than that open
+ * their own transfer connections to the peer's listening port. Every transfer
+ * connection starts with a magic string, which can never be a file name, and
+ * the mode of the transfer. The rest of the header depends on the mode.
+ */
+public final class TransferHeader {
+    // Written with writeUTF at the start of every transfer connection
+    public static final String MAGIC = "\u0000xfer";
+
+    // Version of the transfer connection protocol
+    public static final byte VERSION = 1;
+
+    // Transfer modes
+    public static final byte MODE_STRIPE = 1; // one range of a file sent over several connections
+    public static final byte MODE_RESUME = 2; // a file that can be resumed after the connection drops
+    public static final byte MODE_FRAMED = 3; // a file sent as frames that each carry a CRC32C
+    public static final byte MODE_COMPRESSED = 4; // a file sent as blocks that may be compressed
+    public static final byte MODE_DELTA = 5; // the changes between a file and the peer's copy of it
+    public static final byte MODE_DEDUP = 6; // the chunks of a file the peer does not hold yet
+    public static final byte MODE_BATCH = 7; // many files sent back to back in one session
+
+    private TransferHeader() {
+    }
+
+    /**
+     * write the start of a transfer connection
+     *
+     * @param out  the stream of the transfer connection
+     * @param mode the mode of the transfer
+     * @throws IOException if an I/O error occurs
+     */
+    public static void writeStart(final DataOutputStream out, final byte mode) throws IOException {
+        out.writeUTF(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(mode);
+    }
+
+    /**
+     * read the start of a transfer connection
+     *
+     * @param in the stream of the transfer connection
+     * @return the mode of the transfer
+     * @throws IOException if the connection is not a transfer connection or uses
+     *                     another version of the protocol
+     */
+    public static byte readStart(final DataInputStream in) throws IOException {
+        final String magic = in.readUTF();
+        if (!MAGIC.equals(magic)) {
+            throw new IOException("The connection is not a transfer connection!");
+        }
+        return readMode(in);
+    }
+
+    /**
+     * read the rest of the start of a transfer connection whose magic string was
+     * already read
+     *
+     * @param in the stream of the transfer connection
+     * @return the mode of the transfer
+     * @throws IOException if the connection uses another version of the protocol
+     */
+    public static byte readMode(final DataInputStream in) throws IOException {
+        final byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported transfer protocol version " + version + "!");
+        }
+        return in.readByte();
+    }
+}
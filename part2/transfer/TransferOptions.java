@@ -0,0 +1,181 @@
+package part2.transfer;
+
+/**
+ * This holds the settings a node uses when it sends files to its peer. The
+ * defaults can be changed with system properties so a node can be tuned per
+ * link without changing code.
+ *
+ * When several modes are turned on, the first of resumable, checksums, delta,
+ * dedup, compression and stripes is used.
+ */
+public class TransferOptions {
+    private int stripes = Integer.getInteger("transfer.stripes", 1); // amount of parallel connections per file
+    private boolean resumable = Boolean.getBoolean("transfer.resumable"); // whether files are sent resumably
+    private int attempts = Integer.getInteger("transfer.attempts", 5); // tries of a resumable file before giving up
+    private boolean checksums = Boolean.getBoolean("transfer.checksums"); // whether files are sent as CRC32C frames
+    private boolean compression = Boolean.getBoolean("transfer.compression"); // whether files are compressed
+    private boolean delta = Boolean.getBoolean("transfer.delta"); // whether only changed blocks are sent
+    private boolean dedup = Boolean.getBoolean("transfer.dedup"); // whether chunks the peer holds are skipped
+    private int weight = Integer.getInteger("transfer.weight", 1); // share of the link against other transfers
+
+    /**
+     * sets the amount of parallel connections a single file is split across
+     *
+     * @param stripes the amount of connections. 1 sends the file over the
+     *                connection to the peer
+     */
+    public void setStripes(final int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("A file needs at least one stripe!");
+        }
+        this.stripes = stripes;
+    }
+
+    /**
+     * gets the amount of parallel connections a single file is split across
+     *
+     * @return the amount of connections
+     */
+    public int getStripes() {
+        return stripes;
+    }
+
+    /**
+     * sets whether files are sent so that they can be resumed after the
+     * connection drops
+     *
+     * @param resumable true to send files resumably
+     */
+    public void setResumable(final boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    /**
+     * returns whether files are sent so that they can be resumed after the
+     * connection drops
+     *
+     * @return true if files are sent resumably
+     */
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    /**
+     * sets the amount of times a resumable file is tried before giving up
+     *
+     * @param attempts the amount of attempts
+     */
+    public void setAttempts(final int attempts) {
+        if (attempts < 1) {
+            throw new IllegalArgumentException("A file needs at least one attempt!");
+        }
+        this.attempts = attempts;
+    }
+
+    /**
+     * gets the amount of times a resumable file is tried before giving up
+     *
+     * @return the amount of attempts
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * sets whether files are sent as frames that each carry a CRC32C
+     *
+     * @param checksums true to checksum every frame
+     */
+    public void setChecksums(final boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    /**
+     * returns whether files are sent as frames that each carry a CRC32C
+     *
+     * @return true if every frame is checksummed
+     */
+    public boolean isChecksums() {
+        return checksums;
+    }
+
+    /**
+     * sets whether files are compressed on the fly. Blocks that do not compress
+     * are sent as they are.
+     *
+     * @param compression true to compress files
+     */
+    public void setCompression(final boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * returns whether files are compressed on the fly
+     *
+     * @return true if files are compressed
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * sets whether files are sent as deltas against the copy the peer already
+     * has. A peer without a copy receives the whole file.
+     *
+     * @param delta true to send deltas
+     */
+    public void setDelta(final boolean delta) {
+        this.delta = delta;
+    }
+
+    /**
+     * returns whether files are sent as deltas
+     *
+     * @return true if files are sent as deltas
+     */
+    public boolean isDelta() {
+        return delta;
+    }
+
+    /**
+     * sets whether files are split into content defined chunks so chunks the
+     * peer already holds in its chunk store are not sent again
+     *
+     * @param dedup true to skip chunks the peer holds
+     */
+    public void setDedup(final boolean dedup) {
+        this.dedup = dedup;
+    }
+
+    /**
+     * returns whether chunks the peer already holds are skipped
+     *
+     * @return true if chunks the peer holds are skipped
+     */
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    /**
+     * sets the share of the link a file gets against the other files that are
+     * sent at the same time
+     *
+     * @param weight the weight, 1 for an equal share
+     */
+    public void setWeight(final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("A transfer needs a weight of at least 1!");
+        }
+        this.weight = weight;
+    }
+
+    /**
+     * gets the share of the link a file gets against the other files that are
+     * sent at the same time
+     *
+     * @return the weight
+     */
+    public int getWeight() {
+        return weight;
+    }
+}
@@ -0,0 +1,479 @@
+package part2.transfer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This shares the link of a node between the transfers it sends at the same
+ * time, so one large transfer does not starve the others.
+ *
+ * A transfer asks for the bytes it wants to send next and only writes them
+ * once the scheduler grants them. The grants go to the waiting transfers in
+ * turn with deficit round robin: on its turn a transfer may send the quantum
+ * times its weight, plus what it could not use on earlier turns. A transfer of
+ * weight 3 gets three times the bytes of a transfer of weight 1 while both are
+ * busy, whichever peers they go to, and a small file is done after a turn or
+ * two however large the other transfers are.
+ *
+ * Only transfer.maxGrants grants are on the link at a time, one at most per
+ * peer. A grant that is not reported within transfer.stallTimeout no longer
+ * counts against the link, so a peer that stops reading only holds up the
+ * transfers to itself.
+ *
+ * The bytes of all transfers together, and the bytes to every peer, can be
+ * capped with token buckets. A grant may take more tokens than a bucket holds,
+ * and the next grant waits until the bucket is full again, so a cap holds on
+ * average however large the grants are. A transfer to a peer that is over its
+ * cap lets the transfers to other peers go first and keeps its place.
+ */
+public class TransferScheduler {
+    // Bytes a transfer of weight 1 may send per turn
+    private static final int QUANTUM = Integer.getInteger("transfer.quantum", 256 * 1024);
+
+    // Nanoseconds after which a grant whose peer has not read it no longer holds
+    // up the transfers to other peers. Set in milliseconds
+    private static final long STALL_TIMEOUT = TimeUnit.MILLISECONDS
+            .toNanos(Long.getLong("transfer.stallTimeout", 200));
+
+    private final ReentrantLock lock = new ReentrantLock(); // guards everything below
+    private final Condition turn = lock.newCondition(); // signalled when the link is free or a grant was made
+    private final ArrayDeque<ScheduledTransfer> waiting = new ArrayDeque<>(); // transfers asking for bytes, in turn
+    private final List<ScheduledTransfer> transfers = new ArrayList<>(); // transfers that are open
+    private final Map<String, TokenBucket> peerBuckets = new HashMap<>(); // caps of the peers
+    private TokenBucket linkBucket = null; // cap of all transfers together, null if there is none
+    private long peerRate = 0; // cap of every peer in bytes per second, 0 if there is none
+    private final Set<String> sending = new HashSet<>(); // peers that have a grant on the link
+    private final ArrayDeque<ScheduledTransfer> onLink = new ArrayDeque<>(); // grants on the link, oldest first
+    private int maxGrants = Integer.getInteger("transfer.maxGrants", 1); // grants on the link at a time
+
+    /**
+     * create a scheduler with the caps of the transfer.rate and
+     * transfer.peerRate system properties, in bytes per second
+     */
+    public TransferScheduler() {
+        this(Long.getLong("transfer.rate", 0), Long.getLong("transfer.peerRate", 0));
+    }
+
+    /**
+     * create a scheduler with caps
+     *
+     * @param rate     the cap of all transfers together in bytes per second, 0
+     *                 for none
+     * @param peerRate the cap of the transfers to every peer in bytes per
+     *                 second, 0 for none
+     */
+    public TransferScheduler(final long rate, final long peerRate) {
+        setRate(rate);
+        setPeerRate(peerRate);
+    }
+
+    /**
+     * sets the cap of all transfers together
+     *
+     * @param rate the cap in bytes per second, 0 for none
+     */
+    public void setRate(final long rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("A rate cannot be negative!");
+        }
+        lock.lock();
+        try {
+            linkBucket = rate == 0 ? null : new TokenBucket(rate, Math.max(QUANTUM, rate / 10));
+            turn.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * sets the cap of the transfers to every peer
+     *
+     * @param peerRate the cap in bytes per second, 0 for none
+     */
+    public void setPeerRate(final long peerRate) {
+        if (peerRate < 0) {
+            throw new IllegalArgumentException("A rate cannot be negative!");
+        }
+        lock.lock();
+        try {
+            this.peerRate = peerRate;
+            peerBuckets.clear();
+            turn.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * sets the amount of grants on the link at a time. The transfers are only
+     * ordered by their weights while more peers wait than the link takes.
+     *
+     * @param maxGrants the amount of grants, at least 1
+     */
+    public void setMaxGrants(final int maxGrants) {
+        if (maxGrants < 1) {
+            throw new IllegalArgumentException("The link needs at least 1 grant!");
+        }
+        lock.lock();
+        try {
+            this.maxGrants = maxGrants;
+            turn.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * gets the amount of grants on the link at a time
+     *
+     * @return the amount of grants
+     */
+    public int getMaxGrants() {
+        lock.lock();
+        try {
+            return maxGrants;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * gets the cap of all transfers together
+     *
+     * @return the cap in bytes per second, 0 if there is none
+     */
+    public long getRate() {
+        lock.lock();
+        try {
+            return linkBucket == null ? 0 : linkBucket.getRate();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * gets the cap of the transfers to every peer
+     *
+     * @return the cap in bytes per second, 0 if there is none
+     */
+    public long getPeerRate() {
+        lock.lock();
+        try {
+            return peerRate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * open a transfer that sends its bytes through this scheduler
+     *
+     * @param name   the name of the transfer, such as the name of its file
+     * @param peer   the peer the transfer goes to, which shares its cap with the
+     *               other transfers to it
+     * @param weight the share of the link the transfer gets against the others
+     * @return the transfer, which must be closed once it is done
+     */
+    public ScheduledTransfer open(final String name, final String peer, final int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("A transfer needs a weight of at least 1!");
+        }
+        final ScheduledTransfer transfer = new ScheduledTransfer(this, name, peer, weight);
+        lock.lock();
+        try {
+            transfers.add(transfer);
+        } finally {
+            lock.unlock();
+        }
+        return transfer;
+    }
+
+    /**
+     * gets the transfers that are open
+     *
+     * @return a copy of the list of transfers
+     */
+    public List<ScheduledTransfer> getTransfers() {
+        lock.lock();
+        try {
+            return new ArrayList<>(transfers);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * wait until a transfer may send bytes
+     *
+     * @param transfer the transfer
+     * @param wanted   the amount of bytes the transfer wants to send
+     * @return the amount of bytes it may send, at least 1 and at most wanted
+     * @throws IOException if the transfer is closed or the thread is
+     *                     interrupted
+     */
+    long acquire(final ScheduledTransfer transfer, final long wanted) throws IOException {
+        lock.lock();
+        try {
+            if (transfer.closed) {
+                throw new IOException("The transfer " + transfer.getName() + " is closed!");
+            }
+            if (transfer.sending) {
+                throw new IllegalStateException("The transfer " + transfer.getName() + " did not report its bytes!");
+            }
+            transfer.pending = wanted;
+            transfer.granted = 0;
+            waiting.addLast(transfer);
+            while (transfer.granted == 0) {
+                final long wait = dispatch(System.nanoTime());
+                if (transfer.granted > 0) {
+                    break;
+                }
+                if (transfer.closed) {
+                    throw new IOException("The transfer " + transfer.getName() + " is closed!");
+                }
+                if (wait < Long.MAX_VALUE) {
+                    turn.awaitNanos(wait);
+                } else {
+                    turn.await();
+                }
+            }
+            return transfer.granted;
+        } catch (final InterruptedException e) {
+            waiting.remove(transfer);
+            transfer.granted = 0;
+            // A grant that came with the interrupt is given up
+            release(transfer);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The transfer " + transfer.getName() + " was interrupted!");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * grant bytes to the waiting transfers whose caps allow it, in turn, while
+     * the link takes more grants and one transfer per peer whose link is free.
+     * Must be called with the lock held.
+     *
+     * @param now the current time in nanoseconds
+     * @return the nanoseconds until a cap or a stalled grant allows a grant
+     *         again, or Long.MAX_VALUE if only a grant that is sent can free a
+     *         transfer
+     */
+    private long dispatch(final long now) {
+        long wait = Long.MAX_VALUE;
+        int active = activeGrants(now);
+        for (final Iterator<ScheduledTransfer> iterator = waiting.iterator(); iterator.hasNext();) {
+            if (active >= maxGrants) {
+                // The link is full until a grant is sent or stalls
+                return Math.min(wait, stallDelay(now));
+            }
+            final ScheduledTransfer transfer = iterator.next();
+            if (sending.contains(transfer.getPeer())) {
+                // Its peer is still reading the last grant
+                continue;
+            }
+            if (linkBucket != null) {
+                final long linkWait = linkBucket.delay(now);
+                if (linkWait > 0) {
+                    return Math.min(wait, linkWait);
+                }
+            }
+            final TokenBucket peerBucket = peerBucket(transfer.getPeer());
+            final long peerWait = peerBucket == null ? 0 : peerBucket.delay(now);
+            if (peerWait > 0) {
+                // Its peer is over the cap, so the transfer keeps its place
+                // and the next transfer goes first
+                wait = Math.min(wait, peerWait);
+                continue;
+            }
+            iterator.remove();
+
+            transfer.deficit += (long) QUANTUM * transfer.getWeight();
+            final long granted = Math.min(transfer.pending, transfer.deficit);
+            // A transfer that got all it asked for starts its next turn afresh
+            transfer.deficit = granted == transfer.pending ? 0 : transfer.deficit - granted;
+            transfer.granted = granted;
+            if (linkBucket != null) {
+                linkBucket.take(granted);
+            }
+            if (peerBucket != null) {
+                peerBucket.take(granted);
+            }
+            transfer.sending = true;
+            transfer.grantTime = now;
+            sending.add(transfer.getPeer());
+            onLink.addLast(transfer);
+            active++;
+            turn.signalAll();
+        }
+        return wait;
+    }
+
+    /**
+     * count the grants on the link that were made within the stall timeout.
+     * Must be called with the lock held.
+     *
+     * @param now the current time in nanoseconds
+     * @return the amount of grants
+     */
+    private int activeGrants(final long now) {
+        int active = 0;
+        for (final ScheduledTransfer transfer : onLink) {
+            if (now - transfer.grantTime < STALL_TIMEOUT) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    /**
+     * gets how long until the oldest grant that still counts against the link
+     * stalls. Must be called with the lock held.
+     *
+     * @param now the current time in nanoseconds
+     * @return the nanoseconds until the grant stalls, at least 1
+     */
+    private long stallDelay(final long now) {
+        for (final ScheduledTransfer transfer : onLink) {
+            final long left = transfer.grantTime + STALL_TIMEOUT - now;
+            if (left > 0) {
+                return left;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * free the link to the peer of a transfer if the transfer holds a grant.
+     * Must be called with the lock held.
+     *
+     * @param transfer the transfer
+     */
+    private void release(final ScheduledTransfer transfer) {
+        if (transfer.sending) {
+            transfer.sending = false;
+            sending.remove(transfer.getPeer());
+            onLink.remove(transfer);
+            turn.signalAll();
+        }
+    }
+
+    /**
+     * gets the bucket of a peer. Must be called with the lock held.
+     *
+     * @param peer the peer
+     * @return the bucket, null if peers are not capped
+     */
+    private TokenBucket peerBucket(final String peer) {
+        if (peerRate == 0) {
+            return null;
+        }
+        return peerBuckets.computeIfAbsent(peer, p -> new TokenBucket(peerRate, Math.max(QUANTUM, peerRate / 10)));
+    }
+
+    /**
+     * free the link to the peer after a transfer sent the bytes it was granted
+     *
+     * @param transfer the transfer
+     * @param bytes    the amount of bytes it sent
+     */
+    void sent(final ScheduledTransfer transfer, final long bytes) {
+        lock.lock();
+        try {
+            transfer.bytes += bytes;
+            transfer.granted = 0;
+            release(transfer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * close a transfer and free the link to its peer if it holds it
+     *
+     * @param transfer the transfer
+     */
+    void close(final ScheduledTransfer transfer) {
+        lock.lock();
+        try {
+            if (transfer.closed) {
+                return;
+            }
+            transfer.closed = true;
+            transfer.closeTime = System.nanoTime();
+            waiting.remove(transfer);
+            transfers.remove(transfer);
+            release(transfer);
+            turn.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * gets the amount of bytes a transfer sent so far. Taken under the lock as
+     * the count is not volatile.
+     *
+     * @param transfer the transfer
+     * @return the amount of bytes
+     */
+    long bytes(final ScheduledTransfer transfer) {
+        lock.lock();
+        try {
+            return transfer.bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This is a token bucket that may go into debt. Tokens are bytes and are
+     * added at the rate up to the size of the bucket.
+     */
+    private static class TokenBucket {
+        private final long rate; // tokens added per second
+        private final long size; // most tokens the bucket holds
+        private double tokens; // tokens in the bucket, negative when in debt
+        private long lastTime = System.nanoTime(); // time the tokens were last added
+
+        TokenBucket(final long rate, final long size) {
+            this.rate = rate;
+            this.size = size;
+            this.tokens = size;
+        }
+
+        /**
+         * add the tokens since the last time and get how long until the bucket
+         * is out of debt
+         *
+         * @param now the current time in nanoseconds
+         * @return the nanoseconds until the bucket is out of debt, 0 if it is not
+         *         in debt
+         */
+        long delay(final long now) {
+            tokens = Math.min(size, tokens + (now - lastTime) * rate / 1e9);
+            lastTime = now;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1e9 / rate);
+        }
+
+        void take(final long bytes) {
+            tokens -= bytes;
+        }
+
+        long getRate() {
+            return rate;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package part2.transfer;
+
+/**
+ * This represents the statistics of a single file transfer between two nodes.
+ * A TransferStats object is returned by the send and receive engines once a
+ * transfer has finished so that the node can report how the transfer went.
+ */
+public class TransferStats {
+    private final String fileName; // name of the file that was transferred
+    private final long bytes; // amount of payload bytes that were transferred
+    private final long elapsedNanos; // time the payload took to transfer in nanoseconds
+    private final String engine; // name of the engine that performed the transfer
+    private final long expectedBytes; // amount of bytes the sender announced
+    private final boolean verified; // whether the transfer passed its post-transfer verification
+    private int stripes = 1; // amount of parallel connections the file was split across
+    private long wireBytes = -1; // amount of bytes sent over the network when it differs from bytes
+    private long cpuNanos = 0; // CPU time spent compressing or decompressing the file
+
+    /**
+     * create the statistics for a finished transfer
+     *
+     * @param fileName     the name of the file that was transferred
+     * @param bytes        the amount of payload bytes that were transferred
+     * @param elapsedNanos the time the payload took to transfer in nanoseconds
+     * @param engine       the name of the engine that performed the transfer
+     */
+    public TransferStats(final String fileName, final long bytes, final long elapsedNanos, final String engine) {
+        this(fileName, bytes, elapsedNanos, engine, bytes, true);
+    }
+
+    /**
+     * create the statistics for a finished transfer that was verified after the
+     * payload was received
+     *
+     * @param fileName      the name of the file that was transferred
+     * @param bytes         the amount of payload bytes that were transferred
+     * @param elapsedNanos  the time the payload took to transfer in nanoseconds
+     * @param engine        the name of the engine that performed the transfer
+     * @param expectedBytes the amount of bytes the sender announced
+     * @param verified      true if the transfer passed its verification
+     */
+    public TransferStats(final String fileName, final long bytes, final long elapsedNanos, final String engine,
+            final long expectedBytes, final boolean verified) {
+        this.fileName = fileName;
+        this.bytes = bytes;
+        this.elapsedNanos = elapsedNanos;
+        this.engine = engine;
+        this.expectedBytes = expectedBytes;
+        this.verified = verified;
+    }
+
+    /**
+     * gets the name of the file that was transferred
+     *
+     * @return the name of the file
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * gets the amount of payload bytes that were transferred
+     *
+     * @return the amount of bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * gets the time the payload took to transfer
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * gets the name of the engine that performed the transfer
+     *
+     * @return the name of the engine
+     */
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * gets the amount of bytes the sender announced for this transfer
+     *
+     * @return the announced amount of bytes
+     */
+    public long getExpectedBytes() {
+        return expectedBytes;
+    }
+
+    /**
+     * returns whether the transfer passed its post-transfer verification
+     *
+     * @return true if the transfer was verified, false otherwise
+     */
+    public boolean isVerified() {
+        return verified;
+    }
+
+    /**
+     * sets the amount of parallel connections the file was split across
+     *
+     * @param stripes the amount of connections
+     */
+    public void setStripes(final int stripes) {
+        this.stripes = stripes;
+    }
+
+    /**
+     * gets the amount of parallel connections the file was split across
+     *
+     * @return the amount of connections
+     */
+    public int getStripes() {
+        return stripes;
+    }
+
+    /**
+     * sets the amount of bytes that were sent over the network, for transfers
+     * that change the size of the data on the wire
+     *
+     * @param wireBytes the amount of bytes on the wire
+     */
+    public void setWireBytes(final long wireBytes) {
+        this.wireBytes = wireBytes;
+    }
+
+    /**
+     * gets the amount of bytes that were sent over the network
+     *
+     * @return the amount of bytes on the wire
+     */
+    public long getWireBytes() {
+        return wireBytes < 0 ? bytes : wireBytes;
+    }
+
+    /**
+     * gets how many times smaller the data on the wire was than the file
+     *
+     * @return the compression ratio, 1 if the data was sent as it is
+     */
+    public double getCompressionRatio() {
+        final long wire = getWireBytes();
+        return wire == 0 ? 1 : (double) bytes / wire;
+    }
+
+    /**
+     * sets the CPU time spent compressing or decompressing the file
+     *
+     * @param cpuNanos the CPU time in nanoseconds
+     */
+    public void setCpuNanos(final long cpuNanos) {
+        this.cpuNanos = cpuNanos;
+    }
+
+    /**
+     * gets the CPU time spent compressing or decompressing the file
+     *
+     * @return the CPU time in nanoseconds
+     */
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    /**
+     * gets the throughput of the transfer
+     *
+     * @return the throughput in bytes per second
+     */
+    public double getBytesPerSecond() {
+        if (elapsedNanos <= 0) {
+            return 0;
+        }
+        return bytes * 1_000_000_000.0 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        String result = String.format("%s: %d bytes in %.3f ms (%.2f MB/s) using %s", fileName, bytes,
+                elapsedNanos / 1_000_000.0, getBytesPerSecond() / (1024 * 1024), engine);
+        if (stripes > 1) {
+            result += " over " + stripes + " stripes";
+        }
+        if (wireBytes >= 0) {
+            result += String.format(", %d bytes on the wire (ratio %.2f, %.1f ms CPU)", wireBytes,
+                    getCompressionRatio(), cpuNanos / 1_000_000.0);
+        }
+        if (!verified) {
+            return result + " FAILED verification, expected " + expectedBytes + " bytes";
+        }
+        return result;
+    }
+}